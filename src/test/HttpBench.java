@@ -0,0 +1,563 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import wordnice.http.client.HttpClientPool;
+import wordnice.http.client.HttpResponse;
+import wordnice.http.server.HttpRequest;
+import wordnice.http.server.HttpRequestHandler;
+import wordnice.http.server.HttpServer;
+import wordnice.http.websocket.WebSockets;
+
+/**
+ * Micro benchmarks of HTTP server hot paths: request parsing, 
+ * POST decoding, response writing, WebSocket framing and whole
+ * {@link HttpServer#processRequest(Iterable, HttpRequest)} over in-memory 
+ * connection and loopback.
+ * Reports ops/s and bytes allocated per op by benchmarking thread
+ * (loopback benchmarks count client thread only).
+ * 
+ * Usage: HttpBench [millis per iteration] [name filter]
+ */
+public class HttpBench {
+	
+	public static int WarmupIterations = 3;
+	public static int Iterations = 5;
+	
+	/** Result of ops, so that work is not optimized away **/
+	public static volatile long sink;
+	
+	/**
+	 * One benchmarked operation
+	 */
+	public static abstract class Bench {
+		
+		protected final String name;
+		
+		/** Operations done by one call of {@link #op()} **/
+		protected int batch = 1;
+		
+		public Bench(String name) {
+			this.name = name;
+		}
+		
+		public void setup() throws Exception {}
+		
+		public abstract long op() throws Exception;
+		
+		public void teardown() throws Exception {}
+		
+	}
+	
+	/**
+	 * Connected socket stand-in for requests over in-memory streams
+	 */
+	public static class MemorySocket extends Socket {
+		
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+		
+		@Override
+		public boolean isClosed() {
+			return false;
+		}
+		
+		@Override
+		public synchronized void close() {}
+		
+	}
+	
+	/**
+	 * Input replaying same bytes forever, as client sending same 
+	 * request over and over on persistent connection
+	 */
+	public static class ReplayInput extends InputStream {
+		
+		protected final byte[] data;
+		protected int pos = 0;
+		
+		public ReplayInput(byte[] data) {
+			this.data = data;
+		}
+		
+		@Override
+		public int read() {
+			int b = this.data[this.pos++] & 0xFF;
+			if(this.pos == this.data.length) this.pos = 0;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			int n = Math.min(len, this.data.length - this.pos);
+			System.arraycopy(this.data, this.pos, b, off, n);
+			this.pos += n;
+			if(this.pos == this.data.length) this.pos = 0;
+			return n;
+		}
+		
+	}
+	
+	/**
+	 * Output discarding written bytes
+	 */
+	public static class NullOutput extends OutputStream {
+		
+		public long written = 0;
+		
+		@Override
+		public void write(int b) {
+			this.written++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			this.written += len;
+		}
+		
+	}
+	
+	/**
+	 * Handler answering every request with small text body
+	 */
+	public static class HelloHandler implements HttpRequestHandler {
+		
+		protected static final byte[] Body = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+		
+		@Override
+		public boolean acceptRequest(HttpRequest req) {
+			try {
+				//heads and body are flushed separately
+				req.getSocket().setTcpNoDelay(true);
+			} catch(SocketException ign) {}
+			return true;
+		}
+		
+		@Override
+		public boolean finishAfterFirstLine(HttpRequest req) {
+			return false;
+		}
+		
+		@Override
+		public boolean finishAfterHeads(HttpRequest req) {
+			return false;
+		}
+		
+		@Override
+		public boolean handleRequest(HttpRequest req) {
+			try {
+				req.getResponse().setContentType("text/plain").setContentLength(Body.length);
+				req.writeResponseOK();
+				req.getOutputStream().write(Body);
+			} catch(IOException ex) {
+				req.closeSilent();
+			}
+			return true;
+		}
+		
+		@Override
+		public void handleDecoderException(HttpRequest req, Exception ex) {
+			ex.printStackTrace();
+		}
+		
+		@Override
+		public void cleanup(HttpRequest req, boolean status) {}
+		
+	}
+	
+	public static final String GetRequest = "GET /api/users/42?fields=name,email&limit=10 HTTP/1.1\r\n"
+			+ "Host: localhost:8080\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:118.0) Gecko/20100101 Firefox/118.0\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Cookie: session=4f0c1e2b9a7d4c3e8f1a2b3c4d5e6f70; theme=dark\r\n"
+			+ "Cache-Control: no-cache\r\n"
+			+ "\r\n";
+	
+	public static byte[] urlEncodedRequest() {
+		StringBuilder body = new StringBuilder();
+		for(int i = 0; i < 10; i++) {
+			if(i != 0) body.append('&');
+			body.append("field").append(i).append("=value%20number%20").append(i).append("%21+ok");
+		}
+		return ("POST /form HTTP/1.1\r\n"
+				+ "Host: localhost:8080\r\n"
+				+ "Content-Type: application/x-www-form-urlencoded\r\n"
+				+ "Content-Length: " + body.length() + "\r\n"
+				+ "\r\n" + body).getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	public static byte[] multipartRequest(int fileSize) {
+		String boundary = "----BenchBoundary7MA4YWxkTrZu0gW";
+		StringBuilder body = new StringBuilder();
+		body.append("--").append(boundary).append("\r\n")
+			.append("Content-Disposition: form-data; name=\"title\"\r\n\r\n")
+			.append("Holiday photos\r\n");
+		body.append("--").append(boundary).append("\r\n")
+			.append("Content-Disposition: form-data; name=\"description\"\r\n\r\n")
+			.append("Some longer description of uploaded file\r\n");
+		body.append("--").append(boundary).append("\r\n")
+			.append("Content-Disposition: form-data; name=\"file\"; filename=\"data.txt\"\r\n")
+			.append("Content-Type: text/plain\r\n\r\n");
+		Random rnd = new Random(42);
+		for(int i = 0; i < fileSize; i++) body.append((char) ('a' + rnd.nextInt(26)));
+		body.append("\r\n--").append(boundary).append("--\r\n");
+		return ("POST /upload HTTP/1.1\r\n"
+				+ "Host: localhost:8080\r\n"
+				+ "Content-Type: multipart/form-data; boundary=" + boundary + "\r\n"
+				+ "Content-Length: " + body.length() + "\r\n"
+				+ "\r\n" + body).getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Parse (and decode POST of) request replayed over in-memory connection
+	 */
+	public static Bench parse(String name, final byte[] request, final boolean post) {
+		return new Bench(name) {
+			
+			HttpRequest req;
+			
+			@Override
+			public void setup() throws Exception {
+				this.req = new HttpRequest(new MemorySocket(), new ReplayInput(request), new NullOutput());
+			}
+			
+			@Override
+			public long op() throws Exception {
+				HttpRequest req = this.req;
+				req.parseFirstLine().parseHeads();
+				long res = req.getRequest().getGet().size() + req.getRequest().getHeads().size();
+				if(post) {
+					req.parsePost();
+					res += req.getRequest().getPost().size();
+				}
+				if(!req.finishBody(Long.MAX_VALUE)) throw new IOException("Body not finished");
+				req.recycle();
+				return res;
+			}
+			
+		};
+	}
+	
+	/**
+	 * Write response heads and body to discarding output
+	 */
+	public static Bench response(String name, int bodySize) {
+		final byte[] body = new byte[bodySize];
+		return new Bench(name) {
+			
+			HttpRequest req;
+			NullOutput out;
+			
+			@Override
+			public void setup() throws Exception {
+				this.out = new NullOutput();
+				this.req = new HttpRequest(new MemorySocket(), new ReplayInput(new byte[1]), this.out);
+			}
+			
+			@Override
+			public long op() throws Exception {
+				HttpRequest req = this.req;
+				req.getResponse().setContentType("application/json; charset=utf-8")
+					.setContentLength(body.length)
+					.setHead("Cache-Control", "no-cache")
+					.setHead("X-Request-Id", "2b9a7d4c3e8f");
+				req.writeResponseOK();
+				OutputStream os = req.getOutputStream();
+				os.write(body);
+				os.flush();
+				req.recycle();
+				return this.out.written;
+			}
+			
+		};
+	}
+	
+	/**
+	 * Whole request processing through handler chain, as done by server
+	 * on persistent connection
+	 */
+	public static Bench process(String name, final byte[] request) {
+		return new Bench(name) {
+			
+			HttpRequest req;
+			List<HttpRequestHandler> handlers;
+			
+			@Override
+			public void setup() throws Exception {
+				this.req = new HttpRequest(new MemorySocket(), new ReplayInput(request), new NullOutput());
+				this.handlers = Collections.<HttpRequestHandler>singletonList(new HelloHandler());
+			}
+			
+			@Override
+			public long op() throws Exception {
+				HttpRequest req = this.req;
+				req.setKeepAlive(true);
+				if(!HttpServer.processRequest(this.handlers, req)) 
+					throw new IOException("Connection not kept alive");
+				req.recycle();
+				return req.getRequestCount();
+			}
+			
+		};
+	}
+	
+	/**
+	 * Send unmasked (server) frame
+	 */
+	public static Bench wsWrite(String name, int size) {
+		final byte[] payload = new byte[size];
+		final NullOutput out = new NullOutput();
+		return new Bench(name) {
+			
+			@Override
+			public long op() throws Exception {
+				WebSockets.sendFrame(out, WebSockets.FFin | WebSockets.OBin, null, payload);
+				return out.written;
+			}
+			
+		};
+	}
+	
+	/**
+	 * Read and unmask masked (client) frame
+	 */
+	public static Bench wsRead(String name, int size) throws IOException {
+		byte[] payload = new byte[size];
+		new Random(42).nextBytes(payload);
+		byte[] mask = {0x12, 0x34, 0x56, 0x78};
+		byte[] masked = new byte[size];
+		for(int i = 0; i < size; i++) masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+		byte[] unmasked = WebSockets.createUnmaskedFrame(masked, WebSockets.FFin | WebSockets.OBin);
+		int head = unmasked.length - size;
+		final byte[] frame = new byte[unmasked.length + 4];
+		System.arraycopy(unmasked, 0, frame, 0, head);
+		frame[1] |= 0x80;
+		System.arraycopy(mask, 0, frame, head, 4);
+		System.arraycopy(masked, 0, frame, head + 4, size);
+		final ByteArrayInputStream in = new ByteArrayInputStream(frame);
+		final byte[] maskBuffer = new byte[4];
+		return new Bench(name) {
+			
+			@Override
+			public long op() throws Exception {
+				in.reset();
+				int flags = in.read();
+				return flags + WebSockets.readMessage(in, 0, true, maskBuffer).length;
+			}
+			
+		};
+	}
+	
+	/**
+	 * Unmask payload in place, word at time or with plain byte loop for comparison
+	 */
+	public static Bench unmask(String name, int size, final boolean wordwise) {
+		final byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		final byte[] mask = {0x12, 0x34, 0x56, 0x78};
+		return new Bench(name) {
+			
+			@Override
+			public long op() throws Exception {
+				if(wordwise) {
+					WebSockets.unmask(data, 0, data.length, mask, 0);
+				} else {
+					for(int i = 0; i < data.length; i++) {
+						data[i] = (byte) ((data[i] ^ mask[i&3]) & 0xFF);
+					}
+				}
+				return data[data.length - 1];
+			}
+			
+		};
+	}
+	
+	/**
+	 * Requests to real server over loopback through pooled keep-alive client.
+	 * With pipeline > 1, that many requests are sent at once
+	 */
+	public static Bench loopback(String name, final int pipeline) {
+		return new Bench(name) {
+			
+			HttpServer server;
+			ExecutorService exec;
+			HttpClientPool pool;
+			String url;
+			String[] paths;
+			
+			{
+				this.batch = pipeline;
+			}
+			
+			@Override
+			public void setup() throws Exception {
+				this.server = HttpServer.create(new ServerSocket(0, 128, InetAddress.getLoopbackAddress()));
+				this.exec = Executors.newCachedThreadPool();
+				this.server.setClientExecutorService(this.exec).setMaxKeepAliveRequests(0)
+					.addHandler(new HelloHandler());
+				Thread th = new Thread(this.server, "HttpBench server");
+				th.setDaemon(true);
+				th.start();
+				this.pool = new HttpClientPool();
+				this.url = "http://localhost:" + this.server.getPort() + "/hello";
+				this.paths = new String[pipeline];
+				for(int i = 0; i < pipeline; i++) this.paths[i] = "/hello";
+			}
+			
+			@Override
+			public long op() throws Exception {
+				long res = 0;
+				if(pipeline > 1) {
+					for(HttpResponse r : this.pool.pipeline("localhost", this.server.getPort(), false, null, this.paths)) {
+						res += r.readBody().length;
+						r.close();
+					}
+				} else {
+					HttpResponse r = this.pool.get(this.url);
+					res = r.readBody().length;
+					r.close();
+				}
+				return res;
+			}
+			
+			@Override
+			public void teardown() throws Exception {
+				this.pool.close();
+				this.server.close();
+				this.exec.shutdownNow();
+			}
+			
+		};
+	}
+	
+	public static void main(String... args) throws Exception {
+		long millis = (args.length > 0) ? Long.parseLong(args[0]) : 1000;
+		String filter = (args.length > 1) ? args[1] : null;
+		byte[] get = GetRequest.getBytes(StandardCharsets.US_ASCII);
+		List<Bench> benches = new ArrayList<Bench>();
+		benches.add(parse("parse GET heads", get, false));
+		benches.add(parse("parse POST urlencoded", urlEncodedRequest(), true));
+		benches.add(parse("parse POST multipart 4KiB", multipartRequest(4096), true));
+		benches.add(response("write response 128B", 128));
+		benches.add(response("write response 16KiB", 16 * 1024));
+		benches.add(process("process GET in-memory", get));
+		benches.add(wsWrite("ws write 125B", 125));
+		benches.add(wsWrite("ws write 16KiB", 16 * 1024));
+		benches.add(wsRead("ws read masked 125B", 125));
+		benches.add(wsRead("ws read masked 16KiB", 16 * 1024));
+		benches.add(unmask("ws unmask bytewise 125B", 125, false));
+		benches.add(unmask("ws unmask 125B", 125, true));
+		benches.add(unmask("ws unmask bytewise 16KiB", 16 * 1024, false));
+		benches.add(unmask("ws unmask 16KiB", 16 * 1024, true));
+		benches.add(loopback("loopback GET keep-alive", 1));
+		benches.add(loopback("loopback GET pipelined x16", 16));
+		System.out.println(String.format("%-30s %14s %8s %12s", "Benchmark", "ops/s", "error", "B/op"));
+		for(Bench b : benches) {
+			if(filter != null && !b.name.contains(filter)) continue;
+			run(b, millis);
+		}
+	}
+	
+	/**
+	 * Run warmup and measured iterations and print mean ops/s with
+	 * relative standard deviation and allocated bytes per op
+	 */
+	public static void run(Bench b, long millis) throws Exception {
+		b.setup();
+		try {
+			for(int i = 0; i < WarmupIterations; i++) iteration(b, millis);
+			double[] rates = new double[Iterations];
+			double alloc = 0;
+			for(int i = 0; i < Iterations; i++) {
+				double[] res = iteration(b, millis);
+				rates[i] = res[0];
+				alloc += res[1];
+			}
+			double mean = 0, dev = 0;
+			for(double r : rates) mean += r;
+			mean /= rates.length;
+			for(double r : rates) dev += (r - mean) * (r - mean);
+			dev = Math.sqrt(dev / rates.length);
+			alloc /= Iterations;
+			System.out.println(String.format("%-30s %14.0f %7.1f%% %12s", b.name, mean, 
+					100 * dev / mean, (alloc < 0) ? "n/a" : String.format("%.0f", alloc)));
+		} finally {
+			b.teardown();
+		}
+	}
+	
+	/**
+	 * @return {ops/s, allocated bytes/op}
+	 */
+	protected static double[] iteration(Bench b, long millis) throws Exception {
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long allocStart = allocatedBytes();
+		long start = System.nanoTime();
+		long ops = 0;
+		long res = 0;
+		long now;
+		do {
+			for(int i = 0; i < 16; i++) res += b.op();
+			ops += 16;
+		} while((now = System.nanoTime()) < deadline);
+		long allocEnd = allocatedBytes();
+		sink = res;
+		ops *= b.batch;
+		double alloc = (allocStart < 0) ? -1 : (double) (allocEnd - allocStart) / ops;
+		return new double[] {ops * 1e9 / (now - start), alloc};
+	}
+	
+	/**
+	 * @return Bytes allocated by current thread or -1 if not supported by JVM
+	 */
+	protected static long allocatedBytes() {
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if(!(mx instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wordnice.limit.Limit;
+import wordnice.limit.LimitException;
+import wordnice.limit.Limits;
+
+/**
+ * Throughput of shared Limit incremented from many threads:
+ * simple limit behind global lock, atomic (CAS) and striped limit.
+ * Also checks that budget is never exceeded
+ */
+public class LimitBench {
+	
+	public static interface Factory {
+		public Limit create(int max);
+	}
+	
+	public static void main(String... args) throws Exception {
+		int maxThreads = (args.length > 0) ? Integer.parseInt(args[0]) 
+				: Runtime.getRuntime().availableProcessors();
+		final long millis = (args.length > 1) ? Long.parseLong(args[1]) : 1000;
+		String[] names = {"synchronized simple", "atomic", "striped"};
+		Factory[] factories = {
+			new Factory() {
+				public Limit create(int max) {
+					return new Locked(Limits.createLimit(max));
+				}
+			},
+			new Factory() {
+				public Limit create(int max) {
+					return Limits.createAtomicLimit(max);
+				}
+			},
+			new Factory() {
+				public Limit create(int max) {
+					return Limits.createStripedLimit(max);
+				}
+			}
+		};
+		for(int i = 0; i < factories.length; i++) {
+			for(int threads = 1; threads <= maxThreads; threads *= 2) {
+				run(names[i] + " x" + threads, factories[i], threads, millis); //warmup
+				run(names[i] + " x" + threads, factories[i], threads, millis);
+			}
+			budget(names[i], factories[i], maxThreads);
+		}
+	}
+	
+	/**
+	 * Increment and decrement shared limit for given time
+	 */
+	protected static void run(String name, Factory f, int threads, final long millis) throws Exception {
+		final Limit limit = f.create(Integer.MAX_VALUE / 2);
+		final AtomicLong ops = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] th = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			th[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch(InterruptedException ex) {
+						return;
+					}
+					long n = 0;
+					long end = System.nanoTime() + millis * 1000000L;
+					while((n & 1023) != 0 || System.nanoTime() < end) {
+						limit.increment(8);
+						limit.increment(-8);
+						n++;
+					}
+					ops.addAndGet(n);
+				}
+			};
+			th[i].start();
+		}
+		start.countDown();
+		for(Thread t : th) t.join();
+		System.out.printf("%-28s %8.1f M ops/s, position %d%n", name, 
+				ops.get() / (millis * 1000.0), limit.position());
+	}
+	
+	/**
+	 * Spend budget from all threads, sum of accepted increments must equal maximum
+	 */
+	protected static void budget(String name, Factory f, int threads) throws Exception {
+		final int max = 1000000;
+		final Limit limit = f.create(max);
+		final AtomicLong accepted = new AtomicLong();
+		Thread[] th = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			th[i] = new Thread() {
+				@Override
+				public void run() {
+					long n = 0;
+					int fails = 0;
+					while(fails < 1000) {
+						try {
+							limit.increment(3);
+							n += 3;
+						} catch(LimitException ex) {
+							fails++;
+						}
+					}
+					accepted.addAndGet(n);
+				}
+			};
+			th[i].start();
+		}
+		for(Thread t : th) t.join();
+		System.out.printf("%-28s budget %d, accepted %d, position %d%n", name, 
+				max, accepted.get(), limit.position());
+	}
+	
+	/**
+	 * Simple limit behind global lock, how shared limit had to be used before
+	 */
+	protected static class Locked
+	implements Limit {
+		
+		protected final Limit limit;
+		
+		protected Locked(Limit limit) {
+			this.limit = limit;
+		}
+		
+		public synchronized int position() {
+			return this.limit.position();
+		}
+		
+		public synchronized int maximum() {
+			return this.limit.maximum();
+		}
+		
+		public synchronized int available() {
+			return this.limit.available();
+		}
+		
+		public synchronized int increment() {
+			return this.limit.increment();
+		}
+		
+		public synchronized int increment(int val) {
+			return this.limit.increment(val);
+		}
+		
+		public synchronized boolean canIncrement(int val) {
+			return this.limit.canIncrement(val);
+		}
+		
+		public synchronized Limit reset() {
+			this.limit.reset();
+			return this;
+		}
+		
+		public void throwLimitException() {
+			this.limit.throwLimitException();
+		}
+		
+		public synchronized Limit clone() {
+			return new Locked(this.limit.clone());
+		}
+		
+	}
+	
+}
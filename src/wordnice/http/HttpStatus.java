@@ -1,5 +1,7 @@
 package wordnice.http;
 
+import java.nio.charset.StandardCharsets;
+
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.procedure.TIntObjectProcedure;
@@ -65,6 +67,30 @@ public class HttpStatus {
 		map.put(507, "Insufficient Storage");
 	}
 	
+	/** Pre-encoded "HTTP/1.1 code message\r\n" lines indexed by code **/
+	protected static byte[][] lines = new byte[600][];
+	
+	static {
+		map.forEachEntry(new TIntObjectProcedure<String>() {
+
+			@Override
+			public boolean execute(int code, String msg) {
+				if(code < lines.length)
+					lines[code] = ("HTTP/1.1 " + code + " " + msg + "\r\n").getBytes(StandardCharsets.US_ASCII);
+				return true;
+			}
+			
+		});
+	}
+	
+	/**
+	 * @return Pre-encoded HTTP/1.1 status line with CRLF (do not modify), 
+	 * 		or null for unknown code
+	 */
+	public static byte[] getStatusLine(int code) {
+		return (code < 0 || code >= lines.length) ? null : lines[code];
+	}
+	
 	public static String getStatusMessage(int code) {
 		if(code < 0) throw new IllegalArgumentException("Negative code!");
 		return map.get(code);
@@ -0,0 +1,707 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wordnice.api.Nice;
+import wordnice.http.HttpFormatException;
+import wordnice.streams.ArrayOutputStream;
+import wordnice.threads.HashedWheelTimer;
+
+/**
+ * Non-blocking HTTP/1.1 client on {@link AsynchronousSocketChannel}.
+ * Requests are encoded with {@link HttpClient#writeRequest} and 
+ * {@link HttpClient#writeHeads}, responses are parsed incrementally
+ * and returned with buffered body, so no thread waits for network.
+ * 
+ * Connections are kept alive per host; requests over 
+ * {@link #getMaxPerHost()} wait in queue for free connection.
+ * Plain http only, use {@link HttpClientPool} for https
+ */
+public class AsyncHttpClient
+implements Closeable, AutoCloseable {
+	
+	protected static final int
+		Head = 0,
+		Length = 1,
+		ChunkSize = 2,
+		ChunkData = 3,
+		ChunkEnd = 4,
+		Trailer = 5,
+		UntilClose = 6;
+	
+	/**
+	 * Connections to one host
+	 */
+	protected static class Host {
+		
+		protected final String host;
+		protected final int port;
+		protected final String authority;
+		protected InetSocketAddress address;
+		protected final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+		protected final ArrayDeque<Exchange> waiting = new ArrayDeque<Exchange>();
+		protected int open = 0;
+		
+		protected Host(String host, int port) {
+			this.host = host;
+			this.port = port;
+			this.authority = (port == 80) ? host : host + ":" + port;
+		}
+		
+	}
+	
+	/**
+	 * Request waiting for response
+	 */
+	protected static class Exchange {
+		
+		protected final Host host;
+		protected final String method;
+		protected final byte[] request;
+		protected final CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
+		protected boolean retried = false;
+		
+		protected Exchange(Host host, String method, byte[] request) {
+			this.host = host;
+			this.method = method;
+			this.request = request;
+		}
+		
+	}
+	
+	protected final AsynchronousChannelGroup group;
+	protected final Map<String,Host> hosts = new HashMap<String,Host>();
+	protected int maxPerHost = 64;
+	protected long idleTimeout = 30000;
+	protected long readTimeout = 30000;
+	protected int maxHeadSize = 64 * 1024;
+	protected long maxBodySize = 64L << 20;
+	protected HashedWheelTimer timer;
+	protected boolean closed = false;
+	
+	protected final AtomicLong created = new AtomicLong();
+	protected final AtomicLong reused = new AtomicLong();
+	protected final AtomicInteger inFlight = new AtomicInteger();
+	
+	public AsyncHttpClient() {
+		this(null);
+	}
+	
+	/**
+	 * @param group Group of channels, or null for default JVM group
+	 */
+	public AsyncHttpClient(AsynchronousChannelGroup group) {
+		this.group = group;
+	}
+	
+	public int getMaxPerHost() {
+		return this.maxPerHost;
+	}
+	
+	/**
+	 * Maximum count of open connections to one host
+	 */
+	public AsyncHttpClient setMaxPerHost(int maxPerHost) {
+		if(maxPerHost < 1) throw new IllegalArgumentException("maxPerHost < 1");
+		this.maxPerHost = maxPerHost;
+		return this;
+	}
+	
+	public long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+	
+	public AsyncHttpClient setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+	
+	public long getReadTimeout() {
+		return this.readTimeout;
+	}
+	
+	/**
+	 * Milliseconds to wait for each read or write
+	 */
+	public AsyncHttpClient setReadTimeout(long readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+	
+	public int getMaxHeadSize() {
+		return this.maxHeadSize;
+	}
+	
+	public AsyncHttpClient setMaxHeadSize(int maxHeadSize) {
+		this.maxHeadSize = maxHeadSize;
+		return this;
+	}
+	
+	public long getMaxBodySize() {
+		return this.maxBodySize;
+	}
+	
+	/**
+	 * Responses with longer body fail
+	 */
+	public AsyncHttpClient setMaxBodySize(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+		return this;
+	}
+	
+	public HashedWheelTimer getTimer() {
+		return (this.timer == null) ? HashedWheelTimer.shared() : this.timer;
+	}
+	
+	public AsyncHttpClient setTimer(HashedWheelTimer timer) {
+		this.timer = timer;
+		return this;
+	}
+	
+	public long getCreated() {
+		return this.created.get();
+	}
+	
+	public long getReused() {
+		return this.reused.get();
+	}
+	
+	/**
+	 * @return Count of requests sent or waiting, whose responses were not received yet
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+	
+	public synchronized int getOpenCount() {
+		int n = 0;
+		for(Host h : this.hosts.values()) n += h.open;
+		return n;
+	}
+	
+	/**
+	 * Send request. Returned future completes with response 
+	 * with fully read body, or fails with IOException
+	 * 
+	 * @param path Path with query
+	 * @param heads Request heads or null
+	 * @param body Request body or null
+	 */
+	public CompletableFuture<HttpResponse> send(String host, int port, String method, String path,
+			Map<String,?> heads, byte[] body) {
+		if(method == null) method = "GET";
+		Host h;
+		synchronized(this) {
+			String key = host + ':' + port;
+			h = this.hosts.get(key);
+			if(h == null) {
+				h = new Host(host, port);
+				this.hosts.put(key, h);
+			}
+		}
+		Exchange ex;
+		try {
+			ex = new Exchange(h, method, encode(h, method, path, heads, body));
+		} catch(IOException e) {
+			CompletableFuture<HttpResponse> f = new CompletableFuture<HttpResponse>();
+			f.completeExceptionally(e);
+			return f;
+		}
+		this.inFlight.incrementAndGet();
+		this.submit(ex);
+		return ex.future;
+	}
+	
+	/**
+	 * Send request to absolute http URL
+	 */
+	public CompletableFuture<HttpResponse> send(String method, String url, Map<String,?> heads, byte[] body) {
+		URI uri = URI.create(url);
+		if(!"http".equalsIgnoreCase(uri.getScheme()))
+			throw new IllegalArgumentException("Unsupported scheme " + uri.getScheme());
+		int port = (uri.getPort() < 0) ? 80 : uri.getPort();
+		String path = uri.getRawPath();
+		if(path == null || path.isEmpty()) path = "/";
+		if(uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+		return this.send(uri.getHost(), port, method, path, heads, body);
+	}
+	
+	public CompletableFuture<HttpResponse> get(String url) {
+		return this.send("GET", url, null, null);
+	}
+	
+	/**
+	 * Encode request with HttpClient writers
+	 */
+	protected static byte[] encode(Host h, String method, String path, 
+			Map<String,?> heads, byte[] body) throws IOException {
+		ArrayOutputStream out = Nice.createArrayOutput(256 + ((body == null) ? 0 : body.length));
+		HttpClient c = new HttpClient(null, null, out);
+		c.writeRequest(path, method);
+		c.setHead("Host", h.authority);
+		if(heads != null) {
+			for(Entry<String,?> e : heads.entrySet()) c.setHead(e.getKey(), e.getValue());
+		}
+		if(body != null) c.setHead("Content-Length", body.length);
+		c.writeHeads(false, false);
+		if(body != null) out.write(body);
+		return out.toByteArray();
+	}
+	
+	protected static boolean isIdempotent(String method) {
+		return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method)
+				|| "DELETE".equals(method) || "OPTIONS".equals(method);
+	}
+	
+	/**
+	 * Start exchange on idle connection, open new one or queue it
+	 */
+	protected void submit(Exchange ex) {
+		Host h = ex.host;
+		Connection c;
+		synchronized(this) {
+			if(this.closed) {
+				this.fail(ex, new IOException("Client closed"));
+				return;
+			}
+			c = h.idle.pollLast();
+			if(c != null) {
+				if(c.idle != null) c.idle.cancel();
+				c.idle = null;
+				this.reused.incrementAndGet();
+			} else if(h.open < this.maxPerHost) {
+				h.open++;
+			} else {
+				h.waiting.add(ex);
+				return;
+			}
+		}
+		if(c != null) c.start(ex);
+		else this.connect(ex);
+	}
+	
+	protected void connect(final Exchange ex) {
+		final Host h = ex.host;
+		final AsynchronousSocketChannel ch;
+		try {
+			if(h.address == null) h.address = new InetSocketAddress(h.host, h.port);
+			ch = (this.group == null) ? AsynchronousSocketChannel.open() 
+					: AsynchronousSocketChannel.open(this.group);
+			ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		} catch(IOException | RuntimeException e) {
+			this.connectionClosed(h);
+			this.fail(ex, e);
+			return;
+		}
+		ch.connect(h.address, null, new CompletionHandler<Void,Void>() {
+			
+			@Override
+			public void completed(Void result, Void att) {
+				created.incrementAndGet();
+				new Connection(h, ch).start(ex);
+			}
+			
+			@Override
+			public void failed(Throwable t, Void att) {
+				try {
+					ch.close();
+				} catch(IOException ign) {}
+				connectionClosed(h);
+				fail(ex, t);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Connection finished response and can be reused
+	 */
+	protected void release(final Connection c) {
+		Exchange next;
+		synchronized(this) {
+			next = c.host.waiting.poll();
+			if(next == null) {
+				if(this.closed) {
+					c.host.open--;
+					c.close();
+					return;
+				}
+				c.host.idle.addLast(c);
+				c.idle = this.getTimer().newTimeout(new Runnable() {
+					
+					@Override
+					public void run() {
+						expire(c);
+					}
+					
+				}, this.idleTimeout);
+				return;
+			}
+		}
+		this.reused.incrementAndGet();
+		c.start(next);
+	}
+	
+	protected void expire(Connection c) {
+		synchronized(this) {
+			if(!c.host.idle.remove(c)) return;
+			c.host.open--;
+		}
+		c.close();
+	}
+	
+	/**
+	 * Connection of host was closed, open new one for waiting request
+	 */
+	protected void connectionClosed(Host h) {
+		Exchange next;
+		synchronized(this) {
+			h.open--;
+			next = this.closed ? null : h.waiting.poll();
+			if(next != null) h.open++;
+		}
+		if(next != null) this.connect(next);
+	}
+	
+	protected void complete(Exchange ex, HttpResponse res) {
+		this.inFlight.decrementAndGet();
+		ex.future.complete(res);
+	}
+	
+	protected void fail(Exchange ex, Throwable t) {
+		this.inFlight.decrementAndGet();
+		ex.future.completeExceptionally(t);
+	}
+	
+	/**
+	 * Close idle connections and fail waiting requests.
+	 * Requests already sent are finished
+	 */
+	@Override
+	public void close() {
+		List<Connection> conns = new ArrayList<Connection>();
+		List<Exchange> waiting = new ArrayList<Exchange>();
+		synchronized(this) {
+			this.closed = true;
+			for(Host h : this.hosts.values()) {
+				for(Connection c : h.idle) {
+					if(c.idle != null) c.idle.cancel();
+					conns.add(c);
+				}
+				h.open -= h.idle.size();
+				h.idle.clear();
+				waiting.addAll(h.waiting);
+				h.waiting.clear();
+			}
+		}
+		for(Connection c : conns) c.close();
+		for(Exchange ex : waiting) this.fail(ex, new IOException("Client closed"));
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "AsyncHttpClient [hosts=" + this.hosts.size() + ", created=" + this.created 
+				+ ", reused=" + this.reused + ", inFlight=" + this.inFlight + "]";
+	}
+	
+	/**
+	 * One keep-alive connection, handles one exchange at time
+	 */
+	protected class Connection
+	implements CompletionHandler<Integer,Void> {
+		
+		protected final Host host;
+		protected final AsynchronousSocketChannel ch;
+		protected ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+		protected HashedWheelTimer.Timeout idle;
+		protected int requests = 0;
+		
+		protected Exchange ex;
+		protected HttpResponse res;
+		protected int state;
+		protected long remaining;
+		protected boolean received;
+		protected boolean keepAlive;
+		protected ArrayOutputStream body;
+		
+		protected final CompletionHandler<Integer,ByteBuffer> writer = new CompletionHandler<Integer,ByteBuffer>() {
+			
+			@Override
+			public void completed(Integer n, ByteBuffer buf) {
+				if(buf.hasRemaining()) {
+					ch.write(buf, readTimeout, TimeUnit.MILLISECONDS, buf, this);
+				} else {
+					read();
+				}
+			}
+			
+			@Override
+			public void failed(Throwable t, ByteBuffer buf) {
+				Connection.this.failed(t, null);
+			}
+			
+		};
+		
+		protected Connection(Host host, AsynchronousSocketChannel ch) {
+			this.host = host;
+			this.ch = ch;
+		}
+		
+		protected void start(Exchange ex) {
+			this.ex = ex;
+			this.res = null;
+			this.state = Head;
+			this.received = false;
+			this.body = null;
+			this.requests++;
+			ByteBuffer buf = ByteBuffer.wrap(ex.request);
+			try {
+				this.ch.write(buf, readTimeout, TimeUnit.MILLISECONDS, buf, this.writer);
+			} catch(RuntimeException e) {
+				this.failed(e, null);
+			}
+		}
+		
+		protected void read() {
+			try {
+				if(this.in.position() > 0 && this.parse()) {
+					this.finish(this.keepAlive);
+					return;
+				}
+				this.ch.read(this.in, readTimeout, TimeUnit.MILLISECONDS, null, this);
+			} catch(IOException | RuntimeException e) {
+				this.failed(e, null);
+			}
+		}
+		
+		@Override
+		public void completed(Integer n, Void att) {
+			try {
+				if(n < 0) {
+					this.eof();
+					return;
+				}
+				this.received = true;
+				if(this.parse()) this.finish(this.keepAlive);
+				else this.ch.read(this.in, readTimeout, TimeUnit.MILLISECONDS, null, this);
+			} catch(IOException | RuntimeException e) {
+				this.failed(e, null);
+			}
+		}
+		
+		@Override
+		public void failed(Throwable t, Void att) {
+			Exchange ex = this.ex;
+			this.ex = null;
+			this.close();
+			connectionClosed(this.host);
+			if(ex != null) fail(ex, t);
+		}
+		
+		protected void eof() throws IOException {
+			Exchange ex = this.ex;
+			if(this.state == UntilClose) {
+				this.finish(false);
+			} else if(this.state == Head && !this.received && this.requests > 1 
+					&& !ex.retried && isIdempotent(ex.method)) {
+				//Server closed idle connection, retry on new one
+				this.ex = null;
+				this.close();
+				connectionClosed(this.host);
+				ex.retried = true;
+				submit(ex);
+			} else {
+				throw new EOFException("Connection closed before end of response");
+			}
+		}
+		
+		/**
+		 * Consume buffered bytes
+		 * @return true if response was read, {@link #keepAlive} tells if connection can be reused
+		 */
+		protected boolean parse() throws IOException {
+			ByteBuffer in = this.in;
+			in.flip();
+			try {
+				while(true) {
+					switch(this.state) {
+					case Head:
+						int end = this.find(in, true);
+						if(end < 0) {
+							if(in.remaining() >= maxHeadSize) 
+								throw new HttpFormatException("Response heads too long");
+							return false;
+						}
+						byte[] head = new byte[end - in.position()];
+						in.get(head);
+						HttpResponse res = new HttpResponse(null);
+						res.readHead(new ByteArrayInputStream(head));
+						if(res.getStatus() >= 100 && res.getStatus() < 200 && res.getStatus() != 101) continue;
+						this.res = res;
+						long len = res.frame(this.ex.method);
+						if(len > maxBodySize) throw new IOException("Response body too long");
+						this.body = Nice.createArrayOutput((len > 0) ? (int) len : 1024);
+						if(len == HttpResponse.BodyChunked) {
+							this.state = ChunkSize;
+						} else if(len == HttpResponse.BodyUntilClose) {
+							this.state = UntilClose;
+						} else {
+							this.state = Length;
+							this.remaining = len;
+						}
+						break;
+					case Length:
+					case ChunkData:
+						int n = (int) Math.min(this.remaining, in.remaining());
+						this.body.write(in.array(), in.arrayOffset() + in.position(), n);
+						in.position(in.position() + n);
+						this.remaining -= n;
+						if(this.remaining > 0) return false;
+						if(this.state == Length) {
+							this.keepAlive = this.res.isKeepAlive() && !in.hasRemaining();
+							return true;
+						}
+						this.state = ChunkEnd;
+						break;
+					case ChunkEnd:
+						if(in.remaining() < 2) return false;
+						if(in.get() != '\r' || in.get() != '\n') throw new HttpFormatException("Chunk not followed by CRLF");
+						this.state = ChunkSize;
+						break;
+					case ChunkSize:
+						String line = this.line(in);
+						if(line == null) return false;
+						int semi = line.indexOf(';');
+						if(semi >= 0) line = line.substring(0, semi);
+						try {
+							this.remaining = Long.parseLong(line.trim(), 16);
+						} catch(NumberFormatException ex) {
+							throw new HttpFormatException("Corrupted chunk size: " + line);
+						}
+						if(this.remaining < 0 || this.body.size() + this.remaining > maxBodySize) 
+							throw new IOException("Response body too long");
+						this.state = (this.remaining == 0) ? Trailer : ChunkData;
+						break;
+					case Trailer:
+						line = this.line(in);
+						if(line == null) return false;
+						if(line.isEmpty()) {
+							this.keepAlive = this.res.isKeepAlive() && !in.hasRemaining();
+							return true;
+						}
+						break;
+					case UntilClose:
+						n = in.remaining();
+						if(this.body.size() + n > maxBodySize) throw new IOException("Response body too long");
+						this.body.write(in.array(), in.arrayOffset() + in.position(), n);
+						in.position(in.limit());
+						return false;
+					}
+				}
+			} finally {
+				in.compact();
+				if(!in.hasRemaining() && in.capacity() < maxHeadSize) {
+					ByteBuffer bigger = ByteBuffer.allocate(Math.min(maxHeadSize, in.capacity() * 2));
+					in.flip();
+					bigger.put(in);
+					this.in = bigger;
+				}
+			}
+		}
+		
+		/**
+		 * @return Position after CRLFCRLF (or after LF of line) or -1
+		 */
+		protected int find(ByteBuffer in, boolean head) {
+			byte[] b = in.array();
+			int off = in.arrayOffset();
+			for(int i = in.position(); i < in.limit(); i++) {
+				if(b[off + i] != '\n') continue;
+				if(!head) return i + 1;
+				if(i >= in.position() + 3 && b[off + i - 1] == '\r' 
+						&& b[off + i - 2] == '\n' && b[off + i - 3] == '\r') return i + 1;
+			}
+			return -1;
+		}
+		
+		protected String line(ByteBuffer in) throws IOException {
+			int end = this.find(in, false);
+			if(end < 0) {
+				if(in.remaining() > 4096) throw new HttpFormatException("Chunk line too long");
+				return null;
+			}
+			int len = end - in.position();
+			String line = new String(in.array(), in.arrayOffset() + in.position(), len, Nice.UTF8);
+			in.position(end);
+			return line.trim();
+		}
+		
+		protected void finish(boolean keepAlive) {
+			Exchange ex = this.ex;
+			HttpResponse res = this.res;
+			res.body = new ByteArrayInputStream(this.body.toByteArray());
+			this.ex = null;
+			this.res = null;
+			this.body = null;
+			if(keepAlive) {
+				release(this);
+			} else {
+				this.close();
+				connectionClosed(this.host);
+			}
+			complete(ex, res);
+		}
+		
+		protected void close() {
+			try {
+				this.ch.close();
+			} catch(IOException ign) {}
+		}
+		
+	}
+	
+}
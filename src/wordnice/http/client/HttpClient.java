@@ -133,6 +133,14 @@ public class HttpClient {
 	}
 	
 	public HttpClient writeHeads(boolean encode) throws IOException {
+		return this.writeHeads(encode, true);
+	}
+	
+	/**
+	 * @param flush False to keep request in buffer, e.g. to send 
+	 * 		several pipelined requests at once
+	 */
+	public HttpClient writeHeads(boolean encode, boolean flush) throws IOException {
 		OutputStream out = this.getOutput();
 		for(Entry<CharSequence,List<Object>> rootEntry : this.heads.entrySet()) {
 			CharSequence _key = rootEntry.getKey();
@@ -149,7 +157,7 @@ public class HttpClient {
 			}
 		}
 		out.write(CRLF);
-		out.flush();
+		if(flush) out.flush();
 		return this;
 	}
 	
@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import wordnice.threads.HashedWheelTimer;
+
+/**
+ * Pool of keep-alive HTTP/1.1 connections keyed by host, port and TLS.
+ * Connections are reused across requests, count of connections per host
+ * is limited (callers wait for free one) and idle connections are closed
+ * after {@link #getIdleTimeout()}.
+ * 
+ * Simple requests go through {@link #send}, pipelined ones through
+ * {@link #pipeline} or directly with {@link #acquire} and {@link HttpConnection}
+ */
+public class HttpClientPool
+implements Closeable, AutoCloseable {
+	
+	/**
+	 * Connections to one host
+	 */
+	protected static class Host {
+		
+		protected final String host;
+		protected final int port;
+		protected final boolean tls;
+		protected final String authority;
+		protected final ArrayDeque<HttpConnection> idle = new ArrayDeque<HttpConnection>();
+		protected int open = 0;
+		
+		protected Host(String host, int port, boolean tls) {
+			this.host = host;
+			this.port = port;
+			this.tls = tls;
+			this.authority = (port == (tls ? 443 : 80)) ? host : host + ":" + port;
+		}
+		
+	}
+	
+	protected final Map<String,Host> hosts = new HashMap<String,Host>();
+	protected int maxPerHost = 8;
+	protected long idleTimeout = 30000;
+	protected int connectTimeout = 10000;
+	protected int readTimeout = 30000;
+	protected long acquireTimeout = 30000;
+	protected SSLSocketFactory sslFactory;
+	protected HashedWheelTimer timer;
+	protected boolean closed = false;
+	
+	protected final AtomicLong created = new AtomicLong();
+	protected final AtomicLong reused = new AtomicLong();
+	protected final AtomicLong expired = new AtomicLong();
+	
+	public HttpClientPool() {}
+	
+	public int getMaxPerHost() {
+		return this.maxPerHost;
+	}
+	
+	/**
+	 * Maximum count of open connections to one host
+	 */
+	public HttpClientPool setMaxPerHost(int maxPerHost) {
+		if(maxPerHost < 1) throw new IllegalArgumentException("maxPerHost < 1");
+		this.maxPerHost = maxPerHost;
+		return this;
+	}
+	
+	public long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+	
+	/**
+	 * Milliseconds after which idle connection is closed
+	 */
+	public HttpClientPool setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+	
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+	
+	public HttpClientPool setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+	
+	public int getReadTimeout() {
+		return this.readTimeout;
+	}
+	
+	/**
+	 * Socket timeout of new connections
+	 */
+	public HttpClientPool setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+	
+	public long getAcquireTimeout() {
+		return this.acquireTimeout;
+	}
+	
+	/**
+	 * Milliseconds to wait for free connection when host has maximum open
+	 */
+	public HttpClientPool setAcquireTimeout(long acquireTimeout) {
+		this.acquireTimeout = acquireTimeout;
+		return this;
+	}
+	
+	public SSLSocketFactory getSSLSocketFactory() {
+		return (this.sslFactory == null) 
+				? (SSLSocketFactory) SSLSocketFactory.getDefault() 
+				: this.sslFactory;
+	}
+	
+	public HttpClientPool setSSLSocketFactory(SSLSocketFactory sslFactory) {
+		this.sslFactory = sslFactory;
+		return this;
+	}
+	
+	public HashedWheelTimer getTimer() {
+		return (this.timer == null) ? HashedWheelTimer.shared() : this.timer;
+	}
+	
+	public HttpClientPool setTimer(HashedWheelTimer timer) {
+		this.timer = timer;
+		return this;
+	}
+	
+	/**
+	 * @return Count of opened connections
+	 */
+	public long getCreated() {
+		return this.created.get();
+	}
+	
+	/**
+	 * @return Count of times idle connection was reused
+	 */
+	public long getReused() {
+		return this.reused.get();
+	}
+	
+	/**
+	 * @return Count of idle connections closed after idle timeout
+	 */
+	public long getExpired() {
+		return this.expired.get();
+	}
+	
+	public synchronized int getOpenCount() {
+		int n = 0;
+		for(Host h : this.hosts.values()) n += h.open;
+		return n;
+	}
+	
+	public synchronized int getIdleCount() {
+		int n = 0;
+		for(Host h : this.hosts.values()) n += h.idle.size();
+		return n;
+	}
+	
+	/**
+	 * Take idle connection to host or open new one. 
+	 * Waits if host already has maximum of open connections
+	 */
+	public HttpConnection acquire(String host, int port, boolean tls) throws IOException {
+		String key = (tls ? "https://" : "http://") + host + ':' + port;
+		Host h;
+		synchronized(this) {
+			h = this.hosts.get(key);
+			if(h == null) {
+				h = new Host(host, port, tls);
+				this.hosts.put(key, h);
+			}
+			long deadline = System.currentTimeMillis() + this.acquireTimeout;
+			while(true) {
+				if(this.closed) throw new IOException("Pool closed");
+				HttpConnection c = h.idle.pollLast();
+				if(c != null) {
+					if(c.idle != null) c.idle.cancel();
+					c.idle = null;
+					if(c.isOpen()) {
+						this.reused.incrementAndGet();
+						return c;
+					}
+					h.open--;
+					c.closeSilent();
+					continue;
+				}
+				if(h.open < this.maxPerHost) {
+					h.open++;
+					break;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) throw new SocketTimeoutException("No free connection to " + h.authority);
+				try {
+					this.wait(wait);
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for connection", ex);
+				}
+			}
+		}
+		try {
+			HttpConnection c = this.connect(h);
+			this.created.incrementAndGet();
+			return c;
+		} catch(IOException | RuntimeException ex) {
+			synchronized(this) {
+				h.open--;
+				this.notifyAll();
+			}
+			throw ex;
+		}
+	}
+	
+	protected HttpConnection connect(Host h) throws IOException {
+		Socket sock = new Socket();
+		try {
+			sock.connect(new InetSocketAddress(h.host, h.port), this.connectTimeout);
+			sock.setSoTimeout(this.readTimeout);
+			sock.setTcpNoDelay(true);
+			if(h.tls) {
+				SSLSocket ssl = (SSLSocket) this.getSSLSocketFactory().createSocket(sock, h.host, h.port, true);
+				SSLParameters params = ssl.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(params);
+				ssl.startHandshake();
+				sock = ssl;
+			}
+			return new HttpConnection(this, h, sock);
+		} catch(IOException | RuntimeException ex) {
+			try {
+				sock.close();
+			} catch(IOException ign) {}
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Return connection to pool, or close it if it can not be reused
+	 */
+	public void release(final HttpConnection c) {
+		Host h = c.host;
+		synchronized(this) {
+			if(!this.closed && c.isReusable() && !h.idle.contains(c)) {
+				c.heads.clear();
+				h.idle.addLast(c);
+				c.idle = this.getTimer().newTimeout(new Runnable() {
+					
+					@Override
+					public void run() {
+						expire(c);
+					}
+					
+				}, this.idleTimeout);
+				this.notifyAll();
+				return;
+			}
+			if(h.idle.contains(c)) return;
+			h.open--;
+			this.notifyAll();
+		}
+		c.closeSilent();
+	}
+	
+	/**
+	 * Close connection which stayed idle too long
+	 */
+	protected void expire(HttpConnection c) {
+		synchronized(this) {
+			if(!c.host.idle.remove(c)) return;
+			c.host.open--;
+			this.notifyAll();
+		}
+		this.expired.incrementAndGet();
+		c.closeSilent();
+	}
+	
+	protected static boolean isIdempotent(String method) {
+		return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method)
+				|| "DELETE".equals(method) || "OPTIONS".equals(method);
+	}
+	
+	/**
+	 * Send request and read response heads. Close response to return 
+	 * connection to pool. Idempotent requests are retried once on new 
+	 * connection if reused connection was closed by server
+	 * 
+	 * @param path Path with query
+	 * @param heads Request heads or null
+	 * @param body Request body or null
+	 */
+	public HttpResponse send(String host, int port, boolean tls, String method, String path, 
+			Map<String,?> heads, byte[] body) throws IOException {
+		if(method == null) method = "GET";
+		for(int attempt = 0; ; attempt++) {
+			HttpConnection c = this.acquire(host, port, tls);
+			boolean fresh = c.getRequestCount() == 0;
+			try {
+				this.write(c, method, path, heads, body, true);
+				return c.readResponse().setReleaseOnClose(true);
+			} catch(IOException ex) {
+				c.setReusable(false);
+				c.release();
+				if(fresh || attempt > 0 || !isIdempotent(method)) throw ex;
+			} catch(RuntimeException ex) {
+				c.setReusable(false);
+				c.release();
+				throw ex;
+			}
+		}
+	}
+	
+	/**
+	 * Send request to absolute http or https URL
+	 */
+	public HttpResponse send(String method, String url, Map<String,?> heads, byte[] body) throws IOException {
+		URI uri = URI.create(url);
+		String scheme = uri.getScheme();
+		boolean tls = "https".equalsIgnoreCase(scheme);
+		if(!tls && !"http".equalsIgnoreCase(scheme)) 
+			throw new IllegalArgumentException("Unsupported scheme " + scheme);
+		int port = (uri.getPort() < 0) ? (tls ? 443 : 80) : uri.getPort();
+		String path = uri.getRawPath();
+		if(path == null || path.isEmpty()) path = "/";
+		if(uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+		return this.send(uri.getHost(), port, tls, method, path, heads, body);
+	}
+	
+	public HttpResponse get(String url) throws IOException {
+		return this.send("GET", url, null, null);
+	}
+	
+	/**
+	 * Send GET requests for all paths at once over one connection 
+	 * and read responses with buffered bodies
+	 */
+	public List<HttpResponse> pipeline(String host, int port, boolean tls, 
+			Map<String,?> heads, String... paths) throws IOException {
+		List<HttpResponse> list = new ArrayList<HttpResponse>(paths.length);
+		HttpConnection c = this.acquire(host, port, tls);
+		try {
+			for(String path : paths) this.write(c, "GET", path, heads, null, false);
+			for(int i = 0; i < paths.length; i++) {
+				HttpResponse res = c.readResponse().buffer();
+				list.add(res);
+				if(!res.isKeepAlive() && i + 1 < paths.length) 
+					throw new IOException("Server closed pipelined connection after " + (i + 1) + " responses");
+			}
+		} catch(IOException | RuntimeException ex) {
+			c.setReusable(false);
+			throw ex;
+		} finally {
+			c.release();
+		}
+		return list;
+	}
+	
+	protected void write(HttpConnection c, String method, String path, 
+			Map<String,?> heads, byte[] body, boolean flush) throws IOException {
+		c.heads.clear();
+		c.writeRequest(path, method);
+		c.setHead("Host", c.host.authority);
+		if(heads != null) {
+			for(Entry<String,?> e : heads.entrySet()) c.setHead(e.getKey(), e.getValue());
+		}
+		if(body != null) c.setHead("Content-Length", body.length);
+		c.writeHeads(false, flush && body == null);
+		if(body != null) {
+			c.getOutput().write(body);
+			if(flush) c.getOutput().flush();
+		}
+	}
+	
+	/**
+	 * Close idle connections, connections in use are closed on release
+	 */
+	public void closeIdle() {
+		List<HttpConnection> list = new ArrayList<HttpConnection>();
+		synchronized(this) {
+			for(Host h : this.hosts.values()) {
+				for(HttpConnection c : h.idle) {
+					if(c.idle != null) c.idle.cancel();
+					list.add(c);
+				}
+				h.open -= h.idle.size();
+				h.idle.clear();
+			}
+			this.notifyAll();
+		}
+		for(HttpConnection c : list) c.closeSilent();
+	}
+	
+	@Override
+	public void close() {
+		synchronized(this) {
+			this.closed = true;
+		}
+		this.closeIdle();
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "HttpClientPool [hosts=" + this.hosts.size() + ", created=" + this.created 
+				+ ", reused=" + this.reused + ", maxPerHost=" + this.maxPerHost + "]";
+	}
+	
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+
+import wordnice.seq.ByteSequence;
+import wordnice.threads.HashedWheelTimer;
+
+/**
+ * Keep-alive connection owned by {@link HttpClientPool}.
+ * Requests are written with methods of {@link HttpClient}; several requests 
+ * can be written before reading responses (pipelining), responses are then
+ * read in the same order with {@link #readResponse()}.
+ * 
+ * Not thread safe, connection belongs to one thread until {@link #release()}
+ */
+public class HttpConnection
+extends HttpClient {
+	
+	protected final HttpClientPool pool;
+	protected final HttpClientPool.Host host;
+	protected final ArrayDeque<String> pending = new ArrayDeque<String>(); //Methods of unanswered requests
+	protected HttpResponse current; //Response with unread body
+	protected boolean reusable = true;
+	protected int requestCount = 0;
+	protected HashedWheelTimer.Timeout idle;
+	
+	protected HttpConnection(HttpClientPool pool, HttpClientPool.Host host, Socket sock) throws IOException {
+		super(sock);
+		this.pool = pool;
+		this.host = host;
+	}
+	
+	public HttpClientPool getPool() {
+		return this.pool;
+	}
+	
+	/**
+	 * @return host:port of this connection
+	 */
+	public String getAuthority() {
+		return this.host.authority;
+	}
+	
+	public boolean isSecure() {
+		return this.host.tls;
+	}
+	
+	/**
+	 * @return Count of requests written on this connection
+	 */
+	public int getRequestCount() {
+		return this.requestCount;
+	}
+	
+	/**
+	 * @return Count of written requests whose responses were not read yet
+	 */
+	public int getPendingCount() {
+		return this.pending.size();
+	}
+	
+	public boolean isOpen() {
+		return !this.sock.isClosed() && !this.sock.isInputShutdown();
+	}
+	
+	/**
+	 * @return true if connection can be returned to pool for next requests
+	 */
+	public boolean isReusable() {
+		return this.reusable && this.pending.isEmpty() && this.current == null && this.isOpen();
+	}
+	
+	public HttpConnection setReusable(boolean reusable) {
+		this.reusable = reusable;
+		return this;
+	}
+	
+	@Override
+	public HttpClient writeRequest(CharSequence path, CharSequence method, 
+			CharSequence httpver, CharSequence afterPath) throws IOException {
+		super.writeRequest(path, method, httpver, afterPath);
+		this.written((method == null) ? "GET" : method.toString());
+		return this;
+	}
+	
+	@Override
+	public HttpClient writeRequest(ByteSequence path, ByteSequence method, 
+			ByteSequence httpver, ByteSequence afterPath) throws IOException {
+		super.writeRequest(path, method, httpver, afterPath);
+		this.written((method == null) ? "GET" : method.toString());
+		return this;
+	}
+	
+	protected void written(String method) {
+		this.pending.add(method);
+		this.requestCount++;
+	}
+	
+	/**
+	 * Read response to oldest unanswered request. 
+	 * Unread body of previous response is skipped
+	 */
+	public HttpResponse readResponse() throws IOException {
+		String method = this.pending.poll();
+		if(method == null) throw new IllegalStateException("No request waits for response");
+		HttpResponse prev = this.current;
+		if(prev != null) {
+			if(!prev.finish()) {
+				this.reusable = false;
+				throw new IOException("Body of previous response was not read");
+			}
+			this.current = null;
+		}
+		this.getOutput().flush();
+		HttpResponse res;
+		try {
+			res = HttpResponse.read(this, method);
+		} catch(IOException ex) {
+			this.reusable = false;
+			throw ex;
+		}
+		if(!res.isKeepAlive()) this.reusable = false;
+		this.current = res;
+		return res;
+	}
+	
+	/**
+	 * Called when body of response was read or skipped
+	 */
+	protected void finished(HttpResponse res) {
+		if(this.current == res) this.current = null;
+	}
+	
+	/**
+	 * Return connection to pool. Closed instead if it can not be reused
+	 */
+	public void release() {
+		this.pool.release(this);
+	}
+	
+	public void closeSilent() {
+		try {
+			this.sock.close();
+		} catch(IOException ign) {}
+	}
+	
+	@Override
+	public String toString() {
+		return "HttpConnection [" + this.host.authority + ", requests=" + this.requestCount 
+				+ ", pending=" + this.pending.size() + "]";
+	}
+	
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import wordnice.api.Nice;
+import wordnice.http.HttpFormatException;
+import wordnice.streams.ChunkedInputStream;
+import wordnice.streams.IUtils;
+import wordnice.streams.LimitedInputStream;
+
+/**
+ * Response read from {@link HttpConnection}. Body must be read (or response 
+ * closed, which skips rest of body) before next response on same connection
+ * can be read. Closing response of {@link HttpClientPool#send} request 
+ * returns connection to pool
+ */
+public class HttpResponse
+implements Closeable, AutoCloseable {
+	
+	/** Maximum count of unread body bytes skipped on close to keep connection **/
+	public static long MaxDrain = 64 * 1024;
+	
+	/** Body lengths returned by {@link #frame(String)} **/
+	protected static final long 
+		BodyChunked = -1,
+		BodyUntilClose = -2;
+	
+	protected final HttpConnection connection;
+	protected String httpVersion;
+	protected int status;
+	protected String reason;
+	protected Map<String,String> heads;
+	protected InputStream body;
+	protected boolean keepAlive;
+	protected boolean releaseOnClose = false;
+	protected boolean closed = false;
+	
+	protected HttpResponse(HttpConnection connection) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * Read status line and heads of response to request with given method.
+	 * Interim 1xx responses (except 101) are skipped
+	 */
+	public static HttpResponse read(HttpConnection conn, String method) throws IOException {
+		InputStream in = conn.getInput();
+		HttpResponse res = new HttpResponse(conn);
+		do {
+			res.readHead(in);
+		} while(res.status >= 100 && res.status < 200 && res.status != 101);
+		res.initBody(in, method);
+		return res;
+	}
+	
+	protected void readHead(InputStream in) throws IOException {
+		String line = IUtils.readLineStrict(in);
+		if(line == null) throw new EOFException("Connection closed before response");
+		int sp1 = line.indexOf(' ');
+		if(sp1 < 0 || !line.startsWith("HTTP/")) 
+			throw new HttpFormatException("Corrupted HTTP response line: " + line);
+		int sp2 = line.indexOf(' ', sp1 + 1);
+		this.httpVersion = line.substring(0, sp1);
+		try {
+			this.status = Integer.parseInt((sp2 < 0) ? line.substring(sp1 + 1) : line.substring(sp1 + 1, sp2));
+		} catch(NumberFormatException ex) {
+			throw new HttpFormatException("Corrupted HTTP response status: " + line);
+		}
+		this.reason = (sp2 < 0) ? "" : line.substring(sp2 + 1);
+		Map<String,String> heads = Nice.createMap();
+		while(true) {
+			line = IUtils.readLineStrict(in);
+			if(line == null) throw new EOFException("Connection closed in response heads");
+			if(line.isEmpty()) break;
+			int splt = line.indexOf(':');
+			if(splt <= 0) throw new HttpFormatException("Corrupted HTTP response head: " + line);
+			String key = line.substring(0, splt).trim().toUpperCase();
+			String val = line.substring(splt + 1).trim();
+			String prev = heads.get(key);
+			heads.put(key, (prev == null) ? val : prev + ", " + val);
+		}
+		this.heads = heads;
+	}
+	
+	/**
+	 * Frame body (RFC 7230 3.3.3) and decide whether connection can be reused
+	 * @return Length of body, {@link #BodyChunked} or {@link #BodyUntilClose}
+	 */
+	protected long frame(String method) throws IOException {
+		String con = this.getHead("CONNECTION");
+		con = (con == null) ? "" : con.toLowerCase();
+		this.keepAlive = "HTTP/1.0".equals(this.httpVersion) 
+				? con.contains("keep-alive") : !con.contains("close");
+		if("HEAD".equals(method) || this.status == 204 || this.status == 304
+				|| (this.status >= 100 && this.status < 200)) {
+			if(this.status == 101) this.keepAlive = false;
+			return 0;
+		}
+		String enc = this.getHead("TRANSFER-ENCODING");
+		if(enc != null && enc.toLowerCase().contains("chunked")) return BodyChunked;
+		String len = this.getHead("CONTENT-LENGTH");
+		if(len != null) {
+			long clen = Nice.cast(len.trim(), long.class, -1L);
+			if(clen < 0) throw new HttpFormatException("Content-length wrong (" + len + ")");
+			return clen;
+		}
+		this.keepAlive = false;
+		return BodyUntilClose;
+	}
+	
+	protected void initBody(InputStream in, String method) throws IOException {
+		long len = this.frame(method);
+		if(len == BodyChunked) this.body = new ChunkedInputStream(in);
+		else if(len == BodyUntilClose) this.body = in;
+		else this.body = new LimitedInputStream(in, len);
+	}
+	
+	/**
+	 * @return Connection of this response, null for {@link AsyncHttpClient} responses
+	 */
+	public HttpConnection getConnection() {
+		return this.connection;
+	}
+	
+	public String getHttpVersion() {
+		return this.httpVersion;
+	}
+	
+	public int getStatus() {
+		return this.status;
+	}
+	
+	public String getReason() {
+		return this.reason;
+	}
+	
+	/**
+	 * @return Heads with uppercase keys, repeated heads are joined with ", "
+	 */
+	public Map<String,String> getHeads() {
+		return Collections.unmodifiableMap(this.heads);
+	}
+	
+	public String getHead(String key) {
+		return this.heads.get(key.toUpperCase());
+	}
+	
+	/**
+	 * @return true if connection can be used for next request after this response
+	 */
+	public boolean isKeepAlive() {
+		return this.keepAlive;
+	}
+	
+	public InputStream getBody() {
+		return this.body;
+	}
+	
+	/**
+	 * Read rest of body to memory
+	 */
+	public byte[] readBody() throws IOException {
+		return IUtils.readFully(this.body).toByteArray();
+	}
+	
+	/**
+	 * Read rest of body to memory so next response on same connection 
+	 * can be read while this one is still used
+	 */
+	public HttpResponse buffer() throws IOException {
+		if(!(this.body instanceof ByteArrayInputStream)) {
+			this.body = new ByteArrayInputStream(this.readBody());
+			if(this.connection != null) this.connection.finished(this);
+		}
+		return this;
+	}
+	
+	/**
+	 * Skip unread body
+	 * @return false if body was not fully read and connection can not be reused
+	 */
+	protected boolean finish() {
+		InputStream in = this.body;
+		if(in instanceof ByteArrayInputStream) return true;
+		if(!this.keepAlive) return false;
+		try {
+			long skipped = 0;
+			byte[] buf = new byte[4096];
+			while(true) {
+				int n = in.read(buf);
+				if(n < 0) return true;
+				skipped += n;
+				if(skipped > MaxDrain) return false;
+			}
+		} catch(IOException ex) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Release connection to pool on close
+	 */
+	public HttpResponse setReleaseOnClose(boolean releaseOnClose) {
+		this.releaseOnClose = releaseOnClose;
+		return this;
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	/**
+	 * Skip rest of body. Connection is returned to pool if this
+	 * response was created by {@link HttpClientPool#send}
+	 */
+	@Override
+	public void close() {
+		if(this.closed) return;
+		this.closed = true;
+		if(this.connection == null) return;
+		if(!this.finish()) this.connection.setReusable(false);
+		this.connection.finished(this);
+		if(this.releaseOnClose) this.connection.release();
+	}
+	
+	@Override
+	public String toString() {
+		return "HttpResponse [" + this.httpVersion + " " + this.status + " " + this.reason + "]";
+	}
+	
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import wordnice.http.HttpStatus;
+import wordnice.utils.FastDate;
+
+/**
+ * Serializes response status line and heads into one reusable buffer,
+ * which is then written to output at once. Common head names and status
+ * lines are pre-encoded and Date head is formatted once per second
+ */
+public class HeadWriter {
+	
+	/** Add Date head to responses which do not set it **/
+	public static boolean SendDate = true;
+	
+	protected static final byte[] CRLF = {'\r', '\n'};
+	
+	/** Pre-encoded "Name: " of common heads **/
+	protected static final Map<String,byte[]> Names = new HashMap<String,byte[]>();
+	
+	static {
+		String[] names = {
+			"Accept-Ranges", "Access-Control-Allow-Origin", "Age", "Cache-Control", "Connection",
+			"Content-Disposition", "Content-Encoding", "Content-Length", "Content-Range", 
+			"Content-Type", "Date", "ETag", "Expires", "Keep-Alive", "Last-Modified", "Location", 
+			"Retry-After", "Sec-WebSocket-Accept", "Sec-WebSocket-Extensions", "Sec-WebSocket-Protocol",
+			"Server", "Set-Cookie", "Transfer-Encoding", "Upgrade", "Vary", "WWW-Authenticate",
+			"X-Content-Type-Options"
+		};
+		for(String name : names) Names.put(name, (name + ": ").getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	/**
+	 * Date head of one second
+	 */
+	protected static class DateLine {
+		
+		protected final long second;
+		protected final byte[] line;
+		
+		protected DateLine(long second) {
+			this.second = second;
+			char[] chars = "Date: Sun, 06 Nov 1994 08:49:37 GMT\r\n".toCharArray();
+			FastDate.formatHttpDate(second * 1000, chars, 6);
+			byte[] line = new byte[chars.length];
+			for(int i = 0; i < chars.length; i++) line[i] = (byte) chars[i];
+			this.line = line;
+		}
+		
+	}
+	
+	protected static volatile DateLine date = new DateLine(System.currentTimeMillis() / 1000);
+	
+	/**
+	 * @return "Date: ...\r\n" for current second (do not modify)
+	 */
+	public static byte[] getDateLine() {
+		long sec = System.currentTimeMillis() / 1000;
+		DateLine d = date;
+		if(d.second != sec) date = d = new DateLine(sec);
+		return d.line;
+	}
+	
+	protected byte[] buf;
+	protected int len = 0;
+	
+	public HeadWriter() {
+		this(512);
+	}
+	
+	public HeadWriter(int size) {
+		this.buf = new byte[size];
+	}
+	
+	public int size() {
+		return this.len;
+	}
+	
+	public HeadWriter reset() {
+		this.len = 0;
+		return this;
+	}
+	
+	protected void ensure(int n) {
+		if(this.len + n > this.buf.length)
+			this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length << 1, this.len + n));
+	}
+	
+	public HeadWriter append(byte[] b) {
+		this.ensure(b.length);
+		System.arraycopy(b, 0, this.buf, this.len, b.length);
+		this.len += b.length;
+		return this;
+	}
+	
+	/**
+	 * Append characters, ASCII directly and rest as UTF-8
+	 */
+	public HeadWriter append(CharSequence s) {
+		int n = s.length();
+		this.ensure(n);
+		byte[] b = this.buf;
+		int pos = this.len;
+		for(int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80) {
+				this.len = pos;
+				return this.append(s.subSequence(i, n).toString().getBytes(StandardCharsets.UTF_8));
+			}
+			b[pos++] = (byte) c;
+		}
+		this.len = pos;
+		return this;
+	}
+	
+	/**
+	 * Append status line, e.g. for "200 OK"
+	 * @param httpversion Version or null for HTTP/1.1
+	 */
+	public HeadWriter status(CharSequence status, CharSequence httpversion) {
+		if(status == null) status = "200 OK";
+		if(httpversion == null || "HTTP/1.1".contentEquals(httpversion)) {
+			byte[] line = cachedLine(status);
+			if(line != null) return this.append(line);
+			httpversion = "HTTP/1.1";
+		}
+		this.append(httpversion);
+		this.ensure(1);
+		this.buf[this.len++] = ' ';
+		return this.append(status).append(CRLF);
+	}
+	
+	/**
+	 * @return Pre-encoded line of HttpStatus matching given status or null
+	 */
+	protected static byte[] cachedLine(CharSequence status) {
+		int n = status.length();
+		if(n < 4 || status.charAt(3) != ' ') return null;
+		int code = 0;
+		for(int i = 0; i < 3; i++) {
+			char c = status.charAt(i);
+			if(c < '0' || c > '9') return null;
+			code = code * 10 + (c - '0');
+		}
+		byte[] line = HttpStatus.getStatusLine(code);
+		if(line == null || line.length != n + 11) return null;
+		for(int i = 4; i < n; i++)
+			if(line[9 + i] != status.charAt(i)) return null;
+		return line;
+	}
+	
+	public HeadWriter head(String name, String value) {
+		byte[] pre = Names.get(name);
+		if(pre != null) {
+			this.append(pre);
+		} else {
+			this.append(name);
+			this.ensure(2);
+			this.buf[this.len++] = ':';
+			this.buf[this.len++] = ' ';
+		}
+		return this.append(value).append(CRLF);
+	}
+	
+	/**
+	 * Append heads and ending empty line. 
+	 * Date head is added when {@link #SendDate} is set and heads do not have it
+	 */
+	public HeadWriter heads(Map<String,List<String>> heads) {
+		boolean hasDate = false;
+		if(heads != null) {
+			for(Entry<String,List<String>> e : heads.entrySet()) {
+				String name = e.getKey();
+				if(!hasDate && name.equalsIgnoreCase("Date")) hasDate = true;
+				for(String val : e.getValue()) this.head(name, val);
+			}
+		}
+		if(SendDate && !hasDate) this.append(getDateLine());
+		return this.append(CRLF);
+	}
+	
+	public HeadWriter writeTo(OutputStream out) throws IOException {
+		out.write(this.buf, 0, this.len);
+		return this;
+	}
+	
+}
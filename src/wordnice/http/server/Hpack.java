@@ -0,0 +1,568 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * HPACK header compression of HTTP/2 (RFC 7541).
+ * Header lists are flat lists of names and values: name, value, name, value...
+ * Strings are mapped to bytes as ISO-8859-1, same as HTTP/1 heads.
+ */
+public class Hpack {
+	
+	public static final int DefaultTableSize = 4096;
+	
+	/** Size overhead of each entry in dynamic table **/
+	public static final int EntryOverhead = 32;
+	
+	/**
+	 * Malformed header block, connection error COMPRESSION_ERROR
+	 */
+	public static class HpackException extends IOException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		public HpackException(String msg) {
+			super(msg);
+		}
+		
+	}
+	
+	protected static final String[][] StaticTable = {
+		null,
+		{":authority", ""},
+		{":method", "GET"},
+		{":method", "POST"},
+		{":path", "/"},
+		{":path", "/index.html"},
+		{":scheme", "http"},
+		{":scheme", "https"},
+		{":status", "200"},
+		{":status", "204"},
+		{":status", "206"},
+		{":status", "304"},
+		{":status", "400"},
+		{":status", "404"},
+		{":status", "500"},
+		{"accept-charset", ""},
+		{"accept-encoding", "gzip, deflate"},
+		{"accept-language", ""},
+		{"accept-ranges", ""},
+		{"accept", ""},
+		{"access-control-allow-origin", ""},
+		{"age", ""},
+		{"allow", ""},
+		{"authorization", ""},
+		{"cache-control", ""},
+		{"content-disposition", ""},
+		{"content-encoding", ""},
+		{"content-language", ""},
+		{"content-length", ""},
+		{"content-location", ""},
+		{"content-range", ""},
+		{"content-type", ""},
+		{"cookie", ""},
+		{"date", ""},
+		{"etag", ""},
+		{"expect", ""},
+		{"expires", ""},
+		{"from", ""},
+		{"host", ""},
+		{"if-match", ""},
+		{"if-modified-since", ""},
+		{"if-none-match", ""},
+		{"if-range", ""},
+		{"if-unmodified-since", ""},
+		{"last-modified", ""},
+		{"link", ""},
+		{"location", ""},
+		{"max-forwards", ""},
+		{"proxy-authenticate", ""},
+		{"proxy-authorization", ""},
+		{"range", ""},
+		{"referer", ""},
+		{"refresh", ""},
+		{"retry-after", ""},
+		{"server", ""},
+		{"set-cookie", ""},
+		{"strict-transport-security", ""},
+		{"transfer-encoding", ""},
+		{"user-agent", ""},
+		{"vary", ""},
+		{"via", ""},
+		{"www-authenticate", ""}
+	};
+	
+	protected static final int[] HuffmanCodes = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+	};
+	
+	protected static final byte[] HuffmanLengths = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+	};
+	
+	protected static final int HuffmanEOS = 0x3fffffff;
+	protected static final int HuffmanEOSLength = 30;
+	
+	/** 
+	 * Binary tree of huffman codes: node n has children at [2n] (bit 0) and [2n+1] (bit 1),
+	 * positive values are next nodes, negative values are leaves -(symbol + 1), 0 is none
+	 */
+	protected static final int[] HuffmanTree = buildHuffmanTree();
+	
+	protected static int[] buildHuffmanTree() {
+		int[] tree = new int[2 * 512];
+		int nodes = 1;
+		for(int sym = 0; sym < 256; sym++) {
+			int code = HuffmanCodes[sym];
+			int len = HuffmanLengths[sym];
+			int node = 0;
+			for(int i = len - 1; i > 0; i--) {
+				int slot = 2 * node + ((code >>> i) & 1);
+				if(tree[slot] == 0) tree[slot] = nodes++;
+				node = tree[slot];
+			}
+			tree[2 * node + (code & 1)] = -(sym + 1);
+		}
+		return tree;
+	}
+	
+	/**
+	 * Dynamic table, newest entry has index 0
+	 */
+	protected static class Table {
+		
+		protected String[] names = new String[16];
+		protected String[] values = new String[16];
+		protected int head = 0; //Slot of newest entry
+		protected int count = 0;
+		protected int size = 0;
+		protected int maxSize;
+		
+		protected Table(int maxSize) {
+			this.maxSize = maxSize;
+		}
+		
+		protected int slot(int index) {
+			return (this.head + index) & (this.names.length - 1);
+		}
+		
+		protected String name(int index) {
+			return this.names[this.slot(index)];
+		}
+		
+		protected String value(int index) {
+			return this.values[this.slot(index)];
+		}
+		
+		protected void add(String name, String value) {
+			int entry = EntryOverhead + name.length() + value.length();
+			if(entry > this.maxSize) {
+				this.clear();
+				return;
+			}
+			while(this.size + entry > this.maxSize) this.evict();
+			if(this.count == this.names.length) this.grow();
+			this.head = (this.head - 1) & (this.names.length - 1);
+			this.names[this.head] = name;
+			this.values[this.head] = value;
+			this.count++;
+			this.size += entry;
+		}
+		
+		protected void evict() {
+			int last = this.slot(this.count - 1);
+			this.size -= EntryOverhead + this.names[last].length() + this.values[last].length();
+			this.names[last] = null;
+			this.values[last] = null;
+			this.count--;
+		}
+		
+		protected void grow() {
+			String[] nn = new String[this.names.length * 2];
+			String[] nv = new String[nn.length];
+			for(int i = 0; i < this.count; i++) {
+				nn[i] = this.name(i);
+				nv[i] = this.value(i);
+			}
+			this.names = nn;
+			this.values = nv;
+			this.head = 0;
+		}
+		
+		protected void clear() {
+			while(this.count > 0) this.evict();
+		}
+		
+		protected void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			while(this.size > maxSize) this.evict();
+		}
+		
+	}
+	
+	/**
+	 * Decoder of header blocks, keeps state of connection
+	 */
+	public static class Decoder {
+		
+		protected final Table table;
+		protected int maxTableSize;
+		protected int maxHeaderListSize;
+		
+		/**
+		 * @param maxTableSize Table size we advertised (SETTINGS_HEADER_TABLE_SIZE)
+		 * @param maxHeaderListSize Limit of decoded list (SETTINGS_MAX_HEADER_LIST_SIZE)
+		 */
+		public Decoder(int maxTableSize, int maxHeaderListSize) {
+			this.table = new Table(maxTableSize);
+			this.maxTableSize = maxTableSize;
+			this.maxHeaderListSize = maxHeaderListSize;
+		}
+		
+		/**
+		 * Decode header block into list of names and values
+		 * 
+		 * @return false if list exceeds maximum header list size. Block is decoded 
+		 * 		anyway to keep table in sync, fields over limit are dropped
+		 * @throws HpackException if block is malformed
+		 */
+		public boolean decode(byte[] b, int off, int len, List<String> out) throws HpackException {
+			int end = off + len;
+			int[] pos = {off};
+			int listSize = 0;
+			boolean fits = true;
+			boolean first = true;
+			while(pos[0] < end) {
+				int c = b[pos[0]] & 0xFF;
+				String name, value;
+				if((c & 0x80) != 0) {
+					int index = readInt(b, pos, end, 7);
+					name = this.name(index);
+					value = this.value(index);
+				} else if((c & 0xE0) == 0x20) {
+					if(!first) throw new HpackException("Table size update after header field");
+					int size = readInt(b, pos, end, 5);
+					if(size > this.maxTableSize) throw new HpackException("Table size update over limit");
+					this.table.setMaxSize(size);
+					continue;
+				} else {
+					//Literals: 01 incremental indexing, 0000 without, 0001 never indexed
+					boolean index = (c & 0xC0) == 0x40;
+					int nameIndex = readInt(b, pos, end, index ? 6 : 4);
+					name = (nameIndex == 0) ? readString(b, pos, end) : this.name(nameIndex);
+					value = readString(b, pos, end);
+					if(index) this.table.add(name, value);
+				}
+				first = false;
+				listSize += EntryOverhead + name.length() + value.length();
+				if(listSize > this.maxHeaderListSize) {
+					fits = false;
+				} else {
+					out.add(name);
+					out.add(value);
+				}
+			}
+			return fits;
+		}
+		
+		protected String name(int index) throws HpackException {
+			if(index <= 0) throw new HpackException("Index 0");
+			if(index < StaticTable.length) return StaticTable[index][0];
+			index -= StaticTable.length;
+			if(index >= this.table.count) throw new HpackException("Index out of table");
+			return this.table.name(index);
+		}
+		
+		protected String value(int index) throws HpackException {
+			if(index <= 0) throw new HpackException("Index 0");
+			if(index < StaticTable.length) return StaticTable[index][1];
+			index -= StaticTable.length;
+			if(index >= this.table.count) throw new HpackException("Index out of table");
+			return this.table.value(index);
+		}
+		
+	}
+	
+	/**
+	 * Encoder of header blocks, keeps state of connection
+	 */
+	public static class Encoder {
+		
+		protected final Table table;
+		protected int pendingSizeUpdate = -1;
+		
+		public Encoder() {
+			this.table = new Table(DefaultTableSize);
+		}
+		
+		/**
+		 * Apply SETTINGS_HEADER_TABLE_SIZE of peer. We never use more than default size
+		 */
+		public void setMaxTableSize(int size) {
+			size = Math.min(size, DefaultTableSize);
+			if(size == this.table.maxSize) return;
+			this.table.setMaxSize(size);
+			this.pendingSizeUpdate = size;
+		}
+		
+		/**
+		 * Encode list of names (lowercase) and values
+		 */
+		public void encode(List<String> fields, OutputStream out) throws IOException {
+			if(this.pendingSizeUpdate >= 0) {
+				writeInt(out, 0x20, 5, this.pendingSizeUpdate);
+				this.pendingSizeUpdate = -1;
+			}
+			for(int i = 0, n = fields.size(); i + 1 < n; i += 2) {
+				this.encode(fields.get(i), fields.get(i + 1), out);
+			}
+		}
+		
+		protected void encode(String name, String value, OutputStream out) throws IOException {
+			int nameIndex = 0;
+			for(int i = 1; i < StaticTable.length; i++) {
+				if(StaticTable[i][0].equals(name)) {
+					if(StaticTable[i][1].equals(value)) {
+						writeInt(out, 0x80, 7, i);
+						return;
+					}
+					if(nameIndex == 0) nameIndex = i;
+				}
+			}
+			Table t = this.table;
+			for(int i = 0; i < t.count; i++) {
+				if(t.name(i).equals(name)) {
+					if(t.value(i).equals(value)) {
+						writeInt(out, 0x80, 7, StaticTable.length + i);
+						return;
+					}
+					if(nameIndex == 0) nameIndex = StaticTable.length + i;
+				}
+			}
+			if(isVolatile(name)) {
+				//Literal without indexing, would only churn table
+				writeInt(out, 0x00, 4, nameIndex);
+			} else {
+				writeInt(out, 0x40, 6, nameIndex);
+				t.add(name, value);
+			}
+			if(nameIndex == 0) writeString(out, name);
+			writeString(out, value);
+		}
+		
+		/**
+		 * @return true if values of head usually differ in each response
+		 */
+		protected boolean isVolatile(String name) {
+			switch(name) {
+				case "content-length":
+				case "date":
+				case "etag":
+				case "last-modified":
+				case "expires":
+				case "age":
+				case "content-range":
+				case "set-cookie":
+				case "location":
+					return true;
+				default:
+					return false;
+			}
+		}
+		
+	}
+	
+	/**
+	 * Read integer with given prefix bits (RFC 7541 5.1)
+	 */
+	protected static int readInt(byte[] b, int[] pos, int end, int prefix) throws HpackException {
+		int p = pos[0];
+		if(p >= end) throw new HpackException("Truncated integer");
+		int max = (1 << prefix) - 1;
+		int val = b[p++] & max;
+		if(val == max) {
+			int shift = 0;
+			int c;
+			do {
+				if(p >= end) throw new HpackException("Truncated integer");
+				if(shift > 28) throw new HpackException("Integer overflow");
+				c = b[p++] & 0xFF;
+				val += (c & 0x7F) << shift;
+				if(val < 0) throw new HpackException("Integer overflow");
+				shift += 7;
+			} while((c & 0x80) != 0);
+		}
+		pos[0] = p;
+		return val;
+	}
+	
+	protected static void writeInt(OutputStream out, int flags, int prefix, int val) throws IOException {
+		int max = (1 << prefix) - 1;
+		if(val < max) {
+			out.write(flags | val);
+			return;
+		}
+		out.write(flags | max);
+		val -= max;
+		while(val >= 0x80) {
+			out.write((val & 0x7F) | 0x80);
+			val >>>= 7;
+		}
+		out.write(val);
+	}
+	
+	protected static String readString(byte[] b, int[] pos, int end) throws HpackException {
+		int p = pos[0];
+		if(p >= end) throw new HpackException("Truncated string");
+		boolean huffman = (b[p] & 0x80) != 0;
+		int len = readInt(b, pos, end, 7);
+		p = pos[0];
+		if(len > end - p) throw new HpackException("Truncated string");
+		pos[0] = p + len;
+		if(huffman) return huffmanDecode(b, p, len);
+		return new String(b, p, len, StandardCharsets.ISO_8859_1);
+	}
+	
+	protected static void writeString(OutputStream out, String s) throws IOException {
+		int len = s.length();
+		int hlen = huffmanLength(s);
+		if(hlen < len) {
+			writeInt(out, 0x80, 7, hlen);
+			huffmanEncode(s, out);
+		} else {
+			writeInt(out, 0x00, 7, len);
+			for(int i = 0; i < len; i++) out.write(s.charAt(i));
+		}
+	}
+	
+	/**
+	 * @return Length of huffman encoded string (ISO-8859-1) in bytes
+	 */
+	public static int huffmanLength(String s) {
+		long bits = 0;
+		for(int i = 0, n = s.length(); i < n; i++) bits += HuffmanLengths[s.charAt(i) & 0xFF];
+		return (int) ((bits + 7) >>> 3);
+	}
+	
+	public static void huffmanEncode(String s, OutputStream out) throws IOException {
+		long acc = 0;
+		int bits = 0;
+		for(int i = 0, n = s.length(); i < n; i++) {
+			int sym = s.charAt(i) & 0xFF;
+			int len = HuffmanLengths[sym];
+			acc = (acc << len) | HuffmanCodes[sym];
+			bits += len;
+			while(bits >= 8) {
+				bits -= 8;
+				out.write((int) (acc >>> bits));
+			}
+		}
+		if(bits > 0) {
+			//Pad with most significant bits of EOS (ones)
+			out.write((int) ((acc << (8 - bits)) | (0xFF >>> bits)));
+		}
+	}
+	
+	public static String huffmanDecode(byte[] b, int off, int len) throws HpackException {
+		StringBuilder sb = new StringBuilder(len + (len >>> 1));
+		int[] tree = HuffmanTree;
+		int node = 0;
+		int depth = 0; //Bits since last symbol
+		boolean allOnes = true;
+		for(int i = off, end = off + len; i < end; i++) {
+			int c = b[i] & 0xFF;
+			for(int bit = 7; bit >= 0; bit--) {
+				int v = (c >>> bit) & 1;
+				int next = tree[2 * node + v];
+				depth++;
+				if(v == 0) allOnes = false;
+				if(next < 0) {
+					sb.append((char) (-next - 1));
+					node = 0;
+					depth = 0;
+					allOnes = true;
+				} else if(next == 0) {
+					throw new HpackException("Huffman EOS in string");
+				} else {
+					node = next;
+				}
+			}
+		}
+		if(depth > 7 || !allOnes) throw new HpackException("Wrong huffman padding");
+		return sb.toString();
+	}
+	
+}
@@ -0,0 +1,1269 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import wordnice.api.Nice;
+import wordnice.codings.URLCoder;
+import wordnice.streams.IUtils;
+
+/**
+ * Server side of one HTTP/2 connection (RFC 7540) over socket taken 
+ * from HTTP/1 request. Frames are read in calling thread, each stream 
+ * is processed as {@link Http2Request} by the usual handler chain in executor.
+ * Handlers write HTTP/1 responses, which are translated to HEADERS and DATA frames.
+ * Server push is not supported
+ */
+public class Http2Connection {
+	
+	/**
+	 * Error of connection (stream 0) or single stream
+	 */
+	public static class Http2Exception extends IOException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		protected final int error;
+		protected final int streamId;
+		
+		public Http2Exception(int error, int streamId, String msg) {
+			super(msg);
+			this.error = error;
+			this.streamId = streamId;
+		}
+		
+		public int getError() {
+			return this.error;
+		}
+		
+		public int getStreamId() {
+			return this.streamId;
+		}
+		
+	}
+	
+	/** Connection preface of client **/
+	public static final byte[] Preface = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	public static final int
+		DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4,
+		PUSH_PROMISE = 5, PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9;
+	
+	public static final int
+		FlagEndStream = 0x1, FlagAck = 0x1, FlagEndHeaders = 0x4, 
+		FlagPadded = 0x8, FlagPriority = 0x20;
+	
+	public static final int
+		NO_ERROR = 0, PROTOCOL_ERROR = 1, INTERNAL_ERROR = 2, FLOW_CONTROL_ERROR = 3,
+		STREAM_CLOSED = 5, FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, CANCEL = 8,
+		COMPRESSION_ERROR = 9, ENHANCE_YOUR_CALM = 11;
+	
+	public static final int
+		SettingHeaderTableSize = 1, SettingEnablePush = 2, SettingMaxConcurrentStreams = 3,
+		SettingInitialWindowSize = 4, SettingMaxFrameSize = 5, SettingMaxHeaderListSize = 6;
+	
+	public static final int DefaultWindowSize = 65535;
+	public static final int DefaultFrameSize = 16384;
+	public static final int MaxWindowSize = Integer.MAX_VALUE;
+	
+	/** Receive window of connection, replenished as DATA frames arrive **/
+	public static int ConnectionWindowSize = 1 << 20;
+	
+	/** Milliseconds between checks of idle connection and server shutdown **/
+	public static int PollInterval = 1000;
+	
+	protected final HttpServer server;
+	protected final Iterable<HttpRequestHandler> handlers;
+	protected final ExecutorService executor;
+	protected final Socket socket;
+	protected final InputStream in;
+	protected final OutputStream out;
+	
+	protected int maxConcurrentStreams = 100;
+	protected int initialWindowSize = 256 * 1024;
+	protected int maxHeaderListSize = 16 * 1024;
+	protected int idleTimeout = 30000;
+	
+	//Guarded by this
+	protected final Map<Integer,Stream> streams = new HashMap<Integer,Stream>();
+	protected long sendWindow = DefaultWindowSize;
+	protected int peerInitialWindow = DefaultWindowSize;
+	protected volatile int peerMaxFrameSize = DefaultFrameSize;
+	protected volatile boolean closed = false;
+	
+	//Reader thread only
+	protected final Hpack.Decoder decoder;
+	protected final byte[] frame = new byte[DefaultFrameSize];
+	protected final byte[] header = new byte[8];
+	protected final ByteArrayOutputStream block = new ByteArrayOutputStream();
+	protected int blockStream = 0;
+	protected boolean blockEndStream = false;
+	protected int lastStreamId = 0;
+	protected int recvUnacked = 0;
+	protected boolean goAwaySent = false;
+	protected boolean goAwayReceived = false;
+	protected long lastActivity = System.currentTimeMillis();
+	
+	//Guarded by writeLock
+	protected final Object writeLock = new Object();
+	protected final Hpack.Encoder encoder = new Hpack.Encoder();
+	protected final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+	protected final byte[] frameHead = new byte[9];
+	
+	/**
+	 * @param req HTTP/1 request whose connection is taken over. 
+	 * 		Its buffered streams are used from now on
+	 * @param executor Executor for streams
+	 */
+	public Http2Connection(HttpServer server, HttpRequest req, 
+			Iterable<HttpRequestHandler> handlers, ExecutorService executor) {
+		this.server = server;
+		this.handlers = handlers;
+		this.executor = executor;
+		this.socket = req.getSocket();
+		this.in = req.getInputStream();
+		this.out = req.getOutputStream();
+		this.decoder = new Hpack.Decoder(Hpack.DefaultTableSize, this.maxHeaderListSize);
+	}
+	
+	public Socket getSocket() {
+		return this.socket;
+	}
+	
+	public HttpServer getServer() {
+		return this.server;
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	public synchronized int getActiveStreams() {
+		return this.streams.size();
+	}
+	
+	public int getMaxConcurrentStreams() {
+		return this.maxConcurrentStreams;
+	}
+	
+	/**
+	 * Streams over limit are refused with REFUSED_STREAM
+	 */
+	public Http2Connection setMaxConcurrentStreams(int max) {
+		if(max < 1) throw new IllegalArgumentException("Max concurrent streams < 1");
+		this.maxConcurrentStreams = max;
+		return this;
+	}
+	
+	public int getInitialWindowSize() {
+		return this.initialWindowSize;
+	}
+	
+	/**
+	 * Receive window of each stream, limits request body buffered in memory per stream
+	 */
+	public Http2Connection setInitialWindowSize(int size) {
+		if(size < DefaultWindowSize) throw new IllegalArgumentException("Window size < 65535");
+		this.initialWindowSize = size;
+		return this;
+	}
+	
+	public int getMaxHeaderListSize() {
+		return this.maxHeaderListSize;
+	}
+	
+	/**
+	 * Requests with bigger heads are answered with 431
+	 */
+	public Http2Connection setMaxHeaderListSize(int size) {
+		if(size < 1) throw new IllegalArgumentException("Max header list size < 1");
+		this.maxHeaderListSize = size;
+		this.decoder.maxHeaderListSize = size;
+		return this;
+	}
+	
+	public int getIdleTimeout() {
+		return this.idleTimeout;
+	}
+	
+	/**
+	 * Milliseconds without streams and frames before connection is closed with GOAWAY.
+	 * 0 to never close idle connection
+	 */
+	public Http2Connection setIdleTimeout(int timeout) {
+		if(timeout < 0) throw new IllegalArgumentException("Timeout < 0");
+		this.idleTimeout = timeout;
+		return this;
+	}
+	
+	/**
+	 * Read connection preface from given offset (part before may be parsed already)
+	 * @return true if preface matches
+	 */
+	public static boolean readPreface(InputStream in, int off) throws IOException {
+		byte[] b = new byte[Preface.length - off];
+		IUtils.readFully(in, b);
+		for(int i = 0; i < b.length; i++) {
+			if(b[i] != Preface[off + i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Decode base64url HTTP2-Settings head of upgrade request
+	 * @return Settings payload or null if invalid
+	 */
+	public static byte[] decodeSettingsHead(String head) {
+		if(head == null) return null;
+		try {
+			byte[] b = java.util.Base64.getUrlDecoder().decode(head.trim());
+			return (b.length % 6 == 0) ? b : null;
+		} catch(IllegalArgumentException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Serve connection upgraded from HTTP/1.1 request (RFC 7540 3.2).
+	 * The request becomes stream 1 and must not have body.
+	 * Response 101 must be already sent. Blocks until connection ends
+	 */
+	public void serveUpgraded(HttpRequest req, byte[] settings) throws IOException {
+		this.writeSettings();
+		this.applySettings(settings, 0, settings.length);
+		Stream s = new Stream(1);
+		s.endReceived = true;
+		s.input.end();
+		RequestData rd = req.getRequest();
+		Map<String,String> heads = Nice.createMap();
+		for(Map.Entry<String,String> e : rd.getHeads().entrySet()) {
+			if(!isConnectionSpecific(e.getKey().toLowerCase(Locale.ROOT)))
+				heads.put(e.getKey(), e.getValue());
+		}
+		heads.remove("HTTP2-SETTINGS");
+		Map<String,Object> get = Nice.createLinkedMap();
+		get.putAll(rd.getGet());
+		Http2Request h2 = new Http2Request(this, s);
+		h2.getRequest().setMethod(rd.getMethod()).setPath(rd.getPath())
+			.setHttpVersion(Http2Request.HTTP_2_0).setGet(get).setHeads(heads);
+		s.request = h2;
+		this.lastStreamId = 1;
+		synchronized(this) {
+			this.streams.put(1, s);
+		}
+		if(!readPreface(this.in, 0)) {
+			this.goAway(PROTOCOL_ERROR);
+			this.terminate();
+			return;
+		}
+		this.start(s);
+		this.loop();
+	}
+	
+	/**
+	 * Serve connection after client preface was read. Blocks until connection ends
+	 */
+	public void serve() throws IOException {
+		this.writeSettings();
+		this.loop();
+	}
+	
+	protected void loop() throws IOException {
+		int oldTimeout = this.socket.getSoTimeout();
+		this.socket.setSoTimeout(PollInterval);
+		boolean first = true;
+		try {
+			while(!this.closed) {
+				int b0;
+				try {
+					b0 = this.in.read();
+				} catch(SocketTimeoutException ex) {
+					if(this.idle()) break;
+					continue;
+				}
+				if(b0 < 0) break;
+				this.lastActivity = System.currentTimeMillis();
+				try {
+					this.readFrame(b0, first);
+				} catch(Http2Exception ex) {
+					if(ex.getStreamId() == 0) {
+						this.goAway(ex.getError());
+						break;
+					}
+					this.resetStream(ex.getStreamId(), ex.getError());
+				} catch(Hpack.HpackException ex) {
+					this.goAway(COMPRESSION_ERROR);
+					break;
+				}
+				first = false;
+				if((this.goAwaySent || this.goAwayReceived) && this.getActiveStreams() == 0) break;
+			}
+		} catch(IOException ex) {
+			//Connection broken
+		} finally {
+			this.terminate();
+			try {
+				this.socket.setSoTimeout(oldTimeout);
+			} catch(IOException ign) {}
+		}
+	}
+	
+	/**
+	 * Called when no frame came in poll interval
+	 * @return true if connection should be closed
+	 */
+	protected boolean idle() throws IOException {
+		int active = this.getActiveStreams();
+		if(this.server != null && this.server.isClosed() && !this.goAwaySent) this.goAway(NO_ERROR);
+		if(active > 0) return false;
+		if(this.goAwaySent || this.goAwayReceived) return true;
+		if(this.idleTimeout > 0 && System.currentTimeMillis() - this.lastActivity >= this.idleTimeout) {
+			this.goAway(NO_ERROR);
+			return true;
+		}
+		return false;
+	}
+	
+	protected void readFrame(int b0, boolean first) throws IOException {
+		byte[] h = this.header;
+		IUtils.readFully(this.in, h);
+		int len = (b0 << 16) | ((h[0] & 0xFF) << 8) | (h[1] & 0xFF);
+		int type = h[2] & 0xFF;
+		int flags = h[3] & 0xFF;
+		int id = ((h[4] & 0x7F) << 24) | ((h[5] & 0xFF) << 16) | ((h[6] & 0xFF) << 8) | (h[7] & 0xFF);
+		if(len > this.frame.length) {
+			throw new Http2Exception(FRAME_SIZE_ERROR, 0, "Frame too long");
+		}
+		byte[] p = this.frame;
+		IUtils.readFully(this.in, p, 0, len);
+		if(first && (type != SETTINGS || (flags & FlagAck) != 0)) {
+			throw new Http2Exception(PROTOCOL_ERROR, 0, "Expected SETTINGS");
+		}
+		if(this.blockStream != 0 && (type != CONTINUATION || id != this.blockStream)) {
+			throw new Http2Exception(PROTOCOL_ERROR, 0, "Expected CONTINUATION");
+		}
+		switch(type) {
+			case DATA:
+				this.onData(id, flags, p, len);
+				break;
+			case HEADERS:
+				this.onHeaders(id, flags, p, len);
+				break;
+			case PRIORITY:
+				if(id == 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "PRIORITY on stream 0");
+				if(len != 5) throw new Http2Exception(FRAME_SIZE_ERROR, id, "PRIORITY length");
+				break;
+			case RST_STREAM:
+				if(id == 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "RST_STREAM on stream 0");
+				if(len != 4) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "RST_STREAM length");
+				if(id > this.lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, 0, "RST_STREAM on idle stream");
+				this.onReset(id, readInt(p, 0));
+				break;
+			case SETTINGS:
+				if(id != 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "SETTINGS on stream");
+				if((flags & FlagAck) != 0) {
+					if(len != 0) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "SETTINGS ACK with payload");
+					break;
+				}
+				if(len % 6 != 0) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "SETTINGS length");
+				this.applySettings(p, 0, len);
+				this.writeFrame(SETTINGS, FlagAck, 0, null, 0, 0);
+				break;
+			case PUSH_PROMISE:
+				throw new Http2Exception(PROTOCOL_ERROR, 0, "PUSH_PROMISE from client");
+			case PING:
+				if(id != 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "PING on stream");
+				if(len != 8) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "PING length");
+				if((flags & FlagAck) == 0) this.writeFrame(PING, FlagAck, 0, p, 0, 8);
+				break;
+			case GOAWAY:
+				if(id != 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "GOAWAY on stream");
+				if(len < 8) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "GOAWAY length");
+				this.goAwayReceived = true;
+				break;
+			case WINDOW_UPDATE:
+				if(len != 4) throw new Http2Exception(FRAME_SIZE_ERROR, 0, "WINDOW_UPDATE length");
+				this.onWindowUpdate(id, readInt(p, 0) & 0x7FFFFFFF);
+				break;
+			case CONTINUATION:
+				if(this.blockStream == 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "Unexpected CONTINUATION");
+				this.appendBlock(p, 0, len);
+				if((flags & FlagEndHeaders) != 0) this.onHeaderBlock();
+				break;
+			default:
+				//Unknown frames are ignored
+		}
+	}
+	
+	protected void onData(int id, int flags, byte[] p, int len) throws IOException {
+		if(id == 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "DATA on stream 0");
+		//Whole frame counts to flow control, padding included
+		this.recvUnacked += len;
+		if(this.recvUnacked >= ConnectionWindowSize / 2) {
+			this.writeWindowUpdate(0, this.recvUnacked);
+			this.recvUnacked = 0;
+		}
+		int off = 0;
+		if((flags & FlagPadded) != 0) {
+			if(len < 1) throw new Http2Exception(PROTOCOL_ERROR, 0, "Padding too long");
+			int pad = p[0] & 0xFF;
+			off = 1;
+			len -= 1 + pad;
+			if(len < 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "Padding too long");
+		}
+		if(id > this.lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, 0, "DATA on idle stream");
+		Stream s;
+		synchronized(this) {
+			s = this.streams.get(id);
+		}
+		//Closed or reset stream, frames in flight are ignored
+		if(s == null || s.resetCode >= 0) return;
+		if(s.endReceived) throw new Http2Exception(STREAM_CLOSED, id, "DATA after END_STREAM");
+		synchronized(this) {
+			s.recvWindow -= len;
+			if(s.recvWindow < 0) throw new Http2Exception(FLOW_CONTROL_ERROR, id, "Stream window exceeded");
+		}
+		if(len > 0) {
+			byte[] copy = new byte[len];
+			System.arraycopy(p, off, copy, 0, len);
+			s.input.offer(copy);
+		}
+		if((flags & FlagEndStream) != 0) {
+			s.endReceived = true;
+			s.input.end();
+		}
+	}
+	
+	protected void onHeaders(int id, int flags, byte[] p, int len) throws IOException {
+		if(id == 0 || (id & 1) == 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "Bad stream id of HEADERS");
+		int off = 0;
+		if((flags & FlagPadded) != 0) {
+			if(len < 1) throw new Http2Exception(PROTOCOL_ERROR, 0, "Padding too long");
+			int pad = p[0] & 0xFF;
+			off = 1;
+			len -= 1 + pad;
+		}
+		if((flags & FlagPriority) != 0) {
+			off += 5;
+			len -= 5;
+		}
+		if(len < 0) throw new Http2Exception(PROTOCOL_ERROR, 0, "Padding too long");
+		this.block.reset();
+		this.blockStream = id;
+		this.blockEndStream = (flags & FlagEndStream) != 0;
+		this.appendBlock(p, off, len);
+		if((flags & FlagEndHeaders) != 0) this.onHeaderBlock();
+	}
+	
+	protected void appendBlock(byte[] p, int off, int len) throws IOException {
+		if(this.block.size() + len > this.maxHeaderListSize + DefaultFrameSize) {
+			throw new Http2Exception(ENHANCE_YOUR_CALM, 0, "Header block too long");
+		}
+		this.block.write(p, off, len);
+	}
+	
+	protected void onHeaderBlock() throws IOException {
+		int id = this.blockStream;
+		boolean end = this.blockEndStream;
+		this.blockStream = 0;
+		List<String> fields = new ArrayList<String>();
+		byte[] b = this.block.toByteArray();
+		//Must be decoded even when ignored to keep table in sync
+		boolean fits = this.decoder.decode(b, 0, b.length, fields);
+		if(id <= this.lastStreamId) {
+			Stream s;
+			synchronized(this) {
+				s = this.streams.get(id);
+			}
+			if(s == null || s.resetCode >= 0) return;
+			//Trailers
+			if(s.endReceived) throw new Http2Exception(STREAM_CLOSED, id, "HEADERS after END_STREAM");
+			if(!end) throw new Http2Exception(PROTOCOL_ERROR, id, "Trailers without END_STREAM");
+			s.endReceived = true;
+			s.input.end();
+			return;
+		}
+		this.lastStreamId = id;
+		if(this.goAwaySent) return;
+		Stream s = new Stream(id);
+		if(end) {
+			s.endReceived = true;
+			s.input.end();
+		}
+		synchronized(this) {
+			if(this.streams.size() >= this.maxConcurrentStreams) {
+				s = null;
+			} else {
+				this.streams.put(id, s);
+			}
+		}
+		if(s == null) {
+			this.writeReset(id, REFUSED_STREAM);
+			return;
+		}
+		if(!fits) {
+			List<String> res = new ArrayList<String>(2);
+			res.add(":status");
+			res.add("431");
+			this.sendHeaders(s, res, true);
+			this.finished(s);
+			return;
+		}
+		try {
+			s.request = this.createRequest(s, fields);
+		} catch(Http2Exception ex) {
+			this.finished(s);
+			throw ex;
+		}
+		this.start(s);
+	}
+	
+	/**
+	 * Create request of stream from decoded header list
+	 * @throws Http2Exception if request is malformed (stream error)
+	 */
+	protected Http2Request createRequest(Stream s, List<String> fields) throws IOException {
+		String method = null, scheme = null, path = null, authority = null;
+		Map<String,String> heads = Nice.createMap();
+		boolean regular = false;
+		for(int i = 0, n = fields.size(); i < n; i += 2) {
+			String name = fields.get(i);
+			String value = fields.get(i + 1);
+			if(name.isEmpty()) throw malformed(s, "Empty head name");
+			if(name.charAt(0) == ':') {
+				if(regular) throw malformed(s, "Pseudo head after regular head");
+				switch(name) {
+					case ":method":
+						if(method != null) throw malformed(s, "Duplicate :method");
+						method = value;
+						break;
+					case ":scheme":
+						if(scheme != null) throw malformed(s, "Duplicate :scheme");
+						scheme = value;
+						break;
+					case ":path":
+						if(path != null) throw malformed(s, "Duplicate :path");
+						path = value;
+						break;
+					case ":authority":
+						if(authority != null) throw malformed(s, "Duplicate :authority");
+						authority = value;
+						break;
+					default:
+						throw malformed(s, "Unknown pseudo head " + name);
+				}
+				continue;
+			}
+			regular = true;
+			for(int j = 0, len = name.length(); j < len; j++) {
+				char c = name.charAt(j);
+				if(c >= 'A' && c <= 'Z') throw malformed(s, "Uppercase head name");
+			}
+			if(isConnectionSpecific(name)) throw malformed(s, "Connection specific head " + name);
+			if(name.equals("te") && !value.equalsIgnoreCase("trailers")) throw malformed(s, "TE head");
+			String key = name.toUpperCase(Locale.ROOT);
+			String prev = heads.get(key);
+			if(prev != null) value = prev + (key.equals("COOKIE") ? "; " : ", ") + value;
+			heads.put(key, value);
+		}
+		if(method == null || scheme == null || path == null || path.isEmpty()) {
+			throw malformed(s, "Missing pseudo head");
+		}
+		if(authority != null && !heads.containsKey("HOST")) heads.put("HOST", authority);
+		String query = null;
+		int q = path.indexOf('?');
+		if(q != -1) {
+			query = path.substring(q + 1);
+			path = path.substring(0, q);
+		}
+		path = URLCoder.decode(path);
+		if(!path.equals("*")) {
+			if(path.isEmpty() || path.charAt(0) != '/' || path.indexOf('\\') != -1 || path.indexOf("/../") != -1)
+				throw malformed(s, "Path contains illegal characters");
+			path = HttpRequest.removeDoubleBackslashes(path);
+		}
+		Map<String,Object> get = Nice.createLinkedMap();
+		HttpRequest.parseQuery(get, query);
+		Http2Request req = new Http2Request(this, s);
+		req.getRequest().setMethod(method).setPath(path).setHttpVersion(Http2Request.HTTP_2_0)
+			.setGet(get).setHeads(heads);
+		return req;
+	}
+	
+	protected static Http2Exception malformed(Stream s, String msg) {
+		return new Http2Exception(PROTOCOL_ERROR, s.id, msg);
+	}
+	
+	/**
+	 * @param name Lowercased head name
+	 * @return true if head is HTTP/1 connection specific and has no meaning in HTTP/2
+	 */
+	public static boolean isConnectionSpecific(String name) {
+		switch(name) {
+			case "connection":
+			case "keep-alive":
+			case "proxy-connection":
+			case "transfer-encoding":
+			case "upgrade":
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Process stream in executor by handler chain
+	 */
+	protected void start(final Stream s) {
+		final Http2Request req = s.request;
+		Runnable task = new Runnable() {
+			
+			@Override
+			public void run() {
+				HttpServer srv = server;
+				if(srv != null) srv.requestStarted(req);
+				try {
+					HttpServer.process(handlers, req, 0, (srv == null) ? null : srv.getListener());
+				} finally {
+					if(srv != null) srv.requestFinished(req);
+					req.closeSilent();
+					finished(s);
+				}
+			}
+			
+		};
+		try {
+			this.executor.execute(task);
+		} catch(RejectedExecutionException ex) {
+			try {
+				this.writeReset(s.id, REFUSED_STREAM);
+			} catch(IOException ign) {}
+			this.finished(s);
+		}
+	}
+	
+	/**
+	 * Stream is done from our side, remove it
+	 */
+	protected void finished(Stream s) {
+		boolean reset;
+		synchronized(this) {
+			if(this.streams.remove(s.id) == null) return;
+			//Client is still sending body nobody reads
+			reset = !s.endReceived && s.resetCode < 0;
+			if(reset) s.resetCode = NO_ERROR;
+		}
+		s.input.fail(new EOFException("Stream closed"));
+		if(reset && !this.closed) try {
+			this.writeReset(s.id, NO_ERROR);
+		} catch(IOException ign) {}
+	}
+	
+	protected void onReset(int id, int code) {
+		Stream s;
+		synchronized(this) {
+			s = this.streams.get(id);
+			if(s == null) return;
+			s.resetCode = code;
+			this.notifyAll();
+		}
+		s.input.fail(new IOException("Stream reset by client, error " + code));
+	}
+	
+	/**
+	 * Send RST_STREAM as result of stream error
+	 */
+	protected void resetStream(int id, int code) throws IOException {
+		Stream s;
+		synchronized(this) {
+			s = this.streams.get(id);
+			if(s != null) {
+				s.resetCode = code;
+				this.notifyAll();
+			}
+		}
+		if(s != null) s.input.fail(new IOException("Stream error " + code));
+		this.writeReset(id, code);
+	}
+	
+	protected void onWindowUpdate(int id, int inc) throws IOException {
+		if(inc == 0) throw new Http2Exception(PROTOCOL_ERROR, id, "Zero window increment");
+		synchronized(this) {
+			if(id == 0) {
+				this.sendWindow += inc;
+				if(this.sendWindow > MaxWindowSize) 
+					throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Window overflow");
+			} else {
+				Stream s = this.streams.get(id);
+				if(s == null) return;
+				s.sendWindow += inc;
+				if(s.sendWindow > MaxWindowSize) 
+					throw new Http2Exception(FLOW_CONTROL_ERROR, id, "Window overflow");
+			}
+			this.notifyAll();
+		}
+	}
+	
+	protected void applySettings(byte[] p, int off, int len) throws IOException {
+		for(int end = off + len; off + 6 <= end; off += 6) {
+			int key = ((p[off] & 0xFF) << 8) | (p[off + 1] & 0xFF);
+			int val = readInt(p, off + 2);
+			switch(key) {
+				case SettingHeaderTableSize:
+					synchronized(this.writeLock) {
+						this.encoder.setMaxTableSize(val < 0 ? Integer.MAX_VALUE : val);
+					}
+					break;
+				case SettingEnablePush:
+					if(val != 0 && val != 1) throw new Http2Exception(PROTOCOL_ERROR, 0, "ENABLE_PUSH value");
+					break;
+				case SettingInitialWindowSize:
+					if(val < 0) throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "INITIAL_WINDOW_SIZE value");
+					synchronized(this) {
+						int delta = val - this.peerInitialWindow;
+						this.peerInitialWindow = val;
+						for(Stream s : this.streams.values()) {
+							s.sendWindow += delta;
+							if(s.sendWindow > MaxWindowSize) 
+								throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "Window overflow");
+						}
+						this.notifyAll();
+					}
+					break;
+				case SettingMaxFrameSize:
+					if(val < DefaultFrameSize || val > 0xFFFFFF) 
+						throw new Http2Exception(PROTOCOL_ERROR, 0, "MAX_FRAME_SIZE value");
+					this.peerMaxFrameSize = val;
+					break;
+				default:
+					//Concurrent streams limit client pushes only, others are ignored
+			}
+		}
+	}
+	
+	protected static int readInt(byte[] p, int off) {
+		return ((p[off] & 0xFF) << 24) | ((p[off + 1] & 0xFF) << 16) 
+				| ((p[off + 2] & 0xFF) << 8) | (p[off + 3] & 0xFF);
+	}
+	
+	protected static void putInt(byte[] p, int off, int val) {
+		p[off] = (byte) (val >>> 24);
+		p[off + 1] = (byte) (val >>> 16);
+		p[off + 2] = (byte) (val >>> 8);
+		p[off + 3] = (byte) val;
+	}
+	
+	protected void writeSettings() throws IOException {
+		byte[] p = new byte[18];
+		int[] settings = {
+			SettingMaxConcurrentStreams, this.maxConcurrentStreams,
+			SettingInitialWindowSize, this.initialWindowSize,
+			SettingMaxHeaderListSize, this.maxHeaderListSize
+		};
+		for(int i = 0; i < settings.length; i += 2) {
+			int off = i * 3;
+			p[off] = (byte) (settings[i] >>> 8);
+			p[off + 1] = (byte) settings[i];
+			putInt(p, off + 2, settings[i + 1]);
+		}
+		synchronized(this.writeLock) {
+			this.writeFrame(SETTINGS, 0, 0, p, 0, p.length);
+			this.writeWindowUpdate(0, ConnectionWindowSize - DefaultWindowSize);
+		}
+	}
+	
+	protected void writeWindowUpdate(int id, int inc) throws IOException {
+		byte[] p = new byte[4];
+		putInt(p, 0, inc);
+		this.writeFrame(WINDOW_UPDATE, 0, id, p, 0, 4);
+	}
+	
+	protected void writeReset(int id, int code) throws IOException {
+		byte[] p = new byte[4];
+		putInt(p, 0, code);
+		this.writeFrame(RST_STREAM, 0, id, p, 0, 4);
+	}
+	
+	/**
+	 * Send GOAWAY, no new streams are accepted
+	 */
+	protected void goAway(int code) throws IOException {
+		if(this.goAwaySent) return;
+		this.goAwaySent = true;
+		byte[] p = new byte[8];
+		putInt(p, 0, this.lastStreamId);
+		putInt(p, 4, code);
+		this.writeFrame(GOAWAY, 0, 0, p, 0, 8);
+	}
+	
+	/**
+	 * Mark connection closed and fail all streams
+	 */
+	protected void terminate() {
+		Stream[] active;
+		synchronized(this) {
+			this.closed = true;
+			active = this.streams.values().toArray(new Stream[0]);
+			for(Stream s : active) {
+				if(s.resetCode < 0) s.resetCode = CANCEL;
+			}
+			this.notifyAll();
+		}
+		for(Stream s : active) s.input.fail(new EOFException("Connection closed"));
+	}
+	
+	protected void writeFrame(int type, int flags, int id, byte[] b, int off, int len) throws IOException {
+		synchronized(this.writeLock) {
+			this.writeFrameHead(type, flags, id, len);
+			try {
+				if(len > 0) this.out.write(b, off, len);
+				this.out.flush();
+			} catch(IOException ex) {
+				this.terminate();
+				throw ex;
+			}
+		}
+	}
+	
+	protected void writeFrameHead(int type, int flags, int id, int len) throws IOException {
+		byte[] h = this.frameHead;
+		h[0] = (byte) (len >>> 16);
+		h[1] = (byte) (len >>> 8);
+		h[2] = (byte) len;
+		h[3] = (byte) type;
+		h[4] = (byte) flags;
+		putInt(h, 5, id);
+		try {
+			this.out.write(h, 0, 9);
+		} catch(IOException ex) {
+			this.terminate();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Encode and send response heads, split to CONTINUATION frames if needed
+	 */
+	protected void sendHeaders(Stream s, List<String> fields, boolean endStream) throws IOException {
+		synchronized(this.writeLock) {
+			if(s.resetCode >= 0 || this.closed) throw new IOException("Stream reset");
+			ByteArrayOutputStream enc = this.encoded;
+			enc.reset();
+			this.encoder.encode(fields, enc);
+			byte[] b = enc.toByteArray();
+			int max = this.peerMaxFrameSize;
+			int off = 0;
+			int type = HEADERS;
+			do {
+				int n = Math.min(max, b.length - off);
+				int flags = (off + n == b.length) ? FlagEndHeaders : 0;
+				if(type == HEADERS && endStream) flags |= FlagEndStream;
+				this.writeFrameHead(type, flags, s.id, n);
+				try {
+					this.out.write(b, off, n);
+				} catch(IOException ex) {
+					this.terminate();
+					throw ex;
+				}
+				off += n;
+				type = CONTINUATION;
+			} while(off < b.length);
+			if(endStream) s.endSent = true;
+			try {
+				this.out.flush();
+			} catch(IOException ex) {
+				this.terminate();
+				throw ex;
+			}
+		}
+	}
+	
+	/**
+	 * Send DATA frames, blocks while flow control window is exhausted
+	 */
+	protected void sendData(Stream s, byte[] b, int off, int len, boolean endStream) throws IOException {
+		do {
+			int n;
+			synchronized(this) {
+				while(true) {
+					if(s.resetCode >= 0 || this.closed) throw new IOException("Stream reset");
+					if(len == 0) {
+						n = 0;
+						break;
+					}
+					long window = Math.min(this.sendWindow, s.sendWindow);
+					if(window > 0) {
+						n = (int) Math.min(Math.min(window, len), this.peerMaxFrameSize);
+						this.sendWindow -= n;
+						s.sendWindow -= n;
+						break;
+					}
+					try {
+						this.wait();
+					} catch(InterruptedException ex) {
+						throw new InterruptedIOException();
+					}
+				}
+			}
+			boolean last = endStream && n == len;
+			this.writeFrame(DATA, last ? FlagEndStream : 0, s.id, b, off, n);
+			if(last) s.endSent = true;
+			off += n;
+			len -= n;
+		} while(len > 0);
+	}
+	
+	/**
+	 * App read bytes of request body, open stream window again
+	 */
+	protected void consumed(Stream s, int n) {
+		int inc = 0;
+		synchronized(this) {
+			s.consumed += n;
+			if(!s.endReceived && s.resetCode < 0 && s.consumed >= this.initialWindowSize / 2) {
+				inc = s.consumed;
+				s.consumed = 0;
+				s.recvWindow += inc;
+			}
+		}
+		if(inc > 0 && !this.closed) try {
+			this.writeWindowUpdate(s.id, inc);
+		} catch(IOException ign) {}
+	}
+	
+	/**
+	 * State of one stream
+	 */
+	protected class Stream {
+		
+		protected final int id;
+		protected long sendWindow; //Guarded by connection
+		protected int recvWindow; //Guarded by connection
+		protected int consumed = 0; //Guarded by connection
+		protected volatile boolean endReceived = false;
+		protected volatile boolean endSent = false;
+		protected volatile int resetCode = -1;
+		protected final StreamInput input = new StreamInput(this);
+		protected final StreamOutput output = new StreamOutput(this);
+		protected Http2Request request;
+		
+		protected Stream(int id) {
+			this.id = id;
+			this.sendWindow = peerInitialWindow;
+			this.recvWindow = initialWindowSize;
+		}
+		
+		public int getId() {
+			return this.id;
+		}
+		
+		public boolean isClosed() {
+			return this.resetCode >= 0 || this.endSent || closed;
+		}
+		
+	}
+	
+	/**
+	 * Request body received in DATA frames
+	 */
+	protected class StreamInput
+	extends InputStream {
+		
+		protected final Stream stream;
+		protected final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+		protected int pos = 0; //In first chunk
+		protected boolean ended = false;
+		protected IOException error;
+		
+		protected StreamInput(Stream stream) {
+			this.stream = stream;
+		}
+		
+		protected synchronized void offer(byte[] b) {
+			if(this.ended || this.error != null) return;
+			this.chunks.add(b);
+			this.notifyAll();
+		}
+		
+		protected synchronized void end() {
+			this.ended = true;
+			this.notifyAll();
+		}
+		
+		/**
+		 * Stream was reset or closed, pending reads fail unless all data arrived
+		 */
+		protected synchronized void fail(IOException ex) {
+			if(this.error == null && !this.ended) this.error = ex;
+			this.notifyAll();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (this.read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			int n = 0;
+			synchronized(this) {
+				while(this.chunks.isEmpty()) {
+					if(this.ended) return -1;
+					if(this.error != null) throw this.error;
+					try {
+						this.wait();
+					} catch(InterruptedException ex) {
+						throw new InterruptedIOException();
+					}
+				}
+				while(n < len && !this.chunks.isEmpty()) {
+					byte[] chunk = this.chunks.peek();
+					int c = Math.min(len - n, chunk.length - this.pos);
+					System.arraycopy(chunk, this.pos, b, off + n, c);
+					n += c;
+					this.pos += c;
+					if(this.pos == chunk.length) {
+						this.chunks.poll();
+						this.pos = 0;
+					}
+				}
+			}
+			consumed(this.stream, n);
+			return n;
+		}
+		
+		@Override
+		public synchronized int available() {
+			int n = 0;
+			for(byte[] chunk : this.chunks) n += chunk.length;
+			return n - this.pos;
+		}
+		
+		@Override
+		public void close() {
+			synchronized(this) {
+				this.chunks.clear();
+				this.pos = 0;
+				this.ended = true;
+				this.notifyAll();
+			}
+		}
+		
+	}
+	
+	/**
+	 * Translates HTTP/1 response written by handlers to HEADERS and DATA frames.
+	 * Heads are held until first body byte or close, so responses without 
+	 * body are sent as single HEADERS frame
+	 */
+	protected class StreamOutput
+	extends OutputStream {
+		
+		protected static final int
+			ChunkSize = 0, ChunkExtension = 1, ChunkData = 2, 
+			ChunkDataEnd = 3, ChunkTrailer = 4, ChunkDone = 5;
+		
+		protected final Stream stream;
+		protected final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+		protected int tail = 0; //Last 4 bytes of head
+		protected List<String> pending; //Parsed heads not sent yet
+		protected boolean headDone = false;
+		protected boolean noBody = false;
+		protected boolean chunked = false;
+		protected int chunkState = ChunkSize;
+		protected long chunkLeft = 0;
+		protected int lineLength = 0;
+		protected boolean closed = false;
+		
+		protected StreamOutput(Stream stream) {
+			this.stream = stream;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(this.closed) throw new IOException("Stream closed");
+			int end = off + len;
+			while(!this.headDone && off < end) {
+				int c = b[off++];
+				this.head.write(c);
+				if(this.head.size() > 64 * 1024) throw new IOException("Response head too long");
+				this.tail = (this.tail << 8) | (c & 0xFF);
+				if(this.tail == 0x0D0A0D0A) this.parseHead();
+			}
+			if(off < end) this.body(b, off, end - off);
+		}
+		
+		protected void parseHead() throws IOException {
+			String s = new String(this.head.toByteArray(), StandardCharsets.ISO_8859_1);
+			this.head.reset();
+			this.tail = 0;
+			String[] lines = s.split("\r\n");
+			String line = lines[0];
+			int sp = line.indexOf(' ');
+			int code;
+			try {
+				code = Integer.parseInt(line.substring(sp + 1, sp + 4));
+			} catch(RuntimeException ex) {
+				throw new IOException("Bad response status line " + line);
+			}
+			if(code == 101) throw new IOException("Switching protocols is not supported in HTTP/2");
+			List<String> fields = new ArrayList<String>();
+			fields.add(":status");
+			fields.add(Integer.toString(code));
+			for(int i = 1; i < lines.length; i++) {
+				line = lines[i];
+				int c = line.indexOf(':');
+				if(c <= 0) continue;
+				String name = line.substring(0, c).trim().toLowerCase(Locale.ROOT);
+				String value = line.substring(c + 1).trim();
+				if(name.equals("transfer-encoding")) {
+					this.chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+				}
+				if(isConnectionSpecific(name)) continue;
+				fields.add(name);
+				fields.add(value);
+			}
+			if(code < 200) {
+				//Informational response, final one follows
+				sendHeaders(this.stream, fields, false);
+				this.chunked = false;
+				return;
+			}
+			this.headDone = true;
+			this.pending = fields;
+			Http2Request req = this.stream.request;
+			this.noBody = code == 204 || code == 304 
+					|| (req != null && "HEAD".equals(req.getRequest().getMethod()));
+		}
+		
+		protected void body(byte[] b, int off, int len) throws IOException {
+			if(!this.chunked) {
+				this.data(b, off, len);
+				return;
+			}
+			int end = off + len;
+			while(off < end) {
+				switch(this.chunkState) {
+					case ChunkSize: {
+						int c = b[off++];
+						int d = Character.digit(c, 16);
+						if(d >= 0) {
+							this.chunkLeft = (this.chunkLeft << 4) | d;
+						} else if(c == '\n') {
+							this.chunkState = (this.chunkLeft == 0) ? ChunkTrailer : ChunkData;
+						} else {
+							this.chunkState = ChunkExtension;
+						}
+						break;
+					}
+					case ChunkExtension:
+						if(b[off++] == '\n') 
+							this.chunkState = (this.chunkLeft == 0) ? ChunkTrailer : ChunkData;
+						break;
+					case ChunkData: {
+						int n = (int) Math.min(this.chunkLeft, end - off);
+						this.data(b, off, n);
+						off += n;
+						this.chunkLeft -= n;
+						if(this.chunkLeft == 0) this.chunkState = ChunkDataEnd;
+						break;
+					}
+					case ChunkDataEnd:
+						if(b[off++] == '\n') this.chunkState = ChunkSize;
+						break;
+					case ChunkTrailer: {
+						int c = b[off++];
+						if(c == '\n') {
+							if(this.lineLength == 0) this.chunkState = ChunkDone;
+							this.lineLength = 0;
+						} else if(c != '\r') {
+							this.lineLength++;
+						}
+						break;
+					}
+					default:
+						off = end; //Trailers are dropped
+				}
+			}
+		}
+		
+		protected void data(byte[] b, int off, int len) throws IOException {
+			if(len == 0 || this.noBody) return;
+			this.sendPending(false);
+			sendData(this.stream, b, off, len, false);
+		}
+		
+		protected void sendPending(boolean endStream) throws IOException {
+			List<String> fields = this.pending;
+			if(fields == null) return;
+			this.pending = null;
+			sendHeaders(this.stream, fields, endStream);
+		}
+		
+		/**
+		 * Finish stream with END_STREAM, or reset it if no response was written
+		 */
+		@Override
+		public void close() throws IOException {
+			if(this.closed) return;
+			this.closed = true;
+			Stream s = this.stream;
+			if(s.isClosed()) return;
+			if(!this.headDone) {
+				resetStream(s.id, INTERNAL_ERROR);
+			} else if(this.pending != null) {
+				this.sendPending(true);
+			} else {
+				sendData(s, null, 0, 0, true);
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+
+import wordnice.threads.VirtualThreads;
+
+/**
+ * Cleartext HTTP/2 (h2c) support. Should be first handler in chain.
+ * Accepts connections starting with HTTP/2 preface (prior knowledge)
+ * and HTTP/1.1 requests with "Upgrade: h2c" (without body).
+ * Streams of connection are processed by handlers of server as {@link Http2Request}
+ * in client executor, so handlers work same as with HTTP/1.
+ * Connection is served in thread of original request, same as WebSocket
+ */
+public class Http2Handler
+implements HttpRequestHandler {
+	
+	protected static final byte[] SwitchingProtocols = ("HTTP/1.1 101 Switching Protocols\r\n"
+			+ "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+	
+	protected final HttpServer server;
+	protected ExecutorService executor;
+	protected boolean priorKnowledge = true;
+	protected boolean upgrade = true;
+	protected int maxConcurrentStreams = 100;
+	protected int initialWindowSize = 256 * 1024;
+	protected int maxHeaderListSize = 16 * 1024;
+	protected int idleTimeout = 30000;
+	
+	/**
+	 * @param server Server whose handlers and executor process streams
+	 */
+	public Http2Handler(HttpServer server) {
+		if(server == null) throw new IllegalArgumentException("Server == null");
+		this.server = server;
+	}
+	
+	/**
+	 * @return Executor of streams: client executor of server, 
+	 * 		or own one if server has none (single threaded)
+	 */
+	public synchronized ExecutorService getExecutor() {
+		ExecutorService exec = this.server.getClientExecutorService();
+		if(exec != null) return exec;
+		if(this.executor == null) this.executor = VirtualThreads.newExecutor("http2-stream");
+		return this.executor;
+	}
+	
+	public boolean isPriorKnowledge() {
+		return this.priorKnowledge;
+	}
+	
+	/**
+	 * Accept connections starting with HTTP/2 preface
+	 */
+	public Http2Handler setPriorKnowledge(boolean priorKnowledge) {
+		this.priorKnowledge = priorKnowledge;
+		return this;
+	}
+	
+	public boolean isUpgrade() {
+		return this.upgrade;
+	}
+	
+	/**
+	 * Accept "Upgrade: h2c" of HTTP/1.1 requests
+	 */
+	public Http2Handler setUpgrade(boolean upgrade) {
+		this.upgrade = upgrade;
+		return this;
+	}
+	
+	public int getMaxConcurrentStreams() {
+		return this.maxConcurrentStreams;
+	}
+	
+	public Http2Handler setMaxConcurrentStreams(int max) {
+		if(max < 1) throw new IllegalArgumentException("Max concurrent streams < 1");
+		this.maxConcurrentStreams = max;
+		return this;
+	}
+	
+	public int getInitialWindowSize() {
+		return this.initialWindowSize;
+	}
+	
+	public Http2Handler setInitialWindowSize(int size) {
+		if(size < Http2Connection.DefaultWindowSize) throw new IllegalArgumentException("Window size < 65535");
+		this.initialWindowSize = size;
+		return this;
+	}
+	
+	public int getMaxHeaderListSize() {
+		return this.maxHeaderListSize;
+	}
+	
+	public Http2Handler setMaxHeaderListSize(int size) {
+		if(size < 1) throw new IllegalArgumentException("Max header list size < 1");
+		this.maxHeaderListSize = size;
+		return this;
+	}
+	
+	public int getIdleTimeout() {
+		return this.idleTimeout;
+	}
+	
+	public Http2Handler setIdleTimeout(int timeout) {
+		if(timeout < 0) throw new IllegalArgumentException("Timeout < 0");
+		this.idleTimeout = timeout;
+		return this;
+	}
+	
+	protected Http2Connection createConnection(HttpRequest req) {
+		return new Http2Connection(this.server, req, this.server.getHandlers(), this.getExecutor())
+				.setMaxConcurrentStreams(this.maxConcurrentStreams)
+				.setInitialWindowSize(this.initialWindowSize)
+				.setMaxHeaderListSize(this.maxHeaderListSize)
+				.setIdleTimeout(this.idleTimeout);
+	}
+	
+	@Override
+	public boolean acceptRequest(HttpRequest req) {
+		return true;
+	}
+	
+	/**
+	 * Detect "PRI * HTTP/2.0" request line of prior knowledge preface
+	 */
+	@Override
+	public boolean finishAfterFirstLine(HttpRequest req) {
+		if(!this.priorKnowledge || req instanceof Http2Request) return false;
+		RequestData rd = req.getRequest();
+		if(!"PRI".equals(rd.getMethod()) || !"*".equals(rd.getPath())
+				|| !Http2Request.HTTP_2_0.equals(rd.getHttpVersion())) return false;
+		req.cancelDeadline();
+		try {
+			//Request line ends at offset 16 of preface
+			if(Http2Connection.readPreface(req.getInputStream(), 16)) {
+				this.createConnection(req).serve();
+			}
+		} catch(IOException ex) {
+			//Connection broken
+		}
+		req.setKeepAlive(false);
+		return true;
+	}
+	
+	/**
+	 * Detect "Upgrade: h2c" request
+	 */
+	@Override
+	public boolean finishAfterHeads(HttpRequest req) {
+		if(!this.upgrade || req instanceof Http2Request || req.isSecure()) return false;
+		RequestData rd = req.getRequest();
+		if(!RequestHead.HTTP_1_1.equals(rd.getHttpVersion())) return false;
+		String up = rd.getHead("UPGRADE");
+		String con = rd.getHead("CONNECTION");
+		if(up == null || con == null || !up.toLowerCase().contains("h2c")
+				|| !con.toLowerCase().contains("upgrade")) return false;
+		//Body would have to be read before switching, let it be HTTP/1.1
+		String clen = rd.getHead("CONTENT-LENGTH");
+		if(rd.isChunked() || (clen != null && !clen.trim().equals("0"))) return false;
+		byte[] settings = Http2Connection.decodeSettingsHead(rd.getHead("HTTP2-SETTINGS"));
+		if(settings == null) return false;
+		try {
+			OutputStream out = req.getOutputStream();
+			out.write(SwitchingProtocols);
+			out.flush();
+			req.getResponse().setStatus("101 Switching Protocols").setWritten(true);
+			this.createConnection(req).serveUpgraded(req, settings);
+		} catch(IOException ex) {
+			//Connection broken
+		}
+		req.setKeepAlive(false);
+		return true;
+	}
+	
+	@Override
+	public boolean handleRequest(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public void handleDecoderException(HttpRequest req, Exception ex) {}
+	
+	@Override
+	public void cleanup(HttpRequest req, boolean status) {}
+	
+	@Override
+	public String toString() {
+		return "Http2Handler [priorKnowledge=" + priorKnowledge + ", upgrade=" + upgrade 
+				+ ", maxConcurrentStreams=" + maxConcurrentStreams + "]";
+	}
+	
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Request of single HTTP/2 stream. Request data are filled from HEADERS frame,
+ * body is read from DATA frames and response written by handler is sent as frames.
+ * Closing request finishes stream, connection stays open
+ */
+public class Http2Request
+extends HttpRequest {
+	
+	public static final String HTTP_2_0 = "HTTP/2.0";
+	
+	protected Http2Connection connection;
+	protected Http2Connection.Stream stream;
+	
+	protected Http2Request(Http2Connection connection, Http2Connection.Stream stream) throws IOException {
+		super(connection.getSocket(), stream.input, stream.output);
+		this.connection = connection;
+		this.stream = stream;
+	}
+	
+	public Http2Connection getConnection() {
+		return this.connection;
+	}
+	
+	public int getStreamId() {
+		return this.stream.getId();
+	}
+	
+	/**
+	 * Request line is parsed by connection already
+	 */
+	@Override
+	public HttpRequest parseFirstLine() throws IOException {
+		this.getRequest().setSettings(this.getRequestSettings());
+		return this;
+	}
+	
+	/**
+	 * Heads are parsed by connection already
+	 */
+	@Override
+	public HttpRequest parseHeads() throws IOException {
+		return this;
+	}
+	
+	/**
+	 * @return Body of request, ends with END_STREAM
+	 */
+	@Override
+	public InputStream getBodyInputStream() throws IOException {
+		return this.getInputStream();
+	}
+	
+	@Override
+	public boolean hasBufferedInput() {
+		return false;
+	}
+	
+	/**
+	 * Stream is never reused for next request
+	 */
+	@Override
+	public boolean isKeepAlive() {
+		return false;
+	}
+	
+	@Override
+	public boolean canWriteSocket() {
+		return false;
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return this.stream == null || this.stream.isClosed();
+	}
+	
+	/**
+	 * Finish response of stream, socket stays open
+	 */
+	@Override
+	public void close() throws IOException {
+		if(this.output != null) {
+			try {
+				this.output.close();
+			} catch(IOException t) {}
+		}
+		if(this.input != null) {
+			try {
+				this.input.close();
+			} catch(IOException t) {}
+		}
+		RequestData rd = this.inputData;
+		if(rd != null) rd.deletePostFiles();
+		this.input = null;
+		this.output = null;
+		this.body = null;
+		this.props = null;
+		this.inputData = null;
+		this.outputData = null;
+	}
+	
+	@Override
+	public String toString() {
+		return "Http2Request [socket=" + socket + ", stream=" + ((stream == null) ? 0 : stream.getId()) + "]";
+	}
+	
+}
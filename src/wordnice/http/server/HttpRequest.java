@@ -26,7 +26,6 @@ package wordnice.http.server;
 
 import java.io.Closeable;
 import java.io.EOFException;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -36,21 +35,24 @@ import java.net.Socket;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.function.BiConsumer;
 
+import javax.net.ssl.SSLSocket;
+
 import wordnice.api.Nice;
 import wordnice.api.Nice.Masked;
-import wordnice.api.Nice.Value;
-import wordnice.codings.ASCII;
 import wordnice.codings.URLCoder;
 import wordnice.http.HttpFormatException;
-import wordnice.http.client.HttpClient;
 import wordnice.seq.InternalSplitter;
 import wordnice.seq.ByteArraySequence;
 import wordnice.seq.ByteSequence;
+import wordnice.streams.ArrayOutputStream;
+import wordnice.streams.BufferedInput;
+import wordnice.streams.ChunkedInputStream;
 import wordnice.streams.IUtils;
-import wordnice.streams.OUtils;
+import wordnice.streams.LimitedInputStream;
+import wordnice.streams.SSLStreams;
+import wordnice.threads.HashedWheelTimer;
 
 public class HttpRequest
 implements Closeable, AutoCloseable {
@@ -71,20 +73,47 @@ implements Closeable, AutoCloseable {
 	protected RequestData inputData;
 	protected ResponseData outputData;	
 	
+	protected InputStream body; //Content-Length or chunked framed body
+	protected SSLStreams ssl; //TLS transport or null
+	protected HashedWheelTimer.Timeout deadline; //Closes connection unless heads are read in time
+	protected HeadWriter headWriter; //Reused for response heads of all requests on connection
+	protected Router.Match routerMatch; //Reused by Router for all requests on connection
+	
 	protected boolean closeOnFinish = true;
+	protected Runnable detachedCloseListener; //Reports closing of connection taken over by handler
+	protected long handlerNanos = -1; //Time spent in handlers of last request, -1 if not reached
+	protected boolean keepAlive = false;
+	protected int requestCount = 0;
 	protected Map<String,Object> props;
 	
 	public HttpRequest(Socket sock) throws IOException {
 		this.init(sock);
 	}
 	
+	/**
+	 * @param in Raw input of socket (e.g. wrapped for metering), gets buffered
+	 * @param out Raw output of socket, gets buffered
+	 */
+	public HttpRequest(Socket sock, InputStream in, OutputStream out) throws IOException {
+		this.init(sock, in, out);
+	}
+	
 	protected void init(Socket sock) throws IOException {
+		if(sock == null) throw new IllegalArgumentException("Socket == null!");
+		this.init(sock, sock.getInputStream(), sock.getOutputStream());
+	}
+	
+	protected void init(Socket sock, InputStream in, OutputStream out) throws IOException {
 		if(sock == null) throw new IllegalArgumentException("Socket == null!");
 		this.socket = sock;
-		this.input = Nice.buffered(sock.getInputStream());
-		this.output = Nice.buffered(sock.getOutputStream());
+		this.input = Nice.buffered(in);
+		this.output = Nice.buffered(out);
 	}
 	
+	/**
+	 * @return true if server closes (or reuses for next request) socket after
+	 * 		this request. False if handler took the socket over
+	 */
 	public boolean closeOnFinish() {
 		return closeOnFinish;
 	}
@@ -93,7 +122,164 @@ implements Closeable, AutoCloseable {
 		this.closeOnFinish = closeOnFinish;
 		return this;
 	}
+	
+	/**
+	 * @return Task which handler taking the socket over (see {@link #setCloseOnFinish(boolean)})
+	 * 		runs once when it closes the socket, or null
+	 */
+	public Runnable getDetachedCloseListener() {
+		return detachedCloseListener;
+	}
+	
+	public HttpRequest setDetachedCloseListener(Runnable detachedCloseListener) {
+		this.detachedCloseListener = detachedCloseListener;
+		return this;
+	}
 
+	/**
+	 * @return true if connection can be reused for next request:
+	 * 		server allows it, client asked for it and response was written 
+	 * 		with known length through {@link #writeResponse(CharSequence)}
+	 */
+	public boolean isKeepAlive() {
+		if(!this.keepAlive || this.isClosed()) return false;
+		RequestData in = this.inputData;
+		ResponseData out = this.outputData;
+		if(in == null || out == null || !out.isWritten()) return false;
+		if(!in.isKeepAlive() || !out.isFramed(in.getMethod())) return false;
+		if("HTTP/1.0".equals(in.getHttpVersion())) {
+			String con = out.findHead("Connection");
+			return con != null && con.toLowerCase().contains("keep-alive");
+		}
+		return true;
+	}
+	
+	/**
+	 * Allow or deny reusing connection after this request
+	 */
+	public HttpRequest setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+	
+	/**
+	 * @return Count of requests finished before this one on same connection
+	 */
+	public int getRequestCount() {
+		return this.requestCount;
+	}
+	
+	/**
+	 * @return true if next request bytes are already buffered (pipelined request)
+	 */
+	public boolean hasBufferedInput() {
+		InputStream in = this.input;
+		if(in instanceof BufferedInput && ((BufferedInput) in).buffered() > 0) return true;
+		SSLStreams tls = this.ssl;
+		return tls != null && tls.available() > 0;
+	}
+	
+	/**
+	 * @return TLS transport of connection or null if socket is plain 
+	 * 		(or SSLSocket, which is not exposed here)
+	 */
+	public SSLStreams getSSLStreams() {
+		return this.ssl;
+	}
+	
+	/**
+	 * Set TLS transport the streams of this request go through
+	 */
+	public HttpRequest setSSLStreams(SSLStreams ssl) {
+		this.ssl = ssl;
+		return this;
+	}
+	
+	/**
+	 * @return true if connection is encrypted, socket channel 
+	 * 		must not be written to directly then
+	 */
+	public boolean isSecure() {
+		return this.ssl != null || this.socket instanceof SSLSocket;
+	}
+	
+	/**
+	 * Set timeout which closes connection unless request heads are read in time.
+	 * Previous one is cancelled
+	 */
+	public HttpRequest setDeadline(HashedWheelTimer.Timeout deadline) {
+		HashedWheelTimer.Timeout old = this.deadline;
+		if(old != null) old.cancel();
+		this.deadline = deadline;
+		return this;
+	}
+	
+	/**
+	 * Cancel header deadline. Handlers which take connection over 
+	 * before heads are read (in finishAfterFirstLine) must call this
+	 * 
+	 * @return false if there was no deadline or it already expired
+	 */
+	public boolean cancelDeadline() {
+		HashedWheelTimer.Timeout t = this.deadline;
+		if(t == null) return false;
+		this.deadline = null;
+		return t.cancel();
+	}
+	
+	/**
+	 * @return true if response can be written straight to socket channel 
+	 * 		(e.g. with FileChannel.transferTo), bypassing output stream.
+	 * 		False for TLS and while {@link ResponseCache} captures the output
+	 */
+	public boolean canWriteSocket() {
+		return !this.isSecure() && !(this.output instanceof ResponseCache.Capture);
+	}
+	
+	/**
+	 * Prepare this instance for next request on same connection.
+	 * Socket, buffered streams, request and response data are reused
+	 */
+	public HttpRequest recycle() {
+		if(this.inputData != null) this.inputData.reset();
+		if(this.outputData != null) this.outputData.reset();
+		if(this.props != null) this.props.clear();
+		this.body = null;
+		this.closeOnFinish = true;
+		this.requestCount++;
+		return this;
+	}
+	
+	/**
+	 * Skip unread rest of request body and flush response.
+	 * @return false if body was too long to be skipped and connection should be closed
+	 */
+	public boolean finishBody(long maxSkip) throws IOException {
+		this.getOutputStream().flush();
+		RequestData rd = this.inputData;
+		if(rd == null) return true;
+		InputStream body = this.getBodyInputStream();
+		long skipped = 0;
+		byte[] buff = Nice.LoopBytesBuffer; //discarded data
+		int n;
+		while((n = body.read(buff, 0, buff.length)) > 0) {
+			skipped += n;
+			if(skipped > maxSkip) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return Body of request framed by Content-Length or chunked encoding. 
+	 * 		Reading it never reads next pipelined request
+	 */
+	public InputStream getBodyInputStream() throws IOException {
+		if(this.body == null) {
+			this.body = createBodyStream(this.getRequest(), this.getInputStream());
+		}
+		return this.body;
+	}
+	
 	public RequestSettings getRequestSettings() {
 		return this.getRequest().getSettings();
 	}
@@ -159,8 +345,20 @@ implements Closeable, AutoCloseable {
 	}
 	
 	
+	/**
+	 * @return Buffer for serializing response heads of this connection
+	 */
+	public HeadWriter getHeadWriter() {
+		if(this.headWriter == null) this.headWriter = new HeadWriter();
+		return this.headWriter.reset();
+	}
+	
 	public HttpRequest writeResponseHeads() throws IOException {
-		writeResponseHeads(this.getResponse().getHeads(), this.getOutputStream());
+		ResponseData res = this.getResponse();
+		OutputStream out = this.getOutputStream();
+		this.getHeadWriter().heads(res.getHeads()).writeTo(out);
+		out.flush();
+		res.setWritten(true);
 		return this;
 	}
 	
@@ -177,7 +375,8 @@ implements Closeable, AutoCloseable {
 	}
 	
 	public HttpRequest writeResponseLine(CharSequence status, CharSequence httpversion) throws IOException {
-		writeResponseLine(status, httpversion, this.getOutputStream());
+		this.getHeadWriter().status(status, httpversion).writeTo(this.getOutputStream());
+		this.getResponse().setStatus((status == null) ? "200 OK" : status);
 		return this;
 	}
 	
@@ -194,10 +393,26 @@ implements Closeable, AutoCloseable {
 	}
 	
 	public HttpRequest writeResponse(CharSequence status, CharSequence httpversion) throws IOException {
-		writeResponse(status, httpversion, this.getResponse().getHeads(), this.getOutputStream());
+		ResponseData res = this.getResponse();
+		OutputStream out = this.getOutputStream();
+		this.getHeadWriter().status(status, httpversion).heads(res.getHeads()).writeTo(out);
+		out.flush();
+		res.setStatus((status == null) ? "200 OK" : status).setWritten(true);
 		return this;
 	}
 	
+	/**
+	 * Write response heads and open stream for body. Body is compressed 
+	 * when {@link ResponseCompression} is in handler chain and client supports it.
+	 * Close returned stream to finish body, socket stays open
+	 */
+	public OutputStream writeResponseBody(CharSequence status) throws IOException {
+		Object comp = this.getProperty(ResponseCompression.PROPERTY);
+		if(comp instanceof ResponseCompression)
+			return ((ResponseCompression) comp).writeResponse(this, status);
+		return ResponseCompression.writePlain(this, status);
+	}
+	
 	public boolean isClosed() {
 		if(this.socket == null) return true;
 		return !this.socket.isConnected() || this.socket.isClosed();
@@ -215,30 +430,18 @@ implements Closeable, AutoCloseable {
 	 */
 	public HttpRequest parseFirstLine() throws IOException {
 		final RequestData in = this.getRequest();
-		InputStream input = this.getInputStream();
-		String path = IUtils.readLineStrict(input);
-		if(path == null || path.length() < 5) {
+		RequestHead head = in.getOrCreateRawHead();
+		if(!head.readFirstLine(this.getInputStream())) {
 			throw new HttpFormatException("Corrupted first line of HTTP request - too short, bad formatting");
 		}
-		int zeroi = path.indexOf(' ');
-		int lastzeroi = path.lastIndexOf(' ');
-		if(zeroi == -1 || lastzeroi == zeroi) {
-			throw new HttpFormatException("Corrupted first line of HTTP request - bad formatting");
-		}
-		in.setMethod(path.substring(0, zeroi).toUpperCase());
-		in.setHttpVersion(path.substring(lastzeroi + 1, path.length()).toUpperCase());
-		path = path.substring(zeroi + 1, lastzeroi);
-		String originalPath = path;
-		zeroi = originalPath.indexOf('?');
-		if(zeroi > -1) {
-			path = originalPath.substring(0, zeroi);
-		}
+		in.setMethod(head.getMethod());
+		in.setHttpVersion(head.getHttpVersion());
+		String path = head.getDecodedPath();
 		if(path.length() == 0)
 			throw new HttpFormatException("Path zero length");
 		if(path.length() == 1 && path.charAt(0) == '*') {
 			//Allow asterisk
 		} else {
-			path = URLCoder.decode(path);
 			if(path.length() == 0 || path.charAt(0) != '/' || path.indexOf('\\') != -1 || path.indexOf("/../") != -1)
 				throw new HttpFormatException("Path contains illegal characters");
 			path = removeDoubleBackslashes(path);
@@ -246,26 +449,30 @@ implements Closeable, AutoCloseable {
 		
 		in.setSettings(this.getRequestSettings());
 		in.setPath(path);
-		
-		if(zeroi > -1) {
-			final Map<String,Object> inputGet = in.getOrCreateGet();
-			InternalSplitter.handleMap(
-					new BiConsumer<String,String>() {
-				
-						@Override
-						public void accept(String key, String val) throws Masked {
-							key = URLCoder.decode(key);
-							val = URLCoder.decode(val);
-							inputGet.put(key, val);
-						}
-				
-			}, originalPath, "=", "&", zeroi+1, true);
-		}
+		//Query is parsed on first access to get map
 		return this;
 	}
 	
+	/**
+	 * Parse URL encoded query (without '?') into given map
+	 */
+	public static void parseQuery(final Map<String,Object> map, String query) {
+		if(query == null || query.isEmpty()) return;
+		InternalSplitter.handleMap(
+				new BiConsumer<String,String>() {
+			
+					@Override
+					public void accept(String key, String val) throws Masked {
+						key = URLCoder.decode(key);
+						val = URLCoder.decode(val);
+						map.put(key, val);
+					}
+			
+		}, query, "=", "&", 0, true);
+	}
+	
 	public HttpRequest parseHeads() throws IOException {
-		parseHeads(this.getRequest().getOrCreateHeads(), this.getInputStream());
+		this.getRequest().getOrCreateRawHead().readHeads(this.getInputStream());
 		return this;
 	}
 	
@@ -274,7 +481,7 @@ implements Closeable, AutoCloseable {
 	}
 	
 	public HttpRequest parsePost() throws IOException {
-		if(this.hasPost()) parsePost(this.getRequest(), this.getInputStream());
+		if(this.hasPost()) parsePost(this.getRequest(), this.getBodyInputStream());
 		return this;
 	}
 	
@@ -325,6 +532,7 @@ implements Closeable, AutoCloseable {
 	
 	@Override
 	public void close() throws IOException {
+		this.cancelDeadline();
 		if(this.output != null) {
 			try {
 				this.output.flush();
@@ -341,30 +549,14 @@ implements Closeable, AutoCloseable {
 			} catch(IOException t) {}
 		}
 		RequestData rd = this.inputData;
-		if(rd != null) {
-			Map<String,Post> posts = rd.getPost();
-			if(posts != null && !posts.isEmpty()) {
-				for(Entry<String,Post> entry : posts.entrySet()) {
-					Post post = entry.getValue();
-					if(!post.isFile()) {
-						continue;
-					}
-					File f = post.getFile();
-					if(!f.exists()) {
-						continue;
-					}
-					try {
-						f.delete();
-					} catch(Exception e) {}
-				}
-			}
-		}
+		if(rd != null) rd.deletePostFiles();
 		try {
 			if(this.socket != null) this.socket.close();
 		} finally {
 			//gc
 			this.input = null;
 			this.output = null;
+			this.body = null;
 			this.props = null;
 			this.inputData = null;
 			this.outputData = null;
@@ -399,7 +591,22 @@ implements Closeable, AutoCloseable {
 	public static boolean hasPost(RequestData id) {
 		return (id.getSettings().parsePost() && (id.getMethod() == null 
 				|| id.getMethod().equals("POST"))
-				&& id.getHead("CONTENT-LENGTH") != null);
+				&& (id.getHead("CONTENT-LENGTH") != null || id.isChunked()));
+	}
+	
+	/**
+	 * Create stream for reading request body. Chunked encoding has precedence 
+	 * over Content-Length, request without both has empty body
+	 */
+	public static InputStream createBodyStream(RequestData id, InputStream in) throws HttpFormatException {
+		if(id.isChunked()) return new ChunkedInputStream(in);
+		String clenStr = id.getHead("CONTENT-LENGTH");
+		if(clenStr == null) return new LimitedInputStream(in, 0);
+		final long clen = Nice.cast(clenStr.trim(), long.class, -1L);
+		if(clen < 0) {
+			throw new HttpFormatException("Content-length wrong ("+clenStr+")");
+		}
+		return new LimitedInputStream(in, clen);
 	}
 	
 	public static void parsePost(final RequestData id, InputStream in) throws IOException {
@@ -420,7 +627,7 @@ implements Closeable, AutoCloseable {
 			return;
 		}
 		final long clen = Nice.cast(id.getHead("CONTENT-LENGTH"), long.class, -1L);
-		if(clen < 0) {
+		if(clen < 0 && !id.isChunked()) {
 			throw new HttpFormatException("Content length undefined or wrong ("+clen+")")
 					.setError(411, "Length Required");
 		}
@@ -463,87 +670,47 @@ implements Closeable, AutoCloseable {
 		if(set != null && !set.parseMultipart()) {
 			return;
 		}
-		byte[] startbuff = new byte[Math.max(boundary.length*5, set.getMultipartBufferSize())];
-		//byte[] startbuff2 = new byte[startbuff.length];
-		IUtils.readFully(in, startbuff, 0, boundary.length);
-		if(!ASCII.equals(startbuff, 0, boundary.length-2, boundary, 2, boundary.length-2)
-				|| startbuff[boundary.length-2] != '\r'
-				|| startbuff[boundary.length-1] != '\n') {
-			throw new HttpFormatException("Multipart POST begining mismach!");
-		}
-		//PrefixedInputStream pis = new PrefixedInputStream(in); //resource
 		Map<String,Post> post = id.getOrCreatePost();
-		final Value<String> name = new Value<String>();
-		final Value<String> filename = new Value<String>();
-		while(true) {
-			Map<String,String> head = Nice.createMap();
-			//System.out.println("Parsing heads... " + pis.getPrefix() + " / " + startbuff + ","+ startbuff2);
-			parseHeads(head, in);
-			String cdis = head.get("content-disposition");
-			if(cdis == null) {
-				throw new HttpFormatException("Multipart block without content-disposition!");
-			}
-			name.setValue(null);
-			filename.setValue(null);
-			int cdisSplit = cdis.indexOf(';');
-			if(cdisSplit != -1) {
-				String originalCdis = cdis;
-				cdis = cdis.substring(0, cdisSplit);
-				try {
-					InternalSplitter.handleMap(new BiConsumer<String,String>() {
-						
-						@Override
-						public void accept(String key, String val) throws Masked {
-							if(key != null && val != null) {
-								key = key.trim().toLowerCase();
-								val = val.trim();
-								if(key.equals("name")) {
-									name.setValue(val);
-								} else if(key.equals("filename")) {
-									filename.setValue(val);
-								} else {
-									/*throw Api.mask(new HTTPFormatException("Unknown value with key " 
-											+ key + " in boundary content-disposition!"));*/
-								}
-							}
-						}
-				
-					}, originalCdis, "=",";", cdisSplit+1, true);
-				} catch(Masked m) {
-					throw (IOException) m.getCause();
+		MultipartReader reader = new MultipartReader(in, boundary, set.getMultipartBufferSize());
+		try {
+			MultipartReader.Part part;
+			while((part = reader.next()) != null) {
+				String cdis = part.getHead("CONTENT-DISPOSITION");
+				if(cdis == null) {
+					throw new HttpFormatException("Multipart block without content-disposition!");
 				}
-			}
-			if(cdis.equals("form-data")) {
-				AbstractPost.MultipartPost postdata = new AbstractPost.MultipartPost((filename.getValue() != null), set.getMultipartMemoryLimit());
-				postdata.setFileName(filename.getValue());
-				postdata.setContentType(head.get("content-type"));
-				postdata.setHeads(head);
-				while(true) {
-					IUtils.readUntil(in, postdata, boundary, 0, boundary.length, startbuff); //change to radUntilEOF
-					IUtils.readFully(in, startbuff, 0, 2);
-					if(startbuff[0] == '\r' && startbuff[1] == '\n') {
-						//OK! Next entry incoming...
-						postdata.finish();
-						post.put(name.getValue(), postdata);
-						break;
-					} else if(startbuff[0] == '-' && startbuff[1] == '-') {
-						//End of request!
-						postdata.finish();
-						post.put(name.getValue(), postdata);
-						return;
-					} else {
-						//Lets say there is a file with same bytes as boundary has... continue reading
-						postdata.write(boundary);
-						postdata.write(startbuff, 0, 2);
-					}
+				int cdisSplit = cdis.indexOf(';');
+				if(cdisSplit != -1) cdis = cdis.substring(0, cdisSplit);
+				if(!cdis.trim().equalsIgnoreCase("form-data")) {
+					throw new HttpFormatException("Unknown content-disposition: '" + cdis + "'");
 				}
-			} else {
-				throw new HttpFormatException("Unknown content-disposition: '" + cdis + "'");
+				AbstractPost.MultipartPost postdata = new AbstractPost.MultipartPost(part.isFile(), set.getMultipartMemoryLimit());
+				postdata.setFileName(part.getFileName());
+				postdata.setContentType(part.getContentType());
+				postdata.setHeads(part.getHeads());
+				part.transferTo(postdata);
+				postdata.finish();
+				post.put(part.getName(), postdata);
 			}
+		} finally {
+			reader.close();
 		}
 	}
 	
+	/**
+	 * Open streaming reader of multipart body. Disable 
+	 * {@link RequestSettings#parseMultipart()} in {@link HttpRequestHandler#finishAfterHeads}
+	 * so body is not consumed by {@link #parsePost()} before
+	 */
+	public MultipartReader getMultipart() throws IOException {
+		return MultipartReader.create(this);
+	}
+	
 	public static void parsePostSimple(final RequestData id, InputStream in) throws IOException {
+		if(id.isChunked()) {
+			parsePostSimpleChunked(id, in);
+			return;
+		}
 		final long clen = Nice.cast(id.getHead("CONTENT-LENGTH"), long.class, -1L);
 		if(clen < 0) {
 			throw new HttpFormatException("Content-length undefined or wrong ("+clen+")")
@@ -565,37 +732,46 @@ implements Closeable, AutoCloseable {
 		}, new ByteArraySequence(read, 0, readed), EQUALS, AND);
 	}
 	
+	/**
+	 * Parse urlencoded post of unknown length, limited by 
+	 * {@link RequestSettings#getMaxSimplePostSize()}
+	 */
+	protected static void parsePostSimpleChunked(final RequestData id, InputStream in) throws IOException {
+		int max = id.getSettings().getMaxSimplePostSize();
+		ArrayOutputStream read = Nice.createArrayOutput();
+		byte[] buff = new byte[Math.min(max, Nice.BufferSize)];
+		int n;
+		while((n = in.read(buff, 0, buff.length)) > 0) {
+			if(read.size() + n > max) {
+				throw new HttpFormatException("Chunked post too big (>"+max+")")
+						.setError(413, "Payload Too Large");
+			}
+			read.write(buff, 0, n);
+		}
+		final Map<String,Post> posts = id.getOrCreatePost();
+		InternalSplitter.handleMap(new BiConsumer<ByteSequence,ByteSequence>() {
+					@Override
+					public void accept(ByteSequence key, ByteSequence val) {
+						posts.put(key.toString(id.getCharset()),
+								(val == null) ? null : new AbstractPost.PostBytes(val.newArray()));
+					}
+		}, new ByteArraySequence(read.toByteArray()), EQUALS, AND);
+	}
+	
 	public static void writeResponse(CharSequence status, 
 			CharSequence httpversion, Map<String,List<String>> heads, OutputStream out) throws IOException {
-		writeResponseLine(status, httpversion, out);
-		writeResponseHeads(heads, out);
+		new HeadWriter().status(status, httpversion).heads(heads).writeTo(out);
+		out.flush();
 	}
 	
 	public static void writeResponseHeads(Map<String,List<String>> heads, OutputStream out) throws IOException {
-		if(heads != null && !heads.isEmpty()) {
-			for(Entry<String,List<String>> rootEntry : heads.entrySet()) {
-				String key = rootEntry.getKey();
-				List<String> values = rootEntry.getValue();
-				for(String val : values) {
-					OUtils.write(out, key);
-					out.write(HttpClient.DELIMITER);
-					OUtils.write(out, val);
-					out.write(HttpClient.CRLF);
-				}
-			}
-		}
-		out.write(HttpClient.CRLF);
+		new HeadWriter().heads(heads).writeTo(out);
 		out.flush();
 	}
 	
 	public static void writeResponseLine(CharSequence status, 
 			CharSequence httpversion, OutputStream out) throws IOException {
-		if(status == null) status = "200 OK"; //ok!
-		if(httpversion == null) httpversion = "HTTP/1.1";
-		OUtils.write(out, httpversion);
-		out.write((byte)' ');
-		OUtils.write(out, status);
-		out.write(HttpClient.CRLF);
+		new HeadWriter(64).status(status, httpversion).writeTo(out);
 	}
 
 	@Override
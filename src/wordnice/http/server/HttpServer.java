@@ -25,22 +25,38 @@
 package wordnice.http.server;
 
 import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import wordnice.api.Nice;
 import wordnice.coll.ConcurrentArray;
+import wordnice.limit.AdaptiveLimit;
+import wordnice.streams.SSLStreams;
+import wordnice.threads.HashedWheelTimer;
+import wordnice.threads.VirtualThreads;
 import wordnice.utils.Sockets;
 
 public class HttpServer
@@ -57,6 +73,26 @@ implements Closeable, AutoCloseable, Runnable {
 		return new HttpServer(cfg.createServerSocket());
 	}
 	
+	/**
+	 * Create server accepting through ServerSocketChannel.
+	 * Idle clients are then parked in selector loops instead of worker threads,
+	 * see {@link #setSelectorLoops(int)}
+	 */
+	public static HttpServer create(ServerSocketChannel channel) {
+		if(channel == null) throw new IllegalArgumentException("Server channel == null");
+		return new HttpServer(channel.socket()).setSelectorLoops(DefaultSelectorLoops);
+	}
+	
+	public static HttpServer createNonBlocking(Sockets.Config cfg) 
+			throws NoSuchAlgorithmException, SecurityException, IOException, GeneralSecurityException {
+		if(cfg == null) throw new IllegalArgumentException("Server config == null");
+		HttpServer server = create(cfg.createServerSocketChannel());
+		if(cfg.isSsl()) server.setSSL(cfg);
+		return server;
+	}
+	
+	public static int DefaultSelectorLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	
 	protected HttpServer(ServerSocket sock) {
 		this.server = sock;
 	}
@@ -77,12 +113,174 @@ implements Closeable, AutoCloseable, Runnable {
 	/** Collection with current requests **/
 	protected Collection<HttpRequest> currentRequests;
 	
+	/** Count of selector loops used when server socket has channel.
+	 * 0 means clients are handled by blocking accept loop **/
+	protected int selectorLoops = 0;
+	
+	/** Running selector loops, created on listen **/
+	protected SelectorLoop[] loops;
+	protected int nextLoop = 0;
+	
+	/** Milliseconds to wait for next request on persistent connection. 
+	 * 0 disables persistent connections **/
+	protected int keepAliveTimeout = 5000;
+	
+	/** Milliseconds client has to send request line and heads (or finish TLS handshake).
+	 * Protects against slow clients (slowloris). 0 disables **/
+	protected int headerTimeout = 20000;
+	
+	/** Timer of deadlines, shared timer if null **/
+	protected HashedWheelTimer timer;
+	
+	/** Maximum count of requests on one connection. 0 means unlimited **/
+	protected int maxKeepAliveRequests = 100;
+	
+	/** Maximum count of unread body bytes skipped to reuse connection **/
+	protected long maxBodySkip = 64*1024;
+	
+	/** True if client executor was created by server and should be shut down with it **/
+	protected boolean ownClientExecutor = false;
+	
+	/** Limits count of requests processed at once, null means unlimited **/
+	protected Semaphore requestLimiter;
+	protected int maxConcurrentRequests = 0;
+	
+	/** Count of requests being processed right now **/
+	protected final AtomicInteger activeRequests = new AtomicInteger();
+	
+	/** Connections submitted to client executor, but not yet running **/
+	protected final AtomicInteger queuedRequests = new AtomicInteger();
+	protected int maxQueuedRequests = 0;
+	protected volatile AdaptiveLimit adaptiveLimit;
+	
+	/** Config of SSLEngine transport or null **/
+	protected Sockets.Config sslConfig;
+	
+	/** Instrumentation listener or null **/
+	protected volatile HttpServerListener listener;
+	
+	/** Run by handlers which took connection over, once they close it **/
+	protected final Runnable connectionClosedTask = new Runnable() {
+		
+		@Override
+		public void run() {
+			connectionClosed();
+		}
+		
+	};
+	
 	public ExecutorService getClientExecutorService() {
 		return clientExecutorService;
 	}
 
 	public HttpServer setClientExecutorService(ExecutorService clientExecutorService) {
 		this.clientExecutorService = clientExecutorService;
+		this.ownClientExecutor = false;
+		return this;
+	}
+	
+	/**
+	 * Handle each connection in its own virtual thread (Java 21+, 
+	 * cached pool of daemon threads otherwise). Blocking handlers then
+	 * cost no platform thread while waiting for I/O.
+	 * Combine with {@link #setMaxConcurrentRequests(int)} to bound load.
+	 * Executor is shut down with {@link #shutdown(long)}
+	 */
+	public HttpServer useVirtualThreads() {
+		this.clientExecutorService = VirtualThreads.newExecutor("HttpServer-client");
+		this.ownClientExecutor = true;
+		return this;
+	}
+	
+	public int getMaxConcurrentRequests() {
+		return this.maxConcurrentRequests;
+	}
+	
+	/**
+	 * Set maximum count of requests processed at once. Connections over limit 
+	 * wait (in their threads) until some request finishes. 
+	 * Idle persistent connections do not count, connections taken over 
+	 * by handler (e.g. WebSocket) count for their whole lifetime. 0 means unlimited
+	 */
+	public HttpServer setMaxConcurrentRequests(int max) {
+		if(max < 0) throw new IllegalArgumentException("Negative max concurrent requests");
+		this.maxConcurrentRequests = max;
+		this.requestLimiter = (max == 0) ? null : new Semaphore(max, true);
+		return this;
+	}
+	
+	public Sockets.Config getSSL() {
+		return this.sslConfig;
+	}
+	
+	/**
+	 * Encrypt accepted connections with SSLEngine of given config 
+	 * (see {@link wordnice.streams.SSLStreams}), so idle TLS connections
+	 * can be parked in selector loops too. Handshake is done in client executor.
+	 * Server must be created from ServerSocketChannel. Null to disable
+	 */
+	public HttpServer setSSL(Sockets.Config cfg) {
+		if(cfg != null && this.server != null && this.server.getChannel() == null)
+			throw new IllegalStateException("SSLEngine transport needs server created from channel");
+		this.sslConfig = cfg;
+		return this;
+	}
+	
+	public HttpServerListener getListener() {
+		return this.listener;
+	}
+	
+	/**
+	 * Set listener of request phases, connections and traffic (e.g. {@link ServerMetrics}).
+	 * Traffic is metered only on connections accepted after this call
+	 */
+	public HttpServer setListener(HttpServerListener listener) {
+		this.listener = listener;
+		return this;
+	}
+	
+	/**
+	 * @return Count of requests being processed right now
+	 */
+	public int getActiveRequests() {
+		return this.activeRequests.get();
+	}
+	
+	/**
+	 * @return Count of connections waiting for client executor
+	 */
+	public int getQueuedRequests() {
+		return this.queuedRequests.get();
+	}
+	
+	public int getMaxQueuedRequests() {
+		return this.maxQueuedRequests;
+	}
+	
+	/**
+	 * Set maximum count of connections with request waiting for client executor.
+	 * Connections over limit get 503 from accepting thread right away 
+	 * instead of queueing. Requests are also rejected when executor rejects them. 
+	 * 0 means unlimited
+	 */
+	public HttpServer setMaxQueuedRequests(int max) {
+		if(max < 0) throw new IllegalArgumentException("Negative max queued requests");
+		this.maxQueuedRequests = max;
+		return this;
+	}
+	
+	public AdaptiveLimit getAdaptiveLimit() {
+		return this.adaptiveLimit;
+	}
+	
+	/**
+	 * Set concurrency limit adapted by handler latency (time from parsed heads
+	 * until handlers return, without reading body). Requests over limit 
+	 * get 503 without being parsed. Applied after {@link #setMaxConcurrentRequests(int)}.
+	 * Null to disable
+	 */
+	public HttpServer setAdaptiveLimit(AdaptiveLimit limit) {
+		this.adaptiveLimit = limit;
 		return this;
 	}
 	
@@ -126,6 +324,105 @@ implements Closeable, AutoCloseable, Runnable {
 		return this;
 	}*/
 
+	public int getKeepAliveTimeout() {
+		return this.keepAliveTimeout;
+	}
+	
+	/**
+	 * Set milliseconds to wait for next request on persistent connection.
+	 * 0 disables persistent connections
+	 */
+	public HttpServer setKeepAliveTimeout(int keepAliveTimeout) {
+		if(keepAliveTimeout < 0) throw new IllegalArgumentException("Negative keep-alive timeout");
+		this.keepAliveTimeout = keepAliveTimeout;
+		return this;
+	}
+	
+	public int getHeaderTimeout() {
+		return this.headerTimeout;
+	}
+	
+	/**
+	 * Set milliseconds client has to send request line and heads 
+	 * since it was dispatched (or finish TLS handshake).
+	 * Connection is closed once deadline passes. 0 disables
+	 */
+	public HttpServer setHeaderTimeout(int headerTimeout) {
+		if(headerTimeout < 0) throw new IllegalArgumentException("Negative header timeout");
+		this.headerTimeout = headerTimeout;
+		return this;
+	}
+	
+	/**
+	 * @return Timer of header deadlines and idle connections
+	 */
+	public HashedWheelTimer getTimer() {
+		HashedWheelTimer t = this.timer;
+		return (t == null) ? HashedWheelTimer.shared() : t;
+	}
+	
+	public HttpServer setTimer(HashedWheelTimer timer) {
+		this.timer = timer;
+		return this;
+	}
+	
+	public int getMaxKeepAliveRequests() {
+		return this.maxKeepAliveRequests;
+	}
+	
+	/**
+	 * Set maximum count of requests served over one connection. 0 means unlimited
+	 */
+	public HttpServer setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+		if(maxKeepAliveRequests < 0) throw new IllegalArgumentException("Negative max requests");
+		this.maxKeepAliveRequests = maxKeepAliveRequests;
+		return this;
+	}
+	
+	public long getMaxBodySkip() {
+		return this.maxBodySkip;
+	}
+	
+	public HttpServer setMaxBodySkip(long maxBodySkip) {
+		if(maxBodySkip < 0) throw new IllegalArgumentException("Negative max body skip");
+		this.maxBodySkip = maxBodySkip;
+		return this;
+	}
+	
+	public int getSelectorLoops() {
+		return this.selectorLoops;
+	}
+	
+	/**
+	 * Set count of selector loops for non-blocking mode.
+	 * Used only when server socket was created from ServerSocketChannel
+	 */
+	public HttpServer setSelectorLoops(int loops) {
+		if(loops < 0) throw new IllegalArgumentException("Negative selector loops count");
+		if(this.loops != null) throw new IllegalStateException("Cannot change selector loops once listening");
+		this.selectorLoops = loops;
+		return this;
+	}
+	
+	public boolean isNonBlocking() {
+		return this.selectorLoops > 0 && this.server != null && this.server.getChannel() != null;
+	}
+	
+	/**
+	 * @return Count of idle clients parked in selector loops
+	 */
+	public int getParkedClients() {
+		SelectorLoop[] loops = this.loops;
+		if(loops == null) return 0;
+		int count = 0;
+		for(SelectorLoop loop : loops) count += loop.getChannelCount();
+		return count;
+	}
+	
+	/**
+	 * @return Requests being processed right now (if stored, see 
+	 * 		{@link #storeCurrentRequests(boolean)}). Synchronize on it while iterating
+	 */
 	public Collection<HttpRequest> getCurrentRequests() {
 		return currentRequests;
 	}
@@ -189,57 +486,364 @@ implements Closeable, AutoCloseable, Runnable {
 		return null;
 	}
 	
+	protected static final byte[] ServiceUnavailable = ("HTTP/1.1 503 Service Unavailable\r\n"
+			+ "Retry-After: 1\r\nConnection: close\r\nContent-Length: 0\r\n\r\n")
+			.getBytes(StandardCharsets.US_ASCII);
+	
+	/** Results of {@link #process(Iterable, HttpRequest, long, HttpServerListener)} **/
+	protected static final int
+		ResultClose = 0, //Connection closed
+		ResultKeep = 1, //Connection can be used for next request
+		ResultDetached = 2; //Handler took the socket over
+	
+	protected static final int
+		PhaseFirstLine = HttpServerListener.PhaseFirstLine,
+		PhaseHeads = HttpServerListener.PhaseHeads,
+		PhasePost = HttpServerListener.PhasePost,
+		PhaseHandler = HttpServerListener.PhaseHandler,
+		PhaseTotal = HttpServerListener.PhaseTotal;
+	
+	/**
+	 * Process single request and close socket (unless handler took it over)
+	 */
 	protected static boolean process(Iterable<HttpRequestHandler> handlers, Socket socketClient) {
 		HttpRequest req = null;
+		try {
+			req = new HttpRequest(socketClient);
+		} catch(Exception ex) {
+			for(HttpRequestHandler handler : handlers) {
+				handler.handleDecoderException(null, ex);
+				handler.cleanup(null, false);
+			}
+			closeSilent(socketClient);
+			return false;
+		}
+		return process(handlers, req, 0, null) != ResultClose || !req.isClosed();
+	}
+	
+	/**
+	 * Process one request on given connection. 
+	 * Request must have keep-alive allowed to be reused
+	 * 
+	 * @return {@link #ResultClose}, {@link #ResultKeep} or {@link #ResultDetached}
+	 */
+	protected static int process(Iterable<HttpRequestHandler> handlers, HttpRequest req, 
+			long maxBodySkip, HttpServerListener listener) {
+		long start = (listener == null) ? 0 : System.nanoTime();
+		long time = start;
 		Exception decoderException = null;
+		boolean accepted = true;
+		boolean finished = false;
+		if(!req.keepAlive) req.getResponse().setHead("Connection", "close");
+		req.handlerNanos = -1;
 		do {
 			//Init
-			try {	req = new HttpRequest(socketClient);
-			} catch(Exception ex) {
-				decoderException = ex; break;
+			for(HttpRequestHandler handler : handlers) {
+				if(!handler.acceptRequest(req)) {
+					accepted = false;
+					break;
+				}
 			}
-			for(HttpRequestHandler handler : handlers)
-				if(!handler.acceptRequest(req)) break;
+			if(!accepted) break;
 			
 			//First line
 			try {	req.parseFirstLine();
 			} catch(Exception ex) {
 				decoderException = ex; break;
 			}
+			if(listener != null) time = phase(listener, req, PhaseFirstLine, time);
 			for(HttpRequestHandler handler : handlers)
-				if(handler.finishAfterFirstLine(req)) break;
+				if(handler.finishAfterFirstLine(req)) {
+					finished = true;
+					break;
+				}
+			if(finished) {
+				req.setKeepAlive(false); //heads left unread
+				break;
+			}
 			
 			//Heads
 			try {	req.parseHeads();
 			} catch(Exception ex) {
 				decoderException = ex; break;
 			}
+			req.cancelDeadline();
+			if(listener != null) time = phase(listener, req, PhaseHeads, time);
+			if(req.keepAlive && "HTTP/1.0".equals(req.getRequest().getHttpVersion())
+					&& req.getRequest().isKeepAlive()) {
+				req.getResponse().setHead("Connection", "keep-alive");
+			}
+			long dispatch = System.nanoTime();
 			for(HttpRequestHandler handler : handlers)
-				if(handler.finishAfterHeads(req)) break;
+				if(handler.finishAfterHeads(req)) {
+					finished = true;
+					break;
+				}
+			req.handlerNanos = System.nanoTime() - dispatch;
+			if(finished) break;
 			
 			//Post if needed
 			try {	req.parsePost();
 			} catch(Exception ex) {
 				decoderException = ex; break;
 			}
+			if(listener != null) time = phase(listener, req, PhasePost, time);
 			//.. and finish
+			dispatch = System.nanoTime();
 			for(HttpRequestHandler handler : handlers)
 				if(handler.handleRequest(req)) break;
+			req.handlerNanos += System.nanoTime() - dispatch;
+			if(listener != null) time = phase(listener, req, PhaseHandler, time);
 		} while(false);
+		if(listener != null && decoderException != null) 
+			listener.decoderException(req, decoderException);
 		
-		boolean status = decoderException == null;
+		req.cancelDeadline();
+		boolean status = decoderException == null && accepted;
 		for(HttpRequestHandler handler : handlers) {
 			if(decoderException != null)
 				handler.handleDecoderException(req, decoderException);
 			handler.cleanup(req, status);
 		}
 		
-		if(req != null && (req.closeOnFinish() || !status)) {
+		int result = ResultClose;
+		if(status && !req.closeOnFinish()) {
+			result = ResultDetached;
+		} else if(status && req.isKeepAlive()) {
 			try {
-				req.close();
-			} catch(IOException tign) {}
+				if(req.finishBody(maxBodySkip)) result = ResultKeep;
+			} catch(IOException ex) {}
+		}
+		if(result == ResultClose) req.closeSilent();
+		if(listener != null) listener.phase(req, PhaseTotal, System.nanoTime() - start);
+		return result;
+	}
+	
+	/**
+	 * Process one request on connection which is not owned by any server
+	 * (e.g. in-memory streams in benchmarks or tests).
+	 * Connection is closed unless it can be reused
+	 * 
+	 * @return true if connection can be used for next request 
+	 * 		(call {@link HttpRequest#recycle()} before)
+	 */
+	public static boolean processRequest(Iterable<HttpRequestHandler> handlers, HttpRequest req) {
+		return process(handlers, req, 0, null) == ResultKeep;
+	}
+	
+	/**
+	 * Report phase which started at given time
+	 * @return Current time
+	 */
+	protected static long phase(HttpServerListener listener, HttpRequest req, int phase, long since) {
+		long now = System.nanoTime();
+		listener.phase(req, phase, now - since);
+		return now;
+	}
+	
+	/**
+	 * Serve requests on connection until it is closed, taken over by handler 
+	 * or idle.
+	 * 
+	 * @param canPark If true, return instead of blocking while waiting for next request
+	 * @return true if connection is idle and should be parked
+	 */
+	protected boolean serve(Iterable<HttpRequestHandler> handlers, HttpRequest req, boolean canPark) {
+		req.setDetachedCloseListener(this.connectionClosedTask);
+		while(true) {
+			//Client may close idle persistent connection, that is no error
+			if(req.getRequestCount() > 0 && !req.hasBufferedInput()
+					&& !this.awaitNextRequest(req)) {
+				req.closeSilent();
+				this.connectionClosed();
+				return false;
+			}
+			int max = this.maxKeepAliveRequests;
+			req.setKeepAlive(this.keepAliveTimeout > 0 && !this.isClosed()
+					&& (max == 0 || req.getRequestCount() + 1 < max));
+			Semaphore limiter = this.requestLimiter;
+			if(limiter != null) try {
+				limiter.acquire();
+			} catch(InterruptedException ex) {
+				req.closeSilent();
+				this.connectionClosed();
+				return false;
+			}
+			AdaptiveLimit adaptive = this.adaptiveLimit;
+			if(adaptive != null && !adaptive.tryAcquire()) {
+				if(limiter != null) limiter.release();
+				this.reject(req.getSocket(), req);
+				return false;
+			}
+			int result = ResultClose;
+			this.armDeadline(req);
+			this.requestStarted(req);
+			try {
+				result = process(handlers, req, this.maxBodySkip, this.listener);
+			} finally {
+				this.requestFinished(req);
+				if(adaptive != null) {
+					//Sample only handler time, not slow client or network
+					if(req.handlerNanos >= 0) adaptive.release(req.handlerNanos);
+					else adaptive.releaseUnsampled();
+				}
+				if(limiter != null) limiter.release();
+				//Detached connection is reported by its new owner
+				if(result == ResultClose) this.connectionClosed();
+			}
+			if(result != ResultKeep) return false;
+			req.recycle();
+			if(canPark && !req.hasBufferedInput()) return true;
+		}
+	}
+	
+	/**
+	 * Close connection unless request heads are read within header timeout
+	 */
+	protected void armDeadline(HttpRequest req) {
+		int timeout = this.headerTimeout;
+		if(timeout <= 0) return;
+		req.setDeadline(this.getTimer().newTimeout(new DeadlineTask(req.getSocket()), timeout));
+	}
+	
+	protected void requestStarted(HttpRequest req) {
+		this.activeRequests.incrementAndGet();
+		Collection<HttpRequest> cur = this.currentRequests;
+		if(cur != null) synchronized(cur) {
+			cur.add(req);
+		}
+	}
+	
+	protected void requestFinished(HttpRequest req) {
+		Collection<HttpRequest> cur = this.currentRequests;
+		if(cur != null) synchronized(cur) {
+			cur.remove(req);
+		}
+		if(this.activeRequests.decrementAndGet() == 0) {
+			synchronized(this.activeRequests) {
+				this.activeRequests.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Submit connection to executor unless queue is full
+	 * @return false if request should be rejected
+	 */
+	protected boolean dispatch(ExecutorService exec, RequestCallable call) {
+		int max = this.maxQueuedRequests;
+		if(max > 0 && this.queuedRequests.get() >= max) return false;
+		this.queuedRequests.incrementAndGet();
+		call.queued = true;
+		try {
+			exec.submit(call);
+			return true;
+		} catch(RejectedExecutionException ex) {
+			call.queued = false;
+			this.queuedRequests.decrementAndGet();
+			return false;
+		}
+	}
+	
+	/**
+	 * Answer 503 with pre-encoded response and close connection. 
+	 * Request is not read
+	 * 
+	 * @param req Request of connection or null if not created yet
+	 */
+	protected void reject(Socket sock, HttpRequest req) {
+		try {
+			OutputStream out = (req == null) ? sock.getOutputStream() : req.getOutputStream();
+			out.write(ServiceUnavailable);
+			out.flush();
+			//Send FIN before close, so client reads response before any reset
+			sock.shutdownOutput();
+			InputStream in = (req == null) ? sock.getInputStream() : req.getInputStream();
+			int avail = in.available();
+			if(avail > 0) in.skip(avail);
+		} catch(IOException | RuntimeException ign) {}
+		if(req != null) req.closeSilent();
+		closeSilent(sock);
+		HttpServerListener l = this.listener;
+		if(l != null) l.requestRejected();
+		this.connectionClosed();
+	}
+	
+	protected void connectionOpened() {
+		HttpServerListener l = this.listener;
+		if(l != null) l.connectionOpened();
+	}
+	
+	protected void connectionClosed() {
+		HttpServerListener l = this.listener;
+		if(l != null) l.connectionClosed();
+	}
+	
+	/**
+	 * Create request of new connection, metered when listener is set.
+	 * Does TLS handshake when SSL transport is set
+	 */
+	protected HttpRequest createRequest(Socket sock) throws IOException {
+		HttpServerListener l = this.listener;
+		Sockets.Config sslCfg = this.sslConfig;
+		SocketChannel ch = sock.getChannel();
+		if(sslCfg == null || ch == null) {
+			if(l == null) return new HttpRequest(sock);
+			return new HttpRequest(sock, new MeteredInputStream(sock.getInputStream(), l),
+					new MeteredOutputStream(sock.getOutputStream(), l));
+		}
+		SSLStreams ssl;
+		try {
+			ssl = new SSLStreams(ch, sslCfg.createServerEngine());
+		} catch(GeneralSecurityException ex) {
+			throw new IOException("Cannot create SSLEngine", ex);
+		}
+		int timeout = this.headerTimeout;
+		HashedWheelTimer.Timeout deadline = (timeout <= 0) ? null 
+				: this.getTimer().newTimeout(new DeadlineTask(sock), timeout);
+		try {
+			ssl.handshake();
+		} catch(IOException | RuntimeException ex) {
+			closeSilent(ssl);
+			throw ex;
+		} finally {
+			if(deadline != null) deadline.cancel();
+		}
+		InputStream in = ssl.getInputStream();
+		OutputStream out = ssl.getOutputStream();
+		if(l != null) {
+			l.tlsHandshake(ssl.getHandshakeNanos(), ssl.isResumed());
+			in = new MeteredInputStream(in, l);
+			out = new MeteredOutputStream(out, l);
+		}
+		return new HttpRequest(sock, in, out).setSSLStreams(ssl);
+	}
+	
+	/**
+	 * Block until client sends next request or keep-alive timeout passes
+	 * @return false if timed out or connection was closed
+	 */
+	protected boolean awaitNextRequest(HttpRequest req) {
+		Socket sock = req.getSocket();
+		InputStream in = req.getInputStream();
+		if(sock == null || in == null || !in.markSupported()) return false;
+		int oldTimeout = -1;
+		try {
+			oldTimeout = sock.getSoTimeout();
+			sock.setSoTimeout(this.keepAliveTimeout);
+			in.mark(1);
+			if(in.read() < 0) return false;
+			in.reset();
+			return true;
+		} catch(SocketTimeoutException timeout) {
+			return false;
+		} catch(IOException ex) {
+			return false;
+		} finally {
+			if(oldTimeout >= 0) try {
+				sock.setSoTimeout(oldTimeout);
+			} catch(IOException ign) {}
 		}
-		return status;
 	}
 	
 	@Override
@@ -252,11 +856,42 @@ implements Closeable, AutoCloseable, Runnable {
 		while(!this.isClosed()) {
 			final Socket socketClient = this.accept();
 			if(socketClient == null) continue;
-			process(this.getHandlers(), socketClient);
+			this.connectionOpened();
+			this.serveSingle(socketClient);
+		}
+	}
+	
+	/**
+	 * Process single request of new connection in current thread and close it
+	 */
+	protected void serveSingle(Socket sock) {
+		HttpRequest req;
+		try {
+			req = this.createRequest(sock);
+		} catch(Exception ex) {
+			for(HttpRequestHandler handler : this.getHandlers()) {
+				handler.handleDecoderException(null, ex);
+				handler.cleanup(null, false);
+			}
+			closeSilent(sock);
+			this.connectionClosed();
+			return;
+		}
+		req.setDetachedCloseListener(this.connectionClosedTask);
+		int result = ResultClose;
+		try {
+			this.armDeadline(req);
+			result = process(this.getHandlers(), req, 0, this.listener);
+		} finally {
+			if(result != ResultDetached) this.connectionClosed();
 		}
 	}
 	
 	protected void listen(ExecutorService exec) {
+		if(this.isNonBlocking()) {
+			this.listenNonBlocking(exec);
+			return;
+		}
 		if(exec == null) {
 			this.listenSingleThreaded();
 			return;
@@ -264,10 +899,85 @@ implements Closeable, AutoCloseable, Runnable {
 		while(!this.isClosed()) {
 			final Socket socketClient = this.accept();
 			if(socketClient == null) continue;
-			exec.submit(new RequestCallable(socketClient, this.getHandlers()));
+			this.connectionOpened();
+			RequestCallable call = new RequestCallable(this, socketClient, this.getHandlers(), null);
+			if(!this.dispatch(exec, call)) this.reject(socketClient, null);
+		}
+	}
+	
+	protected void listenNonBlocking(ExecutorService exec) {
+		ServerSocketChannel channel = this.server.getChannel();
+		SelectorLoop[] loops = new SelectorLoop[this.selectorLoops];
+		try {
+			for(int i = 0; i < loops.length; i++)
+				loops[i] = new SelectorLoop("HttpServer-loop-" + i).start();
+		} catch(IOException ex) {
+			closeLoops(loops);
+			throw new IllegalStateException("Cannot open selector", ex);
+		}
+		this.loops = loops;
+		try {
+			while(!this.isClosed()) {
+				SocketChannel client = null;
+				try {
+					client = channel.accept();
+				} catch(IOException ex) {}
+				if(client == null) continue;
+				this.connectionOpened();
+				this.park(client, null, this.getHandlers(), exec);
+			}
+		} finally {
+			this.loops = null;
+			closeLoops(loops);
 		}
 	}
 	
+	/**
+	 * Hand client to one of selector loops until it sends something
+	 * 
+	 * @param req Request of persistent connection or null for new client
+	 */
+	protected void park(SocketChannel client, HttpRequest req, 
+			Collection<HttpRequestHandler> handlers, ExecutorService exec) {
+		SelectorLoop[] loops = this.loops;
+		if(loops == null) {
+			if(req != null) req.closeSilent();
+			closeSilent(client);
+			this.connectionClosed();
+			return;
+		}
+		SSLStreams ssl = (req == null) ? null : req.getSSLStreams();
+		if(ssl != null) ssl.releaseBuffers();
+		int i = this.nextLoop++;
+		if(i >= loops.length || i < 0) i = this.nextLoop = 0;
+		//New client has header timeout to send first byte, persistent one keep-alive timeout
+		int timeout = (req == null && this.headerTimeout > 0) ? this.headerTimeout : this.keepAliveTimeout;
+		try {
+			client.configureBlocking(false);
+			ParkedClientHandler handler = new ParkedClientHandler(this, handlers, exec, req);
+			loops[i].register(client, SelectionKey.OP_READ, handler);
+			if(timeout > 0) handler.arm(loops[i], client, timeout);
+		} catch(IOException | IllegalStateException closed) {
+			if(req != null) req.closeSilent();
+			closeSilent(client);
+			this.connectionClosed();
+		}
+	}
+	
+	protected static void closeLoops(SelectorLoop[] loops) {
+		for(SelectorLoop loop : loops) {
+			if(loop != null) try {
+				loop.close();
+			} catch(IOException ign) {}
+		}
+	}
+	
+	protected static void closeSilent(Closeable c) {
+		try {
+			c.close();
+		} catch(IOException ign) {}
+	}
+	
 	public void acceptTo(Consumer<Socket> cons) {
 		if(cons == null) throw new IllegalArgumentException("Consumer == null");
 		while(!this.isClosed()) {
@@ -276,6 +986,48 @@ implements Closeable, AutoCloseable, Runnable {
 		}
 	}
 	
+	/**
+	 * Stop accepting, close idle connections and wait up to given milliseconds
+	 * for requests being processed. Then close connections of remaining 
+	 * requests (if stored, see {@link #storeCurrentRequests(boolean)}) 
+	 * and shut down executor created by {@link #useVirtualThreads()}
+	 * 
+	 * @return true if all requests finished in time
+	 */
+	public boolean shutdown(long timeout) throws IOException {
+		this.close();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(this.activeRequests) {
+			long left;
+			while(this.activeRequests.get() > 0 
+					&& (left = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					this.activeRequests.wait(left);
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		boolean drained = this.activeRequests.get() == 0;
+		if(!drained) {
+			Collection<HttpRequest> cur = this.currentRequests;
+			if(cur != null) {
+				Object[] reqs;
+				synchronized(cur) {
+					reqs = cur.toArray();
+				}
+				for(Object req : reqs) ((HttpRequest) req).closeSilent();
+			}
+		}
+		ExecutorService exec = this.clientExecutorService;
+		if(exec != null && this.ownClientExecutor) {
+			if(drained) exec.shutdown();
+			else exec.shutdownNow();
+		}
+		return drained;
+	}
+	
 	@Override
 	public void close() throws IOException {
 		if(this.server == null) return;
@@ -283,6 +1035,8 @@ implements Closeable, AutoCloseable, Runnable {
 			this.server.close();
 		} finally {
 			this.server = null;
+			SelectorLoop[] loops = this.loops;
+			if(loops != null) closeLoops(loops);
 		}
 	}
 
@@ -295,21 +1049,232 @@ implements Closeable, AutoCloseable, Runnable {
 	protected static class RequestCallable
 	implements Callable<Boolean> {
 
+		protected HttpServer server = null;
 		protected Socket client = null;
 		protected Collection<HttpRequestHandler> handlers = null;
+		protected HttpRequest request = null;
+		protected long created = System.nanoTime();
+		protected boolean queued = false;
 		
 		protected RequestCallable(Socket socket, Collection<HttpRequestHandler> handlers) {
+			this(null, socket, handlers, null);
+		}
+		
+		/**
+		 * @param req Request of persistent connection or null for new client
+		 */
+		protected RequestCallable(HttpServer server, Socket socket, 
+				Collection<HttpRequestHandler> handlers, HttpRequest req) {
+			this.server = server;
 			this.client = socket;
 			this.handlers = handlers;
+			this.request = req;
 		}
 		
 		@Override
 		public Boolean call() throws Exception {
-			if(!HttpServer.process(handlers, client))
-				throw new RuntimeException("Failed");
+			if(this.server == null) {
+				if(!HttpServer.process(handlers, client))
+					throw new RuntimeException("Failed");
+				return true;
+			}
+			if(this.queued) this.server.queuedRequests.decrementAndGet();
+			HttpServerListener l = this.server.listener;
+			HttpRequest req = this.request;
+			if(l != null) l.phase(req, HttpServerListener.PhaseQueue, System.nanoTime() - this.created);
+			if(req == null) {
+				try {
+					req = this.server.createRequest(client);
+				} catch(IOException ex) {
+					closeSilent(client);
+					this.server.connectionClosed();
+					throw ex;
+				}
+			}
+			SocketChannel channel = client.getChannel();
+			boolean canPark = channel != null && this.server.loops != null;
+			if(this.server.serve(handlers, req, canPark)) {
+				this.server.park(channel, req, handlers, this.server.getClientExecutorService());
+			}
 			return true;
 		}
 		
 	}
 	
+	/**
+	 * Waits in selector loop for first bytes of request,
+	 * then switches channel to blocking mode and processes it in client executor.
+	 * Idle clients are closed by timeout in wheel timer
+	 */
+	protected static class ParkedClientHandler
+	implements SelectorLoop.ChannelHandler {
+		
+		protected HttpServer server = null;
+		protected Collection<HttpRequestHandler> handlers = null;
+		protected ExecutorService exec = null;
+		protected HttpRequest request = null;
+		protected HashedWheelTimer.Timeout timeout = null;
+		
+		protected ParkedClientHandler(HttpServer server, Collection<HttpRequestHandler> handlers, 
+				ExecutorService exec, HttpRequest req) {
+			this.server = server;
+			this.handlers = handlers;
+			this.exec = exec;
+			this.request = req;
+		}
+		
+		/**
+		 * Close channel in loop once given milliseconds pass without data
+		 */
+		protected void arm(final SelectorLoop loop, final SocketChannel client, long millis) {
+			final ParkedClientHandler self = this;
+			final Runnable expire = new Runnable() {
+				
+				@Override
+				public void run() {
+					SelectionKey key = client.keyFor(loop.getSelector());
+					//Already detached or parked again with other handler
+					if(key == null || !key.isValid() || key.attachment() != self) return;
+					loop.closeChannel(client, key, self, null);
+				}
+				
+			};
+			this.timeout = this.server.getTimer().newTimeout(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						loop.execute(expire);
+					} catch(IllegalStateException closed) {}
+				}
+				
+			}, millis);
+		}
+		
+		protected void disarm() {
+			HashedWheelTimer.Timeout t = this.timeout;
+			if(t != null) t.cancel();
+		}
+		
+		@Override
+		public void onReady(SelectorLoop loop, SelectionKey key) throws IOException {
+			this.disarm();
+			final SocketChannel client = (SocketChannel) key.channel();
+			loop.detach(key, new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						client.configureBlocking(true);
+					} catch(IOException ex) {
+						onClose(null, null, ex);
+						closeSilent(client);
+						return;
+					}
+					RequestCallable call = new RequestCallable(server, client.socket(), handlers, request);
+					if(exec == null) {
+						//Blocks this loop, same as single threaded blocking mode
+						try {
+							call.call();
+						} catch(Exception ign) {}
+					} else if(!server.dispatch(exec, call)) {
+						server.reject(client.socket(), request);
+					}
+				}
+				
+			});
+		}
+		
+		@Override
+		public void onClose(SelectorLoop loop, SelectionKey key, Exception ex) {
+			this.disarm();
+			if(this.request != null) this.request.closeSilent();
+			this.server.connectionClosed();
+		}
+		
+	}
+	
+	/**
+	 * Closes socket of request whose heads were not read in time.
+	 * Blocked read fails, so request ends with decoder exception
+	 */
+	protected static class DeadlineTask
+	implements Runnable {
+		
+		protected final Socket socket;
+		
+		protected DeadlineTask(Socket socket) {
+			this.socket = socket;
+		}
+		
+		@Override
+		public void run() {
+			if(this.socket != null) closeSilent(this.socket);
+		}
+		
+	}
+	
+	/**
+	 * Socket input reporting read bytes to listener
+	 */
+	protected static class MeteredInputStream
+	extends FilterInputStream {
+		
+		protected final HttpServerListener listener;
+		
+		protected MeteredInputStream(InputStream in, HttpServerListener listener) {
+			super(in);
+			this.listener = listener;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int r = this.in.read();
+			if(r >= 0) this.listener.bytesRead(1);
+			return r;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = this.in.read(b, off, len);
+			if(n > 0) this.listener.bytesRead(n);
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long r = this.in.skip(n);
+			if(r > 0) this.listener.bytesRead(r);
+			return r;
+		}
+		
+	}
+	
+	/**
+	 * Socket output reporting written bytes to listener
+	 */
+	protected static class MeteredOutputStream
+	extends FilterOutputStream {
+		
+		protected final HttpServerListener listener;
+		
+		protected MeteredOutputStream(OutputStream out, HttpServerListener listener) {
+			super(out);
+			this.listener = listener;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.listener.bytesWritten(1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			if(len > 0) this.listener.bytesWritten(len);
+		}
+		
+	}
+	
 }
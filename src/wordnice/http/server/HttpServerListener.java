@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+/**
+ * Receives instrumentation events of {@link HttpServer}, see 
+ * {@link HttpServer#setListener(HttpServerListener)}.
+ * Called from client threads (and selector loops), so it must be 
+ * thread safe and fast. {@link ServerMetrics} is built-in implementation
+ */
+public interface HttpServerListener {
+	
+	/** Time ready connection waited for client executor **/
+	public static final int PhaseQueue = 0;
+	/** Reading and parsing of request line **/
+	public static final int PhaseFirstLine = 1;
+	/** Reading and parsing of heads **/
+	public static final int PhaseHeads = 2;
+	/** Reading and parsing of post **/
+	public static final int PhasePost = 3;
+	/** Time spent in {@link HttpRequestHandler#handleRequest(HttpRequest)} **/
+	public static final int PhaseHandler = 4;
+	/** Whole request from acceptRequest to finished response **/
+	public static final int PhaseTotal = 5;
+	/** TLS handshake of new connection, see {@link #tlsHandshake(long, boolean)} **/
+	public static final int PhaseHandshake = 6;
+	
+	public static final String[] PhaseNames = {
+		"queue", "first_line", "heads", "post", "handler", "total", "tls_handshake"
+	};
+	
+	/**
+	 * New connection was accepted
+	 */
+	public void connectionOpened();
+	
+	/**
+	 * Connection was closed or taken over by handler
+	 */
+	public void connectionClosed();
+	
+	/**
+	 * Phase of request finished
+	 * 
+	 * @param req Request or null for {@link #PhaseQueue} of new connection
+	 * @param phase One of Phase* constants
+	 */
+	public void phase(HttpRequest req, int phase, long nanos);
+	
+	/**
+	 * TLS handshake of new connection finished
+	 * 
+	 * @param resumed true if cached session was resumed
+	 */
+	public void tlsHandshake(long nanos, boolean resumed);
+	
+	/**
+	 * Connection was answered 503 by admission control
+	 * (queue full, executor rejected it or adaptive limit reached)
+	 */
+	public void requestRejected();
+	
+	/**
+	 * Request could not be decoded
+	 */
+	public void decoderException(HttpRequest req, Exception ex);
+	
+	/**
+	 * Bytes were read from socket
+	 */
+	public void bytesRead(long count);
+	
+	/**
+	 * Bytes were written to socket
+	 */
+	public void bytesWritten(long count);
+	
+}
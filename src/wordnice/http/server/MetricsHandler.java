@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exposes {@link ServerMetrics} as plain text (Prometheus format) on given path
+ */
+public class MetricsHandler
+implements HttpRequestHandler {
+	
+	protected final ServerMetrics metrics;
+	protected final String path;
+	
+	public MetricsHandler(ServerMetrics metrics, String path) {
+		if(metrics == null) throw new IllegalArgumentException("Metrics == null");
+		if(path == null) throw new IllegalArgumentException("Path == null");
+		this.metrics = metrics;
+		this.path = path;
+	}
+	
+	public ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	public String getPath() {
+		return this.path;
+	}
+	
+	@Override
+	public boolean acceptRequest(HttpRequest req) {
+		return true;
+	}
+	
+	@Override
+	public boolean finishAfterFirstLine(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public boolean finishAfterHeads(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public boolean handleRequest(HttpRequest req) {
+		RequestData rd = req.getRequest();
+		String method = rd.getMethod();
+		boolean head = "HEAD".equals(method);
+		if(!head && !"GET".equals(method)) return false;
+		if(!this.path.equals(rd.getPath())) return false;
+		try {
+			byte[] body = this.metrics.toText().getBytes(StandardCharsets.UTF_8);
+			ResponseData res = req.getResponse();
+			res.setContentType("text/plain; version=0.0.4; charset=utf-8");
+			res.setContentLength(body.length);
+			res.setHead("Cache-Control", "no-cache");
+			req.writeResponseOK();
+			if(!head) req.getOutputStream().write(body);
+		} catch(IOException ex) {
+			req.closeSilent();
+		}
+		return true;
+	}
+	
+	@Override
+	public void handleDecoderException(HttpRequest req, Exception ex) {}
+	
+	@Override
+	public void cleanup(HttpRequest req, boolean status) {}
+	
+}
@@ -0,0 +1,551 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import wordnice.api.Nice;
+import wordnice.http.HttpFormatException;
+import wordnice.streams.BufferPool;
+
+/**
+ * Streaming multipart/form-data reader. Parts are read one by one
+ * straight from request body through fixed buffer, so memory use 
+ * does not depend on size of parts. Boundary is searched with 
+ * Boyer-Moore-Horspool over the buffer.
+ * 
+ * <pre>
+ * Pull:
+ *   MultipartReader.Part part;
+ *   while((part = reader.next()) != null) {
+ *       InputStream in = part.getInputStream(); //or part.transferTo(file)
+ *   }
+ * Push:
+ *   reader.forEach(handler);
+ * </pre>
+ * Part is valid only until next part is requested, unread bytes are skipped.
+ */
+public class MultipartReader
+implements Closeable, AutoCloseable {
+	
+	public static int DefaultMaxHeadSize = 8*1024;
+	public static int DefaultMaxParts = 1000;
+	
+	/**
+	 * Consumer of parts for push style reading
+	 */
+	public static interface PartHandler {
+		
+		/**
+		 * Called for each part. Part body not read here is skipped
+		 */
+		public void onPart(Part part) throws IOException;
+		
+	}
+	
+	/**
+	 * One part of multipart body
+	 */
+	public class Part {
+		
+		protected final Map<String,String> heads;
+		protected String name;
+		protected String fileName;
+		protected InputStream stream;
+		
+		protected Part(Map<String,String> heads) throws HttpFormatException {
+			this.heads = heads;
+			String cdis = heads.get("CONTENT-DISPOSITION");
+			if(cdis != null) {
+				this.name = param(cdis, "name");
+				this.fileName = param(cdis, "filename");
+			}
+		}
+		
+		/** @return Name of form field or null **/
+		public String getName() {
+			return this.name;
+		}
+		
+		/** @return File name sent by client or null **/
+		public String getFileName() {
+			return this.fileName;
+		}
+		
+		public boolean isFile() {
+			return this.fileName != null;
+		}
+		
+		public String getContentType() {
+			return this.heads.get("CONTENT-TYPE");
+		}
+		
+		/** @return Heads of part with uppercased names **/
+		public Map<String,String> getHeads() {
+			return Collections.unmodifiableMap(this.heads);
+		}
+		
+		public String getHead(String key) {
+			return this.heads.get(key.toUpperCase());
+		}
+		
+		/**
+		 * @return Stream of part body, ends at boundary
+		 */
+		public InputStream getInputStream() {
+			if(this.stream == null) this.stream = new PartInputStream(this);
+			return this.stream;
+		}
+		
+		protected boolean isCurrent() {
+			return current == this;
+		}
+		
+		/**
+		 * Write rest of part body to given stream
+		 * @return Count of written bytes
+		 */
+		public long transferTo(OutputStream out) throws IOException {
+			long total = 0;
+			int n;
+			while((n = readChunk(this, Integer.MAX_VALUE)) > 0) {
+				out.write(buf, pos, n);
+				pos += n;
+				total += n;
+			}
+			return total;
+		}
+		
+		/**
+		 * Write rest of part body to given channel straight from reader buffer
+		 * @return Count of written bytes
+		 */
+		public long transferTo(WritableByteChannel ch) throws IOException {
+			long total = 0;
+			int n;
+			while((n = readChunk(this, Integer.MAX_VALUE)) > 0) {
+				ByteBuffer bb = ByteBuffer.wrap(buf, pos, n);
+				while(bb.hasRemaining()) ch.write(bb);
+				pos += n;
+				total += n;
+			}
+			return total;
+		}
+		
+		/**
+		 * Write rest of part body to given file
+		 * @return Count of written bytes
+		 */
+		public long transferTo(File f) throws IOException {
+			try(FileOutputStream out = new FileOutputStream(f)) {
+				return this.transferTo(out.getChannel());
+			}
+		}
+		
+		/**
+		 * Skip rest of part body
+		 */
+		public void skip() throws IOException {
+			int n;
+			while((n = readChunk(this, Integer.MAX_VALUE)) > 0) pos += n;
+		}
+		
+		@Override
+		public String toString() {
+			return "Part [name=" + name + ", fileName=" + fileName + ", heads=" + heads + "]";
+		}
+		
+	}
+	
+	protected class PartInputStream extends InputStream {
+		
+		protected final Part part;
+		
+		protected PartInputStream(Part part) {
+			this.part = part;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if(readChunk(this.part, 1) <= 0) return -1;
+			return buf[pos++] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			Nice.checkBounds(b, off, len);
+			if(len == 0) return 0;
+			int n = readChunk(this.part, len);
+			if(n <= 0) return -1;
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			if(!this.part.isCurrent() || partEnded) return 0;
+			return Math.max(0, lim - delim.length + 1 - pos);
+		}
+		
+	}
+	
+	protected InputStream in;
+	protected final byte[] delim; //\r\n--boundary
+	protected final int[] skip = new int[256];
+	protected ByteBuffer pooled;
+	protected byte[] buf;
+	protected int pos = 0;
+	protected int lim = 0;
+	protected boolean eof = false;
+	
+	/** Index of delimiter in buffer or -1, valid while >= pos **/
+	protected int found = -1;
+	/** Buffer was searched up to here (exclusive) without delimiter start **/
+	protected int scanned = 0;
+	
+	protected Part current = null;
+	/** Current part (or preamble while current is null) was read up to delimiter **/
+	protected boolean partEnded = false;
+	protected boolean finished = false;
+	protected int parts = 0;
+	protected int maxHeadSize = DefaultMaxHeadSize;
+	protected int maxParts = DefaultMaxParts;
+	
+	/**
+	 * @param boundary Boundary as returned by {@link RequestData#getBoundary()} (\r\n--BOUNDARY)
+	 */
+	public MultipartReader(InputStream in, byte[] boundary, int bufferSize) {
+		if(in == null) throw Nice.illegal("InputStream null!");
+		if(boundary == null || boundary.length < 5 || boundary[0] != '\r' || boundary[1] != '\n')
+			throw Nice.illegal("Boundary must be in \\r\\n--BOUNDARY form");
+		this.in = in;
+		this.delim = boundary;
+		int min = Math.max(boundary.length * 4, 256);
+		if(bufferSize < min) bufferSize = min;
+		if(bufferSize == BufferPool.Heap.getBufferSize()) {
+			this.pooled = BufferPool.Heap.acquire();
+			this.buf = this.pooled.array();
+		} else {
+			this.buf = new byte[bufferSize];
+		}
+		int last = boundary.length - 1;
+		for(int i = 0; i < 256; i++) this.skip[i] = boundary.length;
+		for(int i = 0; i < last; i++) this.skip[boundary[i] & 0xFF] = last - i;
+		//Body starts with --boundary without CRLF, pretend it was there
+		this.buf[0] = '\r';
+		this.buf[1] = '\n';
+		this.lim = 2;
+	}
+	
+	/**
+	 * Create reader of multipart body of request
+	 * @throws HttpFormatException if request is not multipart or has no boundary
+	 */
+	public static MultipartReader create(HttpRequest req) throws IOException {
+		RequestData rd = req.getRequest();
+		byte[] boundary = rd.getBoundary();
+		if(boundary == null) {
+			String ctype = rd.getHead("CONTENT-TYPE");
+			String bd = (ctype == null || !ctype.toLowerCase().startsWith("multipart")) 
+					? null : param(ctype, "boundary");
+			if(bd == null) throw new HttpFormatException("Multipart POST without boundary!");
+			rd.setBoundary(bd);
+			boundary = rd.getBoundary();
+		}
+		return new MultipartReader(req.getBodyInputStream(), boundary, 
+				rd.getSettings().getMultipartBufferSize());
+	}
+	
+	public int getMaxHeadSize() {
+		return this.maxHeadSize;
+	}
+	
+	public MultipartReader setMaxHeadSize(int maxHeadSize) {
+		this.maxHeadSize = maxHeadSize;
+		return this;
+	}
+	
+	public int getMaxParts() {
+		return this.maxParts;
+	}
+	
+	public MultipartReader setMaxParts(int maxParts) {
+		this.maxParts = maxParts;
+		return this;
+	}
+	
+	/**
+	 * @return Value of parameter in head value like 'form-data; name="a"', unquoted, or null
+	 */
+	public static String param(String value, String name) {
+		int len = value.length();
+		int i = value.indexOf(';');
+		while(i != -1 && i < len) {
+			i++;
+			while(i < len && (value.charAt(i) == ' ' || value.charAt(i) == '\t')) i++;
+			int eq = value.indexOf('=', i);
+			if(eq == -1) return null;
+			String key = value.substring(i, eq).trim();
+			i = eq + 1;
+			String val;
+			if(i < len && value.charAt(i) == '"') {
+				StringBuilder sb = new StringBuilder();
+				i++;
+				while(i < len && value.charAt(i) != '"') {
+					char c = value.charAt(i++);
+					if(c == '\\' && i < len) c = value.charAt(i++);
+					sb.append(c);
+				}
+				val = sb.toString();
+				i = value.indexOf(';', i);
+			} else {
+				int end = value.indexOf(';', i);
+				val = value.substring(i, (end == -1) ? len : end).trim();
+				i = end;
+			}
+			if(key.equalsIgnoreCase(name)) return val;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return Next part or null if body ended. Rest of current part is skipped
+	 */
+	public Part next() throws IOException {
+		if(this.finished) return null;
+		if(!this.partEnded) {
+			//Rest of current part or preamble before first boundary
+			int n;
+			while((n = readChunk(this.current, Integer.MAX_VALUE)) > 0) this.pos += n;
+		}
+		this.current = null;
+		if(!this.afterDelimiter()) {
+			this.finish();
+			return null;
+		}
+		if(++this.parts > this.maxParts) {
+			throw (HttpFormatException) new HttpFormatException("Too many multipart parts")
+					.setError(413, "Payload Too Large");
+		}
+		Part part = new Part(this.readHeads());
+		this.current = part;
+		this.partEnded = false;
+		this.found = -1;
+		this.scanned = this.pos;
+		return part;
+	}
+	
+	/**
+	 * Read all parts with given handler
+	 */
+	public void forEach(PartHandler handler) throws IOException {
+		Part part;
+		while((part = this.next()) != null) handler.onPart(part);
+	}
+	
+	/**
+	 * Consume delimiter at pos and what follows it
+	 * @return true if part follows, false if it was closing delimiter
+	 */
+	protected boolean afterDelimiter() throws IOException {
+		this.pos += this.delim.length;
+		this.require(2);
+		byte c1 = this.buf[this.pos], c2 = this.buf[this.pos + 1];
+		if(c1 == '-' && c2 == '-') {
+			this.pos += 2;
+			return false;
+		}
+		//Transport padding
+		while(true) {
+			this.require(1);
+			byte c = this.buf[this.pos];
+			if(c != ' ' && c != '\t') break;
+			this.pos++;
+		}
+		this.require(2);
+		if(this.buf[this.pos] != '\r' || this.buf[this.pos + 1] != '\n')
+			throw new HttpFormatException("Corrupted multipart boundary line");
+		this.pos += 2;
+		return true;
+	}
+	
+	protected Map<String,String> readHeads() throws IOException {
+		Map<String,String> heads = Nice.createMap();
+		int total = 0;
+		while(true) {
+			int lf = -1;
+			while(true) {
+				for(int i = this.pos; i < this.lim; i++) {
+					if(this.buf[i] == '\n') {
+						lf = i;
+						break;
+					}
+				}
+				if(lf != -1) break;
+				if(this.lim - this.pos >= this.buf.length - this.delim.length)
+					throw (HttpFormatException) new HttpFormatException("Multipart head line too long")
+							.setError(431, "Request Header Fields Too Large");
+				if(!this.fill()) throw new HttpFormatException("Multipart body ended in heads");
+			}
+			int end = (lf > this.pos && this.buf[lf - 1] == '\r') ? lf - 1 : lf;
+			int start = this.pos;
+			total += lf + 1 - start;
+			this.pos = lf + 1;
+			if(total > this.maxHeadSize)
+				throw (HttpFormatException) new HttpFormatException("Multipart heads too large")
+						.setError(431, "Request Header Fields Too Large");
+			if(end == start) return heads;
+			int colon = start;
+			while(colon < end && this.buf[colon] != ':') colon++;
+			if(colon == end || colon == start) throw new HttpFormatException("Corrupted multipart head");
+			String key = new String(this.buf, start, colon - start, StandardCharsets.ISO_8859_1).trim().toUpperCase();
+			String val = new String(this.buf, colon + 1, end - colon - 1, StandardCharsets.UTF_8).trim();
+			heads.put(key, val);
+		}
+	}
+	
+	/**
+	 * Make next bytes of given part available at pos
+	 * @return Count of bytes at pos belonging to part (at most max), 
+	 * 		0 if part ended (delimiter is at pos)
+	 */
+	protected int readChunk(Part part, int max) throws IOException {
+		if(part != this.current) throw new IllegalStateException("Part already finished");
+		if(this.partEnded) return 0;
+		while(true) {
+			if(this.found < this.pos) {
+				this.found = this.search(Math.max(this.pos, this.scanned), this.lim);
+			}
+			int safe;
+			if(this.found != -1) {
+				safe = this.found;
+			} else {
+				safe = this.lim - this.delim.length + 1;
+				this.scanned = Math.max(this.pos, safe);
+			}
+			if(safe > this.pos) return Math.min(max, safe - this.pos);
+			if(this.found == this.pos) {
+				this.partEnded = true;
+				return 0;
+			}
+			if(!this.fill()) throw new HttpFormatException("Multipart body ended without closing boundary");
+		}
+	}
+	
+	/**
+	 * @return Start of delimiter in buf[from, to) or -1
+	 */
+	protected int search(int from, int to) {
+		byte[] b = this.buf;
+		byte[] d = this.delim;
+		int last = d.length - 1;
+		byte lastByte = d[last];
+		int i = from;
+		while(i + last < to) {
+			byte c = b[i + last];
+			if(c == lastByte) {
+				int j = last - 1;
+				while(j >= 0 && b[i + j] == d[j]) j--;
+				if(j < 0) return i;
+			}
+			i += this.skip[c & 0xFF];
+		}
+		return -1;
+	}
+	
+	/**
+	 * Ensure at least n bytes are available at pos
+	 */
+	protected void require(int n) throws IOException {
+		while(this.lim - this.pos < n) {
+			if(!this.fill()) throw new EOFException("Multipart body ended unexpectedly");
+		}
+	}
+	
+	/**
+	 * Move unread bytes to start of buffer and read more
+	 * @return false if stream ended
+	 */
+	protected boolean fill() throws IOException {
+		if(this.eof) return false;
+		int shift = this.pos;
+		if(shift > 0) {
+			System.arraycopy(this.buf, shift, this.buf, 0, this.lim - shift);
+			this.lim -= shift;
+			this.pos = 0;
+			this.scanned = Math.max(0, this.scanned - shift);
+			this.found = (this.found == -1) ? -1 : this.found - shift;
+		}
+		if(this.lim == this.buf.length) return true;
+		int n = this.in.read(this.buf, this.lim, this.buf.length - this.lim);
+		if(n < 0) {
+			this.eof = true;
+			return false;
+		}
+		this.lim += n;
+		return true;
+	}
+	
+	protected void finish() {
+		this.finished = true;
+		this.current = null;
+		this.release();
+	}
+	
+	protected void release() {
+		if(this.pooled != null) {
+			BufferPool.Heap.release(this.pooled);
+			this.pooled = null;
+		}
+	}
+	
+	public boolean isFinished() {
+		return this.finished;
+	}
+	
+	/**
+	 * Release buffer. Body stream is not closed
+	 */
+	@Override
+	public void close() {
+		this.finished = true;
+		this.current = null;
+		this.release();
+		this.buf = null;
+	}
+	
+}
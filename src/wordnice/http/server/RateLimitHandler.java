@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wordnice.limit.KeyedRateLimiter;
+
+/**
+ * Limits request rate per client. By default clients are keyed by remote 
+ * address and checked in {@link #acceptRequest(HttpRequest)}, before anything
+ * is parsed; with {@link #setKeyHead(String)} they are keyed by value of 
+ * given head (e.g. API key), falling back to address.
+ * Unverified head values are charged to the address bucket as well, so 
+ * rotating values does not get client fresh buckets; set {@link KeyFunction}
+ * to give only authenticated keys their own bucket.
+ * Limited requests get pre-encoded 429 with Retry-After and connection is closed
+ */
+public class RateLimitHandler
+implements HttpRequestHandler {
+	
+	protected static final byte[] TooManyRequests = 
+			"HTTP/1.1 429 Too Many Requests\r\nRetry-After: ".getBytes(StandardCharsets.US_ASCII);
+	protected static final byte[] TooManyRequestsEnd = 
+			"\r\nConnection: close\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * Maps head value to limiter key
+	 */
+	public static interface KeyFunction {
+		
+		/**
+		 * @return Key of authenticated client, or null to limit by address
+		 */
+		public Object getKey(HttpRequest req, String value);
+		
+	}
+	
+	protected final KeyedRateLimiter<Object> limiter;
+	protected String keyHead;
+	protected KeyFunction keyFunction;
+	
+	protected final AtomicLong allowed = new AtomicLong();
+	protected final AtomicLong rejected = new AtomicLong();
+	
+	/**
+	 * Token bucket per client
+	 * @param perSecond Sustained requests per second
+	 * @param burst Requests allowed at once
+	 */
+	public RateLimitHandler(double perSecond, int burst) {
+		this(KeyedRateLimiter.<Object>tokenBucket(perSecond, burst));
+	}
+	
+	public RateLimitHandler(KeyedRateLimiter<Object> limiter) {
+		if(limiter == null) throw new IllegalArgumentException("Limiter == null");
+		this.limiter = limiter;
+	}
+	
+	public KeyedRateLimiter<Object> getLimiter() {
+		return this.limiter;
+	}
+	
+	public String getKeyHead() {
+		return this.keyHead;
+	}
+	
+	/**
+	 * Key clients by value of this request head instead of address,
+	 * limit is then checked after heads are read. Null for address only
+	 */
+	public RateLimitHandler setKeyHead(String keyHead) {
+		this.keyHead = (keyHead == null) ? null : keyHead.toUpperCase();
+		return this;
+	}
+	
+	public KeyFunction getKeyFunction() {
+		return this.keyFunction;
+	}
+	
+	/**
+	 * Only keys returned by given function get own bucket, others are limited
+	 * by address. Null to key by raw head value, also charging the address
+	 */
+	public RateLimitHandler setKeyFunction(KeyFunction keyFunction) {
+		this.keyFunction = keyFunction;
+		return this;
+	}
+	
+	public long getAllowed() {
+		return this.allowed.get();
+	}
+	
+	public long getRejected() {
+		return this.rejected.get();
+	}
+	
+	protected static Object address(HttpRequest req) {
+		Socket sock = req.getSocket();
+		return (sock == null) ? null : sock.getInetAddress();
+	}
+	
+	/**
+	 * @return true if request is allowed, otherwise 429 was written
+	 */
+	protected boolean check(HttpRequest req, Object key) {
+		if(key == null || this.limiter.tryAcquire(key)) {
+			this.allowed.incrementAndGet();
+			return true;
+		}
+		this.reject(req, key);
+		return false;
+	}
+	
+	/**
+	 * @return true if request is allowed by both keys, otherwise 429 was written
+	 */
+	protected boolean check(HttpRequest req, Object key, Object key2) {
+		if(key != null && !this.limiter.tryAcquire(key)) {
+			this.reject(req, key);
+			return false;
+		}
+		return this.check(req, key2);
+	}
+	
+	/**
+	 * Write 429 with wait for given key and close
+	 */
+	protected void reject(HttpRequest req, Object key) {
+		this.rejected.incrementAndGet();
+		long wait = this.limiter.getWaitNanos(key, 1);
+		long secs = Math.max(1, (wait + 999999999L) / 1000000000L);
+		req.setKeepAlive(false);
+		try {
+			OutputStream out = req.getOutputStream();
+			out.write(TooManyRequests);
+			out.write(Long.toString(secs).getBytes(StandardCharsets.US_ASCII));
+			out.write(TooManyRequestsEnd);
+			out.flush();
+			req.getResponse().setStatus("429 Too Many Requests").setWritten(true);
+			if(req.canWriteSocket() && !(req instanceof Http2Request)) {
+				//Send FIN and drop unread request, so client reads response before reset
+				req.getSocket().shutdownOutput();
+				InputStream in = req.getInputStream();
+				int avail = in.available();
+				if(avail > 0) in.skip(avail);
+			}
+		} catch(IOException | RuntimeException ign) {}
+	}
+	
+	@Override
+	public boolean acceptRequest(HttpRequest req) {
+		if(this.keyHead != null) return true;
+		return this.check(req, address(req));
+	}
+	
+	@Override
+	public boolean finishAfterFirstLine(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public boolean finishAfterHeads(HttpRequest req) {
+		if(this.keyHead == null) return false;
+		String val = req.getRequest().getHead(this.keyHead);
+		if(val == null) return !this.check(req, address(req));
+		KeyFunction fun = this.keyFunction;
+		if(fun == null) return !this.check(req, address(req), val);
+		Object key = fun.getKey(req, val);
+		return !this.check(req, (key == null) ? address(req) : key);
+	}
+	
+	@Override
+	public boolean handleRequest(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public void handleDecoderException(HttpRequest req, Exception ex) {}
+	
+	@Override
+	public void cleanup(HttpRequest req, boolean status) {}
+	
+	@Override
+	public String toString() {
+		return "RateLimitHandler [allowed=" + allowed + ", rejected=" + rejected + ", " + limiter + "]";
+	}
+	
+}
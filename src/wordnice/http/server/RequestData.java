@@ -24,9 +24,11 @@
 
 package wordnice.http.server;
 
+import java.io.File;
 import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import wordnice.api.Nice;
 import wordnice.http.HttpFormatException;
@@ -45,10 +47,79 @@ public class RequestData {
 	protected Charset charset;
 	protected String contentType;
 	protected RequestSettings settings;
-			
+	
+	protected RequestHead rawHead; //reused between requests
+	protected boolean headsLoaded = false;
+	protected boolean getLoaded = false;
+	
 	
 	public RequestData() {}
 	
+	/**
+	 * Clear data of previous request, so this instance can be reused
+	 * for next request on persistent connection
+	 */
+	public RequestData reset() {
+		this.deletePostFiles();
+		this.method = null;
+		this.path = null;
+		this.httpVersion = null;
+		if(this.get != null) this.get.clear();
+		if(this.heads != null) this.heads.clear();
+		this.post = null;
+		this.boundary = null;
+		this.charset = null;
+		this.contentType = null;
+		this.settings = null;
+		if(this.rawHead != null) this.rawHead.reset();
+		this.headsLoaded = false;
+		this.getLoaded = false;
+		return this;
+	}
+	
+	/**
+	 * Delete temporary files of multipart post
+	 */
+	public void deletePostFiles() {
+		Map<String,Post> posts = this.post;
+		if(posts == null || posts.isEmpty()) return;
+		for(Entry<String,Post> entry : posts.entrySet()) {
+			Post post = entry.getValue();
+			if(post == null || !post.isFile()) {
+				continue;
+			}
+			try {
+				File f = post.getFile();
+				if(f != null && f.exists()) f.delete();
+			} catch(Exception e) {}
+		}
+	}
+	
+	/**
+	 * @return true if body is sent with chunked transfer encoding
+	 */
+	public boolean isChunked() {
+		String enc = this.getHead("TRANSFER-ENCODING");
+		return enc != null && enc.toLowerCase().contains("chunked");
+	}
+	
+	/**
+	 * @return true if client wants to keep connection open after this request
+	 * 		(HTTP/1.1 without "Connection: close", or HTTP/1.0 with "Connection: keep-alive")
+	 */
+	public boolean isKeepAlive() {
+		String ver = this.getHttpVersion();
+		if(ver == null) return false;
+		String con = this.getHead("CONNECTION");
+		if(con != null) con = con.toLowerCase();
+		if(ver.equals("HTTP/1.1")) {
+			return con == null || !con.contains("close");
+		} else if(ver.equals("HTTP/1.0")) {
+			return con != null && con.contains("keep-alive");
+		}
+		return false;
+	}
+	
 	public boolean supportsGZIP() {
 		String enc = this.getHead("ACCEPT-ENCODING");
 		return enc != null && (enc.contains("gzip,") || enc.endsWith("gzip"));
@@ -96,43 +167,103 @@ public class RequestData {
 		return this;
 	}
 
+	/**
+	 * @return Raw request head, or null if request was not parsed from bytes
+	 */
+	public RequestHead getRawHead() {
+		return this.rawHead;
+	}
+	
+	public RequestHead getOrCreateRawHead() {
+		if(this.rawHead == null) this.rawHead = new RequestHead();
+		return this.rawHead;
+	}
+	
+	public RequestData setRawHead(RequestHead rawHead) {
+		this.rawHead = rawHead;
+		this.headsLoaded = false;
+		this.getLoaded = false;
+		return this;
+	}
+	
+	/**
+	 * Parse query of raw head to get map on first access
+	 */
+	protected void loadGet() {
+		if(this.getLoaded) return;
+		RequestHead raw = this.rawHead;
+		if(raw == null || raw.getMethod() == null) return;
+		this.getLoaded = true;
+		if(!raw.hasQuery()) return;
+		if(this.get == null) this.get = Nice.createLinkedMap();
+		HttpRequest.parseQuery(this.get, raw.getQuery());
+	}
+	
+	/**
+	 * Copy heads of raw head to heads map on first access
+	 */
+	protected void loadHeads() {
+		if(this.headsLoaded) return;
+		RequestHead raw = this.rawHead;
+		if(raw == null || !raw.isComplete()) return;
+		this.headsLoaded = true;
+		if(raw.size() == 0) return;
+		if(this.heads == null) this.heads = Nice.createMap();
+		raw.putHeads(this.heads);
+	}
+	
 	public Map<String,Object> getOrCreateGet() {
+		this.loadGet();
 		if(get == null) get = Nice.createLinkedMap();
 		return get;
 	}
 	
 	public Map<String,Object> getGet() {
+		this.loadGet();
 		if(get == null) return Collections.emptyMap();
 		return get;
 	}
 	
 	public Object getGet(String key) {
+		this.loadGet();
 		if(get == null) return null;
 		return get.get(key);
 	}
 
 	public RequestData setGet(Map<String,Object> get) {
 		this.get = get;
+		this.getLoaded = true;
 		return this;
 	}
 
 	public Map<String,String> getOrCreateHeads() {
+		this.loadHeads();
 		if(heads == null) heads = Nice.createMap();
 		return heads;
 	}
 	
 	public Map<String,String> getHeads() {
+		this.loadHeads();
 		if(heads == null) return Collections.emptyMap();
 		return heads;
 	}
 	
+	/**
+	 * @return Value of head, Strings are created only for requested heads
+	 */
 	public String getHead(String key) {
+		RequestHead raw = this.rawHead;
+		if(!this.headsLoaded && raw != null && raw.isComplete()) {
+			String val = raw.getHead(key);
+			if(val != null || heads == null) return val;
+		}
 		if(heads == null) return null;
 		return heads.get(key.toUpperCase());
 	}
 	
 	public RequestData setHeads(Map<String,String> heads) {
 		this.heads = heads;
+		this.headsLoaded = true;
 		return this;
 	}
 	
@@ -223,8 +354,8 @@ public class RequestData {
 
 	@Override
 	public String toString() {
-		return "RequestData [method=" + method + ", path=" + path + ", httpVersion=" + httpVersion + ", get=" + get
-				+ ", heads=" + heads + ", post=" + post + ", charset="
+		return "RequestData [method=" + method + ", path=" + path + ", httpVersion=" + httpVersion + ", get=" + getGet()
+				+ ", heads=" + getHeads() + ", post=" + post + ", charset="
 				+ charset + ", contentType=" + contentType + ", settings=" + settings + "]";
 	}
 	
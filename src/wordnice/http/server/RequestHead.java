@@ -0,0 +1,536 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import wordnice.codings.URLCoder;
+import wordnice.http.HttpFormatException;
+import wordnice.seq.ByteArraySequence;
+import wordnice.streams.BufferedInput;
+
+/**
+ * Request line and header lines parsed at byte level.
+ * Lines are copied once from input buffer into reusable array and only 
+ * offsets are stored. Well-known methods, versions and header names
+ * are mapped to constants, other Strings are created on demand.
+ * 
+ * Slices returned here are valid only until next request is read
+ */
+public class RequestHead {
+	
+	/** Default maximum size of request head in bytes **/
+	public static int DefaultMaxSize = 16*1024;
+	
+	/** Default maximum count of header lines **/
+	public static int DefaultMaxHeads = 100;
+	
+	public static final String HTTP_1_0 = "HTTP/1.0";
+	public static final String HTTP_1_1 = "HTTP/1.1";
+	
+	protected static final String[] KnownMethods = {
+		"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH", "CONNECT", "TRACE"
+	};
+	
+	protected static final String[] KnownVersions = {
+		HTTP_1_1, HTTP_1_0
+	};
+	
+	/** Uppercased names of common headers **/
+	protected static final String[] KnownHeads = {
+		"HOST", "CONNECTION", "CONTENT-LENGTH", "CONTENT-TYPE", "TRANSFER-ENCODING",
+		"ACCEPT", "ACCEPT-ENCODING", "ACCEPT-LANGUAGE", "ACCEPT-CHARSET", "USER-AGENT",
+		"COOKIE", "REFERER", "ORIGIN", "AUTHORIZATION", "CACHE-CONTROL", "PRAGMA",
+		"UPGRADE", "EXPECT", "TE", "KEEP-ALIVE", "RANGE", "IF-RANGE", "IF-MATCH",
+		"IF-NONE-MATCH", "IF-MODIFIED-SINCE", "IF-UNMODIFIED-SINCE", "DNT",
+		"X-FORWARDED-FOR", "X-FORWARDED-PROTO", "X-REAL-IP", "X-REQUESTED-WITH",
+		"SEC-WEBSOCKET-KEY", "SEC-WEBSOCKET-VERSION", "SEC-WEBSOCKET-EXTENSIONS",
+		"SEC-WEBSOCKET-PROTOCOL", "HTTP2-SETTINGS", "UPGRADE-INSECURE-REQUESTS",
+		"SEC-FETCH-SITE", "SEC-FETCH-MODE", "SEC-FETCH-DEST", "SEC-FETCH-USER"
+	};
+	
+	protected byte[] buf = new byte[1024];
+	protected int size = 0;
+	protected int maxSize = DefaultMaxSize;
+	protected int maxHeads = DefaultMaxHeads;
+	protected int lineOff = 0;
+	
+	protected int methodOff, methodLen;
+	protected int targetOff, targetLen;
+	protected int versionOff, versionLen;
+	protected int queryIndex = -1; //index of '?' in buffer or -1
+	protected String method, version;
+	
+	/** Entries of nameOff, nameLen, valueOff, valueLen **/
+	protected int[] heads = new int[4*16];
+	protected String[] names = new String[16];
+	protected String[] values = new String[16];
+	protected int headCount = 0;
+	protected boolean complete = false;
+	
+	public RequestHead() {}
+	
+	/**
+	 * Forget parsed request, keep allocated buffers
+	 */
+	public RequestHead reset() {
+		Arrays.fill(this.names, 0, this.headCount, null);
+		Arrays.fill(this.values, 0, this.headCount, null);
+		this.size = 0;
+		this.headCount = 0;
+		this.queryIndex = -1;
+		this.method = null;
+		this.version = null;
+		this.methodLen = this.targetLen = this.versionLen = 0;
+		this.complete = false;
+		return this;
+	}
+	
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+	
+	public RequestHead setMaxSize(int maxSize) {
+		if(maxSize < 16) throw new IllegalArgumentException("Max size too small");
+		this.maxSize = maxSize;
+		return this;
+	}
+	
+	public int getMaxHeads() {
+		return this.maxHeads;
+	}
+	
+	public RequestHead setMaxHeads(int maxHeads) {
+		if(maxHeads < 0) throw new IllegalArgumentException("Negative max heads");
+		this.maxHeads = maxHeads;
+		return this;
+	}
+	
+	/**
+	 * @return Count of bytes of head read so far
+	 */
+	public int getSize() {
+		return this.size;
+	}
+	
+	/**
+	 * @return true if whole head (including empty line) was read
+	 */
+	public boolean isComplete() {
+		return this.complete;
+	}
+	
+	/**
+	 * Read and parse request line. Empty lines before it are ignored
+	 * @return false if stream ended before first byte
+	 */
+	public boolean readFirstLine(InputStream in) throws IOException {
+		this.reset();
+		int len;
+		do {
+			this.size = 0;
+			len = this.readLine(in, true);
+			if(len < 0) return false;
+		} while(len == 0 && this.size <= 8);
+		int off = this.lineOff;
+		int end = off + len;
+		byte[] b = this.buf;
+		if(len < 5) {
+			throw new HttpFormatException("Corrupted first line of HTTP request - too short, bad formatting");
+		}
+		int sp1 = off;
+		while(sp1 < end && b[sp1] != ' ') sp1++;
+		int sp2 = end - 1;
+		while(sp2 > sp1 && b[sp2] != ' ') sp2--;
+		if(sp1 == end || sp2 == sp1) {
+			throw new HttpFormatException("Corrupted first line of HTTP request - bad formatting");
+		}
+		for(int i = off; i < end; i++) {
+			if(b[i] == '\r' || b[i] == 0) 
+				throw new HttpFormatException("Illegal character in request line");
+		}
+		this.methodOff = off;
+		this.methodLen = sp1 - off;
+		this.targetOff = sp1 + 1;
+		this.targetLen = sp2 - sp1 - 1;
+		this.versionOff = sp2 + 1;
+		this.versionLen = end - sp2 - 1;
+		for(int i = this.targetOff, tend = this.targetOff + this.targetLen; i < tend; i++) {
+			if(b[i] == '?') {
+				this.queryIndex = i;
+				break;
+			}
+		}
+		this.method = this.constant(KnownMethods, this.methodOff, this.methodLen);
+		this.version = this.constant(KnownVersions, this.versionOff, this.versionLen);
+		return true;
+	}
+	
+	/**
+	 * Read and parse header lines until empty line
+	 */
+	public RequestHead readHeads(InputStream in) throws IOException {
+		byte[] b;
+		while(true) {
+			int len;
+			try {
+				len = this.readLine(in, false);
+			} catch(EOFException ex) {
+				throw new HttpFormatException("Corrupted HTTP request or socket closed", ex);
+			}
+			if(len < 0) {
+				throw new HttpFormatException("Corrupted HTTP request: without proper ending");
+			}
+			if(len == 0) break;
+			b = this.buf;
+			int off = this.lineOff;
+			int end = off + len;
+			if(b[off] == ' ' || b[off] == '\t') {
+				throw new HttpFormatException("Obsolete line folding in request head");
+			}
+			int colon = -1;
+			for(int i = off; i < end; i++) {
+				byte c = b[i];
+				if(c == ':') {
+					if(colon == -1) colon = i;
+				} else if(c == '\r' || c == 0) {
+					throw new HttpFormatException("Illegal character in request head");
+				} else if(colon == -1 && (c == ' ' || c == '\t')) {
+					throw new HttpFormatException("Whitespace in header name");
+				}
+			}
+			if(colon <= off) {
+				throw new HttpFormatException("Corrupted header line");
+			}
+			int vstart = colon + 1;
+			while(vstart < end && (b[vstart] == ' ' || b[vstart] == '\t')) vstart++;
+			int vend = end;
+			while(vend > vstart && (b[vend-1] == ' ' || b[vend-1] == '\t')) vend--;
+			this.addHead(off, colon - off, vstart, vend - vstart);
+		}
+		this.complete = true;
+		return this;
+	}
+	
+	protected void addHead(int nameOff, int nameLen, int valueOff, int valueLen) throws HttpFormatException {
+		int i = this.headCount;
+		if(i >= this.maxHeads) {
+			throw (HttpFormatException) new HttpFormatException("Too many header lines")
+					.setError(431, "Request Header Fields Too Large");
+		}
+		if(i == this.names.length) {
+			int ncap = i << 1;
+			this.names = Arrays.copyOf(this.names, ncap);
+			this.values = Arrays.copyOf(this.values, ncap);
+			this.heads = Arrays.copyOf(this.heads, ncap << 2);
+		}
+		int e = i << 2;
+		this.heads[e] = nameOff;
+		this.heads[e+1] = nameLen;
+		this.heads[e+2] = valueOff;
+		this.heads[e+3] = valueLen;
+		this.names[i] = this.known(KnownHeads, nameOff, nameLen); //others created by getName
+		this.headCount = i + 1;
+	}
+	
+	/**
+	 * Read line into buffer
+	 * @return Length of line without line ending or -1 if stream ended before first byte
+	 */
+	protected int readLine(InputStream in, boolean firstLine) throws IOException {
+		int start = this.size;
+		while(true) {
+			if(this.size == this.buf.length) this.grow(firstLine);
+			int room = this.buf.length - this.size;
+			int n;
+			if(in instanceof BufferedInput) {
+				n = ((BufferedInput) in).readUntil((byte) '\n', this.buf, this.size, room);
+			} else {
+				n = readUntilSlow(in, this.buf, this.size, room);
+			}
+			if(n < 0) {
+				if(this.size == start) return -1;
+				throw new EOFException("Stream ended in middle of line");
+			}
+			this.size += n;
+			if(this.buf[this.size-1] == '\n') break;
+		}
+		int end = this.size - 1;
+		if(end > start && this.buf[end-1] == '\r') end--;
+		this.lineOff = start;
+		return end - start;
+	}
+	
+	protected static int readUntilSlow(InputStream in, byte[] dst, int off, int max) throws IOException {
+		int n = 0;
+		while(n < max) {
+			int c = in.read();
+			if(c < 0) return (n == 0) ? -1 : n;
+			dst[off + n++] = (byte) c;
+			if(c == '\n') break;
+		}
+		return n;
+	}
+	
+	protected void grow(boolean firstLine) throws HttpFormatException {
+		int len = this.buf.length;
+		if(len >= this.maxSize) {
+			if(firstLine) {
+				throw (HttpFormatException) new HttpFormatException("Request line too long")
+						.setError(414, "URI Too Long");
+			}
+			throw (HttpFormatException) new HttpFormatException("Request head too large")
+					.setError(431, "Request Header Fields Too Large");
+		}
+		this.buf = Arrays.copyOf(this.buf, Math.min(len << 1, this.maxSize));
+	}
+	
+	/**
+	 * @return Constant from given uppercased array matching bytes case-insensitively,
+	 * 		or new uppercased String
+	 */
+	protected String constant(String[] known, int off, int len) {
+		String str = this.known(known, off, len);
+		return (str != null) ? str : this.string(off, len).toUpperCase();
+	}
+	
+	/**
+	 * @return Constant from given uppercased array matching bytes case-insensitively,
+	 * 		or null. Does not allocate
+	 */
+	protected String known(String[] known, int off, int len) {
+		if(len == 0) return null;
+		int first = this.buf[off];
+		if(first >= 'a' && first <= 'z') first -= 32;
+		for(String str : known) {
+			if(str.length() == len && str.charAt(0) == first 
+					&& this.equalsIgnoreCase(off, len, str)) return str;
+		}
+		return null;
+	}
+	
+	protected boolean equalsIgnoreCase(int off, int len, CharSequence str) {
+		if(str.length() != len) return false;
+		byte[] b = this.buf;
+		for(int i = 0; i < len; i++) {
+			int c1 = b[off + i];
+			int c2 = str.charAt(i);
+			if(c1 == c2) continue;
+			if(c1 >= 'a' && c1 <= 'z') c1 -= 32;
+			if(c2 >= 'a' && c2 <= 'z') c2 -= 32;
+			if(c1 != c2) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Decode bytes as ASCII fast, fall back to default charset for others
+	 * (same as former line reader did)
+	 */
+	protected String string(int off, int len) {
+		byte[] b = this.buf;
+		for(int i = off, end = off + len; i < end; i++) {
+			if(b[i] < 0) return new String(b, off, len, Charset.defaultCharset());
+		}
+		return new String(b, off, len, StandardCharsets.ISO_8859_1);
+	}
+	
+	protected ByteArraySequence slice(int off, int len) {
+		return new ByteArraySequence(this.buf, off, len);
+	}
+	
+	/**
+	 * @return Uppercased method, constant for well-known methods
+	 */
+	public String getMethod() {
+		return this.method;
+	}
+	
+	/**
+	 * @return Uppercased version, constant for HTTP/1.0 and HTTP/1.1
+	 */
+	public String getHttpVersion() {
+		return this.version;
+	}
+	
+	public ByteArraySequence getMethodBytes() {
+		return this.slice(this.methodOff, this.methodLen);
+	}
+	
+	/**
+	 * @return Request target (path with query) as sent by client
+	 */
+	public ByteArraySequence getTargetBytes() {
+		return this.slice(this.targetOff, this.targetLen);
+	}
+	
+	public ByteArraySequence getVersionBytes() {
+		return this.slice(this.versionOff, this.versionLen);
+	}
+	
+	/**
+	 * @return Raw (not decoded) path without query
+	 */
+	public ByteArraySequence getPathBytes() {
+		int end = (this.queryIndex == -1) ? this.targetOff + this.targetLen : this.queryIndex;
+		return this.slice(this.targetOff, end - this.targetOff);
+	}
+	
+	public boolean hasQuery() {
+		return this.queryIndex != -1;
+	}
+	
+	/**
+	 * @return Raw query without '?' or null
+	 */
+	public ByteArraySequence getQueryBytes() {
+		if(this.queryIndex == -1) return null;
+		int off = this.queryIndex + 1;
+		return this.slice(off, this.targetOff + this.targetLen - off);
+	}
+	
+	/**
+	 * @return Raw (not decoded) query without '?' or null
+	 */
+	public String getQuery() {
+		if(this.queryIndex == -1) return null;
+		int off = this.queryIndex + 1;
+		return this.string(off, this.targetOff + this.targetLen - off);
+	}
+	
+	/**
+	 * @return URL decoded path without query. Not validated
+	 */
+	public String getDecodedPath() {
+		int off = this.targetOff;
+		int len = ((this.queryIndex == -1) ? off + this.targetLen : this.queryIndex) - off;
+		byte[] b = this.buf;
+		for(int i = off, end = off + len; i < end; i++) {
+			if(b[i] == '%' || b[i] == '+') {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(len);
+				try {
+					URLCoder.decodeStream(out, b, off, len);
+				} catch(IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+				return out.toString();
+			}
+		}
+		return this.string(off, len);
+	}
+	
+	/**
+	 * @return Count of header lines
+	 */
+	public int size() {
+		return this.headCount;
+	}
+	
+	/**
+	 * @return Uppercased name of i-th header
+	 */
+	public String getName(int i) {
+		this.checkIndex(i);
+		String name = this.names[i];
+		if(name == null) {
+			int e = i << 2;
+			name = this.names[i] = this.string(this.heads[e], this.heads[e+1]).toUpperCase();
+		}
+		return name;
+	}
+	
+	public String getValue(int i) {
+		this.checkIndex(i);
+		String val = this.values[i];
+		if(val == null) {
+			int e = i << 2;
+			val = this.values[i] = this.string(this.heads[e+2], this.heads[e+3]);
+		}
+		return val;
+	}
+	
+	public ByteArraySequence getNameBytes(int i) {
+		this.checkIndex(i);
+		int e = i << 2;
+		return this.slice(this.heads[e], this.heads[e+1]);
+	}
+	
+	public ByteArraySequence getValueBytes(int i) {
+		this.checkIndex(i);
+		int e = i << 2;
+		return this.slice(this.heads[e+2], this.heads[e+3]);
+	}
+	
+	protected void checkIndex(int i) {
+		if(i < 0 || i >= this.headCount) throw new IndexOutOfBoundsException("Index " + i);
+	}
+	
+	/**
+	 * @return Index of last header with given name (case-insensitive) or -1
+	 */
+	public int indexOf(CharSequence name) {
+		int[] h = this.heads;
+		for(int i = this.headCount - 1; i >= 0; i--) {
+			String known = this.names[i];
+			if(known != null) {
+				if(known == name) return i;
+				if(known.length() != name.length()) continue;
+			}
+			if(this.equalsIgnoreCase(h[i<<2], h[(i<<2)+1], name)) return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return Value of last header with given name (case-insensitive) or null
+	 */
+	public String getHead(CharSequence name) {
+		int i = this.indexOf(name);
+		return (i == -1) ? null : this.getValue(i);
+	}
+	
+	/**
+	 * Put all headers with uppercased names to given map
+	 */
+	public void putHeads(Map<String,String> map) {
+		for(int i = 0, n = this.headCount; i < n; i++) {
+			map.put(this.getName(i), this.getValue(i));
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "RequestHead [method=" + method + ", target=" + (this.targetLen == 0 ? null : getTargetBytes()) 
+				+ ", version=" + version + ", heads=" + headCount + ", complete=" + complete + "]";
+	}
+	
+}
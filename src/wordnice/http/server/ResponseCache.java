@@ -0,0 +1,787 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory cache of GET responses. Put it in handler chain before
+ * handlers which generate content: on miss, bytes written through
+ * {@link HttpRequest#getOutputStream()} are captured and stored together with
+ * {@link ResponseData} heads; on hit, stored response is written at once
+ * (or 304 when If-None-Match matches) and later handlers are skipped.
+ * 
+ * Entries are keyed by method, path, query, Host and values of request heads
+ * listed in response Vary head. Only 200 responses with Content-Length,
+ * without Set-Cookie and not marked no-store, no-cache or private are stored.
+ * Requests with Cookie only use responses with Vary: Cookie or Cache-Control: public.
+ * Lifetime is taken from s-maxage / max-age or {@link #getDefaultTtl()}
+ * (0 by default, so responses without them are not stored).
+ * Memory is bounded with W-TinyLFU: small LRU window in front of
+ * segmented LRU, with admission decided by frequency sketch.
+ */
+public class ResponseCache
+implements HttpRequestHandler {
+	
+	/** Property of HttpRequest with capture of response being generated **/
+	public static final String PROPERTY = "ResponseCache";
+	
+	protected static final byte[] CRLF = {'\r', '\n'};
+	protected static final byte[] NotModified = "HTTP/1.1 304 Not Modified\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	/** Response heads which are not stored, as they belong to connection **/
+	protected static final String[] Hop = {
+		"Connection", "Keep-Alive", "Transfer-Encoding", "Upgrade", "Proxy-Connection"
+	};
+	
+	protected static final int
+		Window = 0,
+		Probation = 1,
+		Protected = 2;
+	
+	/**
+	 * Stored response
+	 */
+	protected static class Node {
+		
+		protected final String key;
+		protected final String etag;
+		protected final byte[] data; //Status line and heads without final CRLF, then body
+		protected final int headLength;
+		protected final byte[] notModified; //304 status line and validators
+		protected final long expires;
+		protected final int weight;
+		protected final boolean shared; //May be served to requests with Cookie
+		protected int queue;
+		protected Node prev, next;
+		
+		protected Node(String key, String etag, byte[] data, int headLength, 
+				byte[] notModified, long expires, boolean shared) {
+			this.key = key;
+			this.etag = etag;
+			this.data = data;
+			this.headLength = headLength;
+			this.notModified = notModified;
+			this.expires = expires;
+			this.shared = shared;
+			this.weight = data.length + notModified.length + 2 * key.length() + 96;
+		}
+		
+		protected boolean isExpired(long now) {
+			return now - this.expires >= 0;
+		}
+		
+	}
+	
+	/**
+	 * Access ordered list, least recently used first
+	 */
+	protected static class Lru {
+		
+		protected Node head, tail;
+		protected long weight;
+		
+		protected void add(Node n, int queue) {
+			n.queue = queue;
+			n.prev = this.tail;
+			n.next = null;
+			if(this.tail == null) this.head = n;
+			else this.tail.next = n;
+			this.tail = n;
+			this.weight += n.weight;
+		}
+		
+		protected void remove(Node n) {
+			if(n.prev == null) this.head = n.next;
+			else n.prev.next = n.next;
+			if(n.next == null) this.tail = n.prev;
+			else n.next.prev = n.prev;
+			n.prev = n.next = null;
+			this.weight -= n.weight;
+		}
+		
+		protected void touch(Node n) {
+			if(this.tail == n) return;
+			this.remove(n);
+			this.add(n, n.queue);
+		}
+		
+		protected void clear() {
+			this.head = this.tail = null;
+			this.weight = 0;
+		}
+		
+	}
+	
+	/**
+	 * Count-min sketch with 4 bit counters, halved after
+	 * every sample period so old popularity fades
+	 */
+	protected static class FrequencySketch {
+		
+		protected static final long[] Seeds = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+		};
+		
+		protected final long[] table;
+		protected final int mask;
+		protected final int sampleSize;
+		protected int additions;
+		
+		protected FrequencySketch(int entries) {
+			int size = Integer.highestOneBit(Math.max(entries, 16) - 1) << 1;
+			this.table = new long[size];
+			this.mask = size - 1;
+			this.sampleSize = 10 * size;
+		}
+		
+		protected static int spread(int h) {
+			h ^= (h >>> 17);
+			h *= 0xed5ad4bb;
+			h ^= (h >>> 11);
+			h *= 0xac4c1b51;
+			return h ^ (h >>> 15);
+		}
+		
+		protected int index(int h, int i) {
+			long hash = (h + Seeds[i]) * Seeds[i];
+			hash += (hash >>> 32);
+			return ((int) hash) & this.mask;
+		}
+		
+		public int frequency(Object o) {
+			int h = spread(o.hashCode());
+			int start = (h & 3) << 2;
+			int freq = 15;
+			for(int i = 0; i < 4; i++) {
+				long word = this.table[this.index(h, i)];
+				freq = Math.min(freq, (int) ((word >>> ((start + i) << 2)) & 0xF));
+			}
+			return freq;
+		}
+		
+		public void increment(Object o) {
+			int h = spread(o.hashCode());
+			int start = (h & 3) << 2;
+			boolean added = false;
+			for(int i = 0; i < 4; i++) {
+				int idx = this.index(h, i);
+				int shift = (start + i) << 2;
+				if(((this.table[idx] >>> shift) & 0xF) != 0xF) {
+					this.table[idx] += 1L << shift;
+					added = true;
+				}
+			}
+			if(added && ++this.additions >= this.sampleSize) {
+				for(int i = 0; i < this.table.length; i++)
+					this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+				this.additions >>>= 1;
+			}
+		}
+		
+	}
+	
+	/**
+	 * Output stream of request while response is generated,
+	 * copies written bytes up to limit
+	 */
+	protected static class Capture extends FilterOutputStream {
+		
+		protected byte[] buf = new byte[1024];
+		protected int count = 0;
+		protected final int limit;
+		protected final OutputStream original;
+		
+		protected Capture(OutputStream out, int limit) {
+			super(out);
+			this.original = out;
+			this.limit = limit;
+		}
+		
+		protected void copy(byte[] b, int off, int len) {
+			if(this.buf == null) return;
+			int need = this.count + len;
+			if(need > this.limit) {
+				this.buf = null; //too large to store
+				return;
+			}
+			if(need > this.buf.length)
+				this.buf = Arrays.copyOf(this.buf, Math.min(this.limit, Math.max(need, this.buf.length << 1)));
+			System.arraycopy(b, off, this.buf, this.count, len);
+			this.count = need;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.copy(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.copy(b, off, len);
+		}
+		
+		/**
+		 * @return Offset of body in captured bytes or -1
+		 */
+		protected int bodyOffset() {
+			byte[] b = this.buf;
+			for(int i = 3; i < this.count; i++) {
+				if(b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r')
+					return i + 1;
+			}
+			return -1;
+		}
+		
+	}
+	
+	protected final Object lock = new Object();
+	protected final Map<String,Node> entries = new HashMap<String,Node>();
+	protected final Map<String,String[]> varies = new HashMap<String,String[]>();
+	protected final Lru window = new Lru();
+	protected final Lru probation = new Lru();
+	protected final Lru protect = new Lru();
+	protected final FrequencySketch sketch;
+	
+	protected final long maxBytes;
+	protected final long windowBytes;
+	protected final long protectedBytes;
+	protected int maxEntrySize = 1 << 20;
+	protected long defaultTtl = 0;
+	
+	protected final AtomicLong hits = new AtomicLong();
+	protected final AtomicLong misses = new AtomicLong();
+	protected final AtomicLong notModified = new AtomicLong();
+	protected final AtomicLong stores = new AtomicLong();
+	protected final AtomicLong evictions = new AtomicLong();
+	
+	public ResponseCache() {
+		this(64L << 20);
+	}
+	
+	/**
+	 * @param maxBytes Approximate maximum memory used by stored responses
+	 */
+	public ResponseCache(long maxBytes) {
+		if(maxBytes < 1024) throw new IllegalArgumentException("maxBytes < 1024");
+		this.maxBytes = maxBytes;
+		this.windowBytes = Math.max(1, maxBytes / 100);
+		this.protectedBytes = (maxBytes - this.windowBytes) * 4 / 5;
+		this.sketch = new FrequencySketch((int) Math.min(1 << 22, maxBytes / 4096));
+	}
+	
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+	
+	public int getMaxEntrySize() {
+		return this.maxEntrySize;
+	}
+	
+	/**
+	 * Responses with more bytes (heads included) are not stored
+	 */
+	public ResponseCache setMaxEntrySize(int maxEntrySize) {
+		this.maxEntrySize = maxEntrySize;
+		return this;
+	}
+	
+	public long getDefaultTtl() {
+		return this.defaultTtl;
+	}
+	
+	/**
+	 * Milliseconds to keep responses without max-age in Cache-Control,
+	 * 0 to not store them
+	 */
+	public ResponseCache setDefaultTtl(long defaultTtl) {
+		this.defaultTtl = defaultTtl;
+		return this;
+	}
+	
+	public long getHits() {
+		return this.hits.get();
+	}
+	
+	public long getMisses() {
+		return this.misses.get();
+	}
+	
+	/**
+	 * @return Count of hits answered with 304
+	 */
+	public long getNotModified() {
+		return this.notModified.get();
+	}
+	
+	public long getStores() {
+		return this.stores.get();
+	}
+	
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+	
+	/**
+	 * @return Ratio of hits to all cacheable requests, 0 if there were none
+	 */
+	public double getHitRate() {
+		long h = this.hits.get(), total = h + this.misses.get();
+		return (total == 0) ? 0 : (double) h / total;
+	}
+	
+	public int size() {
+		synchronized(this.lock) {
+			return this.entries.size();
+		}
+	}
+	
+	/**
+	 * @return Bytes held by stored responses
+	 */
+	public long getWeight() {
+		synchronized(this.lock) {
+			return this.window.weight + this.probation.weight + this.protect.weight;
+		}
+	}
+	
+	/**
+	 * Remove responses for given path (all queries, hosts and variants)
+	 */
+	public void invalidate(String path) {
+		this.remove("GET " + path);
+	}
+	
+	/**
+	 * Remove responses for given host and path (all queries and variants)
+	 */
+	public void invalidate(String host, String path) {
+		synchronized(this.lock) {
+			String suffix = ' ' + host.toLowerCase();
+			Iterator<Entry<String,Node>> it = this.entries.entrySet().iterator();
+			while(it.hasNext()) {
+				Node n = it.next().getValue();
+				String base = n.key;
+				int end = base.indexOf('\0');
+				if(end >= 0) base = base.substring(0, end);
+				if(!base.endsWith(suffix)) continue;
+				base = base.substring(0, base.length() - suffix.length());
+				if(!base.equals("GET " + path) && !base.startsWith("GET " + path + '?')) continue;
+				it.remove();
+				this.queue(n).remove(n);
+			}
+		}
+	}
+	
+	/**
+	 * Remove entries with given base key prefix (up to query) and all their hosts and variants
+	 */
+	protected void remove(String prefix) {
+		synchronized(this.lock) {
+			Iterator<Entry<String,Node>> it = this.entries.entrySet().iterator();
+			while(it.hasNext()) {
+				Node n = it.next().getValue();
+				if(!n.key.startsWith(prefix)) continue;
+				if(n.key.length() != prefix.length()) {
+					char c = n.key.charAt(prefix.length());
+					if(c != '?' && c != ' ' && c != '\0') continue;
+				}
+				it.remove();
+				this.queue(n).remove(n);
+			}
+		}
+	}
+	
+	public void clear() {
+		synchronized(this.lock) {
+			this.entries.clear();
+			this.varies.clear();
+			this.window.clear();
+			this.probation.clear();
+			this.protect.clear();
+		}
+	}
+	
+	protected Lru queue(Node n) {
+		return (n.queue == Window) ? this.window 
+				: (n.queue == Probation) ? this.probation : this.protect;
+	}
+	
+	/**
+	 * @return Key without variant part ("GET path?query host"), 
+	 * 		or null if request is not cacheable
+	 */
+	protected static String baseKey(HttpRequest req) {
+		RequestData rd = req.getRequest();
+		String method = rd.getMethod();
+		if(!"GET".equals(method) && !"HEAD".equals(method)) return null;
+		if(rd.getHead("AUTHORIZATION") != null || rd.getHead("RANGE") != null) return null;
+		String path = rd.getPath();
+		if(path == null) return null;
+		RequestHead raw = rd.getRawHead();
+		String query;
+		if(raw != null) {
+			query = raw.getQuery();
+		} else {
+			Map<String,Object> get = rd.getGet();
+			if(get == null || get.isEmpty()) {
+				query = null;
+			} else {
+				StringBuilder sb = new StringBuilder();
+				for(Entry<String,Object> e : get.entrySet()) {
+					if(sb.length() != 0) sb.append('&');
+					sb.append(e.getKey()).append('=').append(e.getValue());
+				}
+				query = sb.toString();
+			}
+		}
+		String host = rd.getHead("HOST");
+		host = (host == null) ? "" : host.toLowerCase();
+		return (query == null) ? "GET " + path + ' ' + host : "GET " + path + '?' + query + ' ' + host;
+	}
+	
+	protected static String variantKey(String base, String[] vary, RequestData rd) {
+		if(vary == null || vary.length == 0) return base;
+		StringBuilder sb = new StringBuilder(base);
+		for(String name : vary) {
+			String val = rd.getHead(name);
+			sb.append('\0');
+			if(val != null) sb.append(val);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @return Fresh stored response or null
+	 */
+	protected Node lookup(String base, RequestData rd) {
+		synchronized(this.lock) {
+			String key = variantKey(base, this.varies.get(base), rd);
+			this.sketch.increment(key);
+			Node n = this.entries.get(key);
+			if(n == null) return null;
+			if(!n.shared && rd.getHead("COOKIE") != null) return null;
+			if(n.isExpired(System.currentTimeMillis())) {
+				this.entries.remove(key);
+				this.queue(n).remove(n);
+				return null;
+			}
+			if(n.queue == Window) {
+				this.window.touch(n);
+			} else if(n.queue == Probation) {
+				this.probation.remove(n);
+				this.protect.add(n, Protected);
+				while(this.protect.weight > this.protectedBytes) {
+					Node d = this.protect.head;
+					this.protect.remove(d);
+					this.probation.add(d, Probation);
+				}
+			} else {
+				this.protect.touch(n);
+			}
+			return n;
+		}
+	}
+	
+	protected void store(String base, String[] vary, RequestData rd, Node tmpl) {
+		synchronized(this.lock) {
+			String[] old = this.varies.put(base, vary);
+			if(old != null && !Arrays.equals(old, vary)) this.remove(base);
+			String key = variantKey(base, vary, rd);
+			boolean shared = tmpl.shared || Arrays.binarySearch(vary, "COOKIE") >= 0;
+			Node n = new Node(key, tmpl.etag, tmpl.data, tmpl.headLength, tmpl.notModified, tmpl.expires, shared);
+			Node prev = this.entries.put(key, n);
+			if(prev != null) this.queue(prev).remove(prev);
+			this.window.add(n, Window);
+			this.stores.incrementAndGet();
+			this.evict();
+		}
+	}
+	
+	/**
+	 * Move overflow of window to probation and evict from probation
+	 * whichever of newest candidate and oldest victim is less frequent
+	 */
+	protected void evict() {
+		Node candidate = null;
+		while(this.window.weight > this.windowBytes) {
+			Node n = this.window.head;
+			this.window.remove(n);
+			this.probation.add(n, Probation);
+			if(candidate == null) candidate = n;
+		}
+		while(this.window.weight + this.probation.weight + this.protect.weight > this.maxBytes) {
+			Node victim = this.probation.head;
+			Node drop;
+			if(victim == null) {
+				drop = (this.protect.head != null) ? this.protect.head : this.window.head;
+			} else if(candidate == null || candidate == victim || candidate.queue != Probation) {
+				drop = victim;
+			} else {
+				drop = (this.sketch.frequency(candidate.key) > this.sketch.frequency(victim.key)) 
+						? victim : candidate;
+				if(drop == candidate) candidate = candidate.next;
+			}
+			if(drop == null) break;
+			this.queue(drop).remove(drop);
+			this.entries.remove(drop.key);
+			this.evictions.incrementAndGet();
+		}
+	}
+	
+	protected static boolean matches(String ifNoneMatch, String etag) {
+		if(ifNoneMatch.trim().equals("*")) return true;
+		String tag = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for(String part : ifNoneMatch.split(",")) {
+			part = part.trim();
+			if(part.startsWith("W/")) part = part.substring(2);
+			if(part.equals(tag)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Write stored response (or 304) with heads of this request's ResponseData
+	 */
+	protected void serve(HttpRequest req, Node n) throws IOException {
+		RequestData rd = req.getRequest();
+		ResponseData res = req.getResponse();
+		OutputStream out = req.getOutputStream();
+		String inm = rd.getHead("IF-NONE-MATCH");
+		if(inm != null && matches(inm, n.etag)) {
+			out.write(n.notModified);
+			req.getHeadWriter().heads(res.getHeads()).writeTo(out);
+			out.flush();
+			res.setStatus("304 Not Modified").setWritten(true);
+			this.notModified.incrementAndGet();
+			return;
+		}
+		out.write(n.data, 0, n.headLength);
+		req.getHeadWriter().heads(res.getHeads()).writeTo(out);
+		if(!"HEAD".equals(rd.getMethod()))
+			out.write(n.data, n.headLength, n.data.length - n.headLength);
+		out.flush();
+		res.setStatus("200 OK").setContentLength(n.data.length - n.headLength).setWritten(true);
+	}
+	
+	protected static boolean isHop(String name) {
+		for(String h : Hop)
+			if(h.equalsIgnoreCase(name)) return true;
+		return false;
+	}
+	
+	/**
+	 * @return Lifetime in milliseconds of response with given Cache-Control, 
+	 * 		or -1 if it must not be stored
+	 */
+	protected long ttl(String cacheControl) {
+		if(cacheControl == null) return this.defaultTtl;
+		long maxAge = -1, sMaxAge = -1;
+		for(String part : cacheControl.toLowerCase().split(",")) {
+			part = part.trim();
+			if(part.equals("no-store") || part.equals("no-cache") || part.startsWith("private")) return -1;
+			try {
+				if(part.startsWith("s-maxage=")) sMaxAge = Long.parseLong(part.substring(9).trim());
+				else if(part.startsWith("max-age=")) maxAge = Long.parseLong(part.substring(8).trim());
+			} catch(NumberFormatException ex) {
+				return -1;
+			}
+		}
+		if(sMaxAge >= 0) return sMaxAge * 1000;
+		if(maxAge >= 0) return maxAge * 1000;
+		return this.defaultTtl;
+	}
+	
+	/**
+	 * Build entry from finished response, or null if it can not be stored
+	 */
+	protected Node capture(Capture cap, ResponseData res) {
+		if(cap.buf == null || !res.isWritten()) return null;
+		CharSequence status = res.getStatus();
+		if(status == null || !status.toString().startsWith("200")) return null;
+		if(res.findHead("Set-Cookie") != null || res.findHead("Transfer-Encoding") != null
+				|| res.findHead("Content-Encoding") != null) return null;
+		String len = res.findHead("Content-Length");
+		int off = cap.bodyOffset();
+		if(len == null || off < 0) return null;
+		int bodyLength = cap.count - off;
+		try {
+			if(Long.parseLong(len.trim()) != bodyLength) return null;
+		} catch(NumberFormatException ex) {
+			return null;
+		}
+		String cc = res.findHead("Cache-Control");
+		long ttl = this.ttl(cc);
+		if(ttl <= 0) return null;
+		boolean shared = cc != null && cc.toLowerCase().contains("public");
+		
+		String etag = res.findHead("ETag");
+		StringBuilder head = new StringBuilder(256);
+		StringBuilder validators = new StringBuilder(128);
+		head.append("HTTP/1.1 ").append(status).append("\r\n");
+		for(Entry<String,List<String>> e : res.getHeads().entrySet()) {
+			String name = e.getKey();
+			if(isHop(name)) continue;
+			boolean validator = name.equalsIgnoreCase("ETag") || name.equalsIgnoreCase("Cache-Control")
+					|| name.equalsIgnoreCase("Vary") || name.equalsIgnoreCase("Expires")
+					|| name.equalsIgnoreCase("Last-Modified");
+			for(String val : e.getValue()) {
+				head.append(name).append(": ").append(val).append("\r\n");
+				if(validator) validators.append(name).append(": ").append(val).append("\r\n");
+			}
+		}
+		if(etag == null) {
+			CRC32 crc = new CRC32();
+			crc.update(cap.buf, off, bodyLength);
+			etag = "W/\"" + Long.toHexString(crc.getValue()) + '-' + Integer.toHexString(bodyLength) + '"';
+			head.append("ETag: ").append(etag).append("\r\n");
+			validators.append("ETag: ").append(etag).append("\r\n");
+		}
+		byte[] h = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+		byte[] data = new byte[h.length + bodyLength];
+		System.arraycopy(h, 0, data, 0, h.length);
+		System.arraycopy(cap.buf, off, data, h.length, bodyLength);
+		byte[] vb = validators.toString().getBytes(StandardCharsets.ISO_8859_1);
+		byte[] nm = Arrays.copyOf(NotModified, NotModified.length + vb.length);
+		System.arraycopy(vb, 0, nm, NotModified.length, vb.length);
+		return new Node("", etag, data, h.length, nm, System.currentTimeMillis() + ttl, shared);
+	}
+	
+	/**
+	 * @return Names of request heads response varies on, or null if it varies on *
+	 */
+	protected static String[] vary(ResponseData res) {
+		List<String> list = res.getHead("Vary");
+		if(list.isEmpty()) {
+			String v = res.findHead("Vary");
+			if(v == null) return new String[0];
+			list = Collections.singletonList(v);
+		}
+		StringBuilder sb = new StringBuilder();
+		for(String v : list) sb.append(v).append(',');
+		String[] names = sb.toString().split(",");
+		int n = 0;
+		for(String name : names) {
+			name = name.trim();
+			if(name.isEmpty()) continue;
+			if(name.equals("*")) return null;
+			names[n++] = name.toUpperCase();
+		}
+		names = Arrays.copyOf(names, n);
+		Arrays.sort(names);
+		return names;
+	}
+	
+	@Override
+	public boolean acceptRequest(HttpRequest req) {
+		return true;
+	}
+	
+	@Override
+	public boolean finishAfterFirstLine(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public boolean finishAfterHeads(HttpRequest req) {
+		String base = baseKey(req);
+		if(base == null) return false;
+		RequestData rd = req.getRequest();
+		String cc = rd.getHead("CACHE-CONTROL");
+		if(cc != null) {
+			cc = cc.toLowerCase();
+			if(cc.contains("no-store")) return false;
+		}
+		if(cc == null || !cc.contains("no-cache")) {
+			Node n = this.lookup(base, rd);
+			if(n != null) {
+				this.hits.incrementAndGet();
+				try {
+					this.serve(req, n);
+				} catch(IOException ex) {
+					req.setKeepAlive(false);
+				}
+				return true;
+			}
+		}
+		this.misses.incrementAndGet();
+		if("GET".equals(rd.getMethod()) && req.getOutputStream() != null) {
+			Capture cap = new Capture(req.output, this.maxEntrySize);
+			req.output = cap;
+			req.setProperty(PROPERTY, cap);
+		}
+		return false;
+	}
+	
+	@Override
+	public boolean handleRequest(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public void handleDecoderException(HttpRequest req, Exception ex) {}
+	
+	@Override
+	public void cleanup(HttpRequest req, boolean status) {
+		if(req == null) return;
+		Object prop = req.getProperty(PROPERTY);
+		if(!(prop instanceof Capture)) return;
+		Capture cap = (Capture) prop;
+		req.setProperty(PROPERTY, null);
+		if(req.output == cap) req.output = cap.original;
+		if(!status || req.isClosed()) return;
+		ResponseData res = req.getResponse();
+		String[] vary = vary(res);
+		if(vary == null) return;
+		Node n = this.capture(cap, res);
+		if(n == null) return;
+		RequestData rd = req.getRequest();
+		if(!n.shared && rd.getHead("COOKIE") != null 
+				&& Arrays.binarySearch(vary, "COOKIE") < 0) return;
+		String base = baseKey(req);
+		if(base != null) this.store(base, vary, rd, n);
+	}
+	
+	@Override
+	public String toString() {
+		return "ResponseCache [entries=" + this.size() + ", weight=" + this.getWeight() 
+				+ ", hits=" + this.hits + ", misses=" + this.misses + "]";
+	}
+	
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import wordnice.streams.ChunkedOutputStream;
+import wordnice.streams.CompressedOutputStream;
+import wordnice.streams.DeflaterPool;
+
+/**
+ * Opt-in response compression stage. Add it to handler chain and 
+ * write responses through {@link HttpRequest#writeResponseBody(CharSequence)}:
+ * bodies are then compressed with gzip or deflate negotiated 
+ * from Accept-Encoding and sent chunked.
+ * 
+ * Already compressed content types, bodies with known length under
+ * {@link #getMinSize()}, HEAD requests and HTTP/1.0 clients are sent as is.
+ * Deflaters and buffers are pooled. Body which handler did not close
+ * is finished in cleanup, before connection is reused.
+ */
+public class ResponseCompression
+implements HttpRequestHandler {
+	
+	/** Property of HttpRequest with compression stage **/
+	public static final String PROPERTY = "ResponseCompression";
+	
+	/** Property of HttpRequest with compressed body stream, finished in cleanup **/
+	protected static final String StreamProperty = "ResponseCompression.stream";
+	
+	/** Content type prefixes which are not compressed **/
+	protected static final String[] Compressed = {
+		"image/", "video/", "audio/", "font/woff", "application/zip", "application/gzip",
+		"application/x-gzip", "application/x-7z", "application/x-rar", "application/x-bzip2",
+		"application/x-xz", "application/zstd", "application/octet-stream", "application/pdf"
+	};
+	
+	protected int minSize = 1024;
+	protected final DeflaterPool gzipPool;
+	protected final DeflaterPool deflatePool;
+	
+	protected final AtomicLong compressed = new AtomicLong();
+	protected final AtomicLong skipped = new AtomicLong();
+	protected final AtomicLong bytesIn = new AtomicLong();
+	protected final AtomicLong bytesOut = new AtomicLong();
+	protected final AtomicLong nanos = new AtomicLong();
+	
+	public ResponseCompression() {
+		this(6, 64);
+	}
+	
+	/**
+	 * @param level Deflate level 1-9
+	 * @param maxPooled Maximum count of pooled deflaters per format
+	 */
+	public ResponseCompression(int level, int maxPooled) {
+		this.gzipPool = new DeflaterPool(level, true, maxPooled);
+		this.deflatePool = new DeflaterPool(level, false, maxPooled);
+	}
+	
+	public int getMinSize() {
+		return this.minSize;
+	}
+	
+	/**
+	 * Set minimal Content-Length of compressed response. 
+	 * Responses with unknown length are always compressed
+	 */
+	public ResponseCompression setMinSize(int minSize) {
+		if(minSize < 0) throw new IllegalArgumentException("Negative min size");
+		this.minSize = minSize;
+		return this;
+	}
+	
+	public int getLevel() {
+		return this.gzipPool.getLevel();
+	}
+	
+	/** @return Count of compressed responses **/
+	public long getCompressedCount() {
+		return this.compressed.get();
+	}
+	
+	/** @return Count of responses sent without compression **/
+	public long getSkippedCount() {
+		return this.skipped.get();
+	}
+	
+	/** @return Uncompressed bytes of compressed responses **/
+	public long getBytesIn() {
+		return this.bytesIn.get();
+	}
+	
+	/** @return Compressed bytes of compressed responses **/
+	public long getBytesOut() {
+		return this.bytesOut.get();
+	}
+	
+	/** @return Nanoseconds spent compressing **/
+	public long getCompressionNanos() {
+		return this.nanos.get();
+	}
+	
+	/**
+	 * @return Compressed size divided by uncompressed size, 1 if nothing was compressed
+	 */
+	public double getRatio() {
+		long in = this.bytesIn.get();
+		return (in == 0) ? 1 : (double) this.bytesOut.get() / in;
+	}
+	
+	/**
+	 * Free pooled deflaters
+	 */
+	public void clear() {
+		this.gzipPool.clear();
+		this.deflatePool.clear();
+	}
+	
+	/**
+	 * @return {@link CompressedOutputStream#GZIP}, {@link CompressedOutputStream#DEFLATE}
+	 * 		or 0 for identity, chosen by q-values of Accept-Encoding (gzip preferred)
+	 */
+	public static int negotiate(String acceptEncoding) {
+		if(acceptEncoding == null) return 0;
+		float gzip = -1, deflate = -1, any = -1;
+		int i = 0, len = acceptEncoding.length();
+		while(i < len) {
+			int end = acceptEncoding.indexOf(',', i);
+			if(end == -1) end = len;
+			String part = acceptEncoding.substring(i, end).trim();
+			i = end + 1;
+			float q = 1;
+			int semi = part.indexOf(';');
+			if(semi != -1) {
+				String params = part.substring(semi + 1).trim();
+				part = part.substring(0, semi).trim();
+				if(params.startsWith("q=") || params.startsWith("Q=")) {
+					try {
+						q = Float.parseFloat(params.substring(2).trim());
+					} catch(NumberFormatException ex) {
+						q = 0;
+					}
+				}
+			}
+			if(part.equalsIgnoreCase("gzip") || part.equalsIgnoreCase("x-gzip")) gzip = q;
+			else if(part.equalsIgnoreCase("deflate")) deflate = q;
+			else if(part.equals("*")) any = q;
+		}
+		if(gzip == -1) gzip = any;
+		if(deflate == -1) deflate = any;
+		if(gzip > 0 && gzip >= deflate) return CompressedOutputStream.GZIP;
+		if(deflate > 0) return CompressedOutputStream.DEFLATE;
+		return 0;
+	}
+	
+	/**
+	 * @return true if content type is not already compressed
+	 */
+	public static boolean isCompressible(String contentType) {
+		if(contentType == null) return true;
+		String type = contentType.trim().toLowerCase();
+		if(type.startsWith("image/svg")) return true;
+		for(String prefix : Compressed) {
+			if(type.startsWith(prefix)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return Chosen encoding (see {@link #negotiate(String)}) for response 
+	 * 		about to be written
+	 */
+	protected int choose(HttpRequest req, CharSequence status) {
+		RequestData rd = req.getRequest();
+		ResponseData res = req.getResponse();
+		if(!isCompressible(res.findHead("Content-Type"))) return 0;
+		if("HEAD".equals(rd.getMethod()) || !"HTTP/1.1".equals(rd.getHttpVersion())) return 0;
+		if(status != null) {
+			String st = status.toString();
+			if(st.startsWith("204") || st.startsWith("304") || st.startsWith("1")) return 0;
+		}
+		if(res.findHead("Content-Encoding") != null || res.findHead("Content-Range") != null) return 0;
+		String clen = res.findHead("Content-Length");
+		if(clen != null) {
+			try {
+				if(Long.parseLong(clen.trim()) < this.minSize) return 0;
+			} catch(NumberFormatException ex) {}
+		}
+		return negotiate(rd.getHead("ACCEPT-ENCODING"));
+	}
+	
+	/**
+	 * Write response heads and open stream for body.
+	 * Closing returned stream finishes body, socket is left open
+	 */
+	public OutputStream writeResponse(HttpRequest req, CharSequence status) throws IOException {
+		final int format = this.choose(req, status);
+		if(format == 0) {
+			this.skipped.incrementAndGet();
+			return writePlain(req, status);
+		}
+		ResponseData res = req.getResponse();
+		res.removeHead("Content-Length");
+		res.setHead("Content-Encoding", (format == CompressedOutputStream.GZIP) ? "gzip" : "deflate");
+		res.setHead("Transfer-Encoding", "chunked");
+		res.addHead("Vary", "Accept-Encoding");
+		req.writeResponse(status);
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(req.getOutputStream());
+		DeflaterPool pool = (format == CompressedOutputStream.GZIP) ? this.gzipPool : this.deflatePool;
+		CompressedOutputStream body = new CompressedOutputStream(chunked, format, pool) {
+			
+			@Override
+			protected void onFinish() throws IOException {
+				chunked.finish();
+				ResponseCompression stage = ResponseCompression.this;
+				stage.compressed.incrementAndGet();
+				stage.bytesIn.addAndGet(this.bytesIn);
+				stage.bytesOut.addAndGet(this.bytesOut);
+				stage.nanos.addAndGet(this.nanos);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				this.finish();
+			}
+			
+		};
+		req.setProperty(StreamProperty, body);
+		return body;
+	}
+	
+	/**
+	 * Write response heads and return stream for body, 
+	 * which does not close socket when closed
+	 */
+	public static OutputStream writePlain(HttpRequest req, CharSequence status) throws IOException {
+		req.writeResponse(status);
+		return new FilterOutputStream(req.getOutputStream()) {
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				this.out.write(b, off, len);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				this.out.flush();
+			}
+			
+		};
+	}
+	
+	@Override
+	public boolean acceptRequest(HttpRequest req) {
+		req.setProperty(PROPERTY, this);
+		return true;
+	}
+	
+	@Override
+	public boolean finishAfterFirstLine(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public boolean finishAfterHeads(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public boolean handleRequest(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public void handleDecoderException(HttpRequest req, Exception ex) {}
+	
+	/**
+	 * Write last chunk of body which handler left open
+	 */
+	@Override
+	public void cleanup(HttpRequest req, boolean status) {
+		if(req == null) return;
+		Object prop = req.getProperty(StreamProperty);
+		if(!(prop instanceof CompressedOutputStream)) return;
+		req.setProperty(StreamProperty, null);
+		CompressedOutputStream body = (CompressedOutputStream) prop;
+		if(body.isFinished()) return;
+		try {
+			body.finish();
+		} catch(IOException ex) {
+			status = false;
+		}
+		if(!status) req.setKeepAlive(false);
+	}
+	
+	@Override
+	public String toString() {
+		return "ResponseCompression [compressed=" + compressed + ", skipped=" + skipped 
+				+ ", ratio=" + getRatio() + "]";
+	}
+	
+}
@@ -25,8 +25,10 @@
 package wordnice.http.server;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import wordnice.api.Nice;
 import wordnice.codings.URLCoder;
@@ -36,6 +38,92 @@ public class ResponseData {
 	public ResponseData() {}
 	
 	protected Map<String,List<String>> heads;
+	
+	/** Status line written by HttpRequest, eg. "200 OK" **/
+	protected CharSequence status;
+	
+	/** True once heads were written through HttpRequest **/
+	protected boolean written = false;
+	
+	/**
+	 * Clear heads and status, so this instance can be reused
+	 * for next request on persistent connection
+	 */
+	public ResponseData reset() {
+		if(this.heads != null) this.heads.clear();
+		this.status = null;
+		this.written = false;
+		return this;
+	}
+	
+	public CharSequence getStatus() {
+		return this.status;
+	}
+	
+	public ResponseData setStatus(CharSequence status) {
+		this.status = status;
+		return this;
+	}
+	
+	public boolean isWritten() {
+		return this.written;
+	}
+	
+	public ResponseData setWritten(boolean written) {
+		this.written = written;
+		return this;
+	}
+	
+	/**
+	 * @return First value of head with case insensitive key or null
+	 */
+	public String findHead(String key) {
+		if(this.heads == null) return null;
+		List<String> list = this.heads.get(key);
+		if(list == null) {
+			for(Entry<String,List<String>> entry : this.heads.entrySet()) {
+				if(key.equalsIgnoreCase(entry.getKey())) {
+					list = entry.getValue();
+					break;
+				}
+			}
+		}
+		return (list == null || list.isEmpty()) ? null : list.get(0);
+	}
+	
+	/**
+	 * Remove head with case insensitive key
+	 */
+	public ResponseData removeHead(String key) {
+		if(this.heads == null) return this;
+		if(this.heads.remove(key) != null) return this;
+		Iterator<String> it = this.heads.keySet().iterator();
+		while(it.hasNext()) {
+			if(key.equalsIgnoreCase(it.next())) {
+				it.remove();
+				break;
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * @return true if client can find end of this response without closing connection
+	 * 		(Content-Length, chunked encoding or response without body)
+	 */
+	public boolean isFramed(String method) {
+		String con = this.findHead("Connection");
+		if(con != null && con.toLowerCase().contains("close")) return false;
+		if("HEAD".equals(method)) return true;
+		CharSequence status = this.status;
+		if(status != null) {
+			String st = status.toString();
+			if(st.startsWith("204") || st.startsWith("304")) return true;
+		}
+		if(this.findHead("Content-Length") != null) return true;
+		String enc = this.findHead("Transfer-Encoding");
+		return enc != null && enc.toLowerCase().contains("chunked");
+	}
 
 	public ResponseData setHeads(Map<String, List<String>> heads) {
 		this.heads = heads;
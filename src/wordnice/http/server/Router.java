@@ -0,0 +1,468 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Dispatches requests to handlers by method and path.
+ * Routes are compiled into radix tree over path characters, 
+ * so lookup costs O(path length) regardless of count of routes.
+ * 
+ * <pre>
+ * /users               static path
+ * /users/{id}          parameter, matches one path segment
+ * /users/{id}/posts    parameters can be followed by static parts
+ * /files/{path*}       named wildcard, matches rest of path (at least one character)
+ * /files/*             wildcard named "*"
+ * </pre>
+ * Static parts have precedence over parameters and parameters over wildcards.
+ * Method null matches any method, HEAD falls back to GET.
+ * 
+ * Router is regular handler in chain: if no route matches, 
+ * all phases are passed to next handlers. If path matches but method 
+ * does not, "405 Method Not Allowed" is written.
+ * Matched route is stored in property {@link #PROPERTY}, 
+ * see {@link #getMatch(HttpRequest)} and {@link #getParam(HttpRequest, String)}.
+ * Path is known only after first line, so acceptRequest of matched handler 
+ * is called right after matching; if it refuses, connection is closed.
+ * 
+ * Routes should be added before server starts listening
+ */
+public class Router
+implements HttpRequestHandler {
+	
+	/** Property of HttpRequest with matched {@link Match} **/
+	public static final String PROPERTY = "Router.Match";
+	
+	protected static final Node[] NoNodes = new Node[0];
+	protected static final Route[] NoRoutes = new Route[0];
+	protected static final String[] NoNames = new String[0];
+	
+	/**
+	 * Route matched for request. Parameters are kept as offsets into path, 
+	 * Strings are created on access. Instance is reused for next requests
+	 * on same connection, so it should not be kept after request
+	 */
+	public static class Match {
+		
+		protected Node node;
+		protected Route route;
+		protected String path;
+		protected final int[] params;
+		
+		protected Match(int[] params) {
+			this.params = params;
+		}
+		
+		protected Match set(Node node, Route route, String path) {
+			this.node = node;
+			this.route = route;
+			this.path = path;
+			return this;
+		}
+		
+		/**
+		 * @return Matched route, null if only path matched (method not allowed)
+		 */
+		public HttpRequestHandler getHandler() {
+			return (this.route == null) ? null : this.route.handler;
+		}
+		
+		public String getPattern() {
+			return (this.route == null) ? null : this.route.pattern;
+		}
+		
+		public String getPath() {
+			return this.path;
+		}
+		
+		public int getParamCount() {
+			return (this.route == null) ? 0 : this.route.paramNames.length;
+		}
+		
+		public String getParamName(int i) {
+			return this.route.paramNames[i];
+		}
+		
+		public String getParam(int i) {
+			if(i < 0 || i >= this.getParamCount()) throw new IndexOutOfBoundsException("Index " + i);
+			return this.path.substring(this.params[i<<1], this.params[(i<<1)+1]);
+		}
+		
+		/**
+		 * @return Value of parameter with given name or null
+		 */
+		public String getParam(String name) {
+			if(this.route == null) return null;
+			String[] names = this.route.paramNames;
+			for(int i = 0; i < names.length; i++) {
+				if(names[i].equals(name)) return this.getParam(i);
+			}
+			return null;
+		}
+		
+		@Override
+		public String toString() {
+			return "Match [pattern=" + getPattern() + ", path=" + path + "]";
+		}
+		
+	}
+	
+	protected static class Route {
+		
+		protected final String method;
+		protected final String pattern;
+		protected final String[] paramNames;
+		protected final HttpRequestHandler handler;
+		
+		protected Route(String method, String pattern, String[] paramNames, HttpRequestHandler handler) {
+			this.method = method;
+			this.pattern = pattern;
+			this.paramNames = paramNames;
+			this.handler = handler;
+		}
+		
+	}
+	
+	protected static class Node {
+		
+		/** Static characters matched by this node, empty for parameter and wildcard nodes **/
+		protected String prefix;
+		
+		/** First characters of static children **/
+		protected char[] indices = new char[0];
+		protected Node[] children = NoNodes;
+		protected Node param;
+		protected Node wildcard;
+		protected Route[] routes = NoRoutes;
+		
+		protected Node(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		protected Node findChild(char c) {
+			char[] ind = this.indices;
+			for(int i = 0; i < ind.length; i++) {
+				if(ind[i] == c) return this.children[i];
+			}
+			return null;
+		}
+		
+		protected void addChild(Node child) {
+			int n = this.children.length;
+			this.indices = Arrays.copyOf(this.indices, n + 1);
+			this.children = Arrays.copyOf(this.children, n + 1);
+			this.indices[n] = child.prefix.charAt(0);
+			this.children[n] = child;
+		}
+		
+		/**
+		 * Split this node after given count of prefix characters
+		 */
+		protected void split(int at) {
+			Node tail = new Node(this.prefix.substring(at));
+			tail.indices = this.indices;
+			tail.children = this.children;
+			tail.param = this.param;
+			tail.wildcard = this.wildcard;
+			tail.routes = this.routes;
+			this.prefix = this.prefix.substring(0, at);
+			this.indices = new char[] { tail.prefix.charAt(0) };
+			this.children = new Node[] { tail };
+			this.param = null;
+			this.wildcard = null;
+			this.routes = NoRoutes;
+		}
+		
+		protected Route getRoute(String method) {
+			Route any = null;
+			for(Route r : this.routes) {
+				if(r.method == null) any = r;
+				else if(r.method.equals(method)) return r;
+			}
+			if(any == null && "HEAD".equals(method)) return this.getRoute("GET");
+			return any;
+		}
+		
+		protected void putRoute(Route route) {
+			for(int i = 0; i < this.routes.length; i++) {
+				Route r = this.routes[i];
+				if(r.method == null ? route.method == null : r.method.equals(route.method)) {
+					this.routes[i] = route;
+					return;
+				}
+			}
+			int n = this.routes.length;
+			this.routes = Arrays.copyOf(this.routes, n + 1);
+			this.routes[n] = route;
+		}
+		
+	}
+	
+	protected final Node root = new Node("");
+	protected int maxParams = 0;
+	
+	public Router() {}
+	
+	public Router get(String pattern, HttpRequestHandler handler) {
+		return this.add("GET", pattern, handler);
+	}
+	
+	public Router post(String pattern, HttpRequestHandler handler) {
+		return this.add("POST", pattern, handler);
+	}
+	
+	public Router put(String pattern, HttpRequestHandler handler) {
+		return this.add("PUT", pattern, handler);
+	}
+	
+	public Router delete(String pattern, HttpRequestHandler handler) {
+		return this.add("DELETE", pattern, handler);
+	}
+	
+	public Router any(String pattern, HttpRequestHandler handler) {
+		return this.add(null, pattern, handler);
+	}
+	
+	/**
+	 * Add route. Route with same method and pattern is replaced
+	 * 
+	 * @param method Method or null for any method
+	 * @throws IllegalArgumentException if pattern is malformed
+	 */
+	public synchronized Router add(String method, String pattern, HttpRequestHandler handler) {
+		if(pattern == null || pattern.isEmpty() || pattern.charAt(0) != '/')
+			throw new IllegalArgumentException("Pattern must start with /");
+		if(handler == null) throw new IllegalArgumentException("Handler == null");
+		if(method != null) method = method.toUpperCase();
+		String[] names = NoNames;
+		Node n = this.root;
+		int len = pattern.length();
+		int i = 0;
+		while(i < len) {
+			char c = pattern.charAt(i);
+			if(c == '{' || (c == '*' && i + 1 == len)) {
+				if(pattern.charAt(i - 1) != '/')
+					throw new IllegalArgumentException("Parameter must start path segment in " + pattern);
+				String name = "*";
+				boolean wild = c == '*';
+				if(c == '{') {
+					int end = pattern.indexOf('}', i);
+					if(end == -1) throw new IllegalArgumentException("Unclosed parameter in " + pattern);
+					name = pattern.substring(i + 1, end);
+					if(name.endsWith("*")) {
+						wild = true;
+						name = name.substring(0, name.length() - 1);
+					}
+					if(name.isEmpty() || name.indexOf('{') != -1 || name.indexOf('/') != -1)
+						throw new IllegalArgumentException("Bad parameter name in " + pattern);
+					i = end + 1;
+				} else {
+					i++;
+				}
+				if(wild) {
+					if(i != len) throw new IllegalArgumentException("Wildcard must be last in " + pattern);
+					if(n.wildcard == null) n.wildcard = new Node("");
+					n = n.wildcard;
+				} else {
+					if(i < len && pattern.charAt(i) != '/')
+						throw new IllegalArgumentException("Parameter must end path segment in " + pattern);
+					if(n.param == null) n.param = new Node("");
+					n = n.param;
+				}
+				names = Arrays.copyOf(names, names.length + 1);
+				names[names.length - 1] = name;
+			} else {
+				int end = i;
+				while(end < len && pattern.charAt(end) != '{' 
+						&& !(pattern.charAt(end) == '*' && end + 1 == len)) end++;
+				n = insertStatic(n, pattern.substring(i, end));
+				i = end;
+			}
+		}
+		n.putRoute(new Route(method, pattern, names, handler));
+		if(names.length > this.maxParams) this.maxParams = names.length;
+		return this;
+	}
+	
+	protected static Node insertStatic(Node parent, String text) {
+		while(true) {
+			Node child = parent.findChild(text.charAt(0));
+			if(child == null) {
+				child = new Node(text);
+				parent.addChild(child);
+				return child;
+			}
+			String prefix = child.prefix;
+			int max = Math.min(prefix.length(), text.length());
+			int common = 0;
+			while(common < max && prefix.charAt(common) == text.charAt(common)) common++;
+			if(common < prefix.length()) child.split(common);
+			if(common == text.length()) return child;
+			text = text.substring(common);
+			parent = child;
+		}
+	}
+	
+	/**
+	 * @return Match for given method and path, with null handler if only path matched, 
+	 * 		or null if path did not match
+	 */
+	public Match match(String method, String path) {
+		return this.match(method, path, null);
+	}
+	
+	/**
+	 * @param reuse Match to fill if it fits, or null
+	 * @see #match(String, String)
+	 */
+	protected Match match(String method, String path, Match reuse) {
+		if(path == null) return null;
+		Match m = reuse;
+		if(m == null || m.params.length < (this.maxParams << 1)) 
+			m = new Match(new int[this.maxParams << 1]);
+		Node n = match(this.root, path, 0, m.params, 0);
+		if(n == null) return null;
+		return m.set(n, n.getRoute(method), path);
+	}
+	
+	protected static Node match(Node n, String path, int pos, int[] params, int pc) {
+		int len = path.length();
+		if(pos == len) return (n.routes.length == 0) ? null : n;
+		Node child = n.findChild(path.charAt(pos));
+		if(child != null && path.startsWith(child.prefix, pos)) {
+			Node found = match(child, path, pos + child.prefix.length(), params, pc);
+			if(found != null) return found;
+		}
+		if(n.param != null) {
+			int end = path.indexOf('/', pos);
+			if(end == -1) end = len;
+			if(end > pos) {
+				params[pc<<1] = pos;
+				params[(pc<<1)+1] = end;
+				Node found = match(n.param, path, end, params, pc + 1);
+				if(found != null) return found;
+			}
+		}
+		if(n.wildcard != null && n.wildcard.routes.length != 0) {
+			params[pc<<1] = pos;
+			params[(pc<<1)+1] = len;
+			return n.wildcard;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return Route matched for request or null
+	 */
+	public static Match getMatch(HttpRequest req) {
+		Object obj = req.getProperty(PROPERTY);
+		return (obj instanceof Match) ? (Match) obj : null;
+	}
+	
+	/**
+	 * @return Path parameter of matched route or null
+	 */
+	public static String getParam(HttpRequest req, String name) {
+		Match m = getMatch(req);
+		return (m == null) ? null : m.getParam(name);
+	}
+	
+	/**
+	 * @return Handler of matched route or null
+	 */
+	protected static HttpRequestHandler handler(HttpRequest req) {
+		Match m = getMatch(req);
+		return (m == null) ? null : m.getHandler();
+	}
+	
+	@Override
+	public boolean acceptRequest(HttpRequest req) {
+		return true;
+	}
+	
+	@Override
+	public boolean finishAfterFirstLine(HttpRequest req) {
+		RequestData rd = req.getRequest();
+		//Match of connection is reused unless other router matched this request
+		Match reuse = (getMatch(req) == null) ? req.routerMatch : null;
+		Match m = this.match(rd.getMethod(), rd.getPath(), reuse);
+		if(m == null) return false;
+		if(req.routerMatch == null || reuse != null) req.routerMatch = m;
+		req.setProperty(PROPERTY, m);
+		HttpRequestHandler h = m.getHandler();
+		if(h == null) return false;
+		if(!h.acceptRequest(req)) {
+			req.setKeepAlive(false);
+			return true;
+		}
+		return h.finishAfterFirstLine(req);
+	}
+	
+	@Override
+	public boolean finishAfterHeads(HttpRequest req) {
+		HttpRequestHandler h = handler(req);
+		return h != null && h.finishAfterHeads(req);
+	}
+	
+	@Override
+	public boolean handleRequest(HttpRequest req) {
+		Match m = getMatch(req);
+		if(m == null) return false;
+		HttpRequestHandler h = m.getHandler();
+		if(h != null) return h.handleRequest(req);
+		StringBuilder allow = new StringBuilder();
+		boolean get = false, head = false;
+		for(Route r : m.node.routes) {
+			if(allow.length() != 0) allow.append(", ");
+			allow.append(r.method);
+			if("GET".equals(r.method)) get = true;
+			else if("HEAD".equals(r.method)) head = true;
+		}
+		if(get && !head) allow.append(", HEAD");
+		try {
+			req.getResponse().setHead("Allow", allow.toString()).setContentLength(0);
+			req.writeResponse("405 Method Not Allowed");
+		} catch(IOException ex) {
+			req.closeSilent();
+		}
+		return true;
+	}
+	
+	@Override
+	public void handleDecoderException(HttpRequest req, Exception ex) {
+		HttpRequestHandler h = (req == null) ? null : handler(req);
+		if(h != null) h.handleDecoderException(req, ex);
+	}
+	
+	@Override
+	public void cleanup(HttpRequest req, boolean status) {
+		HttpRequestHandler h = (req == null) ? null : handler(req);
+		if(h != null) h.cleanup(req, status);
+	}
+	
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single threaded I/O loop around one Selector.
+ * Channels are parked here while idle and handed back to
+ * blocking code once they become ready (see {@link #detach(SelectionKey, Runnable)}),
+ * so idle clients do not hold any thread.
+ *
+ * Everything except {@link #register}, {@link #execute} and {@link #close}
+ * must be called from loop thread.
+ */
+public class SelectorLoop
+implements Runnable, Closeable, AutoCloseable {
+
+	public static interface ChannelHandler {
+
+		/**
+		 * Called from loop thread when channel is ready for operations
+		 * it was registered with
+		 */
+		public void onReady(SelectorLoop loop, SelectionKey key) throws IOException;
+
+		/**
+		 * Called from loop thread when onReady failed or loop is closing.
+		 * Channel is closed after this call
+		 */
+		public void onClose(SelectorLoop loop, SelectionKey key, Exception ex);
+
+	}
+
+	protected Selector selector;
+	protected Thread thread;
+	protected volatile boolean closed = false;
+	protected String name;
+
+	/** Tasks scheduled from other threads **/
+	protected Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/** Tasks waiting until cancelled keys are flushed by selector **/
+	protected Queue<Runnable> detached = new ArrayDeque<Runnable>();
+
+	public SelectorLoop(String name) throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+	}
+
+	public Selector getSelector() {
+		return this.selector;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	public boolean inLoop() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	public int getChannelCount() {
+		Selector sel = this.selector;
+		if(sel == null || !sel.isOpen()) return 0;
+		try {
+			return sel.keys().size();
+		} catch(ClosedSelectorException ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Start loop in new daemon thread
+	 */
+	public SelectorLoop start() {
+		if(this.thread != null) throw new IllegalStateException("Loop already started");
+		Thread th = new Thread(this, this.name);
+		th.setDaemon(true);
+		this.thread = th;
+		th.start();
+		return this;
+	}
+
+	/**
+	 * Run task in loop thread
+	 */
+	public void execute(Runnable r) {
+		if(r == null) throw new IllegalArgumentException("Task == null");
+		if(this.closed) throw new IllegalStateException("Loop closed");
+		this.tasks.add(r);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Register (non-blocking) channel with given interest set. Thread safe
+	 */
+	public void register(final SelectableChannel ch, final int ops, final ChannelHandler handler) {
+		if(ch == null) throw new IllegalArgumentException("Channel == null");
+		if(handler == null) throw new IllegalArgumentException("Handler == null");
+		this.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if(ch.isBlocking()) ch.configureBlocking(false);
+					ch.register(selector, ops, handler);
+				} catch(IOException ex) {
+					closeChannel(ch, null, handler, ex);
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Cancel key, notify its handler and close channel (e.g. once it expired).
+	 * Loop thread only
+	 */
+	public void closeKey(SelectionKey key, Exception ex) {
+		this.closeChannel(key.channel(), key, (ChannelHandler) key.attachment(), ex);
+	}
+
+	/**
+	 * Cancel key and run given task once channel is fully deregistered
+	 * (then the channel can be switched to blocking mode).
+	 * Task is run in loop thread, so it should only hand work over
+	 */
+	public void detach(SelectionKey key, Runnable afterDetach) {
+		key.cancel();
+		this.detached.add(afterDetach);
+	}
+
+	@Override
+	public void run() {
+		if(this.thread == null) this.thread = Thread.currentThread();
+		Selector sel = this.selector;
+		try {
+			while(!this.closed) {
+				sel.select();
+				if(this.closed) break;
+				this.runTasks();
+				this.processSelected();
+				while(!this.detached.isEmpty()) {
+					sel.selectNow(); //flush cancelled keys
+					Runnable r;
+					while((r = this.detached.poll()) != null) this.runSafe(r);
+					this.processSelected();
+				}
+			}
+		} catch(IOException | ClosedSelectorException ex) {
+			if(!this.closed) ex.printStackTrace();
+		} finally {
+			this.closeAll();
+		}
+	}
+
+	protected void runTasks() {
+		Runnable r;
+		while((r = this.tasks.poll()) != null) this.runSafe(r);
+	}
+
+	protected void runSafe(Runnable r) {
+		try {
+			r.run();
+		} catch(RuntimeException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	protected void processSelected() {
+		Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+		while(it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			ChannelHandler handler = (ChannelHandler) key.attachment();
+			try {
+				if(key.isValid()) handler.onReady(this, key);
+			} catch(CancelledKeyException ex) {
+				this.closeChannel(key.channel(), key, handler, null);
+			} catch(IOException | RuntimeException ex) {
+				this.closeChannel(key.channel(), key, handler, ex);
+			}
+		}
+	}
+
+	protected void closeChannel(SelectableChannel ch, SelectionKey key, ChannelHandler handler, Exception ex) {
+		if(key != null) key.cancel();
+		try {
+			handler.onClose(this, key, ex);
+		} catch(RuntimeException rex) {
+			rex.printStackTrace();
+		}
+		try {
+			ch.close();
+		} catch(IOException ign) {}
+	}
+
+	protected void closeAll() {
+		this.closed = true;
+		Selector sel = this.selector;
+		if(sel == null) return;
+		try {
+			for(SelectionKey key : sel.keys()) {
+				this.closeChannel(key.channel(), key, (ChannelHandler) key.attachment(), null);
+			}
+		} catch(ClosedSelectorException ign) {}
+		try {
+			sel.close();
+		} catch(IOException ign) {}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(this.closed) return;
+		this.closed = true;
+		Selector sel = this.selector;
+		if(sel == null) return;
+		if(this.thread == null || !this.thread.isAlive()) {
+			this.closeAll();
+		} else {
+			sel.wakeup();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SelectorLoop [name=" + name + ", channels=" + getChannelCount() + ", closed=" + closed + "]";
+	}
+
+}
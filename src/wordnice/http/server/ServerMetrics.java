@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import wordnice.limit.AdaptiveLimit;
+import wordnice.utils.Histogram;
+
+/**
+ * Lock-free recorder of {@link HttpServer} metrics: latency histogram per phase,
+ * connections, bytes and decoder exceptions. Install with
+ * <pre>
+ * ServerMetrics metrics = new ServerMetrics(server);
+ * server.setListener(metrics);
+ * server.addHandler(new MetricsHandler(metrics, "/metrics"));
+ * </pre>
+ */
+public class ServerMetrics
+implements HttpServerListener {
+	
+	protected static final double[] Percentiles = {50, 90, 99, 99.9};
+	protected static final String[] PercentileNames = {"0.5", "0.9", "0.99", "0.999"};
+	
+	protected final HttpServer server;
+	protected final Histogram[] phases = new Histogram[PhaseNames.length];
+	protected final LongAdder connectionsOpened = new LongAdder();
+	protected final LongAdder connectionsClosed = new LongAdder();
+	protected final LongAdder decoderExceptions = new LongAdder();
+	protected final LongAdder rejected = new LongAdder();
+	protected final LongAdder tlsResumed = new LongAdder();
+	protected final LongAdder bytesRead = new LongAdder();
+	protected final LongAdder bytesWritten = new LongAdder();
+	
+	/**
+	 * @param server Server to read gauges (queue depth, active requests) from, or null
+	 */
+	public ServerMetrics(HttpServer server) {
+		this.server = server;
+		for(int i = 0; i < this.phases.length; i++) this.phases[i] = new Histogram();
+	}
+	
+	@Override
+	public void connectionOpened() {
+		this.connectionsOpened.increment();
+	}
+	
+	@Override
+	public void connectionClosed() {
+		this.connectionsClosed.increment();
+	}
+	
+	@Override
+	public void phase(HttpRequest req, int phase, long nanos) {
+		this.phases[phase].record(nanos);
+	}
+	
+	@Override
+	public void tlsHandshake(long nanos, boolean resumed) {
+		this.phases[PhaseHandshake].record(nanos);
+		if(resumed) this.tlsResumed.increment();
+	}
+	
+	@Override
+	public void requestRejected() {
+		this.rejected.increment();
+	}
+	
+	@Override
+	public void decoderException(HttpRequest req, Exception ex) {
+		this.decoderExceptions.increment();
+	}
+	
+	@Override
+	public void bytesRead(long count) {
+		this.bytesRead.add(count);
+	}
+	
+	@Override
+	public void bytesWritten(long count) {
+		this.bytesWritten.add(count);
+	}
+	
+	/**
+	 * @param phase One of {@link HttpServerListener} Phase* constants
+	 * @return Histogram of phase latencies in nanoseconds
+	 */
+	public Histogram getPhase(int phase) {
+		return this.phases[phase];
+	}
+	
+	public long getRequests() {
+		return this.phases[PhaseTotal].getCount();
+	}
+	
+	public long getConnectionsOpened() {
+		return this.connectionsOpened.sum();
+	}
+	
+	public long getActiveConnections() {
+		return Math.max(0, this.connectionsOpened.sum() - this.connectionsClosed.sum());
+	}
+	
+	public long getTlsHandshakes() {
+		return this.phases[PhaseHandshake].getCount();
+	}
+	
+	public long getTlsResumed() {
+		return this.tlsResumed.sum();
+	}
+	
+	public long getRejected() {
+		return this.rejected.sum();
+	}
+	
+	public long getDecoderExceptions() {
+		return this.decoderExceptions.sum();
+	}
+	
+	public long getBytesRead() {
+		return this.bytesRead.sum();
+	}
+	
+	public long getBytesWritten() {
+		return this.bytesWritten.sum();
+	}
+	
+	/**
+	 * @return Count of connections waiting for client executor, -1 if unknown
+	 */
+	public int getQueueDepth() {
+		return (this.server == null) ? -1 : this.server.getQueuedRequests();
+	}
+	
+	public void reset() {
+		for(Histogram h : this.phases) h.reset();
+		this.decoderExceptions.reset();
+		this.rejected.reset();
+		this.tlsResumed.reset();
+		this.bytesRead.reset();
+		this.bytesWritten.reset();
+	}
+	
+	/**
+	 * Write metrics in Prometheus text format
+	 */
+	public void writeText(Appendable out) throws IOException {
+		gauge(out, "http_connections_active", this.getActiveConnections());
+		counter(out, "http_connections_total", this.getConnectionsOpened());
+		if(this.server != null) {
+			gauge(out, "http_requests_active", this.server.getActiveRequests());
+			gauge(out, "http_connections_parked", this.server.getParkedClients());
+		}
+		int depth = this.getQueueDepth();
+		if(depth >= 0) gauge(out, "http_executor_queue_depth", depth);
+		AdaptiveLimit adaptive = (this.server == null) ? null : this.server.getAdaptiveLimit();
+		if(adaptive != null) gauge(out, "http_concurrency_limit", adaptive.getLimit());
+		counter(out, "http_requests_rejected_total", this.getRejected());
+		counter(out, "http_tls_handshakes_total", this.getTlsHandshakes());
+		counter(out, "http_tls_resumed_total", this.getTlsResumed());
+		counter(out, "http_decoder_exceptions_total", this.getDecoderExceptions());
+		counter(out, "http_bytes_read_total", this.getBytesRead());
+		counter(out, "http_bytes_written_total", this.getBytesWritten());
+		out.append("# TYPE http_phase_seconds summary\n");
+		for(int i = 0; i < this.phases.length; i++) {
+			Histogram h = this.phases[i];
+			String label = "{phase=\"" + PhaseNames[i] + "\"";
+			long[] vals = h.getValuesAtPercentiles(Percentiles);
+			for(int p = 0; p < vals.length; p++) {
+				out.append("http_phase_seconds").append(label)
+						.append(",quantile=\"").append(PercentileNames[p]).append("\"} ")
+						.append(seconds(vals[p])).append('\n');
+			}
+			out.append("http_phase_seconds_sum").append(label).append("} ")
+					.append(seconds(h.getSum())).append('\n');
+			out.append("http_phase_seconds_count").append(label).append("} ")
+					.append(Long.toString(h.getCount())).append('\n');
+		}
+		out.append("# TYPE http_phase_seconds_max gauge\n");
+		for(int i = 0; i < this.phases.length; i++) {
+			out.append("http_phase_seconds_max{phase=\"").append(PhaseNames[i]).append("\"} ")
+					.append(seconds(this.phases[i].getMax())).append('\n');
+		}
+	}
+	
+	public String toText() {
+		StringBuilder sb = new StringBuilder(2048);
+		try {
+			this.writeText(sb);
+		} catch(IOException cannotHappen) {}
+		return sb.toString();
+	}
+	
+	protected static void gauge(Appendable out, String name, long val) throws IOException {
+		out.append("# TYPE ").append(name).append(" gauge\n")
+				.append(name).append(' ').append(Long.toString(val)).append('\n');
+	}
+	
+	protected static void counter(Appendable out, String name, long val) throws IOException {
+		out.append("# TYPE ").append(name).append(" counter\n")
+				.append(name).append(' ').append(Long.toString(val)).append('\n');
+	}
+	
+	protected static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+	
+	@Override
+	public String toString() {
+		return "ServerMetrics [requests=" + getRequests() + ", activeConnections=" + getActiveConnections()
+				+ ", rejected=" + getRejected() + ", decoderExceptions=" + getDecoderExceptions() 
+				+ ", bytesRead=" + getBytesRead()
+				+ ", bytesWritten=" + getBytesWritten() + "]";
+	}
+	
+}
@@ -0,0 +1,534 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import wordnice.api.Nice;
+import wordnice.streams.BufferPool;
+import wordnice.streams.SSLStreams;
+import wordnice.utils.FastDate;
+
+/**
+ * Serves files from given directory for GET and HEAD requests.
+ * 
+ * Files are sent with FileChannel.transferTo straight to socket channel 
+ * when connection has one (non-blocking server mode), otherwise 
+ * through pooled buffer. Supports single byte Range, If-Range, 
+ * If-None-Match and If-Modified-Since. Small files are cached off-heap
+ * in bounded LRU cache, validated by modification time and length.
+ * 
+ * Requests for missing files are passed to next handlers
+ */
+public class StaticFileHandler
+implements HttpRequestHandler {
+	
+	/** Content types by lowercased file extension **/
+	protected static final Map<String,String> ContentTypes = Nice.createMap();
+	
+	static {
+		String[] types = {
+			"html", "text/html; charset=utf-8", "htm", "text/html; charset=utf-8",
+			"css", "text/css; charset=utf-8", "js", "application/javascript; charset=utf-8",
+			"json", "application/json", "txt", "text/plain; charset=utf-8",
+			"xml", "application/xml", "svg", "image/svg+xml", "png", "image/png",
+			"jpg", "image/jpeg", "jpeg", "image/jpeg", "gif", "image/gif", 
+			"webp", "image/webp", "ico", "image/x-icon", "woff", "font/woff", 
+			"woff2", "font/woff2", "ttf", "font/ttf", "pdf", "application/pdf", 
+			"zip", "application/zip", "gz", "application/gzip", "wasm", "application/wasm",
+			"mp4", "video/mp4", "webm", "video/webm", "mp3", "audio/mpeg", "ogg", "audio/ogg"
+		};
+		for(int i = 0; i < types.length; i += 2) ContentTypes.put(types[i], types[i+1]);
+	}
+	
+	public static String DefaultContentType = "application/octet-stream";
+	
+	protected File root;
+	protected String prefix;
+	protected String indexFile = "index.html";
+	protected int maxAge = -1;
+	protected long maxCachedFileSize = 64*1024;
+	protected final FileCache cache = new FileCache(16*1024*1024);
+	
+	/**
+	 * Serve files from root directory for paths starting with prefix
+	 * 
+	 * @param prefix Path prefix removed before resolving file, e.g. "/static". 
+	 * 		Null or "/" means any path
+	 */
+	public StaticFileHandler(File root, String prefix) throws IOException {
+		if(root == null) throw new IllegalArgumentException("Root == null");
+		if(!root.isDirectory()) throw new IllegalArgumentException("Root is not directory: " + root);
+		this.root = root.getCanonicalFile();
+		if(prefix != null && (prefix.isEmpty() || prefix.equals("/"))) prefix = null;
+		if(prefix != null && prefix.endsWith("/")) prefix = prefix.substring(0, prefix.length() - 1);
+		this.prefix = prefix;
+	}
+	
+	public StaticFileHandler(File root) throws IOException {
+		this(root, null);
+	}
+	
+	public File getRoot() {
+		return this.root;
+	}
+	
+	public String getPrefix() {
+		return this.prefix;
+	}
+	
+	public String getIndexFile() {
+		return this.indexFile;
+	}
+	
+	/**
+	 * Set file served for directories, null disables it
+	 */
+	public StaticFileHandler setIndexFile(String indexFile) {
+		this.indexFile = indexFile;
+		return this;
+	}
+	
+	public int getMaxAge() {
+		return this.maxAge;
+	}
+	
+	/**
+	 * Set seconds for Cache-Control max-age. Negative value sends no Cache-Control
+	 */
+	public StaticFileHandler setMaxAge(int maxAge) {
+		this.maxAge = maxAge;
+		return this;
+	}
+	
+	public long getMaxCachedFileSize() {
+		return this.maxCachedFileSize;
+	}
+	
+	/**
+	 * Set maximum size of file kept in memory cache. 0 disables caching
+	 */
+	public StaticFileHandler setMaxCachedFileSize(long size) {
+		if(size < 0) throw new IllegalArgumentException("Negative size");
+		this.maxCachedFileSize = size;
+		return this;
+	}
+	
+	public long getCacheCapacity() {
+		return this.cache.getCapacity();
+	}
+	
+	/**
+	 * Set maximum bytes of all cached files
+	 */
+	public StaticFileHandler setCacheCapacity(long bytes) {
+		if(bytes < 0) throw new IllegalArgumentException("Negative capacity");
+		this.cache.setCapacity(bytes);
+		return this;
+	}
+	
+	public long getCachedBytes() {
+		return this.cache.getSize();
+	}
+	
+	public static void setContentType(String extension, String type) {
+		synchronized(ContentTypes) {
+			ContentTypes.put(extension.toLowerCase(), type);
+		}
+	}
+	
+	public static String getContentType(String fileName) {
+		int i = fileName.lastIndexOf('.');
+		if(i == -1) return DefaultContentType;
+		String type;
+		synchronized(ContentTypes) {
+			type = ContentTypes.get(fileName.substring(i + 1).toLowerCase());
+		}
+		return (type == null) ? DefaultContentType : type;
+	}
+	
+	/**
+	 * @return Existing regular file for request path inside root or null
+	 */
+	public File resolve(String path) throws IOException {
+		if(path == null) return null;
+		String prefix = this.prefix;
+		if(prefix != null) {
+			if(!path.startsWith(prefix)) return null;
+			if(path.length() != prefix.length() && path.charAt(prefix.length()) != '/') return null;
+			path = path.substring(prefix.length());
+		}
+		if(path.indexOf("/..") != -1 || path.indexOf('\0') != -1) return null;
+		File f = path.isEmpty() || path.equals("/") ? this.root : new File(this.root, path);
+		if(f.isDirectory()) {
+			if(this.indexFile == null) return null;
+			f = new File(f, this.indexFile);
+		}
+		if(!f.isFile()) return null;
+		File canon = f.getCanonicalFile();
+		if(!canon.toPath().startsWith(this.root.toPath())) return null;
+		return canon;
+	}
+	
+	/**
+	 * @return Strong entity tag built from length and modification time
+	 */
+	public static String createETag(long length, long modified) {
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(modified) + "\"";
+	}
+	
+	/**
+	 * @return true if conditional heads allow sending 304 Not Modified
+	 */
+	public static boolean isNotModified(RequestData rd, String etag, long modified) {
+		String inm = rd.getHead("IF-NONE-MATCH");
+		if(inm != null) return matchesETag(inm, etag, true);
+		String ims = rd.getHead("IF-MODIFIED-SINCE");
+		if(ims != null) {
+			long since = FastDate.parseHttpDate(ims);
+			return since != -1 && modified / 1000 <= since / 1000;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param weak Use weak comparison (W/ prefix ignored)
+	 * @return true if list of entity tags (or *) contains given tag
+	 */
+	public static boolean matchesETag(String list, String etag, boolean weak) {
+		list = list.trim();
+		if(list.equals("*")) return true;
+		int i = 0, len = list.length();
+		while(i < len) {
+			while(i < len && (list.charAt(i) == ' ' || list.charAt(i) == ',')) i++;
+			int start = i;
+			while(i < len && list.charAt(i) != ',') i++;
+			String tag = list.substring(start, i).trim();
+			if(tag.startsWith("W/")) {
+				if(!weak) continue;
+				tag = tag.substring(2);
+			}
+			if(tag.equals(etag)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Parse single byte range
+	 * 
+	 * @return {offset, length}, null if range should be ignored (whole file is sent)
+	 * 		or {-1, -1} if range is unsatisfiable
+	 */
+	public static long[] parseRange(String range, long size) {
+		if(range == null) return null;
+		range = range.trim();
+		if(!range.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+		range = range.substring(6).trim();
+		if(range.indexOf(',') != -1) return null; //multiple ranges not supported, send all
+		int dash = range.indexOf('-');
+		if(dash == -1) return null;
+		String first = range.substring(0, dash).trim();
+		String last = range.substring(dash + 1).trim();
+		long start, end;
+		try {
+			if(first.isEmpty()) {
+				if(last.isEmpty()) return null;
+				long suffix = Long.parseLong(last);
+				if(suffix <= 0) return new long[] {-1, -1};
+				start = Math.max(0, size - suffix);
+				end = size - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+				if(start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) return null;
+			}
+		} catch(NumberFormatException ex) {
+			return null;
+		}
+		if(start >= size) return new long[] {-1, -1};
+		return new long[] {start, end - start + 1};
+	}
+	
+	@Override
+	public boolean acceptRequest(HttpRequest req) {
+		return true;
+	}
+	
+	@Override
+	public boolean finishAfterFirstLine(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public boolean finishAfterHeads(HttpRequest req) {
+		return false;
+	}
+	
+	@Override
+	public boolean handleRequest(HttpRequest req) {
+		RequestData rd = req.getRequest();
+		String method = rd.getMethod();
+		boolean head = "HEAD".equals(method);
+		if(!head && !"GET".equals(method)) return false;
+		try {
+			File f = this.resolve(rd.getPath());
+			if(f == null) return false;
+			this.sendFile(req, f, head);
+		} catch(IOException ex) {
+			req.closeSilent();
+		}
+		return true;
+	}
+	
+	/**
+	 * Send file with conditional and range requests handled
+	 */
+	public void sendFile(HttpRequest req, File f, boolean headOnly) throws IOException {
+		RequestData rd = req.getRequest();
+		ResponseData res = req.getResponse();
+		long length = f.length();
+		long modified = f.lastModified();
+		String etag = createETag(length, modified);
+		res.setHead("ETag", etag);
+		res.setHead("Last-Modified", FastDate.formatHttpDate(modified));
+		res.setHead("Accept-Ranges", "bytes");
+		if(this.maxAge >= 0) res.setHead("Cache-Control", "max-age=" + this.maxAge);
+		if(isNotModified(rd, etag, modified)) {
+			req.writeResponse("304 Not Modified");
+			return;
+		}
+		res.setContentType(getContentType(f.getName()));
+		long off = 0, len = length;
+		String status = null;
+		long[] range = parseRange(rd.getHead("RANGE"), length);
+		if(range != null) {
+			String ifRange = rd.getHead("IF-RANGE");
+			if(ifRange != null) {
+				ifRange = ifRange.trim();
+				boolean valid = ifRange.startsWith("\"") ? ifRange.equals(etag)
+						: FastDate.parseHttpDate(ifRange) / 1000 == modified / 1000;
+				if(!valid) range = null;
+			}
+		}
+		if(range != null) {
+			if(range[0] == -1) {
+				res.setHead("Content-Range", "bytes */" + length).setContentLength(0);
+				req.writeResponse("416 Range Not Satisfiable");
+				return;
+			}
+			off = range[0];
+			len = range[1];
+			status = "206 Partial Content";
+			res.setHead("Content-Range", "bytes " + off + "-" + (off + len - 1) + "/" + length);
+		}
+		res.setContentLength(len);
+		
+		ByteBuffer cached = null;
+		if(!headOnly && length <= this.maxCachedFileSize) {
+			cached = this.cache.get(f, length, modified);
+		}
+		req.writeResponse(status);
+		if(headOnly || len == 0) return;
+		if(cached != null) {
+			cached.position((int) off).limit((int) (off + len));
+			write(req, cached);
+		} else {
+			try(RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+				transfer(req, raf.getChannel(), off, len);
+			}
+		}
+	}
+	
+	/**
+	 * Write bytes of file to response, flushed response heads first.
+	 * Uses transferTo when socket has channel in blocking mode
+	 */
+	public static void transfer(HttpRequest req, FileChannel fc, long off, long len) throws IOException {
+		OutputStream out = req.getOutputStream();
+		out.flush();
+		SocketChannel ch = channel(req);
+		long pos = off, end = off + len;
+		if(ch != null) {
+			while(pos < end) {
+				long n = fc.transferTo(pos, end - pos, ch);
+				if(n <= 0) {
+					if(pos >= fc.size()) throw new EOFException("File truncated");
+					continue;
+				}
+				pos += n;
+			}
+			return;
+		}
+		ByteBuffer buf = BufferPool.Heap.acquire();
+		try {
+			byte[] arr = buf.array();
+			while(pos < end) {
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), end - pos));
+				int n = fc.read(buf, pos);
+				if(n < 0) throw new EOFException("File truncated");
+				out.write(arr, 0, n);
+				pos += n;
+			}
+			out.flush();
+		} finally {
+			BufferPool.Heap.release(buf);
+		}
+	}
+	
+	/**
+	 * Write remaining bytes of buffer to response
+	 */
+	public static void write(HttpRequest req, ByteBuffer data) throws IOException {
+		OutputStream out = req.getOutputStream();
+		out.flush();
+		SSLStreams ssl = req.getSSLStreams();
+		if(ssl != null) {
+			ssl.write(data);
+			return;
+		}
+		SocketChannel ch = channel(req);
+		if(ch != null) {
+			while(data.hasRemaining()) ch.write(data);
+			return;
+		}
+		ByteBuffer buf = BufferPool.Heap.acquire();
+		try {
+			byte[] arr = buf.array();
+			while(data.hasRemaining()) {
+				int n = Math.min(arr.length, data.remaining());
+				data.get(arr, 0, n);
+				out.write(arr, 0, n);
+			}
+			out.flush();
+		} finally {
+			BufferPool.Heap.release(buf);
+		}
+	}
+	
+	protected static SocketChannel channel(HttpRequest req) {
+		if(!req.canWriteSocket()) return null;
+		Socket sock = req.getSocket();
+		SocketChannel ch = (sock == null) ? null : sock.getChannel();
+		return (ch != null && ch.isBlocking()) ? ch : null;
+	}
+	
+	@Override
+	public void handleDecoderException(HttpRequest req, Exception ex) {}
+	
+	@Override
+	public void cleanup(HttpRequest req, boolean status) {}
+	
+	/**
+	 * LRU cache of small files in direct buffers, bounded by total bytes
+	 */
+	protected static class FileCache {
+		
+		protected static class Entry {
+			protected final ByteBuffer data;
+			protected final long modified;
+			
+			protected Entry(ByteBuffer data, long modified) {
+				this.data = data;
+				this.modified = modified;
+			}
+		}
+		
+		protected final LinkedHashMap<String,Entry> map = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+		protected long capacity;
+		protected long size = 0;
+		
+		protected FileCache(long capacity) {
+			this.capacity = capacity;
+		}
+		
+		public synchronized long getCapacity() {
+			return this.capacity;
+		}
+		
+		public synchronized void setCapacity(long capacity) {
+			this.capacity = capacity;
+			this.evict();
+		}
+		
+		public synchronized long getSize() {
+			return this.size;
+		}
+		
+		/**
+		 * @return Read-only view of cached file, loaded if missing or stale,
+		 * 		or null if file does not fit into cache
+		 */
+		public ByteBuffer get(File f, long length, long modified) throws IOException {
+			String key = f.getPath();
+			synchronized(this) {
+				Entry e = this.map.get(key);
+				if(e != null) {
+					if(e.modified == modified && e.data.capacity() == length) 
+						return e.data.asReadOnlyBuffer();
+					this.map.remove(key);
+					this.size -= e.data.capacity();
+				}
+				if(length > this.capacity) return null;
+			}
+			ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+			try(RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+				FileChannel fc = raf.getChannel();
+				while(data.hasRemaining()) {
+					if(fc.read(data, data.position()) < 0) return null; //truncated meanwhile
+				}
+			}
+			data.flip();
+			synchronized(this) {
+				Entry old = this.map.put(key, new Entry(data, modified));
+				if(old != null) this.size -= old.data.capacity();
+				this.size += length;
+				this.evict();
+			}
+			return data.asReadOnlyBuffer();
+		}
+		
+		protected void evict() {
+			Iterator<Entry> it = this.map.values().iterator();
+			while(this.size > this.capacity && it.hasNext()) {
+				this.size -= it.next().data.capacity();
+				it.remove();
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking output over non-blocking channel. When socket buffer is full,
+ * writer waits on its own temporary selector, so the loop
+ * reading the channel is never blocked by slow client
+ */
+public class ChannelOutputStream
+extends OutputStream {
+	
+	protected final SocketChannel channel;
+	protected final long timeout;
+	protected Selector selector;
+	protected final byte[] single = new byte[1];
+	
+	/**
+	 * @param timeout Milliseconds to wait for client to accept more data, 0 for ever
+	 */
+	public ChannelOutputStream(SocketChannel channel, long timeout) {
+		if(channel == null) throw new IllegalArgumentException("Channel == null");
+		this.channel = channel;
+		this.timeout = timeout;
+	}
+	
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+	
+	@Override
+	public synchronized void write(int b) throws IOException {
+		this.single[0] = (byte) b;
+		this.write(this.single, 0, 1);
+	}
+	
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		this.write(ByteBuffer.wrap(b, off, len));
+	}
+	
+	/**
+	 * Write whole buffer
+	 */
+	public synchronized void write(ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(this.channel.write(buf) == 0) this.await();
+		}
+	}
+	
+	protected void await() throws IOException {
+		if(this.selector == null) {
+			this.selector = Selector.open();
+			this.channel.register(this.selector, SelectionKey.OP_WRITE);
+		}
+		long deadline = System.currentTimeMillis() + this.timeout;
+		while(this.selector.select(this.timeout) == 0) {
+			if(!this.channel.isOpen()) throw new IOException("Channel closed");
+			if(this.timeout != 0 && System.currentTimeMillis() >= deadline)
+				throw new SocketTimeoutException("Write timed out");
+		}
+		this.selector.selectedKeys().clear();
+	}
+	
+	/**
+	 * Release temporary selector, channel stays open
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		Selector sel = this.selector;
+		this.selector = null;
+		if(sel != null) sel.close();
+	}
+	
+}
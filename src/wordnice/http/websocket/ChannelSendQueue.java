@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import wordnice.http.server.SelectorLoop;
+import wordnice.threads.HashedWheelTimer;
+
+/**
+ * Send queue of connection served by {@link WebSocketEngine}.
+ * Frames are written by selector loop of the connection with non-blocking 
+ * writes; when client does not accept whole frame, the rest is kept and 
+ * written once channel becomes writable, so no thread waits for slow client
+ */
+public class ChannelSendQueue
+extends SendQueue {
+	
+	protected final SocketChannel channel;
+	protected volatile WebSocketConnection connection;
+	
+	//Loop thread only
+	protected Item current;
+	protected ByteBuffer currentBuffer;
+	
+	protected volatile boolean closing = false;
+	protected HashedWheelTimer.Timeout closeTimeout; //Drops closing connection which did not flush in time
+	
+	protected final Runnable flushTask = new Runnable() {
+		
+		@Override
+		public void run() {
+			flush();
+		}
+		
+	};
+	
+	/**
+	 * @see SendQueue#SendQueue(WebSocket, java.util.concurrent.Executor, long, int, long)
+	 */
+	public ChannelSendQueue(WebSocket webSocket, SocketChannel channel, long limit, int policy, long timeout) {
+		super(webSocket, null, limit, policy, timeout);
+		if(channel == null) throw new IllegalArgumentException("Channel == null");
+		this.channel = channel;
+	}
+	
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+	
+	/**
+	 * Start writing in loop of given connection, frames queued 
+	 * before connection was registered are kept until then
+	 */
+	public void attach(WebSocketConnection con) {
+		this.connection = con;
+		this.schedule();
+	}
+	
+	@Override
+	protected void schedule() {
+		WebSocketConnection con = this.connection;
+		if(con == null || con.loop == null) return; //flushed once attached
+		if(!this.scheduled.compareAndSet(false, true)) return;
+		try {
+			con.loop.execute(this.flushTask);
+		} catch(IllegalStateException ex) {
+			this.scheduled.set(false);
+			this.clear();
+		}
+	}
+	
+	/**
+	 * Called by connection when channel is writable
+	 */
+	protected void onWritable() {
+		this.flush();
+	}
+	
+	/**
+	 * Write as much as client accepts, in loop thread
+	 */
+	protected void flush() {
+		WebSocketConnection con = this.connection;
+		try {
+			for(;;) {
+				for(;;) {
+					if(this.current == null) {
+						Item it = this.next();
+						if(it == null) break;
+						this.current = it;
+						this.currentBuffer = ByteBuffer.wrap(it.data, it.off, it.len);
+					}
+					this.channel.write(this.currentBuffer);
+					if(this.currentBuffer.hasRemaining()) {
+						con.setWriteInterest(true); //scheduled stays set until writable
+						return;
+					}
+					this.written(this.current);
+					this.current = null;
+					this.currentBuffer = null;
+				}
+				con.setWriteInterest(false);
+				this.scheduled.set(false);
+				if(this.queue.isEmpty() || !this.scheduled.compareAndSet(false, true)) break;
+			}
+			this.wakeUp();
+			if(this.closing && this.queue.isEmpty()) this.closeChannel();
+		} catch(IOException ex) {
+			this.current = null;
+			this.currentBuffer = null;
+			this.scheduled.set(false);
+			this.clear();
+			con.setWriteInterest(false);
+			if(this.closing) this.closeChannel();
+			else con.fail(ex); //worker closes WebSocket
+		}
+	}
+	
+	protected void closeChannel() {
+		HashedWheelTimer.Timeout t = this.closeTimeout;
+		if(t != null) t.cancel();
+		try {
+			this.channel.close();
+		} catch(IOException ign) {}
+		this.webSocket.socketClosed();
+	}
+	
+	/**
+	 * Refuse new frames and let loop write queued ones (up to timeout), 
+	 * then loop closes the channel. Caller does not wait
+	 * @return True if queue closes connection itself
+	 */
+	@Override
+	public boolean close() {
+		if(this.closed) return false;
+		this.closed = true;
+		WebSocketConnection con = this.connection;
+		if(con == null || con.loop == null) {
+			//Not served yet, write what fits now
+			Item it;
+			try {
+				while((it = this.next()) != null) {
+					ByteBuffer buf = ByteBuffer.wrap(it.data, it.off, it.len);
+					this.channel.write(buf);
+					if(buf.hasRemaining()) break;
+					this.written(it);
+				}
+			} catch(IOException ign) {}
+			this.clear();
+			return false;
+		}
+		this.closing = true;
+		try {
+			this.closeTimeout = con.getTimer().newTimeout(new Runnable() {
+				
+				@Override
+				public void run() {
+					connection.expire();
+				}
+				
+			}, this.timeout == 0 ? 1000 : this.timeout);
+			con.loop.execute(this.flushTask);
+		} catch(IllegalStateException ex) {
+			this.clear();
+			return false;
+		}
+		return true;
+	}
+	
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.nio.ByteBuffer;
+
+import wordnice.api.Nice;
+
+/**
+ * Incremental decoder of WebSocket frames. Bytes are fed as they arrive
+ * (in any chunks) and frame is reported once its payload is complete, 
+ * so no thread waits for rest of frame.
+ * Payload of data frames is copied straight into message buffer 
+ * (fragments are appended) and unmasked there. Buffer grows as payload
+ * arrives, declared length is only checked against limit
+ */
+public class FrameDecoder {
+	
+	protected static final int
+		StateHead = 0,
+		StatePayload = 1;
+	
+	protected final int limit;
+	protected final boolean forceMask;
+	
+	protected int state = StateHead;
+	protected final byte[] head = new byte[14];
+	protected int headLength = 0;
+	
+	protected int flags;
+	protected boolean masked;
+	protected final MessageBuffer message = new MessageBuffer();
+	protected byte[] control;
+	
+	//Where payload of current frame goes
+	protected byte[] target;
+	protected int targetOffset;
+	protected int payloadLength;
+	protected int payloadPosition;
+	
+	/**
+	 * @param limit Max length of message, 0 for unlimited
+	 * @param forceMask Fail on frames without mask (client frames must be masked)
+	 */
+	public FrameDecoder(int limit, boolean forceMask) {
+		this.limit = limit;
+		this.forceMask = forceMask;
+	}
+	
+	/**
+	 * Consume bytes of buffer until one frame is complete
+	 * 
+	 * @return true if frame was decoded, then see {@link #getFlags()}, 
+	 * 		{@link #getMessage()} and {@link #getControlPayload()}. 
+	 * 		False if buffer was consumed and more data is needed
+	 */
+	public boolean decode(ByteBuffer in) throws WebSocketException {
+		if(this.state == StateHead) {
+			if(!this.readHead(in)) return false;
+			if(this.payloadLength != 0) this.state = StatePayload;
+		}
+		if(this.state == StatePayload) {
+			int n = Math.min(in.remaining(), this.payloadLength - this.payloadPosition);
+			if(!this.isControl()) {
+				this.message.ensureSpace(this.payloadPosition + n, this.payloadLength);
+				this.target = this.message.array();
+			}
+			in.get(this.target, this.targetOffset + this.payloadPosition, n);
+			this.payloadPosition += n;
+			if(this.payloadPosition < this.payloadLength) return false;
+		}
+		if(this.masked) 
+			WebSockets.unmask(this.target, this.targetOffset, this.payloadLength, this.head, this.headLength - 4);
+		if(!this.isControl()) this.message.commit(this.payloadLength);
+		this.target = null;
+		this.state = StateHead;
+		this.headLength = 0;
+		return true;
+	}
+	
+	/**
+	 * @return true if whole head was read
+	 */
+	protected boolean readHead(ByteBuffer in) throws WebSocketException {
+		byte[] h = this.head;
+		while(true) {
+			int need = (this.headLength < 2) ? 2 : headSize(h);
+			if(this.headLength >= need) break;
+			int n = Math.min(in.remaining(), need - this.headLength);
+			if(n == 0) return false;
+			in.get(h, this.headLength, n);
+			this.headLength += n;
+		}
+		int flags = h[0] & 0xFF;
+		this.masked = (h[1] & WebSockets.LMask) != 0;
+		if(this.forceMask && !this.masked) 
+			throw new WebSocketException("Mask missing but required!");
+		long len = h[1] & 0x7F;
+		if(len == 126) {
+			len = ((h[2] & 0xFF) << 8) | (h[3] & 0xFF);
+		} else if(len == 127) {
+			len = 0;
+			for(int i = 2; i < 10; i++) len = (len << 8) | (h[i] & 0xFF);
+			if(len < 0) throw new WebSocketException("Negative 64bit size!");
+		}
+		this.flags = flags;
+		if(this.isControl()) {
+			if(len > 125 || (flags & WebSockets.FFin) == 0)
+				throw new WebSocketException("Control frame too long or fragmented");
+			this.control = new byte[(int) len];
+			this.target = this.control;
+			this.targetOffset = 0;
+		} else {
+			long total = len + this.message.size();
+			if((total > this.limit && this.limit != 0) || total > Nice.MaxArrayLength)
+				throw new WebSocketException("Limit reached");
+			this.target = this.message.array();
+			this.targetOffset = this.message.size();
+		}
+		this.payloadLength = (int) len;
+		this.payloadPosition = 0;
+		return true;
+	}
+	
+	/**
+	 * @return Length of frame head given its first two bytes
+	 */
+	protected static int headSize(byte[] h) {
+		int len = h[1] & 0x7F;
+		int size = 2;
+		if(len == 126) size += 2;
+		else if(len == 127) size += 8;
+		if((h[1] & WebSockets.LMask) != 0) size += 4;
+		return size;
+	}
+	
+	/**
+	 * @return True if frame head or payload is partially read
+	 */
+	public boolean isInFrame() {
+		return this.state != StateHead || this.headLength != 0;
+	}
+	
+	/**
+	 * @return First byte of last decoded frame (FIN, RSV and opcode)
+	 */
+	public int getFlags() {
+		return this.flags;
+	}
+	
+	public int getOpcode() {
+		return this.flags & WebSockets.FOpcode;
+	}
+	
+	public boolean isFin() {
+		return (this.flags & WebSockets.FFin) != 0;
+	}
+	
+	public boolean isControl() {
+		return (this.flags & 0x8) != 0;
+	}
+	
+	/**
+	 * @return Payload of data frames decoded since last 
+	 * 		{@link MessageBuffer#toMessage(boolean)}
+	 */
+	public MessageBuffer getMessage() {
+		return this.message;
+	}
+	
+	/**
+	 * @return Payload of last decoded control frame
+	 */
+	public byte[] getControlPayload() {
+		return this.control;
+	}
+	
+}
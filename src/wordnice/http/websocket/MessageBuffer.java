@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import wordnice.streams.IUtils;
+
+/**
+ * Growable buffer of message payload. Frames are read straight into 
+ * its array and unmasked in place. Finished message is handed out 
+ * as slice of the array (no copy), buffer then starts with new array, 
+ * so handlers can keep messages
+ */
+public class MessageBuffer {
+	
+	protected static final byte[] Empty = new byte[0];
+	
+	/** First allocation for payload arriving in parts **/
+	protected static final int MinGrow = 4096;
+	
+	protected byte[] array = Empty;
+	protected int size = 0;
+	
+	public MessageBuffer() {}
+	
+	public int size() {
+		return this.size;
+	}
+	
+	public byte[] array() {
+		return this.array;
+	}
+	
+	/**
+	 * Make room for given count of bytes after current size.
+	 * First frame of message gets array of its exact length
+	 */
+	public void ensureSpace(int len) {
+		int need = this.size + len;
+		if(need < 0) throw new OutOfMemoryError("Message too long");
+		byte[] arr = this.array;
+		if(need <= arr.length) return;
+		int cap = (this.size == 0) ? need : Math.max(need, arr.length << 1);
+		if(cap < 0) cap = need;
+		byte[] nev = new byte[cap];
+		System.arraycopy(arr, 0, nev, 0, this.size);
+		this.array = nev;
+	}
+	
+	/**
+	 * Make room for given count of bytes after current size, for payload
+	 * which is not here yet. Array grows with arrived bytes (doubling), 
+	 * never beyond max bytes after current size, so declared length of 
+	 * frame is not allocated up front
+	 * 
+	 * @param max Declared length of payload
+	 */
+	public void ensureSpace(int len, int max) {
+		byte[] arr = this.array;
+		int need = this.size + len;
+		if(need <= arr.length) return;
+		int cap = Math.max(arr.length << 1, MinGrow);
+		if(cap < 0 || cap - this.size > max) cap = this.size + max;
+		if(cap < need) cap = need;
+		byte[] nev = new byte[cap];
+		System.arraycopy(arr, 0, nev, 0, arr.length); //with uncommitted part of frame
+		this.array = nev;
+	}
+	
+	/**
+	 * Mark given count of bytes written after current size into {@link #array()}
+	 */
+	public void commit(int len) {
+		this.size += len;
+	}
+	
+	/**
+	 * Read payload of frame and unmask it
+	 * 
+	 * @param mask Mask of frame or null
+	 */
+	public void read(InputStream in, int len, byte[] mask) throws IOException {
+		int pos = 0;
+		while(pos < len) {
+			this.ensureSpace(pos + 1, len);
+			int n = Math.min(len - pos, this.array.length - this.size - pos);
+			IUtils.readFully(in, this.array, this.size + pos, n);
+			pos += n;
+		}
+		if(mask != null) WebSockets.unmask(this.array, this.size, len, mask, 0);
+		this.size += len;
+	}
+	
+	/**
+	 * Hand collected bytes out and start over
+	 */
+	public WebSocketMessage toMessage(boolean isBinary) {
+		WebSocketMessage msg = new WebSocketMessage(this.array, 0, this.size, isBinary);
+		this.array = Empty;
+		this.size = 0;
+		return msg;
+	}
+	
+	/**
+	 * Drop collected bytes, keeping array
+	 */
+	public void reset() {
+		this.size = 0;
+	}
+	
+}
@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import wordnice.seq.ByteArraySequence;
+import wordnice.streams.DeflaterPool;
+import wordnice.streams.InflaterPool;
+
+/**
+ * permessage-deflate extension (RFC 7692). Set it to 
+ * {@link WebSocketServer#setPerMessageDeflate(PerMessageDeflate)}:
+ * accepted offer creates {@link Session} of connection, which compresses
+ * sent messages over threshold and inflates received compressed ones.
+ * 
+ * Connection with context takeover keeps own Deflater and Inflater 
+ * (hundreds of kB of native memory), so their count is capped. Over the cap, 
+ * and when no context takeover is negotiated, zlib state is borrowed 
+ * from pool for each message
+ */
+public class PerMessageDeflate {
+	
+	public static final String Name = "permessage-deflate";
+	
+	/** Tail removed from compressed message by sender (RFC 7692 7.2.1) **/
+	protected static final byte[] Tail = {0, 0, (byte) 0xFF, (byte) 0xFF};
+	
+	protected int threshold = 256;
+	protected boolean serverNoContextTakeover = false;
+	protected boolean clientNoContextTakeover = false;
+	protected int maxContexts = 1024;
+	protected final DeflaterPool deflaters;
+	protected final InflaterPool inflaters;
+	protected final AtomicInteger contexts = new AtomicInteger();
+	
+	protected final AtomicLong compressed = new AtomicLong();
+	protected final AtomicLong bytesIn = new AtomicLong();
+	protected final AtomicLong bytesOut = new AtomicLong();
+	
+	public PerMessageDeflate() {
+		this(6, 64);
+	}
+	
+	/**
+	 * @param level Deflate level 1-9
+	 * @param maxPooled Maximum count of pooled deflaters and inflaters
+	 */
+	public PerMessageDeflate(int level, int maxPooled) {
+		this.deflaters = new DeflaterPool(level, true, maxPooled);
+		this.inflaters = new InflaterPool(true, maxPooled);
+	}
+	
+	public int getLevel() {
+		return this.deflaters.getLevel();
+	}
+	
+	public int getThreshold() {
+		return this.threshold;
+	}
+	
+	/**
+	 * Set minimal length of message which gets compressed, shorter are sent raw
+	 */
+	public PerMessageDeflate setThreshold(int threshold) {
+		if(threshold < 0) throw new IllegalArgumentException("Negative threshold");
+		this.threshold = threshold;
+		return this;
+	}
+	
+	public boolean isServerNoContextTakeover() {
+		return this.serverNoContextTakeover;
+	}
+	
+	/**
+	 * Reset compressor after each sent message. Worse ratio, 
+	 * but deflater is held only while compressing
+	 */
+	public PerMessageDeflate setServerNoContextTakeover(boolean noContextTakeover) {
+		this.serverNoContextTakeover = noContextTakeover;
+		return this;
+	}
+	
+	public boolean isClientNoContextTakeover() {
+		return this.clientNoContextTakeover;
+	}
+	
+	/**
+	 * Ask client to reset its compressor after each message,
+	 * so inflater is held only while inflating
+	 */
+	public PerMessageDeflate setClientNoContextTakeover(boolean noContextTakeover) {
+		this.clientNoContextTakeover = noContextTakeover;
+		return this;
+	}
+	
+	public int getMaxContexts() {
+		return this.maxContexts;
+	}
+	
+	/**
+	 * Set maximum count of connections keeping own compression context,
+	 * others negotiate no context takeover in both directions
+	 */
+	public PerMessageDeflate setMaxContexts(int maxContexts) {
+		if(maxContexts < 0) throw new IllegalArgumentException("Negative max contexts");
+		this.maxContexts = maxContexts;
+		return this;
+	}
+	
+	/** @return Count of connections keeping own compression context **/
+	public int getContexts() {
+		return this.contexts.get();
+	}
+	
+	/** @return Count of compressed sent messages **/
+	public long getCompressedCount() {
+		return this.compressed.get();
+	}
+	
+	/** @return Uncompressed bytes of compressed sent messages **/
+	public long getBytesIn() {
+		return this.bytesIn.get();
+	}
+	
+	/** @return Compressed bytes of compressed sent messages **/
+	public long getBytesOut() {
+		return this.bytesOut.get();
+	}
+	
+	/**
+	 * Accept first supported permessage-deflate offer
+	 * 
+	 * @param offers Value of Sec-WebSocket-Extensions request head or null
+	 * @return Session of connection or null if nothing was accepted
+	 */
+	public Session negotiate(String offers) {
+		if(offers == null) return null;
+		for(String offer : offers.split(",")) {
+			String[] params = offer.split(";");
+			if(!Name.equalsIgnoreCase(params[0].trim())) continue;
+			boolean serverNo = this.serverNoContextTakeover;
+			boolean clientNo = this.clientNoContextTakeover;
+			boolean ok = true;
+			for(int i = 1; i < params.length && ok; i++) {
+				String param = params[i].trim();
+				String val = null;
+				int eq = param.indexOf('=');
+				if(eq != -1) {
+					val = param.substring(eq + 1).trim();
+					if(val.length() > 1 && val.charAt(0) == '"' && val.endsWith("\"")) 
+						val = val.substring(1, val.length() - 1);
+					param = param.substring(0, eq).trim();
+				}
+				param = param.toLowerCase();
+				if(param.equals("server_no_context_takeover")) {
+					serverNo = true;
+					ok = (val == null);
+				} else if(param.equals("client_no_context_takeover")) {
+					clientNo = true;
+					ok = (val == null);
+				} else if(param.equals("server_max_window_bits")) {
+					//Deflater always uses 32kB window
+					ok = "15".equals(val);
+				} else if(param.equals("client_max_window_bits")) {
+					//Inflater accepts any window
+					ok = (val == null || val.matches("^(8|9|1[0-5])$"));
+				} else {
+					ok = false;
+				}
+			}
+			if(!ok) continue;
+			boolean counted = false;
+			if(!serverNo || !clientNo) {
+				if(this.contexts.incrementAndGet() <= this.maxContexts) {
+					counted = true;
+				} else {
+					this.contexts.decrementAndGet();
+					serverNo = clientNo = true;
+				}
+			}
+			return new Session(serverNo, clientNo, counted);
+		}
+		return null;
+	}
+	
+	/**
+	 * Compression state of one connection
+	 */
+	public class Session {
+		
+		protected final boolean serverNoContextTakeover;
+		protected final boolean clientNoContextTakeover;
+		protected final boolean counted;
+		protected final Object inflateLock = new Object();
+		protected Deflater deflater;
+		protected Inflater inflater;
+		protected volatile boolean released = false;
+		
+		protected Session(boolean serverNoContextTakeover, boolean clientNoContextTakeover, boolean counted) {
+			this.serverNoContextTakeover = serverNoContextTakeover;
+			this.clientNoContextTakeover = clientNoContextTakeover;
+			this.counted = counted;
+		}
+		
+		public PerMessageDeflate getExtension() {
+			return PerMessageDeflate.this;
+		}
+		
+		public boolean isServerNoContextTakeover() {
+			return this.serverNoContextTakeover;
+		}
+		
+		public boolean isClientNoContextTakeover() {
+			return this.clientNoContextTakeover;
+		}
+		
+		/**
+		 * @return Value of Sec-WebSocket-Extensions response head
+		 */
+		public String getResponse() {
+			String res = Name;
+			if(this.serverNoContextTakeover) res += "; server_no_context_takeover";
+			if(this.clientNoContextTakeover) res += "; client_no_context_takeover";
+			return res;
+		}
+		
+		public boolean shouldCompress(int len) {
+			return len >= threshold;
+		}
+		
+		/**
+		 * Compress payload of message. With context takeover, messages must be 
+		 * sent in order they were compressed (hold lock of this session)
+		 * 
+		 * @return Compressed payload or null if message should be sent raw
+		 */
+		public synchronized ByteArraySequence compress(byte[] data, int off, int len) throws IOException {
+			if(this.released) throw new IOException("Connection closed");
+			Deflater def = this.deflater;
+			boolean pooled = false;
+			if(def == null) {
+				if(this.serverNoContextTakeover) {
+					def = deflaters.acquire();
+					pooled = true;
+				} else {
+					def = this.deflater = new Deflater(getLevel(), true);
+				}
+			}
+			try {
+				def.setInput(data, off, len);
+				byte[] out = new byte[Math.max(64, (len >> 1) + 16)];
+				int size = 0;
+				while(true) {
+					size += def.deflate(out, size, out.length - size, Deflater.SYNC_FLUSH);
+					if(size < out.length) break;
+					out = Arrays.copyOf(out, out.length << 1);
+				}
+				size -= Tail.length;
+				//Raw message would not be in client's window
+				if(this.serverNoContextTakeover && size >= len) return null;
+				compressed.incrementAndGet();
+				bytesIn.addAndGet(len);
+				bytesOut.addAndGet(size);
+				return new ByteArraySequence(out, 0, size);
+			} finally {
+				if(pooled) deflaters.release(def);
+			}
+		}
+		
+		/**
+		 * Inflate received compressed message. Messages must be inflated 
+		 * in order they were received
+		 * 
+		 * @param limit Max length of inflated message, 0 for unlimited
+		 */
+		public WebSocketMessage decompress(WebSocketMessage msg, int limit) throws IOException {
+			synchronized(this.inflateLock) {
+				if(this.released) throw new IOException("Connection closed");
+				Inflater inf = this.inflater;
+				boolean pooled = false;
+				if(inf == null) {
+					if(this.clientNoContextTakeover) {
+						inf = inflaters.acquire();
+						pooled = true;
+					} else {
+						inf = this.inflater = new Inflater(true);
+					}
+				}
+				try {
+					MessageBuffer out = new MessageBuffer();
+					int guess = Math.max(1024, msg.length() << 2);
+					out.ensureSpace((limit == 0) ? guess : Math.min(guess, limit + 1));
+					inf.setInput(msg.array(), msg.offset(), msg.length());
+					boolean tail = false;
+					while(true) {
+						if(out.size() == out.array().length) out.ensureSpace(out.size());
+						int n = inf.inflate(out.array(), out.size(), out.array().length - out.size());
+						out.commit(n);
+						if(limit != 0 && out.size() > limit)
+							throw new WebSocketException("Limit reached");
+						if(n != 0) continue;
+						if(!inf.needsInput() || tail) break;
+						inf.setInput(Tail);
+						tail = true;
+					}
+					if(inf.needsDictionary()) throw new WebSocketException("Invalid compressed message");
+					return out.toMessage(msg.isBinary());
+				} catch(DataFormatException ex) {
+					throw new WebSocketException("Invalid compressed message", ex);
+				} finally {
+					if(pooled) {
+						inflaters.release(inf);
+					} else if(inf.finished()) {
+						//Final block ends compression context
+						inf.reset();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Free compression context of closed connection
+		 */
+		public void release() {
+			synchronized(this) {
+				if(this.released) return;
+				this.released = true;
+				if(this.deflater != null) this.deflater.end();
+				this.deflater = null;
+			}
+			synchronized(this.inflateLock) {
+				if(this.inflater != null) this.inflater.end();
+				this.inflater = null;
+			}
+			if(this.counted) contexts.decrementAndGet();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,484 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of outgoing frames of one WebSocket, drained by single writer,
+ * so senders never write socket themselves. Small consecutive frames 
+ * are copied together and written at once.
+ * 
+ * This class drains blocking streams in dedicated writer (task of given executor),
+ * connections of {@link WebSocketEngine} use {@link ChannelSendQueue}.
+ * 
+ * When queued bytes would exceed the limit, sender blocks,
+ * frame is dropped or connection is closed, as set by policy.
+ * Only whole uncompressed messages are dropped, as losing compressed frame
+ * (deflate context) or fragment breaks the stream: connection is closed instead
+ */
+public class SendQueue {
+	
+	/** Wait until there is space, close connection after timeout **/
+	public static final int FullBlock = 0;
+	/** Drop the frame if it is whole uncompressed message, close connection otherwise **/
+	public static final int FullDrop = 1;
+	/** Close the connection **/
+	public static final int FullClose = 2;
+	
+	/** Limit of queues created on demand (see {@link WebSocket#ensureSendQueue(long)}) **/
+	public static long DefaultLimit = 1 << 20;
+	
+	/** Frames up to this length are coalesced **/
+	public static int DefaultCoalesceSize = 16384;
+	
+	protected static class Item {
+		
+		protected final byte[] data;
+		protected final int off;
+		protected final int len;
+		/** Count of frames in data **/
+		protected final int count;
+		
+		protected Item(byte[] data, int off, int len, int count) {
+			this.data = data;
+			this.off = off;
+			this.len = len;
+			this.count = count;
+		}
+		
+	}
+	
+	protected final WebSocket webSocket;
+	protected final long limit;
+	protected final int policy;
+	protected final long timeout;
+	protected int coalesceSize = DefaultCoalesceSize;
+	
+	protected final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<Item>();
+	protected final AtomicLong queuedBytes = new AtomicLong();
+	protected final AtomicInteger queuedFrames = new AtomicInteger();
+	/** Set while writer is scheduled or running **/
+	protected final AtomicBoolean scheduled = new AtomicBoolean();
+	protected volatile boolean closed = false;
+	protected volatile int waiters = 0;
+	
+	protected final AtomicLong highWater = new AtomicLong();
+	protected final AtomicLong dropped = new AtomicLong();
+	protected volatile long frames = 0;
+	protected volatile long writes = 0;
+	
+	protected final Executor writer;
+	protected final Runnable drainTask = new Runnable() {
+		
+		@Override
+		public void run() {
+			try {
+				drain();
+			} catch(IOException ex) {
+				fail(ex);
+			}
+		}
+		
+	};
+	
+	/**
+	 * @param writer Runs draining, which blocks while client does not read
+	 * 			(should not be shared with handlers, e.g. cached or virtual thread pool)
+	 * @param limit Max queued bytes (single larger frame is still accepted into empty queue)
+	 * @param policy {@link #FullBlock}, {@link #FullDrop} or {@link #FullClose}
+	 * @param timeout Milliseconds blocked sender waits (0 for ever), 
+	 * 			also max wait for queued frames on close
+	 */
+	public SendQueue(WebSocket webSocket, Executor writer, long limit, int policy, long timeout) {
+		if(webSocket == null) throw new IllegalArgumentException("WebSocket == null");
+		if(limit < 1) throw new IllegalArgumentException("Limit < 1");
+		if(policy < FullBlock || policy > FullClose) throw new IllegalArgumentException("Unknown policy " + policy);
+		if(timeout < 0) throw new IllegalArgumentException("Negative timeout");
+		this.webSocket = webSocket;
+		this.writer = writer;
+		this.limit = limit;
+		this.policy = policy;
+		this.timeout = timeout;
+	}
+	
+	public long getLimit() {
+		return this.limit;
+	}
+	
+	public int getPolicy() {
+		return this.policy;
+	}
+	
+	public int getCoalesceSize() {
+		return this.coalesceSize;
+	}
+	
+	public SendQueue setCoalesceSize(int size) {
+		if(size < 0) throw new IllegalArgumentException("Negative size");
+		this.coalesceSize = size;
+		return this;
+	}
+	
+	/**
+	 * @return Count of frames waiting to be written
+	 */
+	public int getDepth() {
+		return this.queuedFrames.get();
+	}
+	
+	/**
+	 * @return Bytes waiting to be written
+	 */
+	public long getQueuedBytes() {
+		return this.queuedBytes.get();
+	}
+	
+	/**
+	 * @return Most bytes ever queued at once
+	 */
+	public long getHighWater() {
+		return this.highWater.get();
+	}
+	
+	public SendQueue resetHighWater() {
+		this.highWater.set(this.queuedBytes.get());
+		return this;
+	}
+	
+	/**
+	 * @return Frames dropped because queue was full
+	 */
+	public long getDropped() {
+		return this.dropped.get();
+	}
+	
+	/**
+	 * @return Frames written to socket
+	 */
+	public long getFrames() {
+		return this.frames;
+	}
+	
+	/**
+	 * @return Writes to socket (less than frames when coalesced)
+	 */
+	public long getWrites() {
+		return this.writes;
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	/**
+	 * Queue frame, handling full queue by policy
+	 * @param force Ignore limit (control frames)
+	 * @return False if frame was dropped
+	 */
+	public boolean offer(byte[] frame, int off, int len, boolean force) throws IOException {
+		if(force) {
+			if(this.closed) throw new IOException("WebSocket closed");
+			this.added(this.queuedBytes.addAndGet(len));
+		} else if(!this.reserve(len)) {
+			switch(this.policy) {
+			case FullDrop:
+				if(isDroppable(frame, off, len)) {
+					this.dropped.incrementAndGet();
+					return false;
+				}
+				//fall through
+			case FullClose:
+				this.fail(new IOException("Send queue full"));
+				throw new IOException("Send queue full");
+			default:
+				this.await(len);
+			}
+		}
+		this.enqueue(frame, off, len);
+		return true;
+	}
+	
+	/**
+	 * Queue frame only if there is space, never blocks.
+	 * When frame which can not be dropped (see {@link #isDroppable(byte[], int, int)})
+	 * does not fit, queue is closed and exception thrown, caller closes connection
+	 * @return False if queue is full
+	 */
+	public boolean tryOffer(byte[] frame, int off, int len) throws IOException {
+		if(!this.reserve(len)) {
+			if(isDroppable(frame, off, len)) return false;
+			this.clear();
+			throw new IOException("Send queue full");
+		}
+		this.enqueue(frame, off, len);
+		return true;
+	}
+	
+	/**
+	 * @return True if data is exactly one unfragmented, uncompressed 
+	 * 		data frame, so skipping it leaves stream valid
+	 */
+	public static boolean isDroppable(byte[] frame, int off, int len) {
+		if(len < 2) return false;
+		int b0 = frame[off] & 0xFF;
+		int opcode = b0 & WebSockets.FOpcode;
+		if((b0 & WebSockets.FFin) == 0 || (b0 & WebSockets.FRSV1) != 0
+				|| opcode == WebSockets.OContinue || opcode >= 8) return false;
+		int b1 = frame[off + 1] & 0xFF;
+		long payload = b1 & 0x7F;
+		int head = 2;
+		if(payload == 126) {
+			if(len < 4) return false;
+			payload = ((frame[off + 2] & 0xFF) << 8) | (frame[off + 3] & 0xFF);
+			head = 4;
+		} else if(payload == 127) {
+			if(len < 10) return false;
+			payload = 0;
+			for(int i = 2; i < 10; i++) payload = (payload << 8) | (frame[off + i] & 0xFF);
+			head = 10;
+		}
+		if((b1 & 0x80) != 0) head += 4;
+		return head + payload == len;
+	}
+	
+	/**
+	 * Add len to queued bytes if it fits
+	 */
+	protected boolean reserve(long len) throws IOException {
+		if(this.closed) throw new IOException("WebSocket closed");
+		for(;;) {
+			long cur = this.queuedBytes.get();
+			if(cur != 0 && cur + len > this.limit) return false;
+			if(this.queuedBytes.compareAndSet(cur, cur + len)) {
+				this.added(cur + len);
+				return true;
+			}
+		}
+	}
+	
+	protected void added(long queued) {
+		long hw;
+		while(queued > (hw = this.highWater.get()) && !this.highWater.compareAndSet(hw, queued)) {}
+	}
+	
+	protected void await(int len) throws IOException {
+		long deadline = System.currentTimeMillis() + this.timeout;
+		synchronized(this) {
+			this.waiters++;
+			try {
+				while(!this.reserve(len)) {
+					long wait = 0;
+					if(this.timeout != 0) {
+						wait = deadline - System.currentTimeMillis();
+						if(wait <= 0) {
+							this.fail(new SocketTimeoutException("Send queue full"));
+							throw new SocketTimeoutException("Send queue full");
+						}
+					}
+					try {
+						this.wait(wait);
+					} catch(InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted", ex);
+					}
+				}
+			} finally {
+				this.waiters--;
+			}
+		}
+	}
+	
+	protected void released(long len, int count) {
+		this.queuedBytes.addAndGet(-len);
+		this.queuedFrames.addAndGet(-count);
+		this.wakeUp();
+	}
+	
+	protected void wakeUp() {
+		if(this.waiters != 0) {
+			synchronized(this) {
+				this.notifyAll();
+			}
+		}
+	}
+	
+	protected void enqueue(byte[] frame, int off, int len) throws IOException {
+		this.queue.add(new Item(frame, off, len, 1));
+		this.queuedFrames.incrementAndGet();
+		if(this.closed) {
+			this.clear();
+			throw new IOException("WebSocket closed");
+		}
+		this.schedule();
+	}
+	
+	/**
+	 * Start writer unless it is already scheduled
+	 */
+	protected void schedule() {
+		if(!this.scheduled.compareAndSet(false, true)) return;
+		try {
+			this.writer.execute(this.drainTask);
+		} catch(RejectedExecutionException ex) {
+			this.scheduled.set(false);
+			this.fail(new IOException("Writer rejected task", ex));
+		}
+	}
+	
+	/**
+	 * Write queued frames in writer
+	 */
+	protected void drain() throws IOException {
+		for(;;) {
+			this.webSocket.writeLock.lock();
+			try {
+				OutputStream out = this.webSocket.outputStream;
+				if(out == null) throw new IOException("WebSocket closed");
+				Item it;
+				while((it = this.next()) != null) {
+					out.write(it.data, it.off, it.len);
+					this.written(it);
+				}
+				out.flush();
+			} finally {
+				this.webSocket.writeLock.unlock();
+			}
+			this.scheduled.set(false);
+			if(this.queue.isEmpty() || !this.scheduled.compareAndSet(false, true)) break;
+		}
+		this.wakeUp();
+	}
+	
+	/**
+	 * @return Next frame, joined with following small frames, or null if queue is empty
+	 */
+	protected Item next() {
+		Item first = this.queue.poll();
+		if(first == null) return null;
+		int max = this.coalesceSize;
+		if(first.len >= max) return first;
+		int len = first.len, count = 1;
+		Iterator<Item> iter = this.queue.iterator();
+		while(iter.hasNext()) {
+			Item next = iter.next();
+			if(len + next.len > max) break;
+			len += next.len;
+			count++;
+		}
+		if(count == 1) return first;
+		byte[] data = new byte[len];
+		System.arraycopy(first.data, first.off, data, 0, first.len);
+		int pos = first.len, n = 1;
+		Item next;
+		while(n < count && (next = this.queue.poll()) != null) {
+			System.arraycopy(next.data, next.off, data, pos, next.len);
+			pos += next.len;
+			n++;
+		}
+		return new Item(data, 0, pos, n);
+	}
+	
+	protected void written(Item it) {
+		this.released(it.len, it.count);
+		this.frames += it.count;
+		this.writes++;
+	}
+	
+	protected void fail(IOException ex) {
+		this.clear();
+		this.webSocket.closeSilent(ex);
+	}
+	
+	protected void clear() {
+		this.closed = true;
+		Item it;
+		while((it = this.queue.poll()) != null) {
+			this.released(it.len, it.count);
+		}
+		synchronized(this) {
+			this.notifyAll();
+		}
+	}
+	
+	/**
+	 * Refuse new frames and wait (up to timeout) until queued ones are written.
+	 * If client does not accept them in time, socket is closed to stop the writer.
+	 * Called by {@link WebSocket#close()}
+	 * @return True if queue closes connection itself once flushed
+	 */
+	public boolean close() {
+		if(this.closed) return false;
+		this.closed = true;
+		long deadline = System.currentTimeMillis() + (this.timeout == 0 ? 1000 : this.timeout);
+		boolean drained = true;
+		synchronized(this) {
+			this.waiters++;
+			try {
+				while(!this.queue.isEmpty() || this.scheduled.get()) {
+					long wait = deadline - System.currentTimeMillis();
+					if(wait <= 0) {
+						drained = false;
+						break;
+					}
+					try {
+						this.wait(wait);
+					} catch(InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						drained = false;
+						break;
+					}
+				}
+			} finally {
+				this.waiters--;
+			}
+		}
+		if(!drained) {
+			Socket sock = this.webSocket.socket;
+			if(sock != null) try {
+				sock.close();
+			} catch(IOException ign) {}
+		}
+		this.clear();
+		return false;
+	}
+	
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [depth=" + getDepth() + ", bytes=" + getQueuedBytes() 
+			+ ", highWater=" + getHighWater() + ", dropped=" + getDropped() + "]";
+	}
+	
+}
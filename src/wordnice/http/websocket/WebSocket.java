@@ -26,16 +26,21 @@ package wordnice.http.websocket;
 
 import java.io.Closeable;
 import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import wordnice.api.Nice;
 import wordnice.http.server.RequestData;
 import wordnice.seq.ByteArraySequence;
 import wordnice.seq.CharArraySequence;
-import wordnice.streams.ArrayOutputStream;
+import wordnice.threads.HashedWheelTimer;
 import wordnice.utils.NiceStrings;
 
 public class WebSocket
@@ -67,6 +72,28 @@ implements Closeable, AutoCloseable {
 	
 	protected boolean answerClose = true;
 	
+	protected volatile long lastActivity = System.nanoTime(); //Last received data
+	protected HashedWheelTimer.Timeout idleTimeout;
+	
+	/** Set when served by {@link WebSocketEngine} **/
+	protected WebSocketConnection connection;
+	
+	/** Set when permessage-deflate was negotiated **/
+	protected PerMessageDeflate.Session deflate;
+	
+	/** Held while frame is being written **/
+	protected final ReentrantLock writeLock = new ReentrantLock();
+	
+	/** Run once socket is closed, when connection was taken over from HttpServer **/
+	protected Runnable closeListener;
+	
+	/** Set when frames are queued instead of written by sender **/
+	protected volatile SendQueue sendQueue;
+	
+	/** Groups this socket is member of, left on close **/
+	protected final Set<WebSocketGroup> groups = Collections.newSetFromMap(
+			new ConcurrentHashMap<WebSocketGroup,Boolean>(4));
+	
 	public Socket getSocket() {
 		return socket;
 	}
@@ -75,10 +102,38 @@ implements Closeable, AutoCloseable {
 		return outputStream;
 	}
 	
+	/**
+	 * @return Input of connection or null when served by {@link WebSocketEngine}
+	 */
 	public InputStream getInputStream() {
 		return inputStream;
 	}
 	
+	/**
+	 * @return Compression of messages or null if not negotiated
+	 */
+	public PerMessageDeflate.Session getDeflate() {
+		return deflate;
+	}
+	
+	/**
+	 * @return State of non-blocking connection or null when served by {@link #listen()}
+	 */
+	public WebSocketConnection getConnection() {
+		return connection;
+	}
+	
+	/**
+	 * @return Queue of outgoing frames or null when senders write directly
+	 */
+	public SendQueue getSendQueue() {
+		return sendQueue;
+	}
+	
+	public Set<WebSocketGroup> getGroups() {
+		return Collections.unmodifiableSet(this.groups);
+	}
+	
 	public RequestData getInitRequest() {
 		return initRequest;
 	}
@@ -96,82 +151,222 @@ implements Closeable, AutoCloseable {
 		return this;
 	}
 	
+	/**
+	 * @return System.nanoTime() when data last arrived
+	 */
+	public long getLastActivity() {
+		return this.lastActivity;
+	}
+	
+	/**
+	 * Close socket once no data arrives within given milliseconds.
+	 * Timer is not touched per frame: when it fires before connection is idle 
+	 * long enough, it is scheduled again for the rest
+	 */
+	public WebSocket watchIdle(final HashedWheelTimer timer, final long millis) {
+		final long limit = millis * 1000000L;
+		synchronized(this) {
+			if(this.idleTimeout != null) this.idleTimeout.cancel();
+			this.idleTimeout = timer.newTimeout(new Runnable() {
+				
+				@Override
+				public void run() {
+					long idle = System.nanoTime() - lastActivity;
+					Socket sock = socket;
+					if(sock == null) return;
+					if(idle >= limit) {
+						//Blocked read fails and listen thread closes WebSocket
+						try {
+							sock.close();
+						} catch(IOException ign) {}
+						return;
+					}
+					synchronized(WebSocket.this) {
+						if(idleTimeout != null && !timer.isClosed())
+							idleTimeout = timer.newTimeout(this, (limit - idle) / 1000000L + 1);
+					}
+				}
+				
+			}, millis);
+		}
+		return this;
+	}
+	
 	
 	/************ STRINGS *****************/
 	
-	public void sendMessage(char[] seq) throws IOException {
+	public boolean sendMessage(char[] seq) throws IOException {
 		if(seq == null) throw new IllegalArgumentException("Sequence == null");
-		this.sendMessage(seq, 0, seq.length);
+		return this.sendMessage(seq, 0, seq.length);
 	}
 	
-	public void sendMessage(char[] seq, int off, int len) throws IOException {
-		sendMessage(NiceStrings.toBytes(seq, off, len), false);
+	public boolean sendMessage(char[] seq, int off, int len) throws IOException {
+		return sendMessage(NiceStrings.toBytes(seq, off, len), false);
 	}
 	
-	public void sendMessage(CharSequence seq) throws IOException {
+	public boolean sendMessage(CharSequence seq) throws IOException {
 		if(seq == null) throw new IllegalArgumentException("Sequence == null");
-		this.sendMessage(seq, 0, seq.length());
+		return this.sendMessage(seq, 0, seq.length());
 	}
 	
-	public void sendMessage(CharSequence seq, int off, int len) throws IOException {
+	public boolean sendMessage(CharSequence seq, int off, int len) throws IOException {
 		if(seq instanceof CharArraySequence) {
 			CharArraySequence chseq = (CharArraySequence) seq;
 			Nice.checkBounds(chseq, off, len);
-			sendMessage(NiceStrings.toBytes(chseq.array(), chseq.offset()+off, len), false);
+			return sendMessage(NiceStrings.toBytes(chseq.array(), chseq.offset()+off, len), false);
 		} else {
-			sendMessage(NiceStrings.toBytes(seq, off, len), false);
+			return sendMessage(NiceStrings.toBytes(seq, off, len), false);
 		}
 	}
 	
 	
 	/****************** BYTES **************/
 	
-	public void sendMessage(Iterable<ByteArraySequence> seq) throws IOException {
-		this.sendMessage(seq, true);
+	public boolean sendMessage(Iterable<ByteArraySequence> seq) throws IOException {
+		return this.sendMessage(seq, true);
 	}
 	
-	public void sendMessage(ByteArraySequence seq) throws IOException {
+	public boolean sendMessage(ByteArraySequence seq) throws IOException {
 		if(seq == null) throw new IllegalArgumentException("Sequence == null");
-		this.sendMessage(seq.array(), seq.offset(), seq.length(), true);
+		return this.sendMessage(seq.array(), seq.offset(), seq.length(), true);
 	}
 	
-	public void sendMessage(ByteArraySequence seq, boolean isBinary) throws IOException {
+	public boolean sendMessage(ByteArraySequence seq, boolean isBinary) throws IOException {
 		if(seq == null) throw new IllegalArgumentException("Sequence == null");
-		this.sendMessage(seq.array(), seq.offset(), seq.length(), isBinary);
+		return this.sendMessage(seq.array(), seq.offset(), seq.length(), isBinary);
 	}
 	
-	public void sendMessage(byte[] bytes) throws IOException {
+	public boolean sendMessage(byte[] bytes) throws IOException {
 		if(bytes == null) throw new IllegalArgumentException("Bytes == null");
-		this.sendMessage(bytes, 0, bytes.length, true);
+		return this.sendMessage(bytes, 0, bytes.length, true);
 	}
 	
-	public void sendMessage(byte[] bytes, boolean isBinary) throws IOException {
+	public boolean sendMessage(byte[] bytes, boolean isBinary) throws IOException {
 		if(bytes == null) throw new IllegalArgumentException("Bytes == null");
-		this.sendMessage(bytes, 0, bytes.length, isBinary);
+		return this.sendMessage(bytes, 0, bytes.length, isBinary);
+	}
+	
+	public boolean sendMessage(byte[] bytes, int off, int len) throws IOException {
+		return this.sendMessage(bytes, off, len, true);
 	}
 	
-	public void sendMessage(byte[] bytes, int off, int len) throws IOException {
-		this.sendMessage(bytes, off, len, true);
+	public boolean sendMessage(byte[] bytes, int off, int len, boolean isBinary) throws IOException {
+		return this.sendMessage(bytes, off, len, (isBinary) ? 130 : 129);
 	}
 	
-	public void sendMessage(byte[] bytes, int off, int len, boolean isBinary) throws IOException {
-		this.sendMessage(bytes, off, len, (isBinary) ? 130 : 129);
+	/**
+	 * Send message in one frame. Whole text and binary messages 
+	 * are compressed when permessage-deflate was negotiated
+	 * @return False if message was dropped because send queue was full
+	 */
+	public boolean sendMessage(byte[] bytes, int off, int len, int flags) throws IOException {
+		PerMessageDeflate.Session def = this.deflate;
+		int opcode = flags & WebSockets.FOpcode;
+		if(def != null && (flags & WebSockets.FFin) != 0 && def.shouldCompress(len)
+				&& (opcode == WebSockets.OText || opcode == WebSockets.OBin)) {
+			//Frames must go out in order they were compressed
+			synchronized(def) {
+				ByteArraySequence data = def.compress(bytes, off, len);
+				if(data != null) {
+					return this.writeFrame(data.array(), data.offset(), data.length(), flags | WebSockets.FRSV1);
+				}
+			}
+		}
+		return this.writeFrame(bytes, off, len, flags);
 	}
 	
-	public void sendMessage(byte[] bytes, int off, int len, int flags) throws IOException {
+	protected boolean writeFrame(byte[] bytes, int off, int len, int flags) throws IOException {
 		byte[] out = WebSockets.createUnmaskedFrame(bytes, off, len, flags);
-		this.outputStream.write(out);
-		this.outputStream.flush();
+		return this.sendFrame(out, 0, out.length);
 	}
 	
-	public void sendMessage(Iterable<ByteArraySequence> seq, boolean isBinary) throws IOException {
-		this.sendMessage(seq, (isBinary) ? 130 : 129);
+	/**
+	 * Write already encoded frame(s), e.g. shared by {@link WebSocketGroup}
+	 * @return False if frame was dropped by {@link SendQueue#FullDrop} policy of send queue
+	 */
+	public boolean sendFrame(byte[] frame, int off, int len) throws IOException {
+		SendQueue queue = this.sendQueue;
+		if(queue == null) {
+			this.writeLock.lock();
+			try {
+				queue = this.sendQueue; //may be created meanwhile
+				if(queue == null) {
+					this.writeLocked(frame, off, len);
+					return true;
+				}
+			} finally {
+				this.writeLock.unlock();
+			}
+		}
+		return queue.offer(frame, off, len, false);
 	}
 	
-	public void sendMessage(Iterable<ByteArraySequence> seq, int flag) throws IOException {
+	/**
+	 * Queue already encoded frame(s) if client keeps up, never blocks.
+	 * Send queue is created if connection does not have one yet.
+	 * Compressed or fragmented frame closes connection instead of being skipped
+	 * @return False if frame was not queued because send queue is full
+	 */
+	public boolean trySendFrame(byte[] frame, int off, int len) throws IOException {
+		try {
+			return this.ensureSendQueue(SendQueue.DefaultLimit).tryOffer(frame, off, len);
+		} catch(IOException ex) {
+			this.closeSilent(ex);
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Create send queue unless connection has one. Limit of 
+	 * server is used if set, given one otherwise
+	 */
+	public SendQueue ensureSendQueue(long limit) throws IOException {
+		SendQueue queue = this.sendQueue;
+		if(queue != null) return queue;
+		this.writeLock.lock();
+		try {
+			queue = this.sendQueue;
+			if(queue == null) {
+				WebSocketServer server = this.webSocketServer;
+				if(server == null || this.isClosed()) throw new IOException("WebSocket closed");
+				if(server.getSendQueueLimit() != 0) limit = server.getSendQueueLimit();
+				queue = server.createSendQueue(this, limit);
+				this.sendQueue = queue;
+				WebSocketConnection con = this.connection;
+				if(con != null && queue instanceof ChannelSendQueue) 
+					((ChannelSendQueue) queue).attach(con);
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+		return queue;
+	}
+	
+	protected void writeLocked(byte[] frame, int off, int len) throws IOException {
+		OutputStream out = this.outputStream;
+		if(out == null) throw new IOException("WebSocket closed");
+		out.write(frame, off, len);
+		out.flush();
+	}
+	
+	public boolean sendMessage(Iterable<ByteArraySequence> seq, boolean isBinary) throws IOException {
+		return this.sendMessage(seq, (isBinary) ? 130 : 129);
+	}
+	
+	public boolean sendMessage(Iterable<ByteArraySequence> seq, int flag) throws IOException {
+		if(this.deflate != null) {
+			int len = 0;
+			for(ByteArraySequence cur : seq) len += cur.length();
+			byte[] data = new byte[len];
+			len = 0;
+			for(ByteArraySequence cur : seq) {
+				System.arraycopy(cur.array(), cur.offset(), data, len, cur.length());
+				len += cur.length();
+			}
+			return this.sendMessage(data, 0, len, flag);
+		}
 		byte[] out = WebSockets.createUnmaskedFrame(seq, flag);
-		this.outputStream.write(out);
-		this.outputStream.flush();
+		return this.sendFrame(out, 0, out.length);
 	}
 	
 	public void ping() throws IOException {
@@ -189,8 +384,28 @@ implements Closeable, AutoCloseable {
 	}
 	
 	public void ping(byte[] bytes, int off, int len) throws IOException {
-		//TODO
-		WebSockets.sendControlFrame(outputStream, WebSockets.FFin | WebSockets.OPing, null, bytes, off, len);
+		this.sendControlFrame(WebSockets.FFin | WebSockets.OPing, bytes, off, len);
+	}
+	
+	protected void sendControlFrame(int flags, byte[] bytes, int off, int len) throws IOException {
+		SendQueue queue = this.sendQueue;
+		if(queue == null) {
+			this.writeLock.lock();
+			try {
+				queue = this.sendQueue;
+				if(queue == null) {
+					OutputStream out = this.outputStream;
+					if(out == null) throw new IOException("WebSocket closed");
+					WebSockets.sendControlFrame(out, flags, null, bytes, off, len);
+					return;
+				}
+			} finally {
+				this.writeLock.unlock();
+			}
+		}
+		if(len > 125) throw new IllegalArgumentException("Control message with length over 125!");
+		byte[] frame = WebSockets.createUnmaskedFrame(bytes == null ? new byte[0] : bytes, off, len, flags);
+		queue.offer(frame, 0, frame.length, true);
 	}
 
 	@Override
@@ -199,20 +414,41 @@ implements Closeable, AutoCloseable {
 	}
 	
 	public void close(Exception ex) throws IOException {
+		synchronized(this) {
+			if(this.idleTimeout != null) this.idleTimeout.cancel();
+			this.idleTimeout = null;
+		}
+		for(WebSocketGroup group : this.groups) {
+			group.remove(this);
+		}
 		try {
 			if(this.webSocketServer != null)
 				this.webSocketServer.onCloseAndError(this, ex);
 		} finally {
+			SendQueue queue = this.sendQueue;
+			boolean queueCloses = false;
+			if(queue != null) {
+				//Queued frames and close frame are written before socket is closed
+				if(this.isAnswerClose()) try {
+					byte[] frame = WebSockets.createUnmaskedFrame(new byte[0], WebSockets.FFin | WebSockets.OClose);
+					queue.offer(frame, 0, frame.length, true);
+				} catch(IOException ign) {}
+				queueCloses = queue.close();
+			}
 			if(this.inputStream != null) {
 				try {
 					this.inputStream.close();
 				} catch(IOException t) {}
 			}
 			if(this.outputStream != null) {
-				if(this.isAnswerClose()) {
+				//Skip close frame rather than wait for stuck writer
+				if(queue == null && this.isAnswerClose() && this.writeLock.tryLock()) {
 					try {
 						WebSockets.sendControlFrame(this.outputStream, WebSockets.FFin | WebSockets.OClose);
-					} catch(IOException ign) {}
+					} catch(IOException ign) {
+					} finally {
+						this.writeLock.unlock();
+					}
 				}
 				try {
 					this.outputStream.flush();
@@ -222,8 +458,13 @@ implements Closeable, AutoCloseable {
 				} catch(IOException t) {}
 			}
 			try {
-				if(this.socket != null) this.socket.close();
+				if(this.socket != null && !queueCloses) {
+					this.socket.close();
+					this.socketClosed();
+				}
 			} finally {
+				PerMessageDeflate.Session def = this.deflate;
+				if(def != null) def.release();
 				this.webSocketServer = null;
 				this.initRequest = null;
 				this.inputStream = null;
@@ -233,6 +474,18 @@ implements Closeable, AutoCloseable {
 		}
 	}
 	
+	/**
+	 * Run close listener, only first call does so
+	 */
+	protected void socketClosed() {
+		Runnable r;
+		synchronized(this) {
+			r = this.closeListener;
+			this.closeListener = null;
+		}
+		if(r != null) r.run();
+	}
+	
 	public void closeSilent() {
 		try {
 			this.close();
@@ -250,36 +503,50 @@ implements Closeable, AutoCloseable {
 		return !this.socket.isConnected() || this.socket.isClosed();
 	}
 	
-	protected ArrayOutputStream messagePart = null;
+	protected MessageBuffer messagePart = null;
 	protected boolean isBinary = true;
+	protected boolean isCompressed = false;
 	
 	public void listen() throws IOException {
 		WebSocketServer server = this.webSocketServer;
-		InputStream in = this.getInputStream();
-		OutputStream out = this.getOutputStream();
+		if(this.connection != null) throw new IllegalStateException("Connection is served by WebSocketEngine");
+		//Payload reads count as activity, so slow long frames are not dropped as idle
+		InputStream in = new FilterInputStream(this.getInputStream()) {
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if(n > 0) lastActivity = System.nanoTime();
+				return n;
+			}
+			
+		};
 		int limit = server.getReadLimit();
 		byte[] mask = new byte[4];
 		Nice.secureGenerator().nextBytes(mask);
 		while(!this.isClosed()) {
 			int flags = in.read();
 			if(flags == -1) throw new EOFException();
+			this.lastActivity = System.nanoTime();
 			int opcode = flags & 0xF;
 			flags >>>= 4;
 			boolean rsv3 = (flags & 1) == 1;
 			boolean rsv2 = (flags & 2) == 2;
 			boolean rsv1 = (flags & 4) == 4;
-			if(rsv1 || rsv2 || rsv3) //TODO
+			if(rsv2 || rsv3 || (rsv1 && (this.deflate == null || (opcode != 1 && opcode != 2))))
 				throw new WebSocketException("Extensions not supported");
 			boolean fin = (flags & 8) == 8;
 			switch(opcode) {
 				case 0:
 					if(messagePart == null)
 						throw new WebSocketException("Continous message without start");
-					this.messagePart = WebSockets.readMessage(in, this.messagePart, limit, true, mask);
+					WebSockets.readMessage(in, this.messagePart, limit, true, mask);
 					if(fin) {
-						ArrayOutputStream localPart = this.messagePart;
+						MessageBuffer localPart = this.messagePart;
 						this.messagePart = null;
-						if(!server.onMessage(this, new WebSocketMessage(localPart.toByteArray(), isBinary))) return;
+						WebSocketMessage msg = localPart.toMessage(isBinary);
+						if(this.isCompressed) msg = this.deflate.decompress(msg, limit);
+						if(!server.onMessage(this, msg)) return;
 					}
 					break;
 				case 1:
@@ -287,17 +554,21 @@ implements Closeable, AutoCloseable {
 					if(messagePart != null)
 						throw new WebSocketException("New message without finishing before");
 					if(fin) {
-						if(!server.onMessage(this, new WebSocketMessage(WebSockets.readMessage(in, limit, true, mask), opcode == 2))) return;
+						WebSocketMessage msg = new WebSocketMessage(WebSockets.readMessage(in, limit, true, mask), opcode == 2);
+						if(rsv1) msg = this.deflate.decompress(msg, limit);
+						if(!server.onMessage(this, msg)) return;
 					} else {
-						this.messagePart = WebSockets.readMessage(in, this.messagePart, limit, true, mask);
+						this.messagePart = WebSockets.readMessage(in, (MessageBuffer) null, limit, true, mask);
 						this.isBinary = (opcode == 2);
+						this.isCompressed = rsv1;
 					}
 					break;
 				case 8:
 					//Closed after listen
 					return;
 				case 9:
-					WebSockets.sendControlFrame(out, WebSockets.FFin | WebSockets.OPong, null, WebSockets.readControlMessage(in, true, mask));
+					byte[] ping = WebSockets.readControlMessage(in, true, mask);
+					this.sendControlFrame(WebSockets.FFin | WebSockets.OPong, ping, 0, ping == null ? 0 : ping.length);
 					break;
 				case 0xA:
 					if(!server.onPong(this, new WebSocketMessage(WebSockets.readControlMessage(in, true, mask), true))) return;
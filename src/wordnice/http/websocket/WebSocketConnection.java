@@ -0,0 +1,444 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import wordnice.http.server.SelectorLoop;
+import wordnice.threads.HashedWheelTimer;
+
+/**
+ * State of WebSocket served by {@link WebSocketEngine}.
+ * Frames are decoded in selector loop as bytes arrive, handlers are 
+ * called in worker pool - one at time for each connection, in order of arrival.
+ * Reading is paused while too many messages wait for worker
+ */
+public class WebSocketConnection
+implements SelectorLoop.ChannelHandler, Runnable {
+	
+	/** Pseudo opcode of event closing connection **/
+	protected static final int OpcodeEnd = -1;
+	
+	/**
+	 * Message or control frame waiting for worker
+	 */
+	protected static class Event {
+		
+		protected final int opcode;
+		protected final WebSocketMessage message;
+		protected final Exception error;
+		protected boolean compressed = false;
+		
+		protected Event(int opcode, WebSocketMessage message, Exception error) {
+			this.opcode = opcode;
+			this.message = message;
+			this.error = error;
+		}
+		
+		protected Event compressed(boolean compressed) {
+			this.compressed = compressed;
+			return this;
+		}
+		
+	}
+	
+	protected final WebSocketEngine engine;
+	protected final WebSocket webSocket;
+	protected final SocketChannel channel;
+	protected final FrameDecoder decoder;
+	protected final long timeout;
+	
+	protected volatile SelectorLoop loop;
+	protected volatile SelectionKey key;
+	protected ByteBuffer readBuffer;
+	
+	//Loop thread only
+	protected boolean inMessage = false;
+	protected boolean isBinary = true;
+	protected boolean isCompressed = false;
+	protected boolean finished = false;
+	protected boolean writeInterest = false;
+	
+	//Guarded by this
+	protected final ArrayDeque<Event> events = new ArrayDeque<Event>();
+	protected boolean scheduled = false;
+	protected boolean paused = false;
+	
+	protected final Runnable resume = new Runnable() {
+		
+		@Override
+		public void run() {
+			updateInterest();
+		}
+		
+	};
+	
+	/**
+	 * Closes channel in loop thread
+	 */
+	protected final Runnable expire = new Runnable() {
+		
+		@Override
+		public void run() {
+			SelectionKey k = key;
+			if(k != null && k.isValid()) loop.closeKey(k, null);
+		}
+		
+	};
+	
+	/**
+	 * Runs in timer thread. Timer is not touched per read: when it fires 
+	 * before connection is idle long enough, it is scheduled again for the rest
+	 */
+	protected final Runnable idleCheck = new Runnable() {
+		
+		@Override
+		public void run() {
+			long idle = System.nanoTime() - webSocket.lastActivity;
+			if(idle < timeout) {
+				scheduleIdle((timeout - idle) / 1000000L + 1);
+				return;
+			}
+			try {
+				loop.execute(idleExpired);
+			} catch(IllegalStateException closed) {}
+		}
+		
+	};
+	
+	/**
+	 * Runs in loop thread once idle check fired
+	 */
+	protected final Runnable idleExpired = new Runnable() {
+		
+		@Override
+		public void run() {
+			SelectionKey k = key;
+			if(finished || k == null || !k.isValid()) return;
+			boolean paused;
+			synchronized(WebSocketConnection.this) {
+				paused = WebSocketConnection.this.paused;
+			}
+			//Not reading while paused is not client's fault
+			if(paused) scheduleIdle(timeout / 1000000L);
+			else if(System.nanoTime() - webSocket.lastActivity < timeout) idleCheck.run();
+			else loop.closeKey(k, null);
+		}
+		
+	};
+	
+	/**
+	 * @param timeout Milliseconds without received data before connection is closed, 0 disables
+	 */
+	protected WebSocketConnection(WebSocketEngine engine, WebSocket ws, SocketChannel channel, 
+			int limit, long timeout) {
+		this.engine = engine;
+		this.webSocket = ws;
+		this.channel = channel;
+		this.timeout = timeout * 1000000L;
+		this.decoder = new FrameDecoder(limit, true);
+	}
+	
+	public WebSocket getWebSocket() {
+		return this.webSocket;
+	}
+	
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+	
+	/**
+	 * @return Count of received messages and control frames waiting for worker
+	 */
+	public synchronized int getQueuedEvents() {
+		return this.events.size();
+	}
+	
+	/**
+	 * @return Timer of idle and close timeouts
+	 */
+	protected HashedWheelTimer getTimer() {
+		WebSocketServer server = this.webSocket.getWebSocketServer();
+		return (server == null) ? HashedWheelTimer.shared() : server.getTimer();
+	}
+	
+	/**
+	 * Called in loop once channel is registered
+	 * 
+	 * @param pending Bytes received before registration or null
+	 */
+	protected void start(SelectorLoop loop, SelectionKey key, ByteBuffer readBuffer, ByteBuffer pending) {
+		this.loop = loop;
+		this.key = key;
+		this.readBuffer = readBuffer;
+		SendQueue queue = this.webSocket.sendQueue;
+		if(queue instanceof ChannelSendQueue) ((ChannelSendQueue) queue).attach(this);
+		if(this.timeout > 0) {
+			synchronized(this.webSocket) {
+				//Cancelled by WebSocket.close
+				this.webSocket.idleTimeout = this.getTimer().newTimeout(this.idleCheck, this.timeout / 1000000L);
+			}
+		}
+		if(pending != null) this.process(pending);
+	}
+	
+	/**
+	 * Schedule next idle check unless WebSocket closed
+	 */
+	protected void scheduleIdle(long millis) {
+		WebSocket ws = this.webSocket;
+		synchronized(ws) {
+			HashedWheelTimer timer = this.getTimer();
+			if(ws.idleTimeout != null && !timer.isClosed())
+				ws.idleTimeout = timer.newTimeout(this.idleCheck, millis);
+		}
+	}
+	
+	/**
+	 * Close channel in loop thread
+	 */
+	protected void expire() {
+		try {
+			this.loop.execute(this.expire);
+		} catch(IllegalStateException closed) {}
+	}
+	
+	/**
+	 * Set interest in OP_READ (unless paused or finished) and OP_WRITE, in loop thread
+	 */
+	protected synchronized void updateInterest() {
+		SelectionKey k = this.key;
+		if(k == null || !k.isValid()) return;
+		int ops = (this.finished || this.paused) ? 0 : SelectionKey.OP_READ;
+		if(this.writeInterest) ops |= SelectionKey.OP_WRITE;
+		k.interestOps(ops);
+	}
+	
+	/**
+	 * Called by {@link ChannelSendQueue} in loop thread
+	 */
+	protected void setWriteInterest(boolean write) {
+		if(this.writeInterest == write) return;
+		this.writeInterest = write;
+		this.updateInterest();
+	}
+	
+	@Override
+	public void onReady(SelectorLoop loop, SelectionKey key) {
+		if(key.isWritable()) {
+			SendQueue queue = this.webSocket.sendQueue;
+			if(queue instanceof ChannelSendQueue) ((ChannelSendQueue) queue).onWritable();
+			else this.setWriteInterest(false);
+			if(!key.isValid() || !key.isReadable()) return;
+		}
+		ByteBuffer buf = this.readBuffer;
+		buf.clear();
+		int n;
+		try {
+			n = this.channel.read(buf);
+		} catch(IOException ex) {
+			this.fail(ex);
+			return;
+		}
+		if(n < 0) {
+			this.fail(new EOFException());
+			return;
+		}
+		if(n == 0) return;
+		this.webSocket.lastActivity = System.nanoTime();
+		buf.flip();
+		this.process(buf);
+	}
+	
+	/**
+	 * Decode all frames in buffer
+	 */
+	protected void process(ByteBuffer buf) {
+		FrameDecoder dec = this.decoder;
+		try {
+			while(!this.finished && dec.decode(buf)) {
+				this.frame(dec);
+			}
+		} catch(IOException ex) {
+			this.fail(ex);
+		}
+	}
+	
+	protected void frame(FrameDecoder dec) throws IOException {
+		int flags = dec.getFlags();
+		boolean fin = (flags & WebSockets.FFin) != 0;
+		int opcode = flags & WebSockets.FOpcode;
+		boolean rsv1 = (flags & WebSockets.FRSV1) != 0;
+		if((flags & (WebSockets.FRSV2 | WebSockets.FRSV3)) != 0 || (rsv1 && (this.webSocket.deflate == null 
+				|| (opcode != WebSockets.OText && opcode != WebSockets.OBin))))
+			throw new WebSocketException("Extensions not supported");
+		switch(opcode) {
+			case WebSockets.OContinue:
+				if(!this.inMessage)
+					throw new WebSocketException("Continous message without start");
+				if(fin) {
+					this.inMessage = false;
+					this.enqueue(new Event(this.isBinary ? WebSockets.OBin : WebSockets.OText, 
+							dec.getMessage().toMessage(this.isBinary), null).compressed(this.isCompressed));
+				}
+				break;
+			case WebSockets.OText:
+			case WebSockets.OBin:
+				if(this.inMessage)
+					throw new WebSocketException("New message without finishing before");
+				this.isBinary = (opcode == WebSockets.OBin);
+				this.isCompressed = rsv1;
+				if(fin) {
+					this.enqueue(new Event(opcode, dec.getMessage().toMessage(this.isBinary), null).compressed(rsv1));
+				} else {
+					this.inMessage = true;
+				}
+				break;
+			case WebSockets.OClose:
+				this.finish(new Event(opcode, null, null));
+				break;
+			case WebSockets.OPing:
+			case WebSockets.OPong:
+				this.enqueue(new Event(opcode, new WebSocketMessage(dec.getControlPayload(), true), null));
+				break;
+			default:
+				throw new WebSocketException("Unknown opcode " + opcode);
+		}
+	}
+	
+	/**
+	 * Stop reading and let worker close connection
+	 */
+	protected void fail(Exception ex) {
+		this.finish(new Event(OpcodeEnd, null, ex));
+	}
+	
+	protected void finish(Event ev) {
+		if(this.finished) return;
+		this.finished = true;
+		//Key stays registered, so queued frames can still be written
+		this.updateInterest();
+		this.enqueue(ev);
+	}
+	
+	protected void enqueue(Event ev) {
+		boolean schedule;
+		synchronized(this) {
+			this.events.add(ev);
+			schedule = !this.scheduled;
+			this.scheduled = true;
+			if(!this.paused && !this.finished && this.events.size() >= this.engine.getMaxQueuedEvents()) {
+				this.paused = true;
+				this.updateInterest();
+			}
+		}
+		if(schedule) this.engine.dispatch(this);
+	}
+	
+	/**
+	 * Handle queued events in worker
+	 */
+	@Override
+	public void run() {
+		while(true) {
+			Event ev;
+			boolean resume = false;
+			synchronized(this) {
+				ev = this.events.poll();
+				if(ev == null) {
+					this.scheduled = false;
+					resume = this.paused;
+					this.paused = false;
+				}
+			}
+			if(ev == null) {
+				if(resume) try {
+					this.loop.execute(this.resume);
+				} catch(IllegalStateException closed) {}
+				return;
+			}
+			this.handle(ev);
+		}
+	}
+	
+	protected void handle(Event ev) {
+		WebSocket ws = this.webSocket;
+		WebSocketServer server = ws.getWebSocketServer();
+		if(server == null || ws.isClosed()) return;
+		switch(ev.opcode) {
+			case WebSockets.OText:
+			case WebSockets.OBin:
+				WebSocketMessage msg = ev.message;
+				if(ev.compressed) try {
+					msg = ws.deflate.decompress(msg, server.getReadLimit());
+				} catch(IOException ex) {
+					server.onDecoderException(ws, ex);
+					ws.closeSilent();
+					break;
+				}
+				server.onMessage(ws, msg);
+				break;
+			case WebSockets.OPing:
+				try {
+					WebSocketMessage ping = ev.message;
+					ws.sendControlFrame(WebSockets.FFin | WebSockets.OPong, 
+							ping.array(), ping.offset(), ping.length());
+				} catch(IOException ex) {
+					server.onDecoderException(ws, ex);
+					ws.closeSilent();
+				}
+				break;
+			case WebSockets.OPong:
+				server.onPong(ws, ev.message);
+				break;
+			case WebSockets.OClose:
+				ws.closeSilent();
+				break;
+			default:
+				if(ev.error != null) server.onDecoderException(ws, ev.error);
+				ws.closeSilent();
+		}
+	}
+	
+	/**
+	 * Called by loop when connection expired or loop is closing
+	 */
+	@Override
+	public void onClose(SelectorLoop loop, SelectionKey key, Exception ex) {
+		this.finish(new Event(OpcodeEnd, null, ex));
+		this.webSocket.socketClosed(); //Loop closes channel next
+	}
+	
+	@Override
+	public String toString() {
+		return "WebSocketConnection [channel=" + channel + ", queued=" + getQueuedEvents() + "]";
+	}
+	
+}
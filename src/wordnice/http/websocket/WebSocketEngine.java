@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import wordnice.http.server.SelectorLoop;
+import wordnice.threads.VirtualThreads;
+
+/**
+ * Serves WebSockets without thread per connection: channels wait 
+ * in selector loops, frames are decoded as data arrive and 
+ * handlers are called in bounded worker pool.
+ * See {@link WebSocketServer#setEngine(WebSocketEngine)}
+ */
+public class WebSocketEngine
+implements Closeable, AutoCloseable {
+	
+	public static int DefaultLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	public static int DefaultWorkers = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+	
+	/** Size of read buffer shared by all channels of one loop **/
+	public static int ReadBufferSize = 16 * 1024;
+	
+	protected final SelectorLoop[] loops;
+	protected final ByteBuffer[] buffers;
+	protected final ExecutorService workers;
+	protected final boolean ownWorkers;
+	protected final AtomicInteger next = new AtomicInteger();
+	protected int maxQueuedEvents = 16;
+	protected long writeTimeout = 30 * 1000;
+	protected volatile boolean closed = false;
+	
+	public WebSocketEngine() throws IOException {
+		this(DefaultLoops, DefaultWorkers);
+	}
+	
+	/**
+	 * @param loops Count of selector threads
+	 * @param workers Count of threads calling handlers
+	 */
+	public WebSocketEngine(int loops, int workers) throws IOException {
+		this(loops, Executors.newFixedThreadPool(workers, 
+				VirtualThreads.daemonFactory("WebSocket-worker")), true);
+	}
+	
+	/**
+	 * @param workers Executor calling handlers, not shut down by {@link #close()}
+	 */
+	public WebSocketEngine(int loops, ExecutorService workers) throws IOException {
+		this(loops, workers, false);
+	}
+	
+	protected WebSocketEngine(int loops, ExecutorService workers, boolean ownWorkers) throws IOException {
+		if(loops < 1) throw new IllegalArgumentException("Loops < 1");
+		if(workers == null) throw new IllegalArgumentException("Workers == null");
+		this.workers = workers;
+		this.ownWorkers = ownWorkers;
+		this.loops = new SelectorLoop[loops];
+		this.buffers = new ByteBuffer[loops];
+		try {
+			for(int i = 0; i < loops; i++) {
+				this.buffers[i] = ByteBuffer.allocateDirect(ReadBufferSize);
+				this.loops[i] = new SelectorLoop("WebSocket-loop-" + i).start();
+			}
+		} catch(IOException ex) {
+			this.close();
+			throw ex;
+		}
+	}
+	
+	public int getMaxQueuedEvents() {
+		return this.maxQueuedEvents;
+	}
+	
+	/**
+	 * Set count of received messages waiting for worker,
+	 * at which reading of connection is paused
+	 */
+	public WebSocketEngine setMaxQueuedEvents(int max) {
+		if(max < 1) throw new IllegalArgumentException("Max queued events < 1");
+		this.maxQueuedEvents = max;
+		return this;
+	}
+	
+	public long getWriteTimeout() {
+		return this.writeTimeout;
+	}
+	
+	/**
+	 * Set milliseconds sender waits for client to accept more data, 0 for ever
+	 */
+	public WebSocketEngine setWriteTimeout(long writeTimeout) {
+		if(writeTimeout < 0) throw new IllegalArgumentException("Negative timeout");
+		this.writeTimeout = writeTimeout;
+		return this;
+	}
+	
+	/**
+	 * @return Executor calling handlers
+	 */
+	public ExecutorService getWorkers() {
+		return this.workers;
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	/**
+	 * @return Count of served connections
+	 */
+	public int getConnectionCount() {
+		int n = 0;
+		for(SelectorLoop loop : this.loops) {
+			if(loop != null) n += loop.getChannelCount();
+		}
+		return n;
+	}
+	
+	/**
+	 * Serve WebSocket over given non-blocking channel.
+	 * 
+	 * @param pending Bytes already read from channel (sent right after handshake) or null
+	 * @param limit Max message length, 0 for unlimited
+	 * @param timeout Milliseconds without received data before connection is closed, 0 disables
+	 */
+	public WebSocketConnection register(WebSocket ws, final SocketChannel channel, 
+			byte[] pending, int limit, long timeout) {
+		if(this.closed) throw new IllegalStateException("Engine closed");
+		int i = (this.next.getAndIncrement() & 0x7FFFFFFF) % this.loops.length;
+		final SelectorLoop loop = this.loops[i];
+		final ByteBuffer buffer = this.buffers[i];
+		final ByteBuffer pend = (pending == null || pending.length == 0) ? null : ByteBuffer.wrap(pending);
+		final WebSocketConnection con = new WebSocketConnection(this, ws, channel, limit, timeout);
+		//Set before frames can arrive, so send queue created by worker gets attached
+		ws.connection = con;
+		loop.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				SelectionKey key;
+				try {
+					if(channel.isBlocking()) channel.configureBlocking(false);
+					key = channel.register(loop.getSelector(), SelectionKey.OP_READ, con);
+				} catch(IOException | RuntimeException ex) {
+					con.fail(ex);
+					return;
+				}
+				con.start(loop, key, buffer, pend);
+			}
+			
+		});
+		return con;
+	}
+	
+	/**
+	 * Run events of connection in worker
+	 */
+	protected void dispatch(WebSocketConnection con) {
+		try {
+			this.workers.execute(con);
+		} catch(RejectedExecutionException ex) {
+			//Shutting down
+			con.getWebSocket().closeSilent();
+		}
+	}
+	
+	/**
+	 * Close all served connections and stop threads
+	 */
+	@Override
+	public void close() {
+		if(this.closed) return;
+		this.closed = true;
+		for(SelectorLoop loop : this.loops) {
+			if(loop != null) try {
+				loop.close();
+			} catch(IOException ign) {}
+		}
+		if(this.ownWorkers) this.workers.shutdown();
+	}
+	
+	@Override
+	public String toString() {
+		return "WebSocketEngine [loops=" + loops.length + ", connections=" + getConnectionCount() 
+			+ ", closed=" + closed + "]";
+	}
+	
+}
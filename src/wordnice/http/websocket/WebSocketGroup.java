@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.http.websocket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wordnice.seq.ByteArraySequence;
+import wordnice.seq.CharArraySequence;
+import wordnice.utils.NiceStrings;
+
+/**
+ * Set of WebSockets (topic, room) receiving same messages.
+ * Message is encoded and framed once, then the same byte array is
+ * queued to {@link SendQueue} of every member, so broadcasting never 
+ * waits for slow client (unless policy is {@link #SlowBlock}). Slow members
+ * are closed in writers of their server. Members are removed once closed.
+ * 
+ * Compressed connections get the shared frame uncompressed,
+ * which permessage-deflate permits for any message.
+ */
+public class WebSocketGroup
+implements Iterable<WebSocket> {
+	
+	/** Queue frame to full send queue too, handled by policy of the queue **/
+	public static final int SlowBlock = 0;
+	/** Skip member whose send queue is full **/
+	public static final int SlowSkip = 1;
+	/** Close member whose send queue is full **/
+	public static final int SlowClose = 2;
+	
+	protected final String name;
+	protected final Set<WebSocket> members = Collections.newSetFromMap(
+			new ConcurrentHashMap<WebSocket,Boolean>());
+	protected volatile int slowPolicy = SlowSkip;
+	protected volatile long sendQueueLimit = SendQueue.DefaultLimit;
+	
+	protected final AtomicLong delivered = new AtomicLong();
+	protected final AtomicLong skipped = new AtomicLong();
+	
+	public WebSocketGroup(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public int getSlowPolicy() {
+		return this.slowPolicy;
+	}
+	
+	/**
+	 * @param policy {@link #SlowBlock}, {@link #SlowSkip} or {@link #SlowClose}
+	 */
+	public WebSocketGroup setSlowPolicy(int policy) {
+		if(policy < SlowBlock || policy > SlowClose)
+			throw new IllegalArgumentException("Unknown policy " + policy);
+		this.slowPolicy = policy;
+		return this;
+	}
+	
+	public long getSendQueueLimit() {
+		return this.sendQueueLimit;
+	}
+	
+	/**
+	 * Set max queued bytes of member over which it counts as slow. Used 
+	 * for members without send queue, unless server sets its own limit
+	 */
+	public WebSocketGroup setSendQueueLimit(long limit) {
+		if(limit < 1) throw new IllegalArgumentException("Limit < 1");
+		this.sendQueueLimit = limit;
+		return this;
+	}
+	
+	/**
+	 * @return Frames queued to members
+	 */
+	public long getDelivered() {
+		return this.delivered.get();
+	}
+	
+	/**
+	 * @return Frames not queued to slow (or closed) members
+	 */
+	public long getSkipped() {
+		return this.skipped.get();
+	}
+	
+	/**
+	 * Add member, creating its send queue if it has none
+	 * @return True if added, false if already member or closed
+	 */
+	public boolean add(WebSocket ws) {
+		if(ws == null) throw new IllegalArgumentException("WebSocket == null");
+		try {
+			ws.ensureSendQueue(this.sendQueueLimit);
+		} catch(IOException closed) {
+			return false;
+		}
+		if(ws.isClosed() || !this.members.add(ws)) return false;
+		ws.groups.add(this);
+		if(ws.isClosed()) { //closed meanwhile, close() may have missed this group
+			this.remove(ws);
+			return false;
+		}
+		return true;
+	}
+	
+	public boolean remove(WebSocket ws) {
+		if(ws == null) return false;
+		ws.groups.remove(this);
+		return this.members.remove(ws);
+	}
+	
+	public boolean contains(WebSocket ws) {
+		return this.members.contains(ws);
+	}
+	
+	public int size() {
+		return this.members.size();
+	}
+	
+	public boolean isEmpty() {
+		return this.members.isEmpty();
+	}
+	
+	@Override
+	public Iterator<WebSocket> iterator() {
+		return Collections.unmodifiableSet(this.members).iterator();
+	}
+	
+	public int broadcast(CharSequence seq) throws IOException {
+		return this.broadcast(seq, null);
+	}
+	
+	/**
+	 * Send text message to all members except given one
+	 * @return Count of members the message was queued to
+	 */
+	public int broadcast(CharSequence seq, WebSocket except) throws IOException {
+		if(seq == null) throw new IllegalArgumentException("Sequence == null");
+		byte[] data;
+		if(seq instanceof CharArraySequence) {
+			CharArraySequence chseq = (CharArraySequence) seq;
+			data = NiceStrings.toBytes(chseq.array(), chseq.offset(), chseq.length());
+		} else {
+			data = NiceStrings.toBytes(seq, 0, seq.length());
+		}
+		return this.broadcast(data, 0, data.length, WebSockets.FFin | WebSockets.OText, except);
+	}
+	
+	public int broadcast(ByteArraySequence seq, boolean isBinary) throws IOException {
+		if(seq == null) throw new IllegalArgumentException("Sequence == null");
+		return this.broadcast(seq.array(), seq.offset(), seq.length(), 
+				WebSockets.FFin | (isBinary ? WebSockets.OBin : WebSockets.OText), null);
+	}
+	
+	public int broadcast(byte[] bytes, boolean isBinary) throws IOException {
+		if(bytes == null) throw new IllegalArgumentException("Bytes == null");
+		return this.broadcast(bytes, 0, bytes.length, 
+				WebSockets.FFin | (isBinary ? WebSockets.OBin : WebSockets.OText), null);
+	}
+	
+	/**
+	 * Frame message once and send it to all members except given one
+	 * @return Count of members the message was queued to
+	 */
+	public int broadcast(byte[] bytes, int off, int len, int flags, WebSocket except) throws IOException {
+		if(this.members.isEmpty()) return 0;
+		return this.broadcastFrame(WebSockets.createUnmaskedFrame(bytes, off, len, flags), except);
+	}
+	
+	/**
+	 * Write already encoded frame(s) to all members except given one.
+	 * Array must not be modified afterwards, as members may still be writing it
+	 * @return Count of members the frame was queued to
+	 */
+	public int broadcastFrame(byte[] frame, WebSocket except) {
+		if(frame == null) throw new IllegalArgumentException("Frame == null");
+		int policy = this.slowPolicy;
+		int count = 0, skip = 0;
+		for(WebSocket ws : this.members) {
+			if(ws == except) continue;
+			if(ws.isClosed()) {
+				this.remove(ws);
+				skip++;
+				continue;
+			}
+			try {
+				SendQueue queue = ws.ensureSendQueue(this.sendQueueLimit);
+				if(policy == SlowBlock) {
+					if(!queue.offer(frame, 0, frame.length, false)) {
+						skip++;
+						continue;
+					}
+				} else if(!queue.tryOffer(frame, 0, frame.length)) {
+					skip++;
+					if(policy == SlowClose) this.onSlow(ws);
+					continue;
+				}
+				count++;
+			} catch(IOException ex) {
+				skip++;
+				this.close(ws, ex);
+			}
+		}
+		if(count != 0) this.delivered.addAndGet(count);
+		if(skip != 0) this.skipped.addAndGet(skip);
+		return count;
+	}
+	
+	/**
+	 * Called with {@link #SlowClose} policy for member which did not keep up
+	 */
+	protected void onSlow(WebSocket ws) {
+		this.close(ws, new IOException("Slow consumer"));
+	}
+	
+	/**
+	 * Remove member and close it in writers of its server, so close listeners 
+	 * and draining of its send queue do not hold broadcasting thread
+	 */
+	protected void close(final WebSocket ws, final IOException ex) {
+		this.remove(ws);
+		WebSocketServer server = ws.getWebSocketServer();
+		if(server != null) try {
+			server.getWriters().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					ws.closeSilent(ex);
+				}
+				
+			});
+			return;
+		} catch(RejectedExecutionException rex) {}
+		//No writer, drop connection without waiting for anything
+		SendQueue queue = ws.getSendQueue();
+		if(queue != null) queue.clear();
+		try {
+			Socket sock = ws.getSocket();
+			if(sock != null) sock.close();
+		} catch(IOException ign) {}
+		ws.closeSilent(ex);
+	}
+	
+	@Override
+	public String toString() {
+		return "WebSocketGroup [name=" + name + ", size=" + size() + "]";
+	}
+	
+}
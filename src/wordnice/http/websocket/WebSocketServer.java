@@ -28,8 +28,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
@@ -39,6 +44,9 @@ import wordnice.http.server.HttpRequest;
 import wordnice.http.server.RequestData;
 import wordnice.http.server.HttpRequestHandler;
 import wordnice.http.server.ResponseData;
+import wordnice.streams.BufferedInput;
+import wordnice.threads.HashedWheelTimer;
+import wordnice.threads.VirtualThreads;
 
 public class WebSocketServer
 implements HttpRequestHandler {
@@ -93,6 +101,18 @@ implements HttpRequestHandler {
 	protected boolean forceAnyWebsocket = false;
 	protected int timeout = 30*1000;
 	protected int readLimit = 1024*1024;
+	protected HashedWheelTimer timer;
+	
+	/** Property of HttpRequest with negotiated {@link PerMessageDeflate.Session} **/
+	protected static final String DeflateProperty = "WebSocketDeflate";
+	protected WebSocketEngine engine;
+	protected PerMessageDeflate perMessageDeflate;
+	protected long sendQueueLimit = 0;
+	protected int sendQueuePolicy = SendQueue.FullBlock;
+	protected long sendQueueTimeout = 10000;
+	protected ExecutorService writers;
+	protected final ConcurrentHashMap<String,WebSocketGroup> groups = 
+			new ConcurrentHashMap<String,WebSocketGroup>();
 	
 	/**
 	 * Constuctor
@@ -152,12 +172,163 @@ implements HttpRequestHandler {
 		return timeout;
 	}
 
+	/**
+	 * Set milliseconds without received frame before connection is closed. 0 disables
+	 */
 	public WebSocketServer setTimeout(int timeout) {
 		if(timeout < 0) throw new IllegalArgumentException("Timeout is negative");
 		this.timeout = timeout;
 		return this;
 	}
 	
+	/**
+	 * @return Timer of idle timeouts, shared timer by default
+	 */
+	public HashedWheelTimer getTimer() {
+		HashedWheelTimer t = this.timer;
+		return (t == null) ? HashedWheelTimer.shared() : t;
+	}
+	
+	public WebSocketServer setTimer(HashedWheelTimer timer) {
+		this.timer = timer;
+		return this;
+	}
+	
+	public WebSocketEngine getEngine() {
+		return this.engine;
+	}
+	
+	/**
+	 * @return Group of given name, created on first use
+	 */
+	public WebSocketGroup getGroup(String name) {
+		if(name == null) throw new IllegalArgumentException("Name == null");
+		WebSocketGroup group = this.groups.get(name);
+		if(group == null) {
+			group = this.createGroup(name);
+			WebSocketGroup prev = this.groups.putIfAbsent(name, group);
+			if(prev != null) group = prev;
+		}
+		return group;
+	}
+	
+	/**
+	 * @return Group of given name or null if not created
+	 */
+	public WebSocketGroup findGroup(String name) {
+		if(name == null) return null;
+		return this.groups.get(name);
+	}
+	
+	/**
+	 * Forget group. Its members stay in it, but later 
+	 * {@link #getGroup(String)} creates new one
+	 */
+	public WebSocketGroup removeGroup(String name) {
+		if(name == null) return null;
+		return this.groups.remove(name);
+	}
+	
+	public Collection<WebSocketGroup> getGroups() {
+		return Collections.unmodifiableCollection(this.groups.values());
+	}
+	
+	protected WebSocketGroup createGroup(String name) {
+		return new WebSocketGroup(name);
+	}
+	
+	public long getSendQueueLimit() {
+		return this.sendQueueLimit;
+	}
+	
+	public int getSendQueuePolicy() {
+		return this.sendQueuePolicy;
+	}
+	
+	public long getSendQueueTimeout() {
+		return this.sendQueueTimeout;
+	}
+	
+	/**
+	 * Queue outgoing frames of each connection, so senders do not write socket themselves.
+	 * Queues are written by selector loops of engine, or by {@link #getWriters()} for blocking connections
+	 * @param limit Max queued bytes per connection, 0 to write directly
+	 * @param policy What to do when client falls behind, see {@link SendQueue#FullBlock}
+	 */
+	public WebSocketServer setSendQueue(long limit, int policy) {
+		if(limit < 0) throw new IllegalArgumentException("Negative limit");
+		if(policy < SendQueue.FullBlock || policy > SendQueue.FullClose)
+			throw new IllegalArgumentException("Unknown policy " + policy);
+		this.sendQueueLimit = limit;
+		this.sendQueuePolicy = policy;
+		return this;
+	}
+	
+	/**
+	 * Set milliseconds blocked sender waits for space in send queue, 0 for ever
+	 */
+	public WebSocketServer setSendQueueTimeout(long timeout) {
+		if(timeout < 0) throw new IllegalArgumentException("Negative timeout");
+		this.sendQueueTimeout = timeout;
+		return this;
+	}
+	
+	/**
+	 * @return Threads writing send queues of blocking connections
+	 */
+	public synchronized ExecutorService getWriters() {
+		if(this.writers == null) this.writers = VirtualThreads.newExecutor("WebSocket-Writer");
+		return this.writers;
+	}
+	
+	/**
+	 * Set executor writing send queues of blocking connections. Each writer 
+	 * blocks while its client does not read, so executor should not be bounded
+	 */
+	public WebSocketServer setWriters(ExecutorService writers) {
+		synchronized(this) {
+			this.writers = writers;
+		}
+		return this;
+	}
+	
+	/**
+	 * @param limit Max queued bytes, 0 to write directly
+	 * @return Send queue of connection or null to write directly
+	 */
+	protected SendQueue createSendQueue(WebSocket ws, long limit) {
+		if(limit == 0) return null;
+		OutputStream out = ws.getOutputStream();
+		if(out instanceof ChannelOutputStream) {
+			return new ChannelSendQueue(ws, ((ChannelOutputStream) out).getChannel(), 
+					limit, this.sendQueuePolicy, this.sendQueueTimeout);
+		}
+		return new SendQueue(ws, this.getWriters(), limit, this.sendQueuePolicy, this.sendQueueTimeout);
+	}
+	
+	public PerMessageDeflate getPerMessageDeflate() {
+		return this.perMessageDeflate;
+	}
+	
+	/**
+	 * Enable compression of messages (when client offers it), null disables
+	 */
+	public WebSocketServer setPerMessageDeflate(PerMessageDeflate deflate) {
+		this.perMessageDeflate = deflate;
+		return this;
+	}
+	
+	/**
+	 * Serve connections in given engine instead of blocking request thread 
+	 * for whole life of connection. Used for plain connections accepted 
+	 * through channel (see {@link wordnice.http.server.HttpServer#create(java.nio.channels.ServerSocketChannel)}),
+	 * others are still served by {@link WebSocket#listen()}
+	 */
+	public WebSocketServer setEngine(WebSocketEngine engine) {
+		this.engine = engine;
+		return this;
+	}
+	
 	@Override
 	public boolean finishAfterHeads(HttpRequest hr) {
 		WebSocket ws = null;
@@ -174,23 +345,57 @@ implements HttpRequestHandler {
 			
 			hr.getOutputStream().flush();
 			Socket sock = hr.getSocket();
+			SocketChannel channel = sock.getChannel();
+			WebSocketEngine engine = this.engine;
+			if(engine != null && !engine.isClosed() && channel != null && !hr.isSecure()) {
+				byte[] pending = readBuffered(hr.getInputStream());
+				channel.configureBlocking(false);
+				ws = new WebSocket(sock, new ChannelOutputStream(channel, engine.getWriteTimeout()),
+						null, hr.getRequest(), this);
+				ws.deflate = (PerMessageDeflate.Session) hr.getProperty(DeflateProperty);
+				ws.sendQueue = this.createSendQueue(ws, this.sendQueueLimit);
+				ws.closeListener = hr.getDetachedCloseListener();
+				hr.setCloseOnFinish(false);
+				if(this.onConnect(ws)) {
+					ws.connection = engine.register(ws, channel, pending, 
+							this.getReadLimit(), this.getTimeout());
+				}
+				return true;
+			}
 			//OutputStream out = sock.getOutputStream();
 			OutputStream out = hr.getOutputStream();
 			InputStream in = hr.getInputStream();
 			ws = new WebSocket(sock, out, in, hr.getRequest(), this);
+			ws.deflate = (PerMessageDeflate.Session) hr.getProperty(DeflateProperty);
+			ws.sendQueue = this.createSendQueue(ws, this.sendQueueLimit);
 			int timeout = this.getTimeout();
-			if(timeout > 0) sock.setSoTimeout(timeout);
+			if(timeout > 0) ws.watchIdle(this.getTimer(), timeout);
 			if(this.onConnect(ws)) {
 				ws.listen();
 			}
 		} catch(IOException t) {
 			if(ws == null || !ws.isClosed())
 				this.onDecoderException(ws, t);
+			Object def = hr.getProperty(DeflateProperty);
+			if(ws == null && def != null) ((PerMessageDeflate.Session) def).release();
 		}
 		if(ws != null && !ws.isClosed()) ws.closeSilent();
 		return true;
 	}
 	
+	/**
+	 * @return Bytes received after handshake, which are already buffered, or null
+	 */
+	protected static byte[] readBuffered(InputStream in) throws IOException {
+		if(!(in instanceof BufferedInput)) return null;
+		int n = ((BufferedInput) in).buffered();
+		if(n <= 0) return null;
+		byte[] data = new byte[n];
+		n = in.read(data, 0, n);
+		if(n <= 0) return null;
+		return (n == data.length) ? data : Arrays.copyOf(data, n);
+	}
+	
 	/**
 	 * @return -1 Continue, 0 error (not supported - continue), 1 die
 	 */
@@ -225,6 +430,14 @@ implements HttpRequestHandler {
 		
 		ResponseData res = hr.getResponse();
 		res.setHead("Sec-WebSocket-Accept", token);
+		PerMessageDeflate pmd = this.perMessageDeflate;
+		if(pmd != null) {
+			PerMessageDeflate.Session def = pmd.negotiate(rd.getHead("SEC-WEBSOCKET-EXTENSIONS"));
+			if(def != null) {
+				res.setHead("Sec-WebSocket-Extensions", def.getResponse());
+				hr.setProperty(DeflateProperty, def);
+			}
+		}
 		res.allowCORS();
 		hr.writeResponse("101 Switching Protocols");
 		return true;
@@ -28,6 +28,9 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import wordnice.api.Nice;
@@ -138,20 +141,14 @@ public class WebSockets {
 	        offset = 4;
 	    } else{
 	    	output[1] = (byte) 127;
-	        output[2] = (byte) ((len >>> 56) & 0xFF);
-	        output[3] = (byte) ((len >> 48) & 0xFF);
-	        output[4] = (byte) ((len >> 40) & 0xFF);
-	        output[5] = (byte) ((len >> 32) & 0xFF);
+	        //bytes 2-5 stay zero, length is int
 	        output[6] = (byte) ((len >> 24) & 0xFF);
 	        output[7] = (byte) ((len >> 16) & 0xFF);
 	        output[8] = (byte) ((len >> 8) & 0xFF);
 	        output[9] = (byte) (len & 0xFF);
 	        offset = 10;
 	    }
-	    int i = off;
-	    int end = off + len;
-	    for(; i < end; i++, offset++)
-	        output[offset] = rawData[i];
+	    System.arraycopy(rawData, off, output, offset, len);
 	    return output;
 	}
          
@@ -202,12 +199,7 @@ public class WebSockets {
 		byte[] output = new byte[len];
 		IUtils.readFully(in, output);
 		
-		if(hasMask) {
-			int i = 0;
-			for(; i < output.length; i++) {
-				output[i] = (byte) ((output[i] ^ mask[i&3]) & 0xFF);
-			}
-		}
+		if(hasMask) unmask(output, 0, output.length, mask, 0);
 		return output;
     }
 
@@ -243,20 +235,78 @@ public class WebSockets {
 			if(mask == null) mask = new byte[4];
 			IUtils.readFully(in, mask, 0, 4);
 		}
-		//TODO
 		byte[] output = new byte[len];
 		IUtils.readFully(in, output);
 		
+		if(hasMask) unmask(output, 0, output.length, mask, 0);
+		out.write(output);
+		return out;
+	}
+	
+	/**
+	 * Read payload of frame (after its first byte) straight into given buffer,
+	 * where it is unmasked. Collects fragmented message without copying
+	 * 
+	 * @param limit Max length of whole message, 0 for unlimited
+	 */
+	public static MessageBuffer readMessage(InputStream in, MessageBuffer out, int limit, boolean forceMask, byte[] mask)
+			throws IOException, WebSocketException {
+		if(out == null) out = new MessageBuffer();
+		int len = in.read();
+		if(len == -1) throw new EOFException();
+		boolean hasMask = (len & LMask) == LMask;
+		if(forceMask && !hasMask) {
+			throw new WebSocketException("Mask missing but required!");
+		}
+		len = len & 0x7F;
+		long longlen = len;
+		if(len == 126) {
+			int b1 = in.read();
+			int b2 = in.read();
+			if(b2 == -1) throw new EOFException();
+			longlen = (b1 << 8) | b2;
+		} else if(len == 127) {
+			longlen = readLong(in);
+			if(longlen < 0) throw new WebSocketException("Negative 64bit size!");
+		}
+		longlen += out.size();
+		if((longlen > limit && limit != 0) || longlen > Nice.MaxArrayLength) {
+			throw new WebSocketException("Limit reached");
+		}
 		if(hasMask) {
-			int i = 0;
-			for(; i < output.length; i++) {
-				output[i] = (byte) ((output[i] ^ mask[i&3]) & 0xFF);
-			}
+			if(mask == null) mask = new byte[4];
+			IUtils.readFully(in, mask, 0, 4);
 		}
-		out.write(output);
+		out.read(in, (int) longlen - out.size(), hasMask ? mask : null);
 		return out;
 	}
 	
+	protected static final boolean NativeBigEndian = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+	
+	/**
+	 * XOR bytes with 4 byte mask in place, 8 bytes at time.
+	 * Masking is same operation
+	 * 
+	 * @param mask Array with mask applied to first byte at maskOff
+	 */
+	public static void unmask(byte[] data, int off, int len, byte[] mask, int maskOff) {
+		int i = off;
+		int end = off + len;
+		if(len >= 16) {
+			int m = (mask[maskOff] & 0xFF) | ((mask[maskOff+1] & 0xFF) << 8)
+					| ((mask[maskOff+2] & 0xFF) << 16) | ((mask[maskOff+3] & 0xFF) << 24);
+			if(NativeBigEndian) m = Integer.reverseBytes(m);
+			long lm = (m & 0xFFFFFFFFL) | ((long) m << 32);
+			ByteBuffer view = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+			for(int last = end - 8; i <= last; i += 8) {
+				view.putLong(i, view.getLong(i) ^ lm);
+			}
+		}
+		for(; i < end; i++) {
+			data[i] ^= mask[maskOff + ((i - off) & 3)];
+		}
+	}
+	
 	public static void sendControlFrame(OutputStream out, int flag)
 			throws IOException {
 		sendFrame(out, flag, null, null, 0, 0);
@@ -298,10 +348,7 @@ public class WebSockets {
 	        output[3] = (byte) (conLen & 0xFF); 
 	    } else{
 	    	output[1] = (byte) (127 | maskFlag);
-	        output[2] = (byte) ((conLen >>> 56) & 0xFF);
-	        output[3] = (byte) ((conLen >> 48) & 0xFF);
-	        output[4] = (byte) ((conLen >> 40) & 0xFF);
-	        output[5] = (byte) ((conLen >> 32) & 0xFF);
+	        //bytes 2-5 stay zero, length is int
 	        output[6] = (byte) ((conLen >> 24) & 0xFF);
 	        output[7] = (byte) ((conLen >> 16) & 0xFF);
 	        output[8] = (byte) ((conLen >> 8) & 0xFF);
@@ -310,13 +357,13 @@ public class WebSockets {
 	    out.write(output);
 		if(content != null) {
 			if(mask != null) {
-				int i = 0;
-				for(; i < conLen; i++) {
-					content[i+off] = (byte) ((content[i] ^ mask[i&3]) & 0xFF);
-				}
+				byte[] masked = Arrays.copyOfRange(content, off, off + conLen);
+				unmask(masked, 0, conLen, mask, 0);
 				out.write(mask, 0, 4);
+				out.write(masked);
+			} else {
+				out.write(content, off, conLen);
 			}
-			out.write(content);
 		}
 		out.flush();
 	}
@@ -340,12 +387,7 @@ public class WebSockets {
 		byte[] output = new byte[len];
 		IUtils.readFully(in, output);
 		
-		if(hasMask) {
-			int i = 0;
-			for(; i < output.length; i++) {
-				output[i] = (byte) ((output[i] ^ mask[i&3]) & 0xFF);
-			}
-		}
+		if(hasMask) unmask(output, 0, output.length, mask, 0);
 		return output;
     }
 	
@@ -372,10 +414,7 @@ public class WebSockets {
 	        offset = 4;
 	    } else{
 	    	output[1] = (byte) 127;
-	        output[2] = (byte) ((len >>> 56) & 0xFF);
-	        output[3] = (byte) ((len >> 48) & 0xFF);
-	        output[4] = (byte) ((len >> 40) & 0xFF);
-	        output[5] = (byte) ((len >> 32) & 0xFF);
+	        //bytes 2-5 stay zero, length is int
 	        output[6] = (byte) ((len >> 24) & 0xFF);
 	        output[7] = (byte) ((len >> 16) & 0xFF);
 	        output[8] = (byte) ((len >> 8) & 0xFF);
@@ -385,11 +424,8 @@ public class WebSockets {
 	    Iterator<ByteArraySequence> it = seq.iterator();
 		while(it.hasNext()) {
 			ByteArraySequence cur = it.next();
-			int i = cur.offset();
-			byte[] rawData = cur.array();
-			int end = i = cur.length();
-			for(; i < end; i++)
-		        output[offset++] = rawData[i];
+			System.arraycopy(cur.array(), cur.offset(), output, offset, cur.length());
+			offset += cur.length();
 		}
 	    return output;
 	}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.limit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit adapted by measured latency (AIMD).
+ * Limit grows by one while requests complete close to the lowest
+ * latency seen recently and the limit is actually used, 
+ * and shrinks multiplicatively once latency exceeds 
+ * tolerance * lowest latency (or fixed target latency), which means 
+ * requests started to queue somewhere.
+ * 
+ * <pre>
+ * if(!limit.tryAcquire()) reject();
+ * long start = System.nanoTime();
+ * try { ... } finally { limit.release(System.nanoTime() - start); }
+ * </pre>
+ */
+public class AdaptiveLimit {
+	
+	protected final AtomicInteger inFlight = new AtomicInteger();
+	protected volatile int limit;
+	protected int minLimit;
+	protected int maxLimit;
+	protected double backoff = 0.9;
+	protected double tolerance = 2.0;
+	protected long targetLatency = 0;
+	
+	/** Lowest latency of previous window, 0 if unknown **/
+	protected long minLatency = 0;
+	protected long windowMin = Long.MAX_VALUE;
+	protected long windowStart = System.nanoTime();
+	protected long window = 10_000_000_000L;
+	protected long lastDecrease = 0;
+	
+	public AdaptiveLimit() {
+		this(20, 1, 1000);
+	}
+	
+	public AdaptiveLimit(int initial, int min, int max) {
+		if(min < 1 || max < min) throw new IllegalArgumentException("Wrong bounds " + min + " - " + max);
+		if(initial < min || initial > max) throw new IllegalArgumentException("Initial limit out of bounds");
+		this.limit = initial;
+		this.minLimit = min;
+		this.maxLimit = max;
+	}
+	
+	public int getLimit() {
+		return this.limit;
+	}
+	
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+	
+	public int getMinLimit() {
+		return this.minLimit;
+	}
+	
+	public int getMaxLimit() {
+		return this.maxLimit;
+	}
+	
+	public double getBackoff() {
+		return this.backoff;
+	}
+	
+	/**
+	 * @param backoff Multiplier of limit when latency grows, 0.5 - 1
+	 */
+	public AdaptiveLimit setBackoff(double backoff) {
+		if(backoff < 0.5 || backoff >= 1) throw new IllegalArgumentException("Backoff must be 0.5 - 1");
+		this.backoff = backoff;
+		return this;
+	}
+	
+	public double getTolerance() {
+		return this.tolerance;
+	}
+	
+	/**
+	 * @param tolerance Latency higher than tolerance * lowest latency is considered queueing
+	 */
+	public AdaptiveLimit setTolerance(double tolerance) {
+		if(tolerance < 1) throw new IllegalArgumentException("Tolerance must be >= 1");
+		this.tolerance = tolerance;
+		return this;
+	}
+	
+	public long getTargetLatency() {
+		return this.targetLatency;
+	}
+	
+	/**
+	 * @param nanos Fixed latency above which limit is decreased, 0 to use tolerance
+	 */
+	public AdaptiveLimit setTargetLatency(long nanos) {
+		this.targetLatency = nanos;
+		return this;
+	}
+	
+	/**
+	 * @param nanos Length of window lowest latency is measured in
+	 */
+	public AdaptiveLimit setWindow(long nanos) {
+		if(nanos <= 0) throw new IllegalArgumentException("Window must be positive");
+		this.window = nanos;
+		return this;
+	}
+	
+	/**
+	 * @return Lowest latency of last window (nanoseconds), 0 if unknown yet
+	 */
+	public synchronized long getMinLatency() {
+		return this.minLatency;
+	}
+	
+	/**
+	 * @return true if request can start, false if limit is reached
+	 */
+	public boolean tryAcquire() {
+		AtomicInteger in = this.inFlight;
+		while(true) {
+			int cur = in.get();
+			if(cur >= this.limit) return false;
+			if(in.compareAndSet(cur, cur + 1)) return true;
+		}
+	}
+	
+	/**
+	 * Finish request started by successful {@link #tryAcquire()}
+	 * @param nanos Latency of request
+	 */
+	public void release(long nanos) {
+		int inFlight = this.inFlight.getAndDecrement();
+		this.sample(nanos, inFlight);
+	}
+	
+	/**
+	 * Finish request without latency sample (e.g. it did not reach handlers)
+	 */
+	public void releaseUnsampled() {
+		this.inFlight.decrementAndGet();
+	}
+	
+	/**
+	 * Finish request which failed because of overload (e.g. timed out)
+	 */
+	public void releaseDropped() {
+		this.inFlight.decrementAndGet();
+		synchronized(this) {
+			this.decrease(System.nanoTime());
+		}
+	}
+	
+	protected synchronized void sample(long nanos, int inFlight) {
+		long now = System.nanoTime();
+		if(nanos < this.windowMin) this.windowMin = nanos;
+		if(this.minLatency == 0 || nanos < this.minLatency) this.minLatency = nanos;
+		if(now - this.windowStart >= this.window) {
+			//Let lowest latency rise when conditions change
+			this.minLatency = this.windowMin;
+			this.windowMin = Long.MAX_VALUE;
+			this.windowStart = now;
+		}
+		long target = this.targetLatency;
+		if(target <= 0) target = (long) (this.minLatency * this.tolerance);
+		int lim = this.limit;
+		if(nanos > target) {
+			//Decrease at most once per latency, responses started before
+			//the decrease would decrease it again
+			if(now - this.lastDecrease >= nanos) this.decrease(now);
+		} else if(inFlight * 2 >= lim && lim < this.maxLimit) {
+			this.limit = lim + 1;
+		}
+	}
+	
+	protected void decrease(long now) {
+		this.limit = Math.max(this.minLimit, (int) (this.limit * this.backoff));
+		this.lastDecrease = now;
+	}
+	
+	@Override
+	public String toString() {
+		return "AdaptiveLimit [limit=" + limit + ", inFlight=" + getInFlight() 
+				+ ", minLatency=" + getMinLatency() + "]";
+	}
+	
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.limit;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Rate limiters per key (e.g. remote address or API key), created on
+ * first use. Limiters of keys unused for {@link #getExpireAfter()} are
+ * removed, count of keys is bounded so spoofed keys can not exhaust memory.
+ * When all {@link #getMaxKeys()} keys are in use, new keys share one
+ * overflow limiter until sweep frees space
+ */
+public class KeyedRateLimiter<K> {
+	
+	/** Minimum nanoseconds between sweeps caused by full map **/
+	protected static final long FullSweepInterval = 1000000000L;
+	
+	protected static class Entry {
+		
+		protected final RateLimiter limiter;
+		protected volatile long lastAccess;
+		
+		protected Entry(RateLimiter limiter, long now) {
+			this.limiter = limiter;
+			this.lastAccess = now;
+		}
+		
+	}
+	
+	protected final ConcurrentHashMap<K,Entry> map;
+	protected final Supplier<? extends RateLimiter> factory;
+	protected long expireAfter = 60000000000L;
+	protected int maxKeys = 100000;
+	protected final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+	protected final AtomicLong nextFullSweep = new AtomicLong(System.nanoTime());
+	protected volatile RateLimiter overflow;
+	
+	/**
+	 * @param factory Creates limiter of new key
+	 */
+	public KeyedRateLimiter(Supplier<? extends RateLimiter> factory) {
+		if(factory == null) throw new IllegalArgumentException("Factory == null");
+		this.factory = factory;
+		this.map = new ConcurrentHashMap<K,Entry>(256, 0.75f, 
+				Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+	}
+	
+	/**
+	 * Token bucket per key
+	 */
+	public static <K> KeyedRateLimiter<K> tokenBucket(final double perSecond, final int capacity) {
+		return new KeyedRateLimiter<K>(new Supplier<RateLimiter>() {
+			
+			@Override
+			public RateLimiter get() {
+				return new TokenBucket(perSecond, capacity);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Sliding window per key
+	 */
+	public static <K> KeyedRateLimiter<K> slidingWindow(final int limit, final long windowMillis) {
+		return new KeyedRateLimiter<K>(new Supplier<RateLimiter>() {
+			
+			@Override
+			public RateLimiter get() {
+				return new SlidingWindowLimiter(limit, windowMillis);
+			}
+			
+		});
+	}
+	
+	public long getExpireAfter() {
+		return this.expireAfter / 1000000L;
+	}
+	
+	/**
+	 * Milliseconds after which limiter of unused key is removed.
+	 * Should be longer than time needed to refill limiter
+	 */
+	public KeyedRateLimiter<K> setExpireAfter(long millis) {
+		this.expireAfter = millis * 1000000L;
+		return this;
+	}
+	
+	public int getMaxKeys() {
+		return this.maxKeys;
+	}
+	
+	/**
+	 * Maximum count of tracked keys, new keys over it share overflow limiter
+	 */
+	public KeyedRateLimiter<K> setMaxKeys(int maxKeys) {
+		this.maxKeys = maxKeys;
+		return this;
+	}
+	
+	/**
+	 * @return Limiter shared by keys which did not fit into map
+	 */
+	public RateLimiter getOverflow() {
+		RateLimiter o = this.overflow;
+		if(o == null) {
+			synchronized(this) {
+				o = this.overflow;
+				if(o == null) this.overflow = o = this.factory.get();
+			}
+		}
+		return o;
+	}
+	
+	public int size() {
+		return this.map.size();
+	}
+	
+	public void clear() {
+		this.map.clear();
+	}
+	
+	/**
+	 * @return Limiter of key, or overflow limiter if too many keys are tracked
+	 */
+	public RateLimiter get(K key) {
+		long now = System.nanoTime();
+		long next = this.nextSweep.get();
+		if(now - next >= 0 && this.nextSweep.compareAndSet(next, now + this.expireAfter / 2)) 
+			this.sweep(now);
+		Entry e = this.map.get(key);
+		if(e == null) {
+			if(this.map.size() >= this.maxKeys) {
+				next = this.nextFullSweep.get();
+				if(now - next >= 0 && this.nextFullSweep.compareAndSet(next, now + FullSweepInterval))
+					this.sweep(now);
+				if(this.map.size() >= this.maxKeys) return this.getOverflow();
+			}
+			Entry created = new Entry(this.factory.get(), now);
+			e = this.map.putIfAbsent(key, created);
+			if(e == null) return created.limiter;
+		}
+		e.lastAccess = now;
+		return e.limiter;
+	}
+	
+	public boolean tryAcquire(K key) {
+		return this.tryAcquire(key, 1);
+	}
+	
+	public boolean tryAcquire(K key, int permits) {
+		RateLimiter l = this.get(key);
+		return l.tryAcquire(permits);
+	}
+	
+	/**
+	 * @return Nanoseconds until key can acquire permits
+	 */
+	public long getWaitNanos(K key, int permits) {
+		Entry e = this.map.get(key);
+		if(e != null) return e.limiter.getWaitNanos(permits);
+		RateLimiter o = this.overflow;
+		return (o == null || this.map.size() < this.maxKeys) ? 0 : o.getWaitNanos(permits);
+	}
+	
+	/**
+	 * Remove limiters of keys not used since expiration
+	 */
+	public void sweep(long now) {
+		Iterator<Map.Entry<K,Entry>> it = this.map.entrySet().iterator();
+		while(it.hasNext()) {
+			if(now - it.next().getValue().lastAccess > this.expireAfter) it.remove();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "KeyedRateLimiter [keys=" + size() + ", maxKeys=" + maxKeys + "]";
+	}
+	
+}
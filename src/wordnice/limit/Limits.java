@@ -24,6 +24,9 @@
 
 package wordnice.limit;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import wordnice.api.Nice;
 
 public class Limits {
@@ -48,6 +51,32 @@ public class Limits {
 		return new SimpleEntryLimit(max, 0, keyMax, 0, valMax, 0);
 	}
 	
+	/**
+	 * @return Thread safe limit, e.g. for budget shared by requests
+	 */
+	public static Limit createAtomicLimit(int max) {
+		return new AtomicLimit(max, 0);
+	}
+	
+	/**
+	 * @return Thread safe limit which is also incremented by increments of this limit
+	 */
+	public static Limit createAtomicLimit(int max, Limit parent) {
+		return new AtomicLimitWithParent(max, 0, parent);
+	}
+	
+	public static EntryLimit createAtomicEntryLimit(int max, int keyMax, int valMax) {
+		return new AtomicEntryLimit(max, 0, keyMax, 0, valMax, 0);
+	}
+	
+	/**
+	 * @return Thread safe limit for budget incremented from many threads at once,
+	 * 		see {@link StripedLimit}
+	 */
+	public static Limit createStripedLimit(int max) {
+		return new StripedLimit(max);
+	}
+	
 	protected static class SimpleLimit
 	implements Limit {
 		
@@ -201,6 +230,396 @@ public class Limits {
 		
 	}
 	
+	/**
+	 * Thread safe limit with position updated by CAS
+	 */
+	protected static class AtomicLimit
+	implements Limit {
+		
+		protected final int maximum;
+		protected final AtomicInteger position;
+		
+		public AtomicLimit(int max, int pos) {
+			if(max < 0) throw new IllegalArgumentException("Maximum is negative");
+			if(pos < 0 || pos > max) throw new IllegalArgumentException("Position out of bounds");
+			this.maximum = max;
+			this.position = new AtomicInteger(pos);
+		}
+		
+		@Override
+		public int position() {
+			return this.position.get();
+		}
+		
+		@Override
+		public int maximum() {
+			return this.maximum;
+		}
+		
+		@Override
+		public int available() {
+			return this.maximum - this.position.get();
+		}
+		
+		@Override
+		public int increment() {
+			return this.increment(1);
+		}
+		
+		@Override
+		public int increment(int val) {
+			int nevpos = this.add(val);
+			if(nevpos < 0) this.throwLimitException();
+			return nevpos;
+		}
+		
+		/**
+		 * @return New position or -1 if out of bounds
+		 */
+		protected int add(int val) {
+			AtomicInteger pos = this.position;
+			while(true) {
+				int cur = pos.get();
+				int nevpos = cur + val;
+				if(nevpos < 0 || nevpos > this.maximum) return -1;
+				if(pos.compareAndSet(cur, nevpos)) return nevpos;
+			}
+		}
+		
+		@Override
+		public boolean canIncrement(int val) {
+			int nevpos = this.position.get() + val;
+			return nevpos >= 0 && nevpos <= this.maximum;
+		}
+		
+		@Override
+		public Limit reset() {
+			this.position.set(0);
+			return this;
+		}
+		
+		@Override
+		public void throwLimitException() {
+			throw new LimitException("Increment: Out of bounds");
+		}
+		
+		@Override
+		public Limit clone() {
+			return new AtomicLimit(this.maximum, this.position());
+		}
+		
+		@Override
+		public String toString() {
+			return "AtomicLimit[max=" + maximum + ", pos=" + position() + ", avail=" + available() + "]";
+		}
+		
+	}
+	
+	/**
+	 * Atomic limit which increments parent first and rolls 
+	 * the parent back when own maximum is exceeded
+	 */
+	protected static class AtomicLimitWithParent
+	extends AtomicLimit {
+		
+		protected final Limit parent;
+		
+		public AtomicLimitWithParent(int max, int pos, Limit parent) {
+			super(max, pos);
+			if(parent == null) throw new IllegalArgumentException("Limit parent == null");
+			this.parent = parent;
+		}
+		
+		@Override
+		public int available() {
+			return Math.min(this.parent.available(), super.available());
+		}
+		
+		@Override
+		public int increment(int val) {
+			this.parent.increment(val);
+			int nevpos = this.add(val);
+			if(nevpos < 0) {
+				this.parent.increment(-val);
+				super.throwLimitException();
+			}
+			return nevpos;
+		}
+		
+		@Override
+		public boolean canIncrement(int val) {
+			return this.parent.canIncrement(val) && super.canIncrement(val);
+		}
+		
+		@Override
+		public Limit reset() {
+			AtomicInteger pos = this.position;
+			while(true) {
+				int cur = pos.get();
+				if(pos.compareAndSet(cur, 0)) {
+					this.parent.increment(-cur);
+					return this;
+				}
+			}
+		}
+		
+		@Override
+		public Limit clone() {
+			return new AtomicLimitWithParent(this.maximum, this.position(), this.parent);
+		}
+		
+	}
+	
+	protected static class AtomicEntryLimit
+	extends AtomicLimit
+	implements EntryLimit {
+		
+		protected final AtomicLimitWithParent keyLimit;
+		protected final AtomicLimitWithParent valueLimit;
+		
+		public AtomicEntryLimit(int max, int pos, int keyMax, int keyPos, int valMax, int valPos) {
+			super(max, pos);
+			this.keyLimit = new AtomicLimitWithParent(keyMax, keyPos, this);
+			this.valueLimit = new AtomicLimitWithParent(valMax, valPos, this);
+		}
+		
+		@Override
+		public Limit keyLimit() {
+			return this.keyLimit;
+		}
+		
+		@Override
+		public Limit valueLimit() {
+			return this.valueLimit;
+		}
+		
+		@Override
+		public EntryLimit reset() {
+			this.keyLimit.position.set(0);
+			this.valueLimit.position.set(0);
+			super.reset();
+			return this;
+		}
+		
+		@Override
+		public EntryLimit clone() {
+			return new AtomicEntryLimit(this.maximum, this.position(), 
+					this.keyLimit.maximum, this.keyLimit.position(),
+					this.valueLimit.maximum, this.valueLimit.position());
+		}
+		
+		@Override
+		public String toString() {
+			return "AtomicEntryLimit[key=" + keyLimit + ", value=" + valueLimit + ", this=" + super.toString() + "]";
+		}
+		
+	}
+	
+	/**
+	 * Limit for budget shared by many threads. Threads take batches of
+	 * the budget from shared counter (CAS, never over maximum) into striped
+	 * cells and increment from their cell, so the shared counter is touched
+	 * only once per batch. When shared counter runs out, unused batches 
+	 * are reclaimed before increment fails, so maximum is exact.
+	 * 
+	 * Each cell holds used and unused amount in one long, so both increment
+	 * and decrement of own cell are single CAS with bound check. Decrement over
+	 * used amount of own cell takes from other cells. {@link #position()} 
+	 * (also returned by increment) sums used amounts of all cells and is only 
+	 * a snapshot while other threads increment
+	 */
+	protected static class StripedLimit
+	implements Limit {
+		
+		protected static final int Stride = 8; //Cells 64 bytes apart
+		
+		protected final int maximum;
+		protected final int batch;
+		protected final int mask;
+		protected final AtomicInteger reserved = new AtomicInteger(); //Sum of used and unused of cells
+		protected final AtomicLongArray cells; //Used in high, unused in low 32 bits
+		
+		public StripedLimit(int max) {
+			this(max, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1, 0);
+		}
+		
+		/**
+		 * @param cells Count of cells, power of two
+		 * @param batch Amount taken from shared counter at once, 0 to derive from maximum
+		 */
+		public StripedLimit(int max, int cells, int batch) {
+			if(max < 0) throw new IllegalArgumentException("Maximum is negative");
+			if(cells < 1 || Integer.bitCount(cells) != 1) throw new IllegalArgumentException("Cells must be power of two");
+			this.maximum = max;
+			this.mask = cells - 1;
+			this.cells = new AtomicLongArray(cells * Stride);
+			this.batch = (batch > 0) ? batch : Math.max(1, Math.min(4096, max / (cells * 8)));
+		}
+		
+		protected static int used(long cell) {
+			return (int) (cell >>> 32);
+		}
+		
+		protected static int unused(long cell) {
+			return (int) cell;
+		}
+		
+		protected static long cell(int used, int unused) {
+			return ((long) used << 32) | (unused & 0xFFFFFFFFL);
+		}
+		
+		protected int cell() {
+			long id = Thread.currentThread().getId();
+			int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+			return ((h >>> 16) & this.mask) * Stride;
+		}
+		
+		@Override
+		public int position() {
+			long used = 0;
+			for(int i = 0; i <= this.mask; i++) used += used(this.cells.get(i * Stride));
+			return (int) used;
+		}
+		
+		@Override
+		public int maximum() {
+			return this.maximum;
+		}
+		
+		@Override
+		public int available() {
+			return this.maximum - this.position();
+		}
+		
+		@Override
+		public int increment() {
+			return this.increment(1);
+		}
+		
+		@Override
+		public int increment(int val) {
+			if(val < 0) {
+				this.decrement(-val);
+			} else if(val > 0) {
+				this.add(val);
+			}
+			return this.position();
+		}
+		
+		protected void add(int val) {
+			AtomicLongArray cells = this.cells;
+			int c = this.cell();
+			while(true) {
+				long a = cells.get(c);
+				if(unused(a) < val) break;
+				if(cells.compareAndSet(c, a, cell(used(a) + val, unused(a) - val))) return;
+			}
+			int chunk = Math.max(val, this.batch);
+			if(!this.reserve(chunk)) {
+				chunk = val;
+				if(!this.reserve(val)) {
+					this.reclaim();
+					if(!this.reserve(val)) this.throwLimitException();
+				}
+			}
+			while(true) {
+				long a = cells.get(c);
+				if(cells.compareAndSet(c, a, cell(used(a) + val, unused(a) + chunk - val))) return;
+			}
+		}
+		
+		protected void decrement(int val) {
+			AtomicLongArray cells = this.cells;
+			int c = this.cell();
+			while(true) {
+				long a = cells.get(c);
+				if(used(a) < val) break;
+				if(cells.compareAndSet(c, a, cell(used(a) - val, unused(a) + val))) return;
+			}
+			//Released from other thread than acquired
+			if(this.position() < val) this.throwLimitException();
+			int left = val;
+			for(int i = 0; i <= this.mask && left > 0; i++) {
+				int at = ((c / Stride + i) & this.mask) * Stride;
+				while(true) {
+					long a = cells.get(at);
+					int take = Math.min(used(a), left);
+					if(take == 0) break;
+					if(cells.compareAndSet(at, a, cell(used(a) - take, unused(a) + take))) {
+						left -= take;
+						break;
+					}
+				}
+			}
+			//Concurrent over-release, what was taken stays released
+			if(left > 0) this.throwLimitException();
+		}
+		
+		/**
+		 * @return False if reserving would exceed maximum
+		 */
+		protected boolean reserve(int n) {
+			AtomicInteger reserved = this.reserved;
+			while(true) {
+				int cur = reserved.get();
+				int next = cur + n;
+				if(next < 0 || next > this.maximum) return false;
+				if(reserved.compareAndSet(cur, next)) return true;
+			}
+		}
+		
+		/**
+		 * Return unused batches of all cells to shared counter
+		 */
+		protected void reclaim() {
+			for(int i = 0; i <= this.mask; i++) {
+				int at = i * Stride;
+				while(true) {
+					long a = this.cells.get(at);
+					int unused = unused(a);
+					if(unused == 0) break;
+					if(this.cells.compareAndSet(at, a, cell(used(a), 0))) {
+						this.reserved.addAndGet(-unused);
+						break;
+					}
+				}
+			}
+		}
+		
+		@Override
+		public boolean canIncrement(int val) {
+			int nevpos = this.position() + val;
+			return nevpos >= 0 && nevpos <= this.maximum;
+		}
+		
+		@Override
+		public Limit reset() {
+			for(int i = 0; i <= this.mask; i++) this.cells.set(i * Stride, 0);
+			this.reserved.set(0);
+			return this;
+		}
+		
+		@Override
+		public void throwLimitException() {
+			throw new LimitException("Increment: Out of bounds");
+		}
+		
+		@Override
+		public Limit clone() {
+			StripedLimit l = new StripedLimit(this.maximum, this.mask + 1, this.batch);
+			int pos = this.position();
+			l.reserved.set(pos);
+			l.cells.set(0, cell(pos, 0));
+			return l;
+		}
+		
+		@Override
+		public String toString() {
+			return "StripedLimit[max=" + maximum + ", pos=" + position() + ", batch=" + batch + "]";
+		}
+		
+	}
+	
 	
 	public static void main(String...strings) {
 		EntryLimit lm = Limits.createEntryLimit(10, 8, 6).clone().clone();
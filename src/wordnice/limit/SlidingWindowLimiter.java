@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.limit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allows limit of events per sliding window. Count of previous fixed window,
+ * weighted by its part still inside sliding window, is added to count 
+ * of current window. Window index and both counts are packed in one long
+ * updated with CAS
+ */
+public class SlidingWindowLimiter
+implements RateLimiter {
+	
+	/** Maximum limit which fits in packed state **/
+	public static final int MaxLimit = (1 << 20) - 1;
+	
+	protected static final int Bits = 20;
+	protected static final long Mask = MaxLimit;
+	protected static final long WindowMask = (1L << 24) - 1;
+	
+	protected final int limit;
+	protected final long window;
+	protected final long origin = System.nanoTime();
+	protected final AtomicLong state = new AtomicLong();
+	
+	/**
+	 * @param limit Maximum events per window
+	 * @param windowMillis Length of window
+	 */
+	public SlidingWindowLimiter(int limit, long windowMillis) {
+		if(limit < 1 || limit > MaxLimit) throw new IllegalArgumentException("Limit out of bounds 1 - " + MaxLimit);
+		if(windowMillis <= 0) throw new IllegalArgumentException("Window must be positive");
+		this.limit = limit;
+		this.window = windowMillis * 1000000L;
+	}
+	
+	public int getLimit() {
+		return this.limit;
+	}
+	
+	public long getWindowMillis() {
+		return this.window / 1000000L;
+	}
+	
+	@Override
+	public boolean tryAcquire() {
+		return this.tryAcquire(1);
+	}
+	
+	@Override
+	public boolean tryAcquire(int permits) {
+		if(permits > this.limit) return false;
+		AtomicLong state = this.state;
+		while(true) {
+			long elapsed = System.nanoTime() - this.origin;
+			long index = (elapsed / this.window) & WindowMask;
+			long st = state.get();
+			long prev = (st >>> Bits) & Mask, cur = st & Mask;
+			long w = st >>> (2 * Bits);
+			if(w != index) {
+				prev = (((w + 1) & WindowMask) == index) ? cur : 0;
+				cur = 0;
+			}
+			double weight = (double) (this.window - elapsed % this.window) / this.window;
+			if(prev * weight + cur + permits > this.limit) return false;
+			long next = (index << (2 * Bits)) | (prev << Bits) | (cur + permits);
+			if(state.compareAndSet(st, next)) return true;
+		}
+	}
+	
+	@Override
+	public long getWaitNanos(int permits) {
+		if(permits > this.limit) return Long.MAX_VALUE;
+		long elapsed = System.nanoTime() - this.origin;
+		long index = (elapsed / this.window) & WindowMask;
+		long st = this.state.get();
+		long prev = (st >>> Bits) & Mask, cur = st & Mask;
+		long w = st >>> (2 * Bits);
+		if(w != index) {
+			prev = (((w + 1) & WindowMask) == index) ? cur : 0;
+			cur = 0;
+		}
+		long left = this.window - elapsed % this.window;
+		if(prev * ((double) left / this.window) + cur + permits <= this.limit) return 0;
+		if(cur + permits > this.limit) return left; //Not before next window
+		//Weight of previous window must drop enough during rest of this window
+		double need = (this.limit - cur - permits) / (double) prev;
+		return Math.max(1, left - (long) (need * this.window));
+	}
+	
+	@Override
+	public String toString() {
+		return "SlidingWindowLimiter [limit=" + limit + ", windowMillis=" + getWindowMillis() + "]";
+	}
+	
+}
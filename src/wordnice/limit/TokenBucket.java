@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.limit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket refilled with constant rate, holding up to capacity tokens.
+ * State is one timestamp (theoretical arrival time of next event, GCRA) 
+ * updated with CAS, so no locks and no refill thread are needed
+ */
+public class TokenBucket
+implements RateLimiter {
+	
+	protected final long interval; //Nanoseconds per token
+	protected final long burst; //Nanoseconds of full bucket
+	protected final int capacity;
+	protected final AtomicLong tat;
+	
+	/**
+	 * @param perSecond Tokens added per second
+	 * @param capacity Maximum tokens (burst), bucket starts full
+	 */
+	public TokenBucket(double perSecond, int capacity) {
+		if(!(perSecond > 0)) throw new IllegalArgumentException("Rate must be positive");
+		if(capacity < 1) throw new IllegalArgumentException("Capacity < 1");
+		this.interval = Math.max(1, (long) (1e9 / perSecond));
+		this.capacity = capacity;
+		this.burst = this.interval * capacity;
+		this.tat = new AtomicLong(System.nanoTime());
+	}
+	
+	public int getCapacity() {
+		return this.capacity;
+	}
+	
+	public double getRate() {
+		return 1e9 / this.interval;
+	}
+	
+	/**
+	 * @return Count of tokens available now
+	 */
+	public int available() {
+		long used = this.tat.get() - System.nanoTime();
+		if(used < 0) used = 0;
+		return (int) ((this.burst - used) / this.interval);
+	}
+	
+	@Override
+	public boolean tryAcquire() {
+		return this.tryAcquire(1);
+	}
+	
+	@Override
+	public boolean tryAcquire(int permits) {
+		AtomicLong tat = this.tat;
+		long cost = permits * this.interval;
+		while(true) {
+			long now = System.nanoTime();
+			long cur = tat.get();
+			long next = ((cur - now < 0) ? now : cur) + cost;
+			if(next - now > this.burst) return false;
+			if(tat.compareAndSet(cur, next)) return true;
+		}
+	}
+	
+	@Override
+	public long getWaitNanos(int permits) {
+		long now = System.nanoTime();
+		long cur = this.tat.get();
+		long next = ((cur - now < 0) ? now : cur) + permits * this.interval;
+		return Math.max(0, next - now - this.burst);
+	}
+	
+	@Override
+	public String toString() {
+		return "TokenBucket [rate=" + getRate() + ", capacity=" + capacity + ", available=" + available() + "]";
+	}
+	
+}
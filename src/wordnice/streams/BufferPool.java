@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.streams;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import wordnice.api.Nice;
+
+/**
+ * Bounded pool of equally sized byte buffers. 
+ * Buffers over limit are left for garbage collector
+ */
+public class BufferPool {
+	
+	/** Shared pool of heap buffers of {@link Nice#BufferSize} **/
+	public static final BufferPool Heap = new BufferPool(Nice.BufferSize, 256, false);
+	
+	/** Shared pool of 64K direct buffers **/
+	public static final BufferPool Direct = new BufferPool(64*1024, 64, true);
+	
+	protected final int bufferSize;
+	protected final int maxPooled;
+	protected final boolean direct;
+	protected final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	protected final AtomicInteger pooled = new AtomicInteger();
+	
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		if(bufferSize <= 0) throw Nice.illegal("Buffer size <= 0");
+		if(maxPooled < 0) throw Nice.illegal("Negative max pooled");
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+	
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+	
+	public boolean isDirect() {
+		return this.direct;
+	}
+	
+	/**
+	 * @return Count of buffers waiting in pool
+	 */
+	public int getPooled() {
+		return this.pooled.get();
+	}
+	
+	/**
+	 * @return Cleared buffer from pool or new buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = this.pool.poll();
+		if(buf == null) {
+			return this.direct ? ByteBuffer.allocateDirect(this.bufferSize) 
+					: ByteBuffer.allocate(this.bufferSize);
+		}
+		this.pooled.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+	
+	/**
+	 * Return buffer to pool. Buffer must not be used after this call
+	 */
+	public void release(ByteBuffer buf) {
+		if(buf == null || buf.capacity() != this.bufferSize 
+				|| buf.isDirect() != this.direct || buf.isReadOnly()) return;
+		if(this.pooled.incrementAndGet() > this.maxPooled) {
+			this.pooled.decrementAndGet();
+			return;
+		}
+		this.pool.offer(buf);
+	}
+	
+}
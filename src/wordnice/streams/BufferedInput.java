@@ -60,6 +60,42 @@ implements AutoCloseable {
         buf = new byte[size];
     }
 
+    /**
+     * @return Count of bytes already in buffer, which can be read without blocking
+     */
+    public int buffered() {
+        return count - pos;
+    }
+
+    /**
+     * Copy bytes up to and including given delimiter straight from buffer
+     * into given array. Stops after max bytes when delimiter is not found
+     * 
+     * @return Count of copied bytes or -1 if stream ended before any byte
+     */
+    public int readUntil(byte delim, byte[] dst, int off, int max) throws IOException {
+        int n = 0;
+        while (n < max) {
+            if (pos >= count) {
+                fill();
+                if (pos >= count)
+                    return (n == 0) ? -1 : n;
+            }
+            byte[] buffer = getBufIfOpen();
+            int end = pos + Math.min(count - pos, max - n);
+            int i = pos;
+            while (i < end && buffer[i] != delim) i++;
+            boolean found = i < end;
+            if (found) i++;
+            int cnt = i - pos;
+            System.arraycopy(buffer, pos, dst, off + n, cnt);
+            pos = i;
+            n += cnt;
+            if (found) break;
+        }
+        return n;
+    }
+
     public void fill() throws IOException {
         byte[] buffer = getBufIfOpen();
         if (markpos < 0)
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.streams;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes HTTP/1.1 chunked transfer coding.
+ * Chunk extensions and trailer heads are skipped.
+ * Closing does not close root stream nor skip unread chunks, 
+ * so the owner still knows how much to skip before next message
+ */
+public class ChunkedInputStream
+extends FilterInputStream
+implements AutoCloseable {
+
+	/** Maximum length of chunk size line (with extensions) **/
+	public static int MaxLineLength = 4096;
+	
+	protected long chunkRemaining = 0;
+	protected boolean finished = false;
+	protected boolean started = false;
+	
+	public ChunkedInputStream(InputStream in) {
+		super(in);
+	}
+	
+	public boolean isFinished() {
+		return this.finished;
+	}
+	
+	/**
+	 * @return false if whole body was read
+	 */
+	protected boolean nextChunk() throws IOException {
+		if(this.finished) return false;
+		if(this.started) {
+			//CRLF after previous chunk data
+			int c1 = this.in.read();
+			int c2 = this.in.read();
+			if(c1 != '\r' || c2 != '\n') {
+				if(c2 < 0) throw new EOFException("EOF after chunk data");
+				throw new IOException("Chunk data not followed by CRLF");
+			}
+		}
+		this.started = true;
+		long size = 0;
+		int digits = 0;
+		int read = 0;
+		boolean ext = false;
+		while(true) {
+			int c = this.in.read();
+			if(c < 0) throw new EOFException("EOF in chunk size");
+			if(++read > MaxLineLength) throw new IOException("Chunk size line too long");
+			if(c == '\r') {
+				if(this.in.read() != '\n') throw new IOException("Chunk size not followed by CRLF");
+				break;
+			} else if(ext) {
+				continue;
+			} else if(c == ';' || c == ' ' || c == '\t') {
+				ext = true;
+				continue;
+			}
+			int v = Character.digit(c, 16);
+			if(v < 0) throw new IOException("Illegal chunk size character " + c);
+			if(++digits > 15) throw new IOException("Chunk size too big");
+			size = (size << 4) | v;
+		}
+		if(digits == 0) throw new IOException("Missing chunk size");
+		if(size == 0) {
+			this.skipTrailers();
+			this.finished = true;
+			return false;
+		}
+		this.chunkRemaining = size;
+		return true;
+	}
+	
+	protected void skipTrailers() throws IOException {
+		int lineLength = 0;
+		int read = 0;
+		while(true) {
+			int c = this.in.read();
+			if(c < 0) throw new EOFException("EOF in chunked trailer");
+			if(++read > MaxLineLength*4) throw new IOException("Chunked trailer too long");
+			if(c == '\r') {
+				if(this.in.read() != '\n') throw new IOException("Trailer not followed by CRLF");
+				if(lineLength == 0) return;
+				lineLength = 0;
+			} else {
+				lineLength++;
+			}
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if(this.chunkRemaining <= 0 && !this.nextChunk()) return -1;
+		int c = this.in.read();
+		if(c < 0) throw new EOFException("EOF in chunk data");
+		this.chunkRemaining--;
+		return c;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		if(this.chunkRemaining <= 0 && !this.nextChunk()) return -1;
+		if(len > this.chunkRemaining) len = (int) this.chunkRemaining;
+		int n = this.in.read(b, off, len);
+		if(n < 0) throw new EOFException("EOF in chunk data");
+		this.chunkRemaining -= n;
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while(skipped < n) {
+			if(this.chunkRemaining <= 0 && !this.nextChunk()) break;
+			long cur = this.in.skip(Math.min(n - skipped, this.chunkRemaining));
+			if(cur <= 0) {
+				if(this.read() < 0) break;
+				cur = 1;
+			} else {
+				this.chunkRemaining -= cur;
+			}
+			skipped += cur;
+		}
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		if(this.finished) return 0;
+		return (int) Math.min(this.in.available(), this.chunkRemaining);
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		//Root stream stays open, rest is skipped by owner (e.g. HttpRequest.finishBody)
+	}
+	
+}
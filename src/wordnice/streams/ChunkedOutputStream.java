@@ -32,10 +32,12 @@ import wordnice.http.client.HttpClient;
 
 public class ChunkedOutputStream extends OutputStream {
 	
-	static final byte[] END = new byte[] {0,0,0,0,'\r', '\n', '\r', '\n'};
+	static final byte[] END = new byte[] {'0', '\r', '\n', '\r', '\n'};
 	static final byte[] LETTERS = "0123456789abcdef".getBytes();
 
 	protected OutputStream out;
+	protected final byte[] sizeBuf = new byte[8];
+	protected boolean finished = false;
 	
     public ChunkedOutputStream(OutputStream out) {
 		if(out == null) {
@@ -54,6 +56,7 @@ public class ChunkedOutputStream extends OutputStream {
     
     @Override
     public void write(byte[] b, int offset, int length) throws IOException {
+        if(length == 0) return; //empty chunk would end body
         this.writeSize(length);
         this.out.write(HttpClient.CRLF, 0, 2);
         this.out.write(b, offset, length);
@@ -65,9 +68,24 @@ public class ChunkedOutputStream extends OutputStream {
     	this.out.flush();
     }
 
+    /**
+     * Write last chunk and flush, without closing underlying stream
+     * (so connection can be reused)
+     */
+    public void finish() throws IOException {
+        if(this.finished) return;
+        this.finished = true;
+        this.out.write(END, 0, END.length);
+        this.out.flush();
+    }
+    
+    public boolean isFinished() {
+        return this.finished;
+    }
+
     @Override
     public void close() throws IOException {
-        this.out.write(END, 0, END.length);
+        this.finish();
         this.out.close();
     }
     
@@ -107,7 +125,7 @@ public class ChunkedOutputStream extends OutputStream {
      */
     
     protected void writeSize(int val) throws IOException {
-    	byte[] buf = new byte[8];
+    	byte[] buf = this.sizeBuf;
     	int charPos = 8;
         do {
             buf[--charPos] = LETTERS[val & 0x0F];
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import wordnice.api.Nice;
+
+/**
+ * GZIP or ZLIB (HTTP "deflate") compressing stream using Deflater 
+ * from pool and pooled output buffer. Tracks bytes and time spent compressing.
+ * 
+ * {@link #finish()} writes trailer and returns pooled resources 
+ * without closing underlying stream
+ */
+public class CompressedOutputStream extends OutputStream {
+	
+	public static final int GZIP = 1;
+	public static final int DEFLATE = 2;
+	
+	protected static final byte[] GZIP_HEADER = {
+		0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+	};
+	
+	protected OutputStream out;
+	protected final int format;
+	protected final DeflaterPool pool;
+	protected Deflater def;
+	protected ByteBuffer pooledBuf;
+	protected byte[] buf;
+	protected final CRC32 crc;
+	protected final byte[] single = new byte[1];
+	protected boolean finished = false;
+	protected boolean headerWritten = false;
+	
+	protected long bytesIn = 0;
+	protected long bytesOut = 0;
+	protected long nanos = 0;
+	
+	/**
+	 * @param pool Pool of deflaters, must be nowrap for GZIP and not nowrap for DEFLATE
+	 */
+	public CompressedOutputStream(OutputStream out, int format, DeflaterPool pool) {
+		if(out == null) throw Nice.illegal("OutputStream null!");
+		if(format != GZIP && format != DEFLATE) throw Nice.illegal("Unknown format " + format);
+		if(pool.isNowrap() != (format == GZIP)) throw Nice.illegal("Pool format does not match");
+		this.out = out;
+		this.format = format;
+		this.pool = pool;
+		this.def = pool.acquire();
+		this.pooledBuf = BufferPool.Heap.acquire();
+		this.buf = this.pooledBuf.array();
+		this.crc = (format == GZIP) ? new CRC32() : null;
+	}
+	
+	public int getFormat() {
+		return this.format;
+	}
+	
+	/**
+	 * @return Count of uncompressed bytes written
+	 */
+	public long getBytesIn() {
+		return this.bytesIn;
+	}
+	
+	/**
+	 * @return Count of compressed bytes written to underlying stream (with header and trailer)
+	 */
+	public long getBytesOut() {
+		return this.bytesOut;
+	}
+	
+	/**
+	 * @return Nanoseconds spent in deflater
+	 */
+	public long getNanos() {
+		return this.nanos;
+	}
+	
+	public boolean isFinished() {
+		return this.finished;
+	}
+	
+	protected void ensureOpen() throws IOException {
+		if(this.finished) throw new IOException("Stream finished");
+	}
+	
+	protected void writeHeader() throws IOException {
+		if(this.headerWritten) return;
+		this.headerWritten = true;
+		if(this.format == GZIP) {
+			this.out.write(GZIP_HEADER);
+			this.bytesOut += GZIP_HEADER.length;
+		}
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		this.single[0] = (byte) b;
+		this.write(this.single, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.ensureOpen();
+		if((off | len | (off + len) | (b.length - (off + len))) < 0) 
+			throw new IndexOutOfBoundsException();
+		if(len == 0) return;
+		this.writeHeader();
+		long start = System.nanoTime();
+		if(this.crc != null) this.crc.update(b, off, len);
+		this.def.setInput(b, off, len);
+		while(!this.def.needsInput()) this.deflate(Deflater.NO_FLUSH);
+		this.bytesIn += len;
+		this.nanos += System.nanoTime() - start;
+	}
+	
+	protected void deflate(int mode) throws IOException {
+		int n = this.def.deflate(this.buf, 0, this.buf.length, mode);
+		if(n > 0) {
+			this.out.write(this.buf, 0, n);
+			this.bytesOut += n;
+		}
+	}
+	
+	/**
+	 * Flush compressed data written so far (sync flush), 
+	 * so client can decode it
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(!this.finished && this.bytesIn > 0) {
+			long start = System.nanoTime();
+			int n;
+			do {
+				n = this.def.deflate(this.buf, 0, this.buf.length, Deflater.SYNC_FLUSH);
+				if(n > 0) {
+					this.out.write(this.buf, 0, n);
+					this.bytesOut += n;
+				}
+			} while(n == this.buf.length);
+			this.nanos += System.nanoTime() - start;
+		}
+		this.out.flush();
+	}
+	
+	/**
+	 * Finish compressed data and return pooled deflater and buffer. 
+	 * Underlying stream is flushed, but not closed
+	 */
+	public void finish() throws IOException {
+		if(this.finished) return;
+		try {
+			this.writeHeader();
+			long start = System.nanoTime();
+			this.def.finish();
+			while(!this.def.finished()) this.deflate(Deflater.NO_FLUSH);
+			this.nanos += System.nanoTime() - start;
+			if(this.format == GZIP) {
+				byte[] t = this.buf;
+				writeIntLE(t, 0, (int) this.crc.getValue());
+				writeIntLE(t, 4, (int) this.bytesIn);
+				this.out.write(t, 0, 8);
+				this.bytesOut += 8;
+			}
+			this.out.flush();
+		} finally {
+			this.release();
+		}
+		this.onFinish();
+	}
+	
+	/**
+	 * Called once stream was successfully finished
+	 */
+	protected void onFinish() throws IOException {}
+	
+	protected void release() {
+		this.finished = true;
+		if(this.def != null) {
+			this.pool.release(this.def);
+			this.def = null;
+		}
+		if(this.pooledBuf != null) {
+			BufferPool.Heap.release(this.pooledBuf);
+			this.pooledBuf = null;
+			this.buf = null;
+		}
+	}
+	
+	protected static void writeIntLE(byte[] b, int off, int v) {
+		b[off] = (byte) v;
+		b[off+1] = (byte) (v >>> 8);
+		b[off+2] = (byte) (v >>> 16);
+		b[off+3] = (byte) (v >>> 24);
+	}
+	
+	/**
+	 * Finish stream and close underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.finish();
+		} finally {
+			this.out.close();
+		}
+	}
+	
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.streams;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Bounded pool of Deflaters with same level and format,
+ * so native zlib state is not allocated per stream
+ */
+public class DeflaterPool {
+	
+	protected final int level;
+	protected final boolean nowrap;
+	protected final int maxPooled;
+	protected final Queue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+	protected final AtomicInteger pooled = new AtomicInteger();
+	
+	/**
+	 * @param nowrap True for raw deflate data (used by GZIP), false for ZLIB format
+	 */
+	public DeflaterPool(int level, boolean nowrap, int maxPooled) {
+		if(level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9))
+			throw new IllegalArgumentException("Invalid level " + level);
+		if(maxPooled < 0) throw new IllegalArgumentException("Negative max pooled");
+		this.level = level;
+		this.nowrap = nowrap;
+		this.maxPooled = maxPooled;
+	}
+	
+	public int getLevel() {
+		return this.level;
+	}
+	
+	public boolean isNowrap() {
+		return this.nowrap;
+	}
+	
+	public int getPooled() {
+		return this.pooled.get();
+	}
+	
+	public Deflater acquire() {
+		Deflater def = this.pool.poll();
+		if(def == null) return new Deflater(this.level, this.nowrap);
+		this.pooled.decrementAndGet();
+		return def;
+	}
+	
+	/**
+	 * Reset deflater and return it to pool, or free it if pool is full
+	 */
+	public void release(Deflater def) {
+		if(def == null) return;
+		if(this.pooled.incrementAndGet() > this.maxPooled) {
+			this.pooled.decrementAndGet();
+			def.end();
+			return;
+		}
+		def.reset();
+		this.pool.offer(def);
+	}
+	
+	/**
+	 * Free all pooled deflaters
+	 */
+	public void clear() {
+		Deflater def;
+		while((def = this.pool.poll()) != null) {
+			this.pooled.decrementAndGet();
+			def.end();
+		}
+	}
+	
+}
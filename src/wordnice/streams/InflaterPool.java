@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.streams;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Bounded pool of Inflaters with same format,
+ * so native zlib state is not allocated per stream
+ */
+public class InflaterPool {
+	
+	protected final boolean nowrap;
+	protected final int maxPooled;
+	protected final Queue<Inflater> pool = new ConcurrentLinkedQueue<Inflater>();
+	protected final AtomicInteger pooled = new AtomicInteger();
+	
+	/**
+	 * @param nowrap True for raw deflate data, false for ZLIB format
+	 */
+	public InflaterPool(boolean nowrap, int maxPooled) {
+		if(maxPooled < 0) throw new IllegalArgumentException("Negative max pooled");
+		this.nowrap = nowrap;
+		this.maxPooled = maxPooled;
+	}
+	
+	public boolean isNowrap() {
+		return this.nowrap;
+	}
+	
+	public int getPooled() {
+		return this.pooled.get();
+	}
+	
+	public Inflater acquire() {
+		Inflater inf = this.pool.poll();
+		if(inf == null) return new Inflater(this.nowrap);
+		this.pooled.decrementAndGet();
+		return inf;
+	}
+	
+	/**
+	 * Reset inflater and return it to pool, or free it if pool is full
+	 */
+	public void release(Inflater inf) {
+		if(inf == null) return;
+		if(this.pooled.incrementAndGet() > this.maxPooled) {
+			this.pooled.decrementAndGet();
+			inf.end();
+			return;
+		}
+		inf.reset();
+		this.pool.offer(inf);
+	}
+	
+	/**
+	 * Free all pooled inflaters
+	 */
+	public void clear() {
+		Inflater inf;
+		while((inf = this.pool.poll()) != null) {
+			this.pooled.decrementAndGet();
+			inf.end();
+		}
+	}
+	
+}
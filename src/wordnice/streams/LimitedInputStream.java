@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.streams;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads at most given count of bytes from root stream.
+ * Closing does not close root stream nor skip unread bytes, 
+ * so the owner still knows how much to skip before next message
+ */
+public class LimitedInputStream
+extends FilterInputStream
+implements AutoCloseable {
+
+	protected long remaining;
+	protected long mark = -1;
+	
+	public LimitedInputStream(InputStream in, long limit) {
+		super(in);
+		if(limit < 0) throw new IllegalArgumentException("Negative limit");
+		this.remaining = limit;
+	}
+	
+	public long remaining() {
+		return this.remaining;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if(this.remaining <= 0) return -1;
+		int c = this.in.read();
+		if(c < 0) throw new EOFException("Stream ended " + this.remaining + " bytes before limit");
+		this.remaining--;
+		return c;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(this.remaining <= 0) return -1;
+		if(len > this.remaining) len = (int) this.remaining;
+		int n = this.in.read(b, off, len);
+		if(n < 0) throw new EOFException("Stream ended " + this.remaining + " bytes before limit");
+		this.remaining -= n;
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		if(n > this.remaining) n = this.remaining;
+		long skipped = this.in.skip(n);
+		if(skipped > 0) this.remaining -= skipped;
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(this.in.available(), this.remaining);
+	}
+	
+	@Override
+	public synchronized void mark(int readlimit) {
+		this.in.mark(readlimit);
+		this.mark = this.remaining;
+	}
+	
+	@Override
+	public synchronized void reset() throws IOException {
+		if(this.mark < 0) throw new IOException("Mark not set");
+		this.in.reset();
+		this.remaining = this.mark;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		//Root stream stays open, rest is skipped by owner (e.g. HttpRequest.finishBody)
+	}
+	
+}
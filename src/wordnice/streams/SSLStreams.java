@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.streams;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import wordnice.api.Nice;
+
+/**
+ * Blocking streams over channel encrypted by SSLEngine. 
+ * Unlike SSLSocket, channel stays plain, so it can be parked in 
+ * selector while idle (see {@link #releaseBuffers()}).
+ * Network and application buffers are direct and pooled.
+ * Streams are not thread safe, but input and output can be used 
+ * from different threads.
+ */
+public class SSLStreams
+implements Closeable, AutoCloseable {
+	
+	/** Pool of buffers for records, big enough for any TLS record **/
+	public static final BufferPool Pool = new BufferPool(32*1024, 256, true);
+	
+	protected static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	protected final ByteChannel channel;
+	protected final SSLEngine engine;
+	protected final In in = new In();
+	protected final Out out = new Out();
+	protected final Object wrapLock = new Object();
+	
+	/** Received records, write mode **/
+	protected ByteBuffer netIn;
+	/** Decrypted data, read mode **/
+	protected ByteBuffer appIn;
+	/** Records to be sent, used only while wrapping **/
+	protected ByteBuffer netOut;
+	
+	protected boolean handshaken = false;
+	protected boolean inputDone = false;
+	protected boolean closed = false;
+	protected long handshakeNanos = -1;
+	protected boolean resumed = false;
+	
+	/**
+	 * @param channel Channel in blocking mode
+	 * @param engine Engine with client/server mode set
+	 */
+	public SSLStreams(ByteChannel channel, SSLEngine engine) {
+		if(channel == null) throw Nice.illegal("Channel == null");
+		if(engine == null) throw Nice.illegal("SSLEngine == null");
+		this.channel = channel;
+		this.engine = engine;
+	}
+	
+	public SSLEngine getEngine() {
+		return this.engine;
+	}
+	
+	public SSLSession getSession() {
+		return this.engine.getSession();
+	}
+	
+	public InputStream getInputStream() {
+		return this.in;
+	}
+	
+	public OutputStream getOutputStream() {
+		return this.out;
+	}
+	
+	/**
+	 * @return Nanoseconds initial handshake took, -1 if not done yet
+	 */
+	public long getHandshakeNanos() {
+		return this.handshakeNanos;
+	}
+	
+	/**
+	 * @return true if initial handshake resumed cached session
+	 * 		(session existed before handshake started)
+	 */
+	public boolean isResumed() {
+		return this.resumed;
+	}
+	
+	public boolean isHandshaken() {
+		return this.handshaken;
+	}
+	
+	/**
+	 * Do initial handshake unless done already. 
+	 * Called automatically on first read or write
+	 */
+	public void handshake() throws IOException {
+		if(this.handshaken) return;
+		synchronized(this.wrapLock) {
+			if(this.handshaken) return;
+			long startMillis = System.currentTimeMillis();
+			long start = System.nanoTime();
+			this.engine.beginHandshake();
+			this.finishHandshake();
+			this.handshakeNanos = System.nanoTime() - start;
+			this.resumed = this.engine.getSession().getCreationTime() < startMillis;
+			this.handshaken = true;
+		}
+	}
+	
+	protected void finishHandshake() throws IOException {
+		while(true) {
+			switch(this.engine.getHandshakeStatus()) {
+				case NOT_HANDSHAKING:
+				case FINISHED:
+					return;
+				case NEED_TASK:
+					this.runTasks();
+					break;
+				case NEED_WRAP:
+					this.wrap(EMPTY);
+					break;
+				default: //NEED_UNWRAP and NEED_UNWRAP_AGAIN
+					if(!this.unwrap()) throw new EOFException("Connection closed during TLS handshake");
+			}
+		}
+	}
+	
+	protected void runTasks() {
+		Runnable r;
+		while((r = this.engine.getDelegatedTask()) != null) r.run();
+	}
+	
+	/**
+	 * Unwrap one record into appIn
+	 * @return false if connection ended
+	 */
+	protected boolean unwrap() throws IOException {
+		if(this.inputDone) return false;
+		if(this.netIn == null) this.netIn = Pool.acquire();
+		ByteBuffer app = this.appIn;
+		if(app == null) {
+			app = this.appIn = Pool.acquire();
+		} else {
+			app.compact();
+		}
+		try {
+			while(true) {
+				this.netIn.flip();
+				SSLEngineResult res;
+				try {
+					res = this.engine.unwrap(this.netIn, app);
+				} finally {
+					this.netIn.compact();
+				}
+				switch(res.getStatus()) {
+					case OK:
+						return true;
+					case CLOSED:
+						this.inputDone = true;
+						//Answer close_notify
+						if(this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) try {
+							this.wrap(EMPTY);
+						} catch(IOException ign) {}
+						return app.position() > 0;
+					case BUFFER_UNDERFLOW:
+						if(!this.netIn.hasRemaining()) throw new SSLException("TLS record too large");
+						if(this.channel.read(this.netIn) < 0) {
+							this.inputDone = true;
+							return false;
+						}
+						break;
+					case BUFFER_OVERFLOW:
+						//App buffer is compacted, holds some data already
+						if(app.position() > 0) return true;
+						throw new SSLException("TLS application buffer too small");
+				}
+			}
+		} finally {
+			app.flip();
+		}
+	}
+	
+	/**
+	 * Encrypt and send whole source
+	 */
+	protected void wrap(ByteBuffer src) throws IOException {
+		synchronized(this.wrapLock) {
+			ByteBuffer net = this.netOut;
+			if(net == null) net = this.netOut = Pool.acquire();
+			do {
+				net.clear();
+				SSLEngineResult res = this.engine.wrap(src, net);
+				net.flip();
+				while(net.hasRemaining()) this.channel.write(net);
+				if(res.getStatus() == SSLEngineResult.Status.CLOSED) {
+					if(src.hasRemaining()) throw new IOException("TLS connection closed");
+					return;
+				}
+				if(res.getStatus() != SSLEngineResult.Status.OK) 
+					throw new SSLException("Unexpected wrap result " + res.getStatus());
+				if(res.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) this.runTasks();
+			} while(src.hasRemaining());
+		}
+	}
+	
+	/**
+	 * Encrypt and send remaining bytes of given buffer (e.g. cached direct buffer)
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		if(this.closed) throw new IOException("Stream closed");
+		this.handshake();
+		this.wrap(src);
+	}
+	
+	/**
+	 * @return Count of decrypted bytes ready to read, 
+	 * 		1 if only encrypted data are buffered
+	 */
+	public int available() {
+		ByteBuffer app = this.appIn;
+		int n = (app == null) ? 0 : app.remaining();
+		if(n == 0 && this.netIn != null && this.netIn.position() > 0) return 1;
+		return n;
+	}
+	
+	/**
+	 * Return buffers to pool if they hold no data, e.g. before 
+	 * parking idle connection. They are acquired again when needed
+	 * 
+	 * @return true if all buffers were released
+	 */
+	public boolean releaseBuffers() {
+		boolean all = true;
+		if(this.appIn != null) {
+			if(this.appIn.hasRemaining()) {
+				all = false;
+			} else {
+				Pool.release(this.appIn);
+				this.appIn = null;
+			}
+		}
+		if(this.netIn != null) {
+			if(this.netIn.position() > 0) {
+				all = false;
+			} else {
+				Pool.release(this.netIn);
+				this.netIn = null;
+			}
+		}
+		synchronized(this.wrapLock) {
+			if(this.netOut != null) {
+				Pool.release(this.netOut);
+				this.netOut = null;
+			}
+		}
+		return all;
+	}
+	
+	/**
+	 * Send close_notify and release buffers. Channel is not closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if(this.closed) return;
+		this.closed = true;
+		try {
+			if(this.handshaken && this.channel.isOpen()) {
+				this.engine.closeOutbound();
+				while(!this.engine.isOutboundDone()) this.wrap(EMPTY);
+			}
+		} finally {
+			this.inputDone = true;
+			if(this.appIn != null) this.appIn.clear().flip();
+			if(this.netIn != null) this.netIn.clear();
+			this.releaseBuffers();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "SSLStreams [channel=" + channel + ", protocol=" + engine.getSession().getProtocol() 
+				+ ", handshakeNanos=" + handshakeNanos + ", resumed=" + resumed + "]";
+	}
+	
+	protected class In extends InputStream {
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (this.read(b, 0, 1) <= 0) ? -1 : (b[0] & 0xFF);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			Nice.checkBounds(b, off, len);
+			if(len == 0) return 0;
+			if(closed) throw new IOException("Stream closed");
+			handshake();
+			while(appIn == null || !appIn.hasRemaining()) {
+				if(!unwrap() && (appIn == null || !appIn.hasRemaining())) return -1;
+				if(engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) 
+					finishHandshake(); //renegotiation, key update
+			}
+			int n = Math.min(len, appIn.remaining());
+			appIn.get(b, off, n);
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			ByteBuffer app = appIn;
+			return (app == null) ? 0 : app.remaining();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			SSLStreams.this.close();
+		}
+		
+	}
+	
+	protected class Out extends OutputStream {
+		
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			Nice.checkBounds(b, off, len);
+			if(len == 0) return;
+			SSLStreams.this.write(ByteBuffer.wrap(b, off, len));
+		}
+		
+		@Override
+		public void close() throws IOException {
+			SSLStreams.this.close();
+		}
+		
+	}
+	
+	/**
+	 * @return SSLStreams over given blocking channel for server side
+	 */
+	public static SSLStreams server(SocketChannel channel, SSLEngine engine) {
+		engine.setUseClientMode(false);
+		return new SSLStreams(channel, engine);
+	}
+	
+}
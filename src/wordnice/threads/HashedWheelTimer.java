@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.threads;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timing wheel (Varghese &amp; Lauck). Timeouts are hashed by deadline 
+ * into buckets of a circular wheel, which one thread advances each tick.
+ * Scheduling and cancelling are O(1) and pending timeouts cost only one
+ * small object, so it suits huge amount of timeouts which are mostly 
+ * cancelled before they expire (read deadlines, idle connections).
+ * 
+ * Precision is one tick. Tasks run in timer thread, so they must be short
+ * (e.g. close socket, hand work to executor).
+ */
+public class HashedWheelTimer
+implements Closeable, AutoCloseable {
+	
+	public static final long DefaultTickMillis = 10;
+	public static final int DefaultWheelSize = 512;
+	
+	/** Maximal count of new timeouts moved to wheel in one tick **/
+	protected static final int MaxTransferPerTick = 100000;
+	
+	protected static HashedWheelTimer shared;
+	
+	/**
+	 * @return Timer shared by whole JVM, started on first use
+	 */
+	public static synchronized HashedWheelTimer shared() {
+		if(shared == null) shared = new HashedWheelTimer("HashedWheelTimer");
+		return shared;
+	}
+	
+	/**
+	 * Handle of scheduled task
+	 */
+	public static class Timeout {
+		
+		protected static final int StateInit = 0, StateCancelled = 1, StateExpired = 2;
+		
+		protected static final AtomicIntegerFieldUpdater<Timeout> STATE = 
+				AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+		
+		protected final HashedWheelTimer timer;
+		protected final Runnable task;
+		protected final long deadline; //Nanos since start of timer
+		protected volatile int state = StateInit;
+		
+		//Timer thread only
+		protected long remainingRounds;
+		protected Bucket bucket;
+		protected Timeout next, prev;
+		
+		protected Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		public Runnable getTask() {
+			return this.task;
+		}
+		
+		/**
+		 * @return false if task already expired or was cancelled
+		 */
+		public boolean cancel() {
+			if(!STATE.compareAndSet(this, StateInit, StateCancelled)) return false;
+			//Unlinked by timer thread, no locking
+			this.timer.cancelled.add(this);
+			return true;
+		}
+		
+		public boolean isCancelled() {
+			return this.state == StateCancelled;
+		}
+		
+		public boolean isExpired() {
+			return this.state == StateExpired;
+		}
+		
+		protected void expire() {
+			if(!STATE.compareAndSet(this, StateInit, StateExpired)) return;
+			try {
+				this.task.run();
+			} catch(Throwable t) {
+				t.printStackTrace();
+			}
+		}
+		
+	}
+	
+	/**
+	 * Doubly linked list of timeouts in one slot of wheel
+	 */
+	protected static class Bucket {
+		
+		protected Timeout head, tail;
+		
+		protected void add(Timeout t) {
+			t.bucket = this;
+			if(this.head == null) {
+				this.head = this.tail = t;
+			} else {
+				this.tail.next = t;
+				t.prev = this.tail;
+				this.tail = t;
+			}
+		}
+		
+		protected void remove(Timeout t) {
+			Timeout next = t.next;
+			if(t.prev != null) t.prev.next = next;
+			if(next != null) next.prev = t.prev;
+			if(t == this.head) this.head = next;
+			if(t == this.tail) this.tail = t.prev;
+			t.prev = t.next = null;
+			t.bucket = null;
+		}
+		
+		/**
+		 * Expire timeouts of this round
+		 * @return Count of removed timeouts
+		 */
+		protected int expire(long deadline) {
+			int removed = 0;
+			Timeout t = this.head;
+			while(t != null) {
+				Timeout next = t.next;
+				if(t.remainingRounds <= 0) {
+					this.remove(t);
+					removed++;
+					if(t.deadline <= deadline) t.expire();
+				} else if(t.isCancelled()) {
+					this.remove(t);
+					removed++;
+				} else {
+					t.remainingRounds--;
+				}
+				t = next;
+			}
+			return removed;
+		}
+		
+	}
+	
+	protected final Bucket[] wheel;
+	protected final int mask;
+	protected final long tickNanos;
+	protected final long startTime = System.nanoTime();
+	protected final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	protected final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	protected final AtomicLong pending = new AtomicLong();
+	protected final Thread worker;
+	protected volatile boolean closed = false;
+	protected long tick = 0;
+	
+	public HashedWheelTimer(String name) {
+		this(name, DefaultTickMillis, TimeUnit.MILLISECONDS, DefaultWheelSize);
+	}
+	
+	/**
+	 * @param tick Duration of one tick, precision of timer
+	 * @param wheelSize Count of buckets, rounded up to power of two
+	 */
+	public HashedWheelTimer(String name, long tick, TimeUnit unit, int wheelSize) {
+		if(tick <= 0) throw new IllegalArgumentException("Tick <= 0");
+		if(wheelSize <= 0 || wheelSize > (1 << 30)) throw new IllegalArgumentException("Wheel size out of range");
+		int size = 1;
+		while(size < wheelSize) size <<= 1;
+		this.wheel = new Bucket[size];
+		for(int i = 0; i < size; i++) this.wheel[i] = new Bucket();
+		this.mask = size - 1;
+		this.tickNanos = unit.toNanos(tick);
+		Thread th = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				work();
+			}
+			
+		}, name);
+		th.setDaemon(true);
+		this.worker = th;
+		th.start();
+	}
+	
+	/**
+	 * Schedule task to run once after given delay
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		if(task == null) throw new IllegalArgumentException("Task == null");
+		if(this.closed) throw new IllegalStateException("Timer closed");
+		long deadline = System.nanoTime() + unit.toNanos(Math.max(0, delay)) - this.startTime;
+		Timeout t = new Timeout(this, task, deadline);
+		this.pending.incrementAndGet();
+		this.added.add(t);
+		return t;
+	}
+	
+	/**
+	 * Schedule task to run once after given milliseconds
+	 */
+	public Timeout newTimeout(Runnable task, long delay) {
+		return this.newTimeout(task, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return Count of scheduled timeouts which did not expire and were not removed yet
+	 */
+	public long getPendingTimeouts() {
+		return this.pending.get();
+	}
+	
+	public long getTickNanos() {
+		return this.tickNanos;
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	protected void work() {
+		while(!this.closed) {
+			long deadline = this.waitForNextTick();
+			if(deadline < 0) break;
+			this.removeCancelled();
+			this.transferAdded();
+			Bucket bucket = this.wheel[(int) (this.tick & this.mask)];
+			int removed = bucket.expire(deadline);
+			if(removed > 0) this.pending.addAndGet(-removed);
+			this.tick++;
+		}
+	}
+	
+	/**
+	 * @return Time of current tick since start or -1 if closed
+	 */
+	protected long waitForNextTick() {
+		long deadline = this.tickNanos * (this.tick + 1);
+		while(true) {
+			long now = System.nanoTime() - this.startTime;
+			long sleep = (deadline - now + 999999) / 1000000;
+			if(sleep <= 0) return now;
+			try {
+				Thread.sleep(sleep);
+			} catch(InterruptedException ex) {
+				if(this.closed) return -1;
+			}
+		}
+	}
+	
+	protected void transferAdded() {
+		for(int i = 0; i < MaxTransferPerTick; i++) {
+			Timeout t = this.added.poll();
+			if(t == null) break;
+			if(t.isCancelled()) {
+				this.pending.decrementAndGet();
+				continue;
+			}
+			long ticks = t.deadline / this.tickNanos;
+			t.remainingRounds = (ticks - this.tick) / this.wheel.length;
+			//Deadline in past goes to current bucket
+			ticks = Math.max(ticks, this.tick);
+			this.wheel[(int) (ticks & this.mask)].add(t);
+		}
+	}
+	
+	protected void removeCancelled() {
+		Timeout t;
+		while((t = this.cancelled.poll()) != null) {
+			Bucket bucket = t.bucket;
+			//Not in wheel yet, dropped by transferAdded
+			if(bucket == null) continue;
+			bucket.remove(t);
+			this.pending.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Stop timer thread, pending timeouts never expire
+	 */
+	@Override
+	public void close() {
+		if(this.closed) return;
+		this.closed = true;
+		this.worker.interrupt();
+		synchronized(HashedWheelTimer.class) {
+			if(shared == this) shared = null;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "HashedWheelTimer [name=" + worker.getName() + ", wheel=" + wheel.length 
+				+ ", tickNanos=" + tickNanos + ", pending=" + pending.get() + "]";
+	}
+	
+}
@@ -28,15 +28,29 @@ package wordnice.threads;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import wordnice.api.Nice;
 
+/**
+ * Run task with time limit. Tasks run in shared executor 
+ * (virtual threads when supported), timeouts are tracked by 
+ * shared {@link HashedWheelTimer}
+ */
 public class TimeoutThread<X> {
 	
+	protected static ExecutorService executor;
+	
+	/**
+	 * @return Executor of tasks, shared by all instances
+	 */
+	public static synchronized ExecutorService getExecutor() {
+		if(executor == null) executor = VirtualThreads.newExecutor("TimeoutThread");
+		return executor;
+	}
+	
 	public static class Result<X> {
 		protected boolean started = false;
 		protected boolean timedOut = false;
@@ -115,10 +129,12 @@ public class TimeoutThread<X> {
 	
 	
 	/*** STATIC ***/
+	/**
+	 * Run task in shared executor and wait for result.
+	 * Task is interrupted when it times out
+	 */
 	public static <Y> Y run(Callable<Y> callable, long timeout) throws Exception  {
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		Future<Y> future = executor.submit(callable);
-		executor.shutdown();
+		Future<Y> future = getExecutor().submit(callable);
 		try {
 			return future.get(timeout, TimeUnit.MILLISECONDS);
 		} catch(TimeoutException e) {
@@ -129,13 +145,56 @@ public class TimeoutThread<X> {
 			if (t instanceof Error) {
 				throw (Error) t;
 			} else if (t instanceof Exception) {
-				throw (Exception) e;
+				throw (Exception) t;
 			} else {
 				throw new IllegalStateException(t);
 			}
 		}
 	}
 	
+	/**
+	 * Run task in current thread, which is interrupted once timeout passes.
+	 * Cheaper than {@link #run(Callable, long)}, but task must respond to interrupts
+	 * 
+	 * @throws TimeoutException if task was interrupted by timeout
+	 */
+	public static <Y> Y runInterruptibly(Callable<Y> callable, long timeout) throws Exception {
+		HashedWheelTimer.Timeout t = interruptAfter(timeout);
+		try {
+			return callable.call();
+		} catch(InterruptedException | java.io.InterruptedIOException ex) {
+			if(t.isExpired()) throw new TimeoutException("Timed out after " + timeout + "ms");
+			throw ex;
+		} finally {
+			if(!t.cancel()) {
+				//Expired, interrupt could arrive after task finished
+				Thread.interrupted();
+			}
+		}
+	}
+	
+	/**
+	 * Interrupt current thread after given milliseconds unless returned timeout is cancelled
+	 */
+	public static HashedWheelTimer.Timeout interruptAfter(long timeout) {
+		final Thread th = Thread.currentThread();
+		return HashedWheelTimer.shared().newTimeout(new Runnable() {
+			
+			@Override
+			public void run() {
+				th.interrupt();
+			}
+			
+		}, timeout);
+	}
+	
+	/**
+	 * Run task after given milliseconds in timer thread. Task must be short
+	 */
+	public static HashedWheelTimer.Timeout schedule(Runnable task, long delay) {
+		return HashedWheelTimer.shared().newTimeout(task, delay);
+	}
+	
 	public static <Y> Result<Y> runSafe(Callable<Y> callable, long timeout) {
 		Result<Y> out = new Result<Y>();
 		runSafe(out, callable, timeout);
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.threads;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Access to virtual threads (Java 21+) without compile time dependency.
+ * On older runtimes falls back to cached pool of daemon platform threads
+ */
+public class VirtualThreads {
+	
+	protected static final Method newPerTaskExecutor;
+	protected static final Method ofVirtual;
+	protected static final Method builderName;
+	protected static final Method builderStart;
+	
+	static {
+		Method exec = null, of = null, name = null, start = null;
+		try {
+			exec = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			of = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			start = builder.getMethod("start", Runnable.class);
+		} catch(ReflectiveOperationException | SecurityException ex) {
+			exec = of = name = start = null;
+		}
+		newPerTaskExecutor = exec;
+		ofVirtual = of;
+		builderName = name;
+		builderStart = start;
+	}
+	
+	/**
+	 * @return true if running JVM supports virtual threads
+	 */
+	public static boolean isSupported() {
+		return newPerTaskExecutor != null;
+	}
+	
+	/**
+	 * @return Executor starting new virtual thread for each task, 
+	 * 		or cached pool of daemon threads if virtual threads are not supported
+	 */
+	public static ExecutorService newExecutor(String name) {
+		if(newPerTaskExecutor != null) try {
+			return (ExecutorService) newPerTaskExecutor.invoke(null);
+		} catch(ReflectiveOperationException | RuntimeException ex) {}
+		return Executors.newCachedThreadPool(daemonFactory(name));
+	}
+	
+	/**
+	 * Start given task in new virtual thread (or daemon platform thread)
+	 */
+	public static Thread start(String name, Runnable r) {
+		if(ofVirtual != null) try {
+			Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+			return (Thread) builderStart.invoke(builder, r);
+		} catch(ReflectiveOperationException | RuntimeException ex) {}
+		Thread th = new Thread(r, name);
+		th.setDaemon(true);
+		th.start();
+		return th;
+	}
+	
+	/**
+	 * @return Factory creating daemon platform threads named name-N
+	 */
+	public static ThreadFactory daemonFactory(final String name) {
+		return new ThreadFactory() {
+			
+			final AtomicInteger counter = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread th = new Thread(r, name + "-" + counter.incrementAndGet());
+				th.setDaemon(true);
+				return th;
+			}
+			
+		};
+	}
+	
+}
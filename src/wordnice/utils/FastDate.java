@@ -24,8 +24,16 @@
 
 package wordnice.utils;
 
+/**
+ * Date as milliseconds since epoch with fast (no Calendar, no SimpleDateFormat) 
+ * conversion from and to HTTP date format (RFC 7231 IMF-fixdate, always GMT)
+ */
 public class FastDate {
 
+	protected static final String[] Days = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+	protected static final String[] Months = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", 
+			"Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+	
 	protected long time;
 	
 	public FastDate() {
@@ -36,4 +44,154 @@ public class FastDate {
 		this.time = milis;
 	}
 	
+	public long getTime() {
+		return this.time;
+	}
+	
+	/**
+	 * @return Date formatted as "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
+	public String toHttpString() {
+		return formatHttpDate(this.time);
+	}
+	
+	@Override
+	public String toString() {
+		return this.toHttpString();
+	}
+	
+	/**
+	 * @return Given milliseconds formatted as "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
+	public static String formatHttpDate(long millis) {
+		char[] out = new char[29];
+		formatHttpDate(millis, out, 0);
+		return new String(out);
+	}
+	
+	/**
+	 * Write 29 characters of HTTP date to given array
+	 */
+	public static void formatHttpDate(long millis, char[] out, int off) {
+		long secs = Math.floorDiv(millis, 1000L);
+		long days = Math.floorDiv(secs, 86400L);
+		int sod = (int) (secs - days * 86400L);
+		//Civil from days, proleptic Gregorian calendar
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097L);
+		int doe = (int) (z - era * 146097L);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = (mp < 10) ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + ((month <= 2) ? 1 : 0);
+		String dn = Days[(int) Math.floorMod(days + 4, 7L)];
+		String mn = Months[month - 1];
+		out[off] = dn.charAt(0);
+		out[off+1] = dn.charAt(1);
+		out[off+2] = dn.charAt(2);
+		out[off+3] = ',';
+		out[off+4] = ' ';
+		two(out, off + 5, day);
+		out[off+7] = ' ';
+		out[off+8] = mn.charAt(0);
+		out[off+9] = mn.charAt(1);
+		out[off+10] = mn.charAt(2);
+		out[off+11] = ' ';
+		int y = (int) year;
+		two(out, off + 12, (y / 100) % 100);
+		two(out, off + 14, y % 100);
+		out[off+16] = ' ';
+		two(out, off + 17, sod / 3600);
+		out[off+19] = ':';
+		two(out, off + 20, (sod / 60) % 60);
+		out[off+22] = ':';
+		two(out, off + 23, sod % 60);
+		out[off+25] = ' ';
+		out[off+26] = 'G';
+		out[off+27] = 'M';
+		out[off+28] = 'T';
+	}
+	
+	protected static void two(char[] out, int off, int val) {
+		out[off] = (char) ('0' + val / 10);
+		out[off+1] = (char) ('0' + val % 10);
+	}
+	
+	/**
+	 * Parse HTTP date in IMF-fixdate, obsolete RFC 850 or asctime format
+	 * 
+	 * @return Milliseconds since epoch or -1 if date is malformed
+	 */
+	public static long parseHttpDate(CharSequence str) {
+		if(str == null) return -1;
+		int len = str.length();
+		int day = -1, month = -1, year = -1, hour = -1, min = -1, sec = -1;
+		int i = 0;
+		while(i < len) {
+			char c = str.charAt(i);
+			if(c == ' ' || c == ',' || c == '-' || c == '\t') {
+				i++;
+				continue;
+			}
+			int start = i;
+			while(i < len && (c = str.charAt(i)) != ' ' && c != ',' && c != '-' && c != '\t') i++;
+			int tlen = i - start;
+			char first = str.charAt(start);
+			if(first >= '0' && first <= '9') {
+				if(tlen == 8 && str.charAt(start + 2) == ':' && str.charAt(start + 5) == ':') {
+					hour = num(str, start, 2);
+					min = num(str, start + 3, 2);
+					sec = num(str, start + 6, 2);
+				} else if(tlen <= 2 && day == -1) {
+					day = num(str, start, tlen);
+				} else if(tlen == 4 || tlen == 2) {
+					year = num(str, start, tlen);
+					if(tlen == 2 && year >= 0) year += (year < 70) ? 2000 : 1900;
+				} else {
+					return -1;
+				}
+			} else if(tlen == 3 && month == -1) {
+				for(int m = 0; m < 12; m++) {
+					String mn = Months[m];
+					if(equalsIgnoreCase(str, start, mn)) {
+						month = m + 1;
+						break;
+					}
+				}
+			}
+		}
+		if(day < 1 || day > 31 || month == -1 || year < 0 
+				|| hour < 0 || hour > 23 || min < 0 || min > 59 || sec < 0 || sec > 60) {
+			return -1;
+		}
+		//Days from civil
+		int y = (month <= 2) ? year - 1 : year;
+		int era = Math.floorDiv(y, 400);
+		int yoe = y - era * 400;
+		int doy = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		long days = era * 146097L + doe - 719468;
+		return ((days * 24 + hour) * 60 + min) * 60000L + sec * 1000L;
+	}
+	
+	protected static int num(CharSequence str, int off, int len) {
+		int val = 0;
+		for(int i = off, end = off + len; i < end; i++) {
+			char c = str.charAt(i);
+			if(c < '0' || c > '9') return -1;
+			val = val * 10 + (c - '0');
+		}
+		return val;
+	}
+	
+	protected static boolean equalsIgnoreCase(CharSequence str, int off, String what) {
+		for(int i = 0; i < what.length(); i++) {
+			if(Character.toLowerCase(str.charAt(off + i)) != Character.toLowerCase(what.charAt(i))) 
+				return false;
+		}
+		return true;
+	}
+	
 }
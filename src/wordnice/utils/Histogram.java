@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2016 Dalibor Drgoň <emptychannelmc@gmail.com>
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ ******************************************************************************/
+
+package wordnice.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Lock-free histogram of non-negative long values (e.g. latencies in nanoseconds)
+ * with log-linear buckets in HdrHistogram style: each power of two range is
+ * split into 2^precision sub-buckets, so relative error of percentiles 
+ * is at most 1/2^precision. Values above 2^MaxExponent are clamped.
+ * 
+ * Buckets are striped by thread to avoid contention of recording threads,
+ * reading (percentiles) merges stripes and is not atomic with recording.
+ */
+public class Histogram {
+	
+	public static int DefaultPrecision = 5;
+	public static int MaxExponent = 40;
+	public static int MaxStripes = 4;
+	
+	protected static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		
+		@Override
+		public long applyAsLong(long a, long b) {
+			return Math.max(a, b);
+		}
+		
+	};
+	
+	protected final int precision;
+	protected final int subCount;
+	protected final long maxValue;
+	protected final AtomicLongArray[] stripes;
+	protected final LongAdder count = new LongAdder();
+	protected final LongAdder sum = new LongAdder();
+	protected final LongAccumulator max = new LongAccumulator(MAX, 0);
+	
+	public Histogram() {
+		this(DefaultPrecision);
+	}
+	
+	/**
+	 * @param precision Count of bits of sub-buckets (1 - 10)
+	 */
+	public Histogram(int precision) {
+		if(precision < 1 || precision > 10) throw new IllegalArgumentException("Precision must be 1 - 10");
+		this.precision = precision;
+		this.subCount = 1 << precision;
+		this.maxValue = (1L << MaxExponent) - 1;
+		int stripes = Math.min(MaxStripes, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+		this.stripes = new AtomicLongArray[Math.max(1, stripes)];
+		int size = this.indexOf(this.maxValue) + 1;
+		for(int i = 0; i < this.stripes.length; i++) this.stripes[i] = new AtomicLongArray(size);
+	}
+	
+	protected int indexOf(long v) {
+		if(v < this.subCount) return (int) v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - this.precision;
+		return ((shift + 1) << this.precision) | (int) ((v >>> shift) & (this.subCount - 1));
+	}
+	
+	/**
+	 * @return Lowest value stored in bucket
+	 */
+	protected long lowestOf(int index) {
+		if(index < this.subCount) return index;
+		int shift = (index >>> this.precision) - 1;
+		return ((long) ((index & (this.subCount - 1)) | this.subCount)) << shift;
+	}
+	
+	/**
+	 * @return Highest value stored in bucket
+	 */
+	protected long highestOf(int index) {
+		if(index < this.subCount) return index;
+		int shift = (index >>> this.precision) - 1;
+		return this.lowestOf(index) + (1L << shift) - 1;
+	}
+	
+	public void record(long value) {
+		if(value < 0) value = 0;
+		this.count.increment();
+		this.sum.add(value);
+		this.max.accumulate(value);
+		if(value > this.maxValue) value = this.maxValue;
+		AtomicLongArray[] st = this.stripes;
+		st[(int) Thread.currentThread().getId() & (st.length - 1)].incrementAndGet(this.indexOf(value));
+	}
+	
+	public long getCount() {
+		return this.count.sum();
+	}
+	
+	public long getSum() {
+		return this.sum.sum();
+	}
+	
+	public long getMax() {
+		return this.max.get();
+	}
+	
+	public double getMean() {
+		long c = this.count.sum();
+		return (c == 0) ? 0 : (double) this.sum.sum() / c;
+	}
+	
+	/**
+	 * @param percentile 0 - 100
+	 * @return Value at given percentile (highest value of its bucket, at most max), 0 if empty
+	 */
+	public long getValueAtPercentile(double percentile) {
+		return this.getValuesAtPercentiles(percentile)[0];
+	}
+	
+	/**
+	 * @param percentiles Ascending percentiles 0 - 100
+	 * @return Values at given percentiles, computed in one pass
+	 */
+	public long[] getValuesAtPercentiles(double... percentiles) {
+		long[] ret = new long[percentiles.length];
+		int size = this.stripes[0].length();
+		long[] merged = new long[size];
+		long total = 0;
+		for(AtomicLongArray st : this.stripes) {
+			for(int i = 0; i < size; i++) {
+				long c = st.get(i);
+				merged[i] += c;
+				total += c;
+			}
+		}
+		if(total == 0) return ret;
+		long max = this.max.get();
+		long seen = 0;
+		int p = 0;
+		for(int i = 0; i < size && p < percentiles.length; i++) {
+			seen += merged[i];
+			while(p < percentiles.length && seen > 0
+					&& seen >= Math.ceil(total * Math.min(100, percentiles[p]) / 100)) {
+				ret[p++] = Math.min(max, this.highestOf(i));
+			}
+		}
+		while(p < percentiles.length) ret[p++] = max;
+		return ret;
+	}
+	
+	/**
+	 * Clear recorded values. Values recorded concurrently may be partially lost
+	 */
+	public void reset() {
+		for(AtomicLongArray st : this.stripes) {
+			for(int i = 0, n = st.length(); i < n; i++) st.set(i, 0);
+		}
+		this.count.reset();
+		this.sum.reset();
+		this.max.reset();
+	}
+	
+	@Override
+	public String toString() {
+		long[] p = this.getValuesAtPercentiles(50, 90, 99, 99.9);
+		return "Histogram [count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + p[0] 
+				+ ", p90=" + p[1] + ", p99=" + p[2] + ", p999=" + p[3] + ", max=" + getMax() + "]";
+	}
+	
+}
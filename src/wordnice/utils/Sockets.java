@@ -30,6 +30,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
@@ -37,7 +38,9 @@ import java.util.Map;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 
 import wordnice.api.Nice;
@@ -76,6 +79,9 @@ public class Sockets {
 		protected String storePass = null;
 		protected String keyStoreFile = null;
 		protected int pending = -1;
+		protected volatile SSLContext sslContext = null;
+		protected int sessionCacheSize = -1;
+		protected int sessionTimeout = -1;
 		
 		public Config(String addr, int port) {
 			if(port < 1 || port > Short.MAX_VALUE)
@@ -169,6 +175,84 @@ public class Sockets {
 			return this.pending;
 		}
 		
+		/**
+		 * @return SSLContext of this config, keystore is loaded only once
+		 * @throws IllegalStateException if config is not SSL and context was not set
+		 */
+		public SSLContext getSSLContext() 
+				throws IOException, GeneralSecurityException, SecurityException, NoSuchAlgorithmException {
+			SSLContext ctx = this.sslContext;
+			if(ctx != null) return ctx;
+			synchronized(this) {
+				if(this.sslContext == null) {
+					if(!this.ssl) throw new IllegalStateException("Not SSL config");
+					ctx = createSSL(this.keyPass, this.storePass, this.keyStoreFile);
+					this.applySessionSettings(ctx);
+					this.sslContext = ctx;
+				}
+				return this.sslContext;
+			}
+		}
+		
+		/**
+		 * Use given context (e.g. with custom trust managers), makes config SSL
+		 */
+		public synchronized Config setSSLContext(SSLContext ctx) {
+			if(ctx == null) throw Nice.illegal("SSLContext == null");
+			this.applySessionSettings(ctx);
+			this.sslContext = ctx;
+			this.ssl = true;
+			return this;
+		}
+		
+		public int getSessionCacheSize() {
+			return this.sessionCacheSize;
+		}
+		
+		/**
+		 * Set count of cached server sessions for resumption, 0 for unlimited, 
+		 * -1 for JVM default
+		 */
+		public synchronized Config setSessionCacheSize(int size) {
+			this.sessionCacheSize = size;
+			if(this.sslContext != null) this.applySessionSettings(this.sslContext);
+			return this;
+		}
+		
+		public int getSessionTimeout() {
+			return this.sessionTimeout;
+		}
+		
+		/**
+		 * Set seconds server sessions can be resumed for, 0 for unlimited,
+		 * -1 for JVM default. With TLS 1.3 this bounds lifetime of session tickets
+		 * (stateless tickets are controlled by JVM wide property 
+		 * jdk.tls.server.enableSessionTicketExtension)
+		 */
+		public synchronized Config setSessionTimeout(int seconds) {
+			this.sessionTimeout = seconds;
+			if(this.sslContext != null) this.applySessionSettings(this.sslContext);
+			return this;
+		}
+		
+		protected void applySessionSettings(SSLContext ctx) {
+			SSLSessionContext sc = ctx.getServerSessionContext();
+			if(sc == null) return;
+			if(this.sessionCacheSize >= 0) sc.setSessionCacheSize(this.sessionCacheSize);
+			if(this.sessionTimeout >= 0) sc.setSessionTimeout(this.sessionTimeout);
+		}
+		
+		/**
+		 * Create server side engine for non-blocking transport 
+		 * (see {@link wordnice.streams.SSLStreams})
+		 */
+		public SSLEngine createServerEngine() 
+				throws IOException, GeneralSecurityException, SecurityException, NoSuchAlgorithmException {
+			SSLEngine engine = this.getSSLContext().createSSLEngine();
+			engine.setUseClientMode(false);
+			return engine;
+		}
+		
 		public Socket createSocket() 
 				throws NoSuchAlgorithmException, IOException, GeneralSecurityException, SecurityException {
 			return Sockets.createSocket(this);
@@ -179,6 +263,10 @@ public class Sockets {
 			return Sockets.createServerSocket(this);
 		}
 		
+		public ServerSocketChannel createServerSocketChannel() throws IOException {
+			return Sockets.createServerSocketChannel(this);
+		}
+		
 	}
 
 	/**
@@ -188,8 +276,10 @@ public class Sockets {
 	public static Socket createSocket(Config config) 
 			throws IOException, GeneralSecurityException, SecurityException, NoSuchAlgorithmException {
 		if(config.ssl) {
-			return createSocket(config.host, config.port, config.keyPass, 
-					config.storePass, config.keyStoreFile);
+			String addr = (config.host == null) ? "localhost" : config.host;
+			SSLSocket sock = (SSLSocket) config.getSSLContext().getSocketFactory().createSocket();
+			sock.connect(new InetSocketAddress(addr, config.port));
+			return sock;
 		}
 		return createSocket(config.host, config.port);
 	}
@@ -230,8 +320,11 @@ public class Sockets {
 	public static ServerSocket createServerSocket(Config config) 
 			throws IOException, GeneralSecurityException, SecurityException, NoSuchAlgorithmException {
 		if(config.ssl) {
-			return createServerSocket(config.host, config.port, config.keyPass, 
-					config.storePass, config.keyStoreFile, config.pending);
+			SSLServerSocket sock = (SSLServerSocket) config.getSSLContext()
+					.getServerSocketFactory().createServerSocket();
+			sock.bind((config.host == null) ? new InetSocketAddress(config.port) 
+					: new InetSocketAddress(config.host, config.port), config.pending);
+			return sock;
 		}
 		return createServerSocket(config.host, config.port, config.pending);
 	}
@@ -294,6 +387,39 @@ public class Sockets {
 		return sock;
 	}
 	
+	/**
+	 * Server socket channels (non-blocking servers)
+	 */
+	
+	/**
+	 * Channel itself is always plain, SSL configs are encrypted 
+	 * per connection with {@link Config#createServerEngine()}
+	 */
+	public static ServerSocketChannel createServerSocketChannel(Config config) throws IOException {
+		InetSocketAddress addr = (config.host == null) 
+				? new InetSocketAddress(config.port) 
+				: new InetSocketAddress(config.host, config.port);
+		return createServerSocketChannel(addr, config.pending);
+	}
+	
+	public static ServerSocketChannel createServerSocketChannel(int port) throws IOException {
+		return createServerSocketChannel(new InetSocketAddress(port), -1);
+	}
+	
+	public static ServerSocketChannel createServerSocketChannel(SocketAddress addr, int pending) throws IOException {
+		ServerSocketChannel ch = ServerSocketChannel.open();
+		try {
+			ch.socket().setReuseAddress(true);
+			ch.bind(addr, Math.max(pending, 0));
+		} catch(IOException ex) {
+			try {
+				ch.close();
+			} catch(IOException ign) {}
+			throw ex;
+		}
+		return ch;
+	}
+	
 	/**
 	 * Create SSLContext for given certificate
 	 */